@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2017 CentraleSupélec
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.centralesupelec.students.clientble;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.UUID;
+
+/**
+ * Table des numéros attribués par le Bluetooth SIG (services, caractéristiques, descripteurs),
+ * indexée par UUID court (16 bits).
+ *
+ * La table est lue depuis une ressource binaire compacte (res/raw/gatt_assigned_numbers.bin,
+ * générée par tools/gen_assigned_numbers.py) lors de la première recherche. Elle est stockée
+ * dans une table de hachage à adressage ouvert sur des tableaux primitifs : une recherche ne
+ * provoque aucune allocation.
+ */
+public final class AssignedNumbers {
+
+    /** Types d’attributs (cf. tools/gen_assigned_numbers.py). */
+    public static final int KIND_UNKNOWN = 0;
+    public static final int KIND_SERVICE = 1;
+    public static final int KIND_DECLARATION = 2;
+    public static final int KIND_CHARACTERISTIC = 3;
+    public static final int KIND_DESCRIPTOR = 4;
+
+    private static final int MAGIC = 0x4741544e; // "GATN"
+    private static final int VERSION = 1;
+
+    // UUID de base du Bluetooth SIG : 0000xxxx-0000-1000-8000-00805f9b34fb.
+    private static final long BASE_MSB_MASK = 0xffff0000ffffffffL;
+    private static final long BASE_MSB = 0x0000000000001000L;
+    private static final long BASE_LSB = 0x800000805f9b34fbL;
+
+    private static final int EMPTY = -1;
+
+    // Table à adressage ouvert (sondage linéaire) ; taille : puissance de 2.
+    private final int[] mKeys;
+    private final byte[] mKinds;
+    private final String[] mNames;
+    private final int mMask;
+
+    private AssignedNumbers(int capacity) {
+        int size = 1;
+        while (size < 2 * capacity) {
+            size <<= 1;
+        }
+        mKeys = new int[size];
+        Arrays.fill(mKeys, EMPTY);
+        mKinds = new byte[size];
+        mNames = new String[size];
+        mMask = size - 1;
+    }
+
+    /**
+     * Lecture de la table depuis la ressource binaire.
+     * @param in flux de la ressource, fermé par l’appelant
+     * @return
+     * @throws IOException si la ressource est illisible ou de format inconnu
+     */
+    public static AssignedNumbers read(InputStream in) throws IOException {
+        final DataInputStream data = new DataInputStream(in);
+        if (data.readInt() != MAGIC || data.readUnsignedByte() != VERSION) {
+            throw new IOException("Format de la table des numéros attribués inconnu.");
+        }
+        final int count = data.readUnsignedShort();
+        final AssignedNumbers table = new AssignedNumbers(count);
+        final byte[] buffer = new byte[255];
+        for (int i = 0; i < count; i++) {
+            final int uuid16 = data.readUnsignedShort();
+            final int kind = data.readUnsignedByte();
+            final int length = data.readUnsignedByte();
+            data.readFully(buffer, 0, length);
+            table.put(uuid16, kind, new String(buffer, 0, length, "UTF-8"));
+        }
+        return table;
+    }
+
+    private void put(int uuid16, int kind, String name) {
+        int slot = hash(uuid16) & mMask;
+        while (mKeys[slot] != EMPTY && mKeys[slot] != uuid16) {
+            slot = (slot + 1) & mMask;
+        }
+        mKeys[slot] = uuid16;
+        mKinds[slot] = (byte) kind;
+        mNames[slot] = name;
+    }
+
+    private int find(int uuid16) {
+        int slot = hash(uuid16) & mMask;
+        while (mKeys[slot] != EMPTY) {
+            if (mKeys[slot] == uuid16) {
+                return slot;
+            }
+            slot = (slot + 1) & mMask;
+        }
+        return -1;
+    }
+
+    private static int hash(int key) {
+        // Les UUID courts sont regroupés par plages (0x18xx, 0x2Axx…) : mélange des bits.
+        final int h = key * 0x9e3779b9;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * Retourne l’UUID court d’un UUID dérivé de l’UUID de base du Bluetooth SIG.
+     * @param uuid
+     * @return l’UUID court (16 bits), ou -1 pour un UUID propriétaire (128 bits)
+     */
+    public static int toShortUuid(UUID uuid) {
+        final long msb = uuid.getMostSignificantBits();
+        if (uuid.getLeastSignificantBits() != BASE_LSB || (msb & BASE_MSB_MASK) != BASE_MSB) {
+            return -1;
+        }
+        return (int) (msb >>> 32);
+    }
+
+    /**
+     * Recherche du nom d’un attribut.
+     * @param uuid
+     * @return le nom, ou null si l’UUID est inconnu
+     */
+    public String lookup(UUID uuid) {
+        final int uuid16 = toShortUuid(uuid);
+        if (uuid16 < 0) {
+            return null;
+        }
+        final int slot = find(uuid16);
+        return slot < 0 ? null : mNames[slot];
+    }
+
+    /**
+     * Type d’un attribut.
+     * @param uuid
+     * @return KIND_*, KIND_UNKNOWN si l’UUID est inconnu
+     */
+    public int getKind(UUID uuid) {
+        final int uuid16 = toShortUuid(uuid);
+        final int slot = uuid16 < 0 ? -1 : find(uuid16);
+        return slot < 0 ? KIND_UNKNOWN : mKinds[slot];
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) 2017 CentraleSupélec
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.centralesupelec.students.clientble;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Relevé horodaté des valeurs de tous les attributs lisibles d’un appareil.
+ *
+ * Chaque attribut est identifié par son chemin : « service/caractéristique » ou
+ * « service/caractéristique/descripteur », chaque élément étant « uuid#instance ».
+ * Le relevé s’enregistre dans un format texte, une ligne par attribut, et peut être comparé
+ * à un relevé précédent.
+ */
+public class AttributeSnapshot {
+
+    private static final String HEADER = "# ClientBLE attribute dump v1";
+
+    private final String mAddress;
+    private final long mTime;
+    // Valeurs par chemin, dans l’ordre de lecture ; null en cas d’échec de la lecture.
+    private final LinkedHashMap<String, String> mValues = new LinkedHashMap<String, String>();
+
+    /**
+     * @param address adresse de l’appareil
+     * @param time date du relevé (ms depuis l’époque Unix)
+     */
+    public AttributeSnapshot(String address, long time) {
+        mAddress = address;
+        mTime = time;
+    }
+
+    public String getAddress() {
+        return mAddress;
+    }
+
+    public long getTime() {
+        return mTime;
+    }
+
+    public int size() {
+        return mValues.size();
+    }
+
+    /**
+     * Enregistrement de la valeur d’un attribut.
+     * @param path chemin de l’attribut
+     * @param value valeur lue, ou null si la lecture a échoué
+     */
+    public void put(String path, byte[] value) {
+        mValues.put(path, value == null ? null : toHex(value));
+    }
+
+    /**
+     * Valeur d’un attribut, en hexadécimal.
+     * @param path chemin de l’attribut
+     * @return
+     */
+    public String get(String path) {
+        return mValues.get(path);
+    }
+
+    /**
+     * Comparaison avec un relevé précédent.
+     * @param previous relevé précédent
+     * @return une ligne par différence : « + chemin valeur » (attribut apparu),
+     * « - chemin » (attribut disparu) ou « ~ chemin ancienne -> nouvelle »
+     */
+    public List<String> diff(AttributeSnapshot previous) {
+        final ArrayList<String> differences = new ArrayList<String>();
+        for (Map.Entry<String, String> entry : mValues.entrySet()) {
+            final String path = entry.getKey();
+            if (!previous.mValues.containsKey(path)) {
+                differences.add("+ " + path + " " + entry.getValue());
+            } else {
+                final String before = previous.mValues.get(path);
+                final String after = entry.getValue();
+                if (before == null ? after != null : !before.equals(after)) {
+                    differences.add("~ " + path + " " + before + " -> " + after);
+                }
+            }
+        }
+        for (String path : previous.mValues.keySet()) {
+            if (!mValues.containsKey(path)) {
+                differences.add("- " + path);
+            }
+        }
+        return differences;
+    }
+
+    /**
+     * Écriture du relevé au format texte.
+     * @param writer
+     * @throws IOException
+     */
+    public void write(Writer writer) throws IOException {
+        writer.write(HEADER + "\n");
+        writer.write("address " + mAddress + "\n");
+        writer.write("time " + mTime + "\n");
+        for (Map.Entry<String, String> entry : mValues.entrySet()) {
+            writer.write(entry.getKey() + " " + entry.getValue() + "\n");
+        }
+        writer.flush();
+    }
+
+    /**
+     * Lecture d’un relevé écrit par {@link #write(Writer)}.
+     * @param reader
+     * @return
+     * @throws IOException si le format n’est pas reconnu
+     */
+    public static AttributeSnapshot read(Reader reader) throws IOException {
+        final BufferedReader in = new BufferedReader(reader);
+        String address = null;
+        long time = 0;
+        String line = in.readLine();
+        if (!HEADER.equals(line)) {
+            throw new IOException("Format de relevé inconnu.");
+        }
+        AttributeSnapshot snapshot = null;
+        while ((line = in.readLine()) != null) {
+            final int space = line.indexOf(' ');
+            if (space < 0) {
+                throw new IOException("Ligne invalide : " + line);
+            }
+            final String key = line.substring(0, space);
+            final String value = line.substring(space + 1);
+            if (snapshot == null) {
+                if ("address".equals(key)) {
+                    address = value;
+                    continue;
+                }
+                if ("time".equals(key)) {
+                    time = Long.parseLong(value);
+                    continue;
+                }
+                snapshot = new AttributeSnapshot(address, time);
+            }
+            snapshot.mValues.put(key, "null".equals(value) ? null : value);
+        }
+        return snapshot != null ? snapshot : new AttributeSnapshot(address, time);
+    }
+
+    /**
+     * Représentation hexadécimale d’une valeur.
+     * @param data
+     * @return
+     */
+    public static String toHex(byte[] data) {
+        final char[] digits = "0123456789ABCDEF".toCharArray();
+        final char[] hex = new char[2 * data.length];
+        for (int i = 0; i < data.length; i++) {
+            hex[2 * i] = digits[(data[i] >> 4) & 0x0f];
+            hex[2 * i + 1] = digits[data[i] & 0x0f];
+        }
+        return new String(hex);
+    }
+}
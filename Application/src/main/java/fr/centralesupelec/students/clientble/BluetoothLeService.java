@@ -17,6 +17,9 @@
 
 package fr.centralesupelec.students.clientble;
 
+import android.app.Notification;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
 import android.app.Service;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
@@ -30,15 +33,53 @@ import android.bluetooth.BluetoothProfile;
 import android.content.Context;
 import android.content.Intent;
 import android.os.Binder;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
+import android.os.Looper;
+import android.os.ParcelFileDescriptor;
+import android.os.RemoteCallbackList;
+import android.os.RemoteException;
+import android.os.SystemClock;
 import android.util.Log;
 
+import fr.centralesupelec.students.clientble.core.AlertRules;
+import fr.centralesupelec.students.clientble.core.CharacteristicSchema;
+import fr.centralesupelec.students.clientble.core.LastValueCache;
+import fr.centralesupelec.students.clientble.core.LinkQualityTracker;
+import fr.centralesupelec.students.clientble.core.RateCommand;
+import fr.centralesupelec.students.clientble.core.RateController;
+import fr.centralesupelec.students.clientble.core.RateNegotiator;
+import fr.centralesupelec.students.clientble.core.SamplePipeline;
+import fr.centralesupelec.students.clientble.core.SampleRing;
+import fr.centralesupelec.students.clientble.core.SampleServer;
+import fr.centralesupelec.students.clientble.core.SampleStatistics;
+import fr.centralesupelec.students.clientble.core.SensorDecoder;
+import fr.centralesupelec.students.clientble.core.SensorProtocol;
+import fr.centralesupelec.students.clientble.core.StreamingSession;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Reader;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.nio.channels.FileChannel;
 import java.text.DateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.UUID;
-
-import static java.lang.Thread.sleep;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Service for managing connection and data communication with a GATT server hosted on a
@@ -47,15 +88,162 @@ import static java.lang.Thread.sleep;
 public class BluetoothLeService extends Service {
     private final static String TAG = BluetoothLeService.class.getSimpleName();
 
+    // Journalisation des chemins fréquents (voir Logger.)
+    private static final int LOG_TAG = Logger.register(TAG);
+    private static final int LOG_WRITE_SUCCESS =
+            Logger.register("Réussite de l’écriture de la caractéristique.");
+    private static final int LOG_CHANGED = Logger.register("onCharacteristicChanged() appelé.");
+    private static final int LOG_BROADCAST = Logger.register("broadcastUpdate(String) appelé.");
+    private static final int LOG_BROADCAST_VALUE =
+            Logger.register("broadcastUpdate(String, BluetoothGattChar.) appelé, source {}.");
+    private static final int LOG_WRITABLE_VALUE =
+            Logger.register("Valeur de la caractéristique éditable : {} octets.");
+    private static final int LOG_WRITE_COALESCED =
+            Logger.register("Écriture fusionnée avec l’écriture en attente ({} au total).");
+    private static final int LOG_NOTIFICATION =
+            Logger.register("setCharacteristicNotification() appelé, activation : {}.");
+
+    // Hexadécimal, pour l’affichage des valeurs éditables.
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
+    private static boolean sCrashLogInstalled;
+
     private BluetoothManager mBluetoothManager;
     private BluetoothAdapter mBluetoothAdapter;
     private String mBluetoothDeviceAddress;
-    private BluetoothGatt mBluetoothGatt;
-    private int mConnectionState = STATE_DISCONNECTED;
+    private volatile BluetoothGatt mBluetoothGatt;
+
+    // État de la connexion, modifié depuis les callbacks comme depuis les appelants.
+    private final ConnectionStateMachine mConnectionState = new ConnectionStateMachine();
+
+    // Connexion demandée pendant une déconnexion, lancée dès que celle-ci est terminée
+    // (gardées par this.)
+    private String mPendingAddress;
+    private BluetoothDevice mPendingDevice;
+
+    // Délais maximaux (ms) de la connexion et de la découverte des services, au-delà
+    // desquels la tentative est abandonnée et le client GATT libéré.
+    public static final long DEFAULT_CONNECT_TIMEOUT = 10000;
+    public static final long DEFAULT_DISCOVERY_TIMEOUT = 8000;
+    private volatile long mConnectTimeout = DEFAULT_CONNECT_TIMEOUT;
+    private volatile long mDiscoveryTimeout = DEFAULT_DISCOVERY_TIMEOUT;
+    // Délai maximal (ms) d’attente de STATE_DISCONNECTED après une demande de déconnexion :
+    // la pile ne l’envoie pas toujours (liaison déjà perdue, par exemple.)
+    public static final long DISCONNECT_TIMEOUT = 5000;
+
+    // Gestionnaire des délais, sur le thread principal.
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    // Appareils déjà connectés, enregistrés sur disque.
+    private KnownDeviceRegistry mKnownDevices;
+
+    // Liaisons en arrière-plan (autoConnect) vers les appareils connus qui ne sont pas
+    // connectés au premier plan : le contrôleur Bluetooth les établit seul dès que l’appareil
+    // est à portée, sans scan (gardées par mBackgroundLinks.) Elles ne servent qu’à détecter
+    // la présence : ni découverte des services, ni abonnement, ni flux des mesures.
+    private final HashMap<String, BluetoothGatt> mBackgroundLinks =
+            new HashMap<String, BluetoothGatt>();
+
+    // Flux des mesures pour les autres applications : anneau dans un fichier projeté en
+    // mémoire, et signal de réveil envoyé au plus une fois par STREAM_WAKE_DELAY ms.
+    private static final int STREAM_CAPACITY = 4096;
+    private static final long STREAM_WAKE_DELAY = 20;
+    private File mStreamFile;
+    private SampleRing.Writer mStreamWriter;
+    private final RemoteCallbackList<ISampleStreamCallback> mStreamCallbacks =
+            new RemoteCallbackList<ISampleStreamCallback>();
+    private final AtomicBoolean mStreamWakePending = new AtomicBoolean();
+
+    // Serveur TCP facultatif de diffusion des mesures vers les outils d’analyse, activé
+    // depuis l’écran de détail et réactivé aux démarrages suivants.
+    private static final String SERVER_PREFERENCES = "server";
+    private static final String SERVER_ENABLED_KEY = "enabled";
+    public static final int SERVER_PORT = 7433;
+    private static final int SERVER_CLIENT_BUFFER = 256 * 1024;
+    private static final long SERVER_BATCH_INTERVAL = 20;
+    private static final int SERVER_BATCH_CAPACITY = 4096;
+    private SampleServer mServer;
+
+    // MTU ATT de la connexion : 23 octets tant qu’aucun autre n’a été négocié, dont 3
+    // d’en-tête pour une écriture.
+    private static final int DEFAULT_MTU = 23;
+    private static final int ATT_WRITE_HEADER_LENGTH = 3;
+    private volatile int mMtu = DEFAULT_MTU;
+
+    // File des opérations GATT : une seule opération à la fois.
+    private final GattOperationQueue mGattQueue =
+            new GattOperationQueue(new GattOperationQueue.Listener() {
+                @Override
+                public void onOperationRejected(GattOperationQueue.Operation operation) {
+                    if (operation.tag == GattOperationQueue.TAG_DUMP) {
+                        recordDump(operation.characteristic, operation.descriptor, null);
+                    } else if (operation.tag == GattOperationQueue.TAG_RATE
+                            && operation.type == GattOperationQueue.READ_CHARACTERISTIC) {
+                        // Relecture refusée : sans confirmation, la commande resterait en
+                        // attente et bloquerait les envois suivants. Une écriture refusée
+                        // est suivie de sa relecture, qui échouera à confirmer.
+                        mHandler.post(new Runnable() {
+                            @Override
+                            public void run() {
+                                confirmRate(null);
+                            }
+                        });
+                    }
+                }
+            }, mHandler, GattOperationQueue.OPERATION_TIMEOUT);
+
+    // Dernière valeur reçue de chaque caractéristique, par appareil.
+    private final LastValueCache mLastValues = new LastValueCache();
+
+    // Schéma des caractéristiques connues (res/raw/characteristic_schema.txt), et table de
+    // répartition des callbacks construite à la découverte des services : indexée par
+    // l’objet caractéristique lui-même, elle évite toute comparaison d’UUID à chaque valeur.
+    private volatile CharacteristicSchema mSchema = CharacteristicSchema.empty();
+    private volatile IdentityHashMap<BluetoothGattCharacteristic, CharacteristicSchema.Entry>
+            mDispatch =
+            new IdentityHashMap<BluetoothGattCharacteristic, CharacteristicSchema.Entry>();
+
+    // Historique compressé des mesures, enregistré sur disque, et son compactage périodique
+    // (agrégats, mesures brutes anciennes) sur un thread d’arrière-plan, qui fait aussi les
+    // autres écritures de fichiers longues (relevés des attributs.)
+    private static final long HISTORY_COMPACTION_PERIOD = 60 * 1000;
+    private SampleHistory mHistory;
+    private HandlerThread mHistoryThread;
+    private Handler mHistoryHandler;
+
+    // Statistiques des mesures, par appareil.
+    private final SampleStatistics mStatistics = new SampleStatistics();
+
+    // Traitement des valeurs du service privé : décodage, qualité de la liaison, publication
+    // des mesures et évaluation des règles d’alerte (partagé avec le lanceur sur la JVM.)
+    private final SensorProtocol mProtocol = new SensorProtocol(SamplePipeline.getInstance());
 
-    private static final int STATE_DISCONNECTED = 0;
-    private static final int STATE_CONNECTING = 1;
-    private static final int STATE_CONNECTED = 2;
+    // Liaison vue par le cœur : les callbacks GATT lui sont transmis, et il les transmet à
+    // mSession puis mProtocol, comme un appareil simulé sur la JVM.
+    private final GattTransport mTransport = new GattTransport(this);
+
+    // Mise en route des mesures à chaque connexion (lecture et souscription ensemble, délai
+    // de première mesure) et souscription aux notifications du potentiomètre, gardée tant
+    // qu’un consommateur des mesures (affichage, historique, alertes) est actif, y compris
+    // quand aucune activité n’est affichée.
+    private final StreamingSession mSession = new StreamingSession(mTransport, mProtocol);
+
+    // Règles d’alerte compilées, évaluées sur chaque valeur du potentiomètre.
+    private static final String ALERT_PREFERENCES = "alerts";
+    private static final String ALERT_RULES_KEY = "rules";
+    private static final int ALERT_NOTIFICATION_ID = 1000;
+    // Période de vérification des règles d’absence de mesure (ms.)
+    private static final long SILENCE_CHECK_PERIOD = 1000;
+
+    // Période d’échantillonnage demandée à l’appareil selon les consommateurs actifs, et
+    // commande en attente de confirmation par relecture.
+    private final RateController mRateController = new RateController();
+    private final RateNegotiator mRateNegotiator = new RateNegotiator(mRateController);
+
+    // Relevé complet des attributs en cours (null sinon), et son avancement.
+    private AttributeSnapshot mDump;
+    private int mDumpTotal;
+    private int mDumpDone;
 
     // Nom des actions envoyées lors des Intents broadcastés
     public final static String ACTION_GATT_CONNECTED =
@@ -68,8 +256,49 @@ public class BluetoothLeService extends Service {
             "fr.centralesupelec.students.clientble.ACTION_SENSOR_VALUE_AVAILABLE";
     public final static String ACTION_WRITABLE_VALUE_AVAILABLE =
             "fr.centralesupelec.students.clientble.ACTION_WRITABLE_VALUE_AVAILABLE";
+    public final static String ACTION_ALERT =
+            "fr.centralesupelec.students.clientble.ACTION_ALERT";
+    public final static String ACTION_DUMP_PROGRESS =
+            "fr.centralesupelec.students.clientble.ACTION_DUMP_PROGRESS";
+    public final static String ACTION_DUMP_COMPLETE =
+            "fr.centralesupelec.students.clientble.ACTION_DUMP_COMPLETE";
+    // Arrêt du serveur TCP de diffusion des mesures sur une erreur.
+    public final static String ACTION_STREAMING_SERVER_STOPPED =
+            "fr.centralesupelec.students.clientble.ACTION_STREAMING_SERVER_STOPPED";
+    // Appareil connu à portée (EXTRA_ADDRESS) : signal de présence seulement, aucune mesure
+    // n’est reçue tant que l’appareil n’est pas ouvert par connect().
+    public final static String ACTION_KNOWN_DEVICE_IN_RANGE =
+            "fr.centralesupelec.students.clientble.ACTION_KNOWN_DEVICE_IN_RANGE";
     public final static String EXTRA_DATA =
             "fr.centralesupelec.students.clientble.EXTRA_DATA";
+    // Action de liaison des autres applications au flux des mesures (ISampleStream.)
+    public final static String ACTION_BIND_SAMPLE_STREAM =
+            "fr.centralesupelec.students.clientble.ACTION_BIND_SAMPLE_STREAM";
+    // Adresse de l’appareil concerné (String.)
+    public final static String EXTRA_ADDRESS =
+            "fr.centralesupelec.students.clientble.EXTRA_ADDRESS";
+    // UUID de la caractéristique dont la valeur est diffusée (String.)
+    public final static String EXTRA_CHARACTERISTIC =
+            "fr.centralesupelec.students.clientble.EXTRA_CHARACTERISTIC";
+    // Date de réception de la valeur (SystemClock.elapsedRealtimeNanos(), long.)
+    public final static String EXTRA_TIMESTAMP_NANOS =
+            "fr.centralesupelec.students.clientble.EXTRA_TIMESTAMP_NANOS";
+    // Origine de la valeur (SamplePipeline.SOURCE_*, entier.)
+    public final static String EXTRA_SOURCE =
+            "fr.centralesupelec.students.clientble.EXTRA_SOURCE";
+    // Valeur reprise du cache des dernières valeurs, et non reçue à l’instant (booléen.)
+    public final static String EXTRA_CACHED =
+            "fr.centralesupelec.students.clientble.EXTRA_CACHED";
+    // Avancement d’un relevé : nombre d’attributs lus et nombre total (entiers.)
+    public final static String EXTRA_DUMP_DONE =
+            "fr.centralesupelec.students.clientble.EXTRA_DUMP_DONE";
+    public final static String EXTRA_DUMP_TOTAL =
+            "fr.centralesupelec.students.clientble.EXTRA_DUMP_TOTAL";
+    // Fin d’un relevé : fichier enregistré et différences avec le relevé précédent.
+    public final static String EXTRA_DUMP_FILE =
+            "fr.centralesupelec.students.clientble.EXTRA_DUMP_FILE";
+    public final static String EXTRA_DUMP_DIFF =
+            "fr.centralesupelec.students.clientble.EXTRA_DUMP_DIFF";
 
 
     // Implements callback methods for GATT events that the app cares about.  For example,
@@ -79,30 +308,65 @@ public class BluetoothLeService extends Service {
     private final BluetoothGattCallback mGattCallback = new BluetoothGattCallback() {
         @Override
         public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
-            String intentAction;
+            if (status != BluetoothGatt.GATT_SUCCESS) {
+                // Échec de la connexion (typiquement le statut 133) : inutile d’attendre
+                // l’expiration du délai, le client GATT est libéré immédiatement.
+                Log.w(TAG, "onConnectionStateChange received: " + status);
+                fail(gatt);
+                return;
+            }
             if (newState == BluetoothProfile.STATE_CONNECTED) {
-                intentAction = ACTION_GATT_CONNECTED;
-                mConnectionState = STATE_CONNECTED;
-                broadcastUpdate(intentAction);
-                Log.i(TAG, "Connected to GATT server.");
+                if (!mConnectionState.transition(ConnectionStateMachine.State.CONNECTING,
+                        ConnectionStateMachine.State.DISCOVERING)) {
+                    Log.w(TAG, "Connexion inattendue dans l’état " + mConnectionState.get());
+                    return;
+                }
+                mHandler.removeCallbacks(mConnectTimeoutRunnable);
+                Log.i(TAG, "Connected to GATT server in "
+                        + mConnectionState.getLastDurationMillis(ConnectionStateMachine.State.CONNECTING)
+                        + " ms.");
+                broadcastUpdate(ACTION_GATT_CONNECTED);
                 // Attempts to discover services after successful connection.
-                Log.i(TAG, "Attempting to start service discovery:" +
-                        mBluetoothGatt.discoverServices());
-
+                mHandler.postDelayed(mDiscoveryTimeoutRunnable, mDiscoveryTimeout);
+                if (!gatt.discoverServices()) {
+                    Log.w(TAG, "Unable to start service discovery.");
+                    fail(gatt);
+                }
             } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
-                intentAction = ACTION_GATT_DISCONNECTED;
-                mConnectionState = STATE_DISCONNECTED;
+                cancelTimeouts();
+                clearOperations();
+                mConnectionState.moveTo(ConnectionStateMachine.State.DISCONNECTED);
                 Log.i(TAG, "Disconnected from GATT server.");
-                broadcastUpdate(intentAction);
+                mTransport.dispatchDisconnected(gatt.getDevice().getAddress());
+                broadcastUpdate(ACTION_GATT_DISCONNECTED);
+                connectPending();
             }
         }
 
         @Override
         public void onServicesDiscovered(BluetoothGatt gatt, int status) {
             if (status == BluetoothGatt.GATT_SUCCESS) {
+                if (!mConnectionState.transition(ConnectionStateMachine.State.DISCOVERING,
+                        ConnectionStateMachine.State.READY)) {
+                    // Découverte arrivée après expiration du délai ou une déconnexion.
+                    return;
+                }
+                mHandler.removeCallbacks(mDiscoveryTimeoutRunnable);
+                buildDispatch(gatt);
+                // Lecture et souscription (StreamingSession) avant toute autre opération : la
+                // première mesure n’attend ni l’activité ni la commande de période.
+                mTransport.dispatchConnected(gatt.getDevice().getAddress());
+                rememberDevice(gatt);
+                startSilenceCheck();
+                resetRate();
+                pushRate();
+                Log.i(TAG, "Services discovered in "
+                        + mConnectionState.getLastDurationMillis(ConnectionStateMachine.State.DISCOVERING)
+                        + " ms.");
                 broadcastUpdate(ACTION_GATT_SERVICES_DISCOVERED);
             } else {
                 Log.w(TAG, "onServicesDiscovered received: " + status);
+                fail(gatt);
             }
         }
 
@@ -117,18 +381,35 @@ public class BluetoothLeService extends Service {
         public void onCharacteristicRead(BluetoothGatt gatt,
                                          BluetoothGattCharacteristic characteristic,
                                          int status) {
-            final UUID uuid = characteristic.getUuid();
+            // Date de réception, avant tout traitement.
+            final long receivedNanos = SystemClock.elapsedRealtimeNanos();
+            Tracing.begin(Tracing.CALLBACK_READ);
+            try {
+                final GattOperationQueue.Operation operation =
+                        mGattQueue.current(characteristic);
+                if (operation != null && operation.tag == GattOperationQueue.TAG_DUMP) {
+                    recordDump(characteristic, null, status == BluetoothGatt.GATT_SUCCESS
+                            ? characteristic.getValue() : null);
+                } else if (operation != null && operation.tag == GattOperationQueue.TAG_RATE) {
+                    // Relecture d’une commande : pas d’affichage.
+                    mGattQueue.complete(gatt, characteristic);
+                    confirmRate(status == BluetoothGatt.GATT_SUCCESS
+                            ? characteristic.getValue() : null);
+                    return;
+                }
 
-            if (status == BluetoothGatt.GATT_SUCCESS) {
-                if (GattConstants.SENSOR_CHARACTERISTIC_UUID.equals(uuid)) {
-                    // Valeur du potentiomètre.
-                    broadcastUpdate(ACTION_SENSOR_VALUE_AVAILABLE, characteristic);
-                } else if (GattConstants.WRITABLE_CHARACTERISTIC_UUID.equals(uuid)) {
-                    // Valeur de la caractéristique longue.
-                    broadcastUpdate(ACTION_WRITABLE_VALUE_AVAILABLE, characteristic);
-                } else {
-                    Log.w(TAG, "UUID non reconnue.");
+                if (status == BluetoothGatt.GATT_SUCCESS) {
+                    final CharacteristicSchema.Entry entry = describe(characteristic);
+                    if (entry != null) {
+                        broadcastUpdate(entry, gatt, characteristic, SamplePipeline.SOURCE_READ,
+                                receivedNanos);
+                    } else {
+                        Log.w(TAG, "UUID non reconnue.");
+                    }
                 }
+                mGattQueue.complete(gatt, characteristic);
+            } finally {
+                Tracing.end(Tracing.CALLBACK_READ);
             }
         }
 
@@ -143,18 +424,81 @@ public class BluetoothLeService extends Service {
         public void onCharacteristicWrite(BluetoothGatt gatt,
                                           BluetoothGattCharacteristic characteristic,
                                           int status) {
-            final UUID uuid = characteristic.getUuid();
-            if (status == BluetoothGatt.GATT_SUCCESS) {
-                Log.d(TAG, "Réusssite de l’écriture de la caractéristique.");
-                if (GattConstants.SENSOR_CHARACTERISTIC_UUID.equals(uuid)) {
-                    // Valeur du potentiomètre – ne devrait pas se produire (lecture seule.)
-                    broadcastUpdate(ACTION_SENSOR_VALUE_AVAILABLE, characteristic);
-                } else if (GattConstants.WRITABLE_CHARACTERISTIC_UUID.equals(uuid)) {
-                    // Valeur de la caractéristique longue et éditable.
-                    broadcastUpdate(ACTION_WRITABLE_VALUE_AVAILABLE, characteristic);
+            final long receivedNanos = SystemClock.elapsedRealtimeNanos();
+            Tracing.begin(Tracing.CALLBACK_WRITE);
+            try {
+                final GattOperationQueue.Operation operation =
+                        mGattQueue.current(characteristic);
+                if (operation != null && operation.tag == GattOperationQueue.TAG_RATE) {
+                    // Commande de période : le résultat est vérifié par la relecture qui suit.
+                    if (status != BluetoothGatt.GATT_SUCCESS) {
+                        Log.w(TAG, "Échec de l’écriture de la commande de période : " + status);
+                    }
+                } else if (status == BluetoothGatt.GATT_SUCCESS) {
+                    Logger.d(LOG_TAG, LOG_WRITE_SUCCESS);
+                    // Valeur écrite, renvoyée pour affichage (caractéristique éditable.)
+                    final CharacteristicSchema.Entry entry = describe(characteristic);
+                    if (entry != null) {
+                        broadcastUpdate(entry, gatt, characteristic, SamplePipeline.SOURCE_READ,
+                                receivedNanos);
+                    }
+                } else {
+                    Log.w(TAG, "Échec de l’écriture de la caractéristique.");
                 }
-            } else {
-                Log.w(TAG, "Échec de l’écriture de la caractéristique.");
+                mGattQueue.complete(gatt, characteristic);
+            } finally {
+                Tracing.end(Tracing.CALLBACK_WRITE);
+            }
+        }
+
+        /**
+         * Fin de la lecture d’un descripteur (relevé complet des attributs.)
+         * @param gatt
+         * @param descriptor
+         * @param status
+         */
+        @Override
+        public void onDescriptorRead(BluetoothGatt gatt, BluetoothGattDescriptor descriptor,
+                                     int status) {
+            final GattOperationQueue.Operation operation = mGattQueue.current(descriptor);
+            if (operation != null && operation.tag == GattOperationQueue.TAG_DUMP) {
+                recordDump(descriptor.getCharacteristic(), descriptor,
+                        status == BluetoothGatt.GATT_SUCCESS ? descriptor.getValue() : null);
+            }
+            mGattQueue.complete(gatt, descriptor);
+        }
+
+        /**
+         * Fin de l’écriture d’un descripteur (activation des notifications.)
+         * @param gatt
+         * @param descriptor
+         * @param status
+         */
+        @Override
+        public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor,
+                                      int status) {
+            Tracing.begin(Tracing.CALLBACK_DESCRIPTOR_WRITE);
+            try {
+                if (status != BluetoothGatt.GATT_SUCCESS) {
+                    Log.w(TAG, "Échec de l’écriture du descripteur : " + status);
+                }
+                mGattQueue.complete(gatt, descriptor);
+            } finally {
+                Tracing.end(Tracing.CALLBACK_DESCRIPTOR_WRITE);
+            }
+        }
+
+        /**
+         * Nouveau MTU négocié (Android 5.0 et suivants) : longueur maximale des écritures.
+         * @param gatt
+         * @param mtu
+         * @param status
+         */
+        @Override
+        public void onMtuChanged(BluetoothGatt gatt, int mtu, int status) {
+            if (status == BluetoothGatt.GATT_SUCCESS) {
+                Log.i(TAG, "MTU négocié : " + mtu);
+                mMtu = mtu;
             }
         }
 
@@ -165,80 +509,953 @@ public class BluetoothLeService extends Service {
          * @param characteristic
          */
         @Override
-        public void onCharacteristicChanged(BluetoothGatt gatt,
-                                            BluetoothGattCharacteristic characteristic) {
-            Log.d(TAG, "onCharacteristicChanged() appelé.");
-            final UUID uuid = characteristic.getUuid();
-            if (GattConstants.SENSOR_CHARACTERISTIC_UUID.equals(uuid)) {
-                broadcastUpdate(ACTION_SENSOR_VALUE_AVAILABLE, characteristic);
-            } else if (GattConstants.WRITABLE_CHARACTERISTIC_UUID.equals(uuid)) {
-                broadcastUpdate(ACTION_WRITABLE_VALUE_AVAILABLE, characteristic);
-            } else {
-                Log.w(TAG, "UUID non reconnue");
+        public void onCharacteristicChanged(BluetoothGatt gatt,
+                                            BluetoothGattCharacteristic characteristic) {
+            // Date de réception, avant toute journalisation ou mise en forme.
+            final long receivedNanos = SystemClock.elapsedRealtimeNanos();
+            Tracing.begin(Tracing.CALLBACK_CHANGED);
+            try {
+                Logger.d(LOG_TAG, LOG_CHANGED);
+                final CharacteristicSchema.Entry entry = describe(characteristic);
+                if (entry != null) {
+                    broadcastUpdate(entry, gatt, characteristic,
+                            SamplePipeline.SOURCE_NOTIFICATION, receivedNanos);
+                } else {
+                    Log.w(TAG, "UUID non reconnue");
+                }
+            } finally {
+                Tracing.end(Tracing.CALLBACK_CHANGED);
+            }
+        }
+    };
+
+    /**
+     * Expiration du délai de connexion.
+     */
+    private final Runnable mConnectTimeoutRunnable = new Runnable() {
+        @Override
+        public void run() {
+            // Transition conditionnelle : une connexion établie à l’instant même n’est pas
+            // abandonnée.
+            if (fail(mBluetoothGatt, ConnectionStateMachine.State.CONNECTING)) {
+                Log.w(TAG, "Connection timed out after " + mConnectTimeout + " ms.");
+            }
+        }
+    };
+
+    /**
+     * Expiration du délai de découverte des services.
+     */
+    private final Runnable mDiscoveryTimeoutRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (fail(mBluetoothGatt, ConnectionStateMachine.State.DISCOVERING)) {
+                Log.w(TAG, "Service discovery timed out after " + mDiscoveryTimeout + " ms.");
+            }
+        }
+    };
+
+    /**
+     * Expiration du délai de déconnexion : le client GATT est libéré pour que les connexions
+     * suivantes ne restent pas refusées.
+     */
+    private final Runnable mDisconnectTimeoutRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (fail(mBluetoothGatt, ConnectionStateMachine.State.DISCONNECTING)) {
+                Log.w(TAG, "Disconnection timed out after " + DISCONNECT_TIMEOUT + " ms.");
+            }
+        }
+    };
+
+    /**
+     * Vérification périodique des règles d’absence de mesure, tant que l’appareil est prêt.
+     */
+    private final Runnable mSilenceCheckRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mProtocol.checkSilence(SystemClock.elapsedRealtime());
+            mHandler.postDelayed(this, SILENCE_CHECK_PERIOD);
+        }
+    };
+
+    /**
+     * Compactage périodique de l’historique, sur le thread de l’historique.
+     */
+    private final Runnable mHistoryCompactionRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mHistory.compact();
+            mHistoryHandler.postDelayed(this, HISTORY_COMPACTION_PERIOD);
+        }
+    };
+
+    /**
+     * Fin du relevé des attributs, sur le thread de l’historique : la dernière valeur peut
+     * arriver depuis la file des opérations GATT (opération refusée), qu’il ne faut pas
+     * bloquer pendant les lectures et écritures de fichiers.
+     */
+    private final Runnable mFinishDumpRunnable = new Runnable() {
+        @Override
+        public void run() {
+            finishDump();
+        }
+    };
+
+    private void startSilenceCheck() {
+        mHandler.removeCallbacks(mSilenceCheckRunnable);
+        if (mProtocol.getAlertRules().hasType(AlertRules.TYPE_SILENCE)
+                && mConnectionState.get() == ConnectionStateMachine.State.READY
+                && isSensorSubscribed()) {
+            mHandler.postDelayed(mSilenceCheckRunnable, SILENCE_CHECK_PERIOD);
+        }
+    }
+
+    private void cancelTimeouts() {
+        mHandler.removeCallbacks(mConnectTimeoutRunnable);
+        mHandler.removeCallbacks(mDiscoveryTimeoutRunnable);
+        mHandler.removeCallbacks(mDisconnectTimeoutRunnable);
+        mHandler.removeCallbacks(mSilenceCheckRunnable);
+    }
+
+    /**
+     * Abandon des opérations GATT en attente et du relevé en cours.
+     */
+    private void clearOperations() {
+        mGattQueue.clear();
+        synchronized (mGattQueue) {
+            mDump = null;
+        }
+    }
+
+    /**
+     * Abandon de la connexion en cours : libère le client GATT (le nombre de clients
+     * simultanés est limité par la pile Bluetooth) et signale la déconnexion.
+     * @param gatt client GATT concerné
+     */
+    private void fail(BluetoothGatt gatt) {
+        if (mConnectionState.moveTo(ConnectionStateMachine.State.DISCONNECTED)
+                == ConnectionStateMachine.State.DISCONNECTED) {
+            // Échec déjà traité.
+            cancelTimeouts();
+            clearOperations();
+            return;
+        }
+        release(gatt);
+    }
+
+    /**
+     * Abandon de la connexion seulement si elle est toujours dans l’état attendu, par une
+     * transition atomique : un callback qui vient de la faire avancer l’emporte.
+     * @param gatt client GATT concerné
+     * @param expected état dans lequel la connexion est abandonnée
+     * @return true si la connexion a été abandonnée
+     */
+    private boolean fail(BluetoothGatt gatt, ConnectionStateMachine.State expected) {
+        if (!mConnectionState.transition(expected, ConnectionStateMachine.State.DISCONNECTED)) {
+            return false;
+        }
+        release(gatt);
+        return true;
+    }
+
+    /**
+     * Libération du client GATT après le passage à DISCONNECTED, signal de la déconnexion et
+     * reprise d’une connexion demandée entre-temps.
+     */
+    private void release(BluetoothGatt gatt) {
+        cancelTimeouts();
+        clearOperations();
+        if (gatt != null) {
+            mTransport.dispatchDisconnected(gatt.getDevice().getAddress());
+        }
+        synchronized (this) {
+            if (gatt != null) {
+                gatt.disconnect();
+                gatt.close();
+            }
+            if (gatt == mBluetoothGatt) {
+                mBluetoothGatt = null;
+                clearDispatch();
+            }
+        }
+        broadcastUpdate(ACTION_GATT_DISCONNECTED);
+        connectPending();
+    }
+
+    /**
+     * Lancement, sur le thread principal, de la connexion demandée pendant la déconnexion.
+     */
+    private void connectPending() {
+        final String address;
+        final BluetoothDevice device;
+        synchronized (this) {
+            address = mPendingAddress;
+            device = mPendingDevice;
+            mPendingAddress = null;
+            mPendingDevice = null;
+        }
+        if (address == null) {
+            return;
+        }
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (!connect(address, device)) {
+                    Log.w(TAG, "Reconnexion à " + address + " impossible.");
+                    broadcastUpdate(ACTION_GATT_DISCONNECTED);
+                }
+            }
+        });
+    }
+
+    /**
+     * Méthode d’envoi d’une Intent broadcastée.
+     * @param action nom de l’action
+     */
+    private void broadcastUpdate(final String action) {
+        Logger.d(LOG_TAG, LOG_BROADCAST);
+        final Intent intent = new Intent(action);
+        sendBroadcast(intent);
+    }
+
+    /**
+     * Méthode d’envoi d’une Intent broadcastée, avec la valeur d’une caractéristique.
+     * Les valeurs du potentiomètre sont aussi traitées par {@link SensorProtocol} (séquence,
+     * alertes) et publiées dans la chaîne {@link SamplePipeline} ; celles des autres capteurs
+     * du schéma ne sont diffusées que décodées, repérées par EXTRA_CHARACTERISTIC. Une trame
+     * de réglage de période ({@link RateCommand}) lue dans la caractéristique éditable, où
+     * l’appareil la conserve, n’est ni affichée ni retenue comme dernière valeur.
+     * @param entry description de la caractéristique (schéma)
+     * @param gatt client GATT de l’appareil d’origine
+     * @param characteristic caractéristique lue, écrite ou mise à jour (notifiée)
+     * @param source origine de la valeur (SamplePipeline.SOURCE_*)
+     * @param receivedNanos date de réception (SystemClock.elapsedRealtimeNanos()), prise à
+     *                      l’entrée du callback
+     */
+    private void broadcastUpdate(final CharacteristicSchema.Entry entry,
+                                 final BluetoothGatt gatt,
+                                 final BluetoothGattCharacteristic characteristic,
+                                 final int source, final long receivedNanos) {
+        Logger.d(LOG_TAG, LOG_BROADCAST_VALUE, source);
+
+        // Valeur brute de la caractéristique.
+        final byte[] data = characteristic.getValue();
+        final String address = gatt.getDevice().getAddress();
+
+        if (GattConstants.WRITABLE_CHARACTERISTIC_UUID.equals(entry.uuid)
+                && RateCommand.isValid(data)) {
+            Log.d(TAG, "Trame de réglage de période lue, non affichée.");
+            return;
+        }
+        if (data != null && data.length > 0) {
+            mLastValues.put(address, entry.uuid, data, source, receivedNanos);
+            // Transmission au cœur par la liaison : SensorProtocol ne retient que le
+            // potentiomètre.
+            Tracing.begin(Tracing.PROTOCOL_SENSOR_VALUE);
+            try {
+                mTransport.dispatchValue(address, entry.uuid, data,
+                        source == SamplePipeline.SOURCE_NOTIFICATION, receivedNanos);
+            } finally {
+                Tracing.end(Tracing.PROTOCOL_SENSOR_VALUE);
+            }
+        }
+        final Intent intent = makeValueIntent(entry, address, data, source, receivedNanos,
+                false);
+        Tracing.begin(Tracing.DISPATCH_BROADCAST);
+        try {
+            sendBroadcast(intent);
+        } finally {
+            Tracing.end(Tracing.DISPATCH_BROADCAST);
+        }
+    }
+
+    /**
+     * Export des traces récentes (opérations GATT, callbacks, diffusion, interface) au format
+     * JSON « Trace Event » de Chrome, à ouvrir dans Perfetto ou chrome://tracing.
+     * @return le fichier écrit (files/traces), null en cas d’échec
+     */
+    public File exportTrace() {
+        final File directory = new File(getFilesDir(), "traces");
+        final File file = new File(directory, "trace-" + System.currentTimeMillis() + ".json");
+        try {
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                throw new IOException("Création de " + directory + " impossible.");
+            }
+            final Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+            try {
+                Tracing.RING.writeChromeJson(writer, android.os.Process.myPid());
+            } finally {
+                writer.close();
+            }
+            Log.i(TAG, "Trace de " + Tracing.RING.size() + " événements enregistrée dans "
+                    + file);
+            return file;
+        } catch (IOException e) {
+            Log.e(TAG, "Enregistrement de la trace impossible.", e);
+            return null;
+        }
+    }
+
+    /**
+     * Écriture des derniers messages de journalisation ({@link Logger}), par exemple pour
+     * comprendre une déconnexion ou une perte de valeurs après coup.
+     * @return le fichier écrit (files/logs), null en cas d’échec
+     */
+    public File exportLog() {
+        final File file = writeLog(new File(getFilesDir(), "logs"), "log");
+        if (file != null) {
+            Log.i(TAG, "Journal de " + Logger.RING.size() + " messages enregistré dans " + file);
+        }
+        return file;
+    }
+
+    private static File writeLog(File directory, String prefix) {
+        final File file = new File(directory, prefix + "-" + System.currentTimeMillis() + ".txt");
+        try {
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                throw new IOException("Création de " + directory + " impossible.");
+            }
+            final Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+            try {
+                Logger.dump(writer);
+            } finally {
+                writer.close();
+            }
+            return file;
+        } catch (IOException e) {
+            Log.e(TAG, "Enregistrement du journal impossible.", e);
+            return null;
+        }
+    }
+
+    /**
+     * Écriture du journal lors d’un plantage de l’application, avant le traitement habituel.
+     * @param directory dossier des journaux
+     */
+    private static synchronized void installCrashLog(final File directory) {
+        if (sCrashLogInstalled) {
+            return;
+        }
+        sCrashLogInstalled = true;
+        final Thread.UncaughtExceptionHandler previous =
+                Thread.getDefaultUncaughtExceptionHandler();
+        Thread.setDefaultUncaughtExceptionHandler(new Thread.UncaughtExceptionHandler() {
+            @Override
+            public void uncaughtException(Thread thread, Throwable throwable) {
+                writeLog(directory, "crash");
+                if (previous != null) {
+                    previous.uncaughtException(thread, throwable);
+                }
+            }
+        });
+    }
+
+    /**
+     * Intention portant la valeur d’une caractéristique, mise en forme pour affichage.
+     * @param entry description de la caractéristique (schéma)
+     * @param address adresse de l’appareil
+     * @param data valeur brute
+     * @param source origine de la valeur (SamplePipeline.SOURCE_*)
+     * @param receivedNanos date de réception (SystemClock.elapsedRealtimeNanos())
+     * @param cached true pour une valeur reprise du cache des dernières valeurs
+     * @return
+     */
+    private static Intent makeValueIntent(CharacteristicSchema.Entry entry, String address,
+                                          byte[] data, int source, long receivedNanos,
+                                          boolean cached) {
+        final Intent intent = new Intent(valueAction(entry));
+        intent.putExtra(EXTRA_ADDRESS, address);
+        intent.putExtra(EXTRA_CHARACTERISTIC, entry.uuid.toString());
+        intent.putExtra(EXTRA_TIMESTAMP_NANOS, receivedNanos);
+        intent.putExtra(EXTRA_SOURCE, source);
+        intent.putExtra(EXTRA_CACHED, cached);
+
+        if (data != null && data.length > 0) {
+            // Si c’est la valeur d’un capteur
+            if (entry.role == CharacteristicSchema.ROLE_SENSOR) {
+                // Lecture de l’entier décrit par le schéma, facteur appliqué (pour le
+                // potentiomètre, pourcentage de la pleine échelle du CAN sur 16 bits.)
+                final double value = entry.decodeScaled(data);
+                // Envoi sous forme d’une chaîne de caractère, avec la date de réception, pour
+                // affichage direct.
+                final Date received = new Date(System.currentTimeMillis()
+                        - (SystemClock.elapsedRealtimeNanos() - receivedNanos) / 1000000);
+                final String date = DateFormat.getDateTimeInstance(DateFormat.SHORT, DateFormat.LONG).format(received);
+                intent.putExtra(EXTRA_DATA, String.format("%.3f%s\n(%s)", value,
+                        entry.unit.length() > 0 ? " " + entry.unit : "", date));
+            } else {
+                // Sinon, caractéristique longue éditable.
+                final StringBuilder stringBuilder = new StringBuilder(data.length * 3);
+                // Représentation au format hexadécimal.
+                for (byte byteChar : data) {
+                    stringBuilder.append(HEX_DIGITS[(byteChar >> 4) & 0x0F])
+                            .append(HEX_DIGITS[byteChar & 0x0F]).append(' ');
+                }
+                Logger.d(LOG_TAG, LOG_WRITABLE_VALUE, data.length);
+                // Envoi de la représentation ASCII puis sur une autre ligne, en hexadécimal.
+                intent.putExtra(EXTRA_DATA, new String(data) + "\n" + stringBuilder.toString());
+            }
+        }
+        return intent;
+    }
+
+    /**
+     * Diffusion immédiate des dernières valeurs connues d’un appareil (potentiomètre et
+     * caractéristique éditable), marquées EXTRA_CACHED : un nouvel écran les affiche sans
+     * attendre les lectures.
+     * @param address adresse de l’appareil
+     * @return nombre de valeurs diffusées
+     */
+    public int replayLastValues(String address) {
+        int count = 0;
+        for (LastValueCache.Entry entry : mLastValues.getAll(address)) {
+            final CharacteristicSchema.Entry description = mSchema.get(entry.characteristic);
+            if (description != null) {
+                sendBroadcast(makeValueIntent(description, address, entry.value, entry.source,
+                        entry.timestampNanos, true));
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Dernière valeur reçue d’une caractéristique.
+     * @param address adresse de l’appareil
+     * @param uuid UUID de la caractéristique
+     * @return copie de la valeur, null si aucune n’a été reçue
+     */
+    public LastValueCache.Entry getLastValue(String address, UUID uuid) {
+        return mLastValues.get(address, uuid);
+    }
+
+    private static String valueAction(CharacteristicSchema.Entry entry) {
+        return entry.role == CharacteristicSchema.ROLE_SENSOR
+                ? ACTION_SENSOR_VALUE_AVAILABLE : ACTION_WRITABLE_VALUE_AVAILABLE;
+    }
+
+    /**
+     * Description d’une caractéristique, par la table de répartition ; le schéma n’est
+     * consulté par UUID que pour une caractéristique absente de la table (autre client GATT.)
+     * @param characteristic
+     * @return sa description, null si elle n’est pas dans le schéma
+     */
+    private CharacteristicSchema.Entry describe(BluetoothGattCharacteristic characteristic) {
+        final CharacteristicSchema.Entry entry = mDispatch.get(characteristic);
+        return entry != null ? entry : mSchema.get(characteristic.getUuid());
+    }
+
+    /**
+     * Construction de la table de répartition des caractéristiques découvertes.
+     * @param gatt client GATT dont les services viennent d’être découverts
+     */
+    private void buildDispatch(BluetoothGatt gatt) {
+        final IdentityHashMap<BluetoothGattCharacteristic, CharacteristicSchema.Entry> dispatch =
+                new IdentityHashMap<BluetoothGattCharacteristic, CharacteristicSchema.Entry>();
+        final CharacteristicSchema schema = mSchema;
+        for (BluetoothGattService service : gatt.getServices()) {
+            for (BluetoothGattCharacteristic characteristic : service.getCharacteristics()) {
+                final CharacteristicSchema.Entry entry = schema.get(characteristic.getUuid());
+                if (entry != null) {
+                    dispatch.put(characteristic, entry);
+                }
+            }
+        }
+        mDispatch = dispatch;
+    }
+
+    private void clearDispatch() {
+        mDispatch = new IdentityHashMap<BluetoothGattCharacteristic, CharacteristicSchema.Entry>();
+    }
+
+    /**
+     * Chargement du schéma des caractéristiques ; les noms qu’il donne sont enregistrés pour
+     * l’affichage.
+     * @return le schéma, vide si la ressource est illisible
+     */
+    private CharacteristicSchema loadSchema() {
+        InputStream in = null;
+        try {
+            in = getResources().openRawResource(R.raw.characteristic_schema);
+            final CharacteristicSchema schema = CharacteristicSchema.read(in);
+            for (CharacteristicSchema.Entry entry : schema.getEntries()) {
+                if (entry.name != null) {
+                    GattConstants.register(entry.uuid, entry.name);
+                }
+            }
+            return schema;
+        } catch (IOException e) {
+            Log.e(TAG, "Lecture du schéma des caractéristiques impossible.", e);
+            return CharacteristicSchema.empty();
+        } catch (IllegalArgumentException e) {
+            Log.e(TAG, "Schéma des caractéristiques invalide.", e);
+            return CharacteristicSchema.empty();
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // Rien à faire.
+                }
+            }
+        }
+    }
+
+    /**
+     * Classe permettant à une activité d’appeler les méthodes du service.
+     */
+    public class LocalBinder extends Binder {
+        BluetoothLeService getService() {
+            return BluetoothLeService.this;
+        }
+    }
+
+    /**
+     * Liaisons en arrière-plan : seule l’arrivée à portée d’un appareil connu est prise en
+     * compte (date de dernière rencontre et ACTION_KNOWN_DEVICE_IN_RANGE), la liaison
+     * elle-même restant inutilisée jusqu’à ce que l’utilisateur l’ouvre.
+     *
+     * Les services ne sont pas découverts et aucune notification n’est activée ici : les
+     * mesures, les règles d’alerte et le flux pour les autres applications ne concernent que
+     * l’appareil ouvert par connect(), qui ferme d’abord la liaison en arrière-plan
+     * (stopBackgroundLink) pour reprendre l’appareil avec mGattCallback.
+     */
+    private final BluetoothGattCallback mBackgroundCallback = new BluetoothGattCallback() {
+        @Override
+        public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
+            if (newState != BluetoothProfile.STATE_CONNECTED) {
+                return;
+            }
+            final String address = gatt.getDevice().getAddress();
+            Log.i(TAG, "Appareil connu à portée : " + address);
+            if (mKnownDevices.markSeen(address, System.currentTimeMillis())) {
+                mKnownDevices.save();
+            }
+            final Intent intent = new Intent(ACTION_KNOWN_DEVICE_IN_RANGE);
+            intent.putExtra(EXTRA_ADDRESS, address);
+            sendBroadcast(intent);
+        }
+    };
+
+    /**
+     * Création de l’anneau du flux des mesures et abonnement à la chaîne des mesures.
+     */
+    private void openSampleStream() {
+        mStreamFile = new File(getCacheDir(), "samples.ring");
+        final int size = SampleRing.sizeOf(STREAM_CAPACITY);
+        try {
+            final RandomAccessFile file = new RandomAccessFile(mStreamFile, "rw");
+            try {
+                file.setLength(size);
+                mStreamWriter = new SampleRing.Writer(
+                        file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size),
+                        STREAM_CAPACITY);
+            } finally {
+                // La projection reste valable après la fermeture du fichier.
+                file.close();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Création du flux des mesures impossible.", e);
+            return;
+        }
+        SamplePipeline.getInstance().addListener(mStreamWriter);
+        SamplePipeline.getInstance().addListener(mStreamWakeListener);
+    }
+
+    /**
+     * Planification du signal de réveil après une mesure publiée dans l’anneau : les mesures
+     * suivantes, jusqu’à son envoi, n’en planifient pas d’autre.
+     */
+    private final SamplePipeline.Listener mStreamWakeListener = new SamplePipeline.Listener() {
+        @Override
+        public void onSample(String address, int value, int source, long timestampNanos) {
+            if (mStreamWakePending.compareAndSet(false, true)) {
+                mHandler.postDelayed(mStreamWakeRunnable, STREAM_WAKE_DELAY);
+            }
+        }
+    };
+
+    private final Runnable mStreamWakeRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mStreamWakePending.set(false);
+            final long published = mStreamWriter.getPublished();
+            final int count = mStreamCallbacks.beginBroadcast();
+            for (int i = 0; i < count; i++) {
+                try {
+                    mStreamCallbacks.getBroadcastItem(i).onSamplesAvailable(published);
+                } catch (RemoteException e) {
+                    // Lecteur disparu : retiré de la liste par RemoteCallbackList.
+                }
+            }
+            mStreamCallbacks.finishBroadcast();
+        }
+    };
+
+    /**
+     * Démarrage ou arrêt du serveur TCP de diffusion des mesures (port SERVER_PORT, toutes
+     * les interfaces), enregistré pour les prochains démarrages.
+     * @param enabled
+     * @return false si le serveur devait démarrer mais que le port n’a pu être ouvert
+     */
+    public synchronized boolean setStreamingServerEnabled(boolean enabled) {
+        getSharedPreferences(SERVER_PREFERENCES, MODE_PRIVATE).edit()
+                .putBoolean(SERVER_ENABLED_KEY, enabled).apply();
+        if (!enabled) {
+            stopStreamingServer();
+            return true;
+        }
+        if (mServer != null) {
+            return true;
+        }
+        final SampleServer server = new SampleServer(new InetSocketAddress(SERVER_PORT),
+                SERVER_CLIENT_BUFFER, SERVER_BATCH_INTERVAL, SERVER_BATCH_CAPACITY);
+        try {
+            server.start();
+        } catch (IOException e) {
+            Log.e(TAG, "Ouverture du port " + SERVER_PORT + " impossible.", e);
+            return false;
+        }
+        Log.i(TAG, "Diffusion des mesures sur le port " + server.getPort());
+        server.setListener(mServerListener);
+        SamplePipeline.getInstance().addListener(server);
+        mServer = server;
+        return true;
+    }
+
+    /**
+     * Arrêt du thread du serveur TCP : après une erreur, le serveur est oublié (l’option
+     * « Stream over TCP » n’est plus cochée) et les activités sont prévenues. Traité sur
+     * mHandler : stopStreamingServer() attend la fin du thread en tenant le verrou.
+     */
+    private final SampleServer.Listener mServerListener = new SampleServer.Listener() {
+        @Override
+        public void onStopped(final SampleServer server, IOException error) {
+            if (error == null) {
+                return;
+            }
+            Log.e(TAG, "Serveur de diffusion arrêté sur une erreur.", error);
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (BluetoothLeService.this) {
+                        if (mServer != server) {
+                            return;
+                        }
+                        SamplePipeline.getInstance().removeListener(server);
+                        mServer = null;
+                    }
+                    broadcastUpdate(ACTION_STREAMING_SERVER_STOPPED);
+                }
+            });
+        }
+    };
+
+    private synchronized void stopStreamingServer() {
+        if (mServer != null) {
+            SamplePipeline.getInstance().removeListener(mServer);
+            mServer.stop();
+            mServer = null;
+        }
+    }
+
+    /**
+     * Serveur TCP de diffusion des mesures en marche, ou null.
+     * @return
+     */
+    public synchronized SampleServer getStreamingServer() {
+        return mServer;
+    }
+
+    /**
+     * Interface du flux des mesures, pour les autres applications.
+     */
+    private final ISampleStream.Stub mSampleStreamBinder = new ISampleStream.Stub() {
+        @Override
+        public ParcelFileDescriptor openRing() throws RemoteException {
+            if (mStreamWriter == null) {
+                return null;
+            }
+            try {
+                return ParcelFileDescriptor.open(mStreamFile, ParcelFileDescriptor.MODE_READ_ONLY);
+            } catch (FileNotFoundException e) {
+                Log.e(TAG, "Ouverture du flux des mesures impossible.", e);
+                return null;
+            }
+        }
+
+        @Override
+        public int getCapacity() {
+            return STREAM_CAPACITY;
+        }
+
+        @Override
+        public void registerCallback(ISampleStreamCallback callback) {
+            if (callback != null) {
+                mStreamCallbacks.register(callback);
+            }
+        }
+
+        @Override
+        public void unregisterCallback(ISampleStreamCallback callback) {
+            if (callback != null) {
+                mStreamCallbacks.unregister(callback);
             }
         }
     };
 
     /**
-     * Méthode d’envoi d’une Intent broadcastée.
-     * @param action nom de l’action
+     * Création du service : écriture du journal en cas de plantage, chargement du schéma des
+     * caractéristiques, ouverture de l’historique des mesures et abonnement de l’historique
+     * et des statistiques à la chaîne des mesures, lecture du registre des appareils connus.
      */
-    private void broadcastUpdate(final String action) {
-        Log.d(TAG, "broadcastUpdate(String) appelé.");
-        final Intent intent = new Intent(action);
-        sendBroadcast(intent);
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        installCrashLog(new File(getFilesDir(), "logs"));
+        mSession.setListener(mFirstSampleListener);
+        mSchema = loadSchema();
+        mKnownDevices = new KnownDeviceRegistry(new File(getFilesDir(), "known_devices.json"));
+        mKnownDevices.load();
+        openSampleStream();
+        if (getSharedPreferences(SERVER_PREFERENCES, MODE_PRIVATE)
+                .getBoolean(SERVER_ENABLED_KEY, false)) {
+            setStreamingServerEnabled(true);
+        }
+        mHistory = new SampleHistory(new File(getFilesDir(), "history"));
+        SamplePipeline.getInstance().addListener(mHistory);
+        mHistoryThread = new HandlerThread("history");
+        mHistoryThread.start();
+        mHistoryHandler = new Handler(mHistoryThread.getLooper());
+        mHistoryHandler.postDelayed(mHistoryCompactionRunnable, HISTORY_COMPACTION_PERIOD);
+        SamplePipeline.getInstance().addListener(mStatistics);
+        mRateController.setDemand(RateController.CONSUMER_LOGGING,
+                RateController.LOGGING_INTERVAL);
+        updateSensorSubscription();
+        try {
+            setAlertRules(getSharedPreferences(ALERT_PREFERENCES, MODE_PRIVATE)
+                    .getString(ALERT_RULES_KEY, ""));
+        } catch (IllegalArgumentException e) {
+            Log.w(TAG, "Règles d’alerte enregistrées invalides.", e);
+        }
     }
 
     /**
-     * Méthode d’envoi d’une Intent broadcastée, avec la valeur d’une caractéristique.
-     * @param action nom de l’action
-     * @param characteristic caractéristique lue, écrite ou mise à jour (notifiée)
+     * Destruction du service : écriture et fermeture de l’historique.
      */
-    private void broadcastUpdate(final String action,
-                                 final BluetoothGattCharacteristic characteristic) {
+    @Override
+    public void onDestroy() {
+        stopBackgroundLinks();
+        stopStreamingServer();
+        if (mStreamWriter != null) {
+            SamplePipeline.getInstance().removeListener(mStreamWriter);
+            SamplePipeline.getInstance().removeListener(mStreamWakeListener);
+        }
+        mStreamCallbacks.kill();
+        SamplePipeline.getInstance().removeListener(mStatistics);
+        SamplePipeline.getInstance().removeListener(mHistory);
+        mHistoryHandler.removeCallbacks(mHistoryCompactionRunnable);
+        mHistoryThread.quitSafely();
+        mHistory.close();
+        super.onDestroy();
+    }
 
-        final Intent intent = new Intent(action);
-        Log.d(TAG, "broadcastUpdate(String, BluetoothGattChar.) appelé.");
+    /**
+     * Historique des mesures de tous les appareils.
+     * @return
+     */
+    public SampleHistory getHistory() {
+        return mHistory;
+    }
 
-        // Valeur brute de la caractéristique.
-        final byte[] data = characteristic.getValue();
+    /**
+     * Statistiques des mesures de tous les appareils (session et fenêtres d’une seconde,
+     * d’une minute et d’une heure.)
+     * @return
+     */
+    public SampleStatistics getStatistics() {
+        return mStatistics;
+    }
 
-        if (data != null && data.length > 0) {
-            // Si c’est la valeur du potentiomètre
-            if (GattConstants.SENSOR_CHARACTERISTIC_UUID.equals(characteristic.getUuid())) {
-                // Lecture de l’entier non signé, d’un ou deux octets (lecture par le CAN sur 16 bits.)
-                final long value =
-                        (data.length == 2) ? (data[0] << 8) & 0x0000ff00 | (data[1] << 0) & 0x000000ff
-                                          : (data[0] << 0) & 0x000000ff;
-                final long max = 65535; // 2^16 - 1 : valeur maximale (16 bits)
-                // Envoi d’un pourcentage
-                final double percent = ((double) (100 * value)) / ((double) max);
-                // Envoi sous forme d’une chaîne de caractère, avec la date, pour affichage direct.
-                final String date = DateFormat.getDateTimeInstance(DateFormat.SHORT, DateFormat.LONG).format(new Date());
-                intent.putExtra(EXTRA_DATA, String.format("%.3f %%\n(%s)", percent, date));
-            } else {
-                // Sinon, caractéristique longue éditable.
-                final StringBuilder stringBuilder = new StringBuilder(data.length);
-                // Représentation au format hexadécimal.
-                for (byte byteChar : data)
-                    stringBuilder.append(String.format("%02X ", byteChar));
-                Log.d(TAG, String.format(stringBuilder.toString()));
-                // Envoi de la représentation ASCII puis sur une autre ligne, en hexadécimal.
-                intent.putExtra(EXTRA_DATA, new String(data) + "\n" + stringBuilder.toString());
+    /**
+     * Remplace les règles d’alerte, et les enregistre pour les prochains démarrages.
+     * @param spec description des règles (cf. {@link AlertRules})
+     * @throws IllegalArgumentException si la description est invalide
+     */
+    public void setAlertRules(String spec) {
+        final AlertRules rules = AlertRules.compile(spec);
+        rules.setListener(mAlertListener);
+        mProtocol.setAlertRules(rules);
+        setRateDemand(RateController.CONSUMER_ALERTS,
+                rules.getRuleCount() > 0 ? RateController.ALERTS_INTERVAL : 0);
+        getSharedPreferences(ALERT_PREFERENCES, MODE_PRIVATE).edit()
+                .putString(ALERT_RULES_KEY, spec).apply();
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                startSilenceCheck();
             }
+        });
+    }
+
+    /**
+     * Qualité de la liaison (pertes, doublons, gigue des notifications) de tous les appareils.
+     * @return
+     */
+    public LinkQualityTracker getLinkQuality() {
+        return mProtocol.getLinkQuality();
+    }
+
+    /**
+     * Déclaration du besoin d’un consommateur des mesures ; la nouvelle période
+     * d’échantillonnage est envoyée à l’appareil si elle change.
+     * @param consumer RateController.CONSUMER_*
+     * @param intervalMillis période nécessaire, en ms, ou 0 si le consommateur est inactif
+     */
+    public void setRateDemand(int consumer, int intervalMillis) {
+        final boolean changed = mRateController.setDemand(consumer, intervalMillis);
+        updateSensorSubscription();
+        if (changed) {
+            pushRate();
         }
-        sendBroadcast(intent);
     }
 
     /**
-     * Classe permettant à une activité d’appeler les méthodes du service.
+     * Souscription aux notifications du potentiomètre si un consommateur des mesures est
+     * actif, désabonnement sinon (appliqué par mSession à l’appareil prêt, ou à la connexion
+     * suivante.) Au désabonnement, la vérification des règles d’absence de mesure s’arrête et
+     * les règles sont réarmées : l’absence de notifications n’est alors pas un silence de
+     * l’appareil.
      */
-    public class LocalBinder extends Binder {
-        BluetoothLeService getService() {
-            return BluetoothLeService.this;
+    private void updateSensorSubscription() {
+        final boolean wanted = mRateController.hasDemand();
+        if (!mSession.setSubscriptionWanted(wanted)) {
+            return;
+        }
+        if (!wanted) {
+            mHandler.removeCallbacks(mSilenceCheckRunnable);
+            mProtocol.getAlertRules().reset();
+        } else {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    startSilenceCheck();
+                }
+            });
+        }
+    }
+
+    private boolean isSensorSubscribed() {
+        return mSession.isSubscribed();
+    }
+
+    /**
+     * Période d’échantillonnage confirmée par l’appareil connecté.
+     * @return période en ms, ou -1 si inconnue
+     */
+    public int getConfirmedRateInterval() {
+        return mRateController.getConfirmed();
+    }
+
+    /**
+     * Envoi de la période nécessaire à l’appareil prêt, par une commande écrite dans la
+     * caractéristique longue puis relue pour confirmation.
+     */
+    private void pushRate() {
+        final BluetoothGatt gatt = mBluetoothGatt;
+        final BluetoothGattService service = getPrivateService();
+        if (gatt == null || service == null
+                || mConnectionState.get() != ConnectionStateMachine.State.READY) {
+            return;
+        }
+        final BluetoothGattCharacteristic characteristic =
+                service.getCharacteristic(GattConstants.WRITABLE_CHARACTERISTIC_UUID);
+        if (characteristic == null) {
+            return;
+        }
+        final byte[] frame = mRateNegotiator.nextCommand();
+        if (frame == null) {
+            return;
+        }
+        mGattQueue.enqueue(gatt, new GattOperationQueue.Operation(
+                GattOperationQueue.WRITE_CHARACTERISTIC, characteristic, null, frame,
+                GattOperationQueue.TAG_RATE));
+        mGattQueue.enqueue(gatt, new GattOperationQueue.Operation(
+                GattOperationQueue.READ_CHARACTERISTIC, characteristic, null, null,
+                GattOperationQueue.TAG_RATE));
+    }
+
+    /**
+     * Oubli de la période confirmée et des essais en cours (nouvelle connexion.)
+     */
+    private void resetRate() {
+        mRateNegotiator.reset();
+    }
+
+    /**
+     * Vérification de la relecture d’une commande de période ; nouvel envoi si la période
+     * n’est pas confirmée (au plus RateNegotiator.MAX_ATTEMPTS essais) ou si le besoin a
+     * changé entre-temps.
+     * @param readBack valeur relue, ou null si la lecture a échoué
+     */
+    private void confirmRate(byte[] readBack) {
+        if (!mRateNegotiator.isPending()) {
+            return;
         }
+        if (mRateNegotiator.confirm(readBack)) {
+            Log.i(TAG, "Période d’échantillonnage confirmée : "
+                    + mRateController.getConfirmed() + " ms.");
+        } else if (mRateNegotiator.hasGivenUp()) {
+            Log.w(TAG, "L’appareil ne confirme pas la période d’échantillonnage.");
+        }
+        pushRate();
+    }
+
+    /**
+     * Règles d’alerte en vigueur, et leurs derniers déclenchements.
+     * @return
+     */
+    public AlertRules getAlertRules() {
+        return mProtocol.getAlertRules();
     }
 
+    /**
+     * Déclenchement d’une règle d’alerte : notification Android (une par règle, ouvrant
+     * l’écran de l’appareil) et Intent broadcastée ACTION_ALERT.
+     */
+    private final AlertRules.Listener mAlertListener = new AlertRules.Listener() {
+        @Override
+        public void onAlert(AlertRules rules, int rule, int value) {
+            final String text = getString(R.string.alert_text, rules.getSource(rule),
+                    SensorDecoder.toPercent(value));
+            Log.i(TAG, "Alerte : " + text);
+
+            final BluetoothGatt gatt = mBluetoothGatt;
+            final Intent detail = new Intent(BluetoothLeService.this, SimpleDetailActivity.class);
+            if (gatt != null) {
+                detail.putExtra(SimpleDetailActivity.EXTRAS_DEVICE_NAME,
+                        gatt.getDevice().getName());
+                detail.putExtra(SimpleDetailActivity.EXTRAS_DEVICE_ADDRESS,
+                        gatt.getDevice().getAddress());
+            }
+            final Notification notification = new Notification.Builder(BluetoothLeService.this)
+                    .setSmallIcon(R.drawable.ic_launcher)
+                    .setContentTitle(getString(R.string.alert_title))
+                    .setContentText(text)
+                    .setAutoCancel(true)
+                    .setContentIntent(PendingIntent.getActivity(BluetoothLeService.this, rule,
+                            detail, PendingIntent.FLAG_UPDATE_CURRENT))
+                    .build();
+            ((NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE))
+                    .notify(ALERT_NOTIFICATION_ID + rule, notification);
+
+            final Intent intent = new Intent(ACTION_ALERT);
+            intent.putExtra(EXTRA_DATA, text);
+            sendBroadcast(intent);
+        }
+    };
+
     /**
      * Demande de lien à une activité.
      * @param intent
@@ -246,6 +1463,9 @@ public class BluetoothLeService extends Service {
      */
     @Override
     public IBinder onBind(Intent intent) {
+        if (ACTION_BIND_SAMPLE_STREAM.equals(intent.getAction())) {
+            return mSampleStreamBinder;
+        }
         return mBinder;
     }
 
@@ -256,6 +1476,10 @@ public class BluetoothLeService extends Service {
      */
     @Override
     public boolean onUnbind(Intent intent) {
+        if (ACTION_BIND_SAMPLE_STREAM.equals(intent.getAction())) {
+            // Départ des autres applications : la connexion reste utilisée par la nôtre.
+            return false;
+        }
         // After using a given device, you should make sure that BluetoothGatt.close() is called
         // such that resources are cleaned up properly.  In this particular example, close() is
         // invoked when the UI is disconnected from the Service.
@@ -290,6 +1514,7 @@ public class BluetoothLeService extends Service {
             return false;
         }
 
+        startBackgroundLinks();
         return true;
     }
 
@@ -303,37 +1528,153 @@ public class BluetoothLeService extends Service {
      * callback.
      */
     public boolean connect(final String address) {
+        return connect(address, null);
+    }
+
+    /**
+     * Connexion à un appareil obtenu par le scan : l’objet BluetoothDevice est réutilisé
+     * tel quel, sans nouvelle résolution de l’adresse par l’adaptateur.
+     * @param device appareil à connecter
+     * @return true si la connexion est lancée ou déjà en cours
+     */
+    public boolean connect(final BluetoothDevice device) {
+        return connect(device.getAddress(), device);
+    }
+
+    private synchronized boolean connect(final String address, BluetoothDevice device) {
+        if (mBluetoothAdapter == null || address == null) {
+            Log.w(TAG, "BluetoothAdapter not initialized or unspecified address.");
+            return false;
+        }
+        final ConnectionStateMachine.State state = mConnectionState.get();
+        if (address.equals(mBluetoothDeviceAddress)
+                && state != ConnectionStateMachine.State.DISCONNECTED
+                && state != ConnectionStateMachine.State.DISCONNECTING) {
+            // Connexion déjà établie ou en cours vers cet appareil.
+            return true;
+        }
+        // Par la session, qui compte le délai de première mesure à partir d’ici, puis par
+        // GattTransport.connect() et connectGatt().
+        mTransport.setTarget(address, device);
+        return mSession.connect();
+    }
+
+    /**
+     * Connexion GATT à l’appareil choisi, demandée par {@link GattTransport#connect()}.
+     * @param address adresse de l’appareil
+     * @param device appareil obtenu par le scan, ou null
+     * @return true si la connexion est lancée, ou en attente de la fin d’une déconnexion
+     */
+    synchronized boolean connectGatt(final String address, BluetoothDevice device) {
         if (mBluetoothAdapter == null || address == null) {
             Log.w(TAG, "BluetoothAdapter not initialized or unspecified address.");
             return false;
         }
+        if (mConnectionState.get() == ConnectionStateMachine.State.DISCONNECTING) {
+            // Pas encore déconnecté : connexion lancée à la fin de la déconnexion (callback
+            // ou expiration de son délai), avec son propre délai.
+            mPendingAddress = address;
+            mPendingDevice = device;
+            return true;
+        }
+        final boolean sameDevice = address.equals(mBluetoothDeviceAddress);
+        if (!mConnectionState.transition(ConnectionStateMachine.State.DISCONNECTED,
+                ConnectionStateMachine.State.CONNECTING)) {
+            Log.w(TAG, "Connexion impossible dans l’état " + mConnectionState.get());
+            return false;
+        }
 
+        // La liaison en arrière-plan éventuelle cède la place à la connexion directe.
+        stopBackgroundLink(address);
         // Previously connected device.  Try to reconnect.
-        if (mBluetoothDeviceAddress != null && address.equals(mBluetoothDeviceAddress)
-                && mBluetoothGatt != null) {
+        if (sameDevice && mBluetoothGatt != null) {
             Log.d(TAG, "Trying to use an existing mBluetoothGatt for connection.");
-            if (mBluetoothGatt.connect()) {
-                mConnectionState = STATE_CONNECTING;
-                return true;
-            } else {
+            if (!mBluetoothGatt.connect()) {
+                mConnectionState.moveTo(ConnectionStateMachine.State.DISCONNECTED);
                 return false;
             }
+        } else {
+            if (device == null) {
+                device = mBluetoothAdapter.getRemoteDevice(address);
+            }
+            if (device == null) {
+                Log.w(TAG, "Device not found.  Unable to connect.");
+                mConnectionState.moveTo(ConnectionStateMachine.State.DISCONNECTED);
+                return false;
+            }
+            if (mBluetoothGatt != null) {
+                // Client GATT d’un autre appareil : libération avant d’en créer un nouveau.
+                mBluetoothGatt.close();
+            }
+            // We want to directly connect to the device, so we are setting the autoConnect
+            // parameter to false.
+            mMtu = DEFAULT_MTU;
+            mBluetoothGatt = device.connectGatt(this, false, mGattCallback);
+            Log.d(TAG, "Trying to create a new connection.");
+            mBluetoothDeviceAddress = address;
         }
-
-        final BluetoothDevice device = mBluetoothAdapter.getRemoteDevice(address);
-        if (device == null) {
-            Log.w(TAG, "Device not found.  Unable to connect.");
-            return false;
-        }
-        // We want to directly connect to the device, so we are setting the autoConnect
-        // parameter to false.
-        mBluetoothGatt = device.connectGatt(this, false, mGattCallback);
-        Log.d(TAG, "Trying to create a new connection.");
-        mBluetoothDeviceAddress = address;
-        mConnectionState = STATE_CONNECTING;
+        mHandler.postDelayed(mConnectTimeoutRunnable, mConnectTimeout);
         return true;
     }
 
+    /**
+     * Journalisation de la durée entre la demande de connexion et la première mesure, avec
+     * le détail des phases.
+     */
+    private final StreamingSession.Listener mFirstSampleListener =
+            new StreamingSession.Listener() {
+                @Override
+                public void onFirstSample(String address, long delayNanos) {
+                    Log.i(TAG, "First sample " + delayNanos / 1000000
+                            + " ms after connect request (connection "
+                            + mConnectionState.getLastDurationMillis(
+                                    ConnectionStateMachine.State.CONNECTING)
+                            + " ms, discovery "
+                            + mConnectionState.getLastDurationMillis(
+                                    ConnectionStateMachine.State.DISCOVERING)
+                            + " ms, first value "
+                            + mConnectionState.getTimeInCurrentStateMillis() + " ms).");
+                }
+            };
+
+    /**
+     * Durée entre la dernière demande de connexion et la première mesure reçue ensuite.
+     * @return durée en ms, ou -1 si aucune mesure n’a encore été reçue
+     */
+    public long getTimeToFirstSampleMillis() {
+        final long nanos = mSession.getTimeToFirstSampleNanos();
+        return nanos < 0 ? -1 : nanos / 1000000;
+    }
+
+    /**
+     * Configure les délais maximaux de connexion et de découverte des services, pris en compte
+     * à la prochaine tentative de connexion.
+     * @param connectTimeout délai de connexion, en millisecondes
+     * @param discoveryTimeout délai de découverte des services, en millisecondes
+     */
+    public void setTimeouts(long connectTimeout, long discoveryTimeout) {
+        mConnectTimeout = connectTimeout;
+        mDiscoveryTimeout = discoveryTimeout;
+    }
+
+    /**
+     * Retourne l’état courant de la connexion.
+     * @return
+     */
+    public ConnectionStateMachine.State getConnectionState() {
+        return mConnectionState.get();
+    }
+
+    /**
+     * Retourne la durée du dernier séjour dans un état de la connexion, par exemple
+     * {@code CONNECTING} pour la durée de la dernière connexion.
+     * @param state
+     * @return durée en millisecondes
+     */
+    public long getStateDurationMillis(ConnectionStateMachine.State state) {
+        return mConnectionState.getLastDurationMillis(state);
+    }
+
     /**
      * Disconnects an existing connection or cancel a pending connection. The disconnection result
      * is reported asynchronously through the
@@ -341,10 +1682,20 @@ public class BluetoothLeService extends Service {
      * callback.
      */
     public void disconnect() {
+        synchronized (this) {
+            // Une connexion en attente de la fin d’une déconnexion est annulée aussi.
+            mPendingAddress = null;
+            mPendingDevice = null;
+        }
         if (mBluetoothAdapter == null || mBluetoothGatt == null) {
             Log.w(TAG, "BluetoothAdapter not initialized");
             return;
         }
+        cancelTimeouts();
+        if (mConnectionState.get() != ConnectionStateMachine.State.DISCONNECTED) {
+            mConnectionState.moveTo(ConnectionStateMachine.State.DISCONNECTING);
+            mHandler.postDelayed(mDisconnectTimeoutRunnable, DISCONNECT_TIMEOUT);
+        }
         mBluetoothGatt.disconnect();
     }
 
@@ -352,12 +1703,131 @@ public class BluetoothLeService extends Service {
      * After using a given BLE device, the app must call this method to ensure resources are
      * released properly.
      */
-    public void close() {
+    public synchronized void close() {
+        mPendingAddress = null;
+        mPendingDevice = null;
+        cancelTimeouts();
+        clearOperations();
+        mTransport.dispatchDisconnected(mBluetoothDeviceAddress);
+        mConnectionState.moveTo(ConnectionStateMachine.State.DISCONNECTED);
+        if (mHistory != null) {
+            mHistory.flush();
+        }
         if (mBluetoothGatt == null) {
             return;
         }
         mBluetoothGatt.close();
         mBluetoothGatt = null;
+        clearDispatch();
+        // Appareil connu : surveillé à nouveau en arrière-plan.
+        if (mBluetoothDeviceAddress != null && mKnownDevices.contains(mBluetoothDeviceAddress)) {
+            startBackgroundLink(mBluetoothDeviceAddress);
+        }
+    }
+
+    /**
+     * Enregistrement de l’appareil prêt dans le registre des appareils connus, avec
+     * l’organisation de ses services.
+     * @param gatt
+     */
+    private void rememberDevice(BluetoothGatt gatt) {
+        final BluetoothDevice device = gatt.getDevice();
+        final ArrayList<String> layout = new ArrayList<String>();
+        for (BluetoothGattService service : gatt.getServices()) {
+            for (BluetoothGattCharacteristic characteristic : service.getCharacteristics()) {
+                layout.add(service.getUuid() + "/" + characteristic.getUuid());
+            }
+        }
+        mKnownDevices.remember(device.getAddress(), device.getName(), System.currentTimeMillis());
+        mKnownDevices.setLayout(device.getAddress(), layout);
+        mKnownDevices.save();
+    }
+
+    /**
+     * Liaisons en arrière-plan vers tous les appareils connus, sauf celui connecté au
+     * premier plan.
+     */
+    private void startBackgroundLinks() {
+        for (KnownDeviceRegistry.Device device : mKnownDevices.getAll()) {
+            startBackgroundLink(device.address);
+        }
+    }
+
+    private void startBackgroundLink(String address) {
+        if (mBluetoothAdapter == null
+                || (address.equals(mBluetoothDeviceAddress) && mBluetoothGatt != null)) {
+            return;
+        }
+        synchronized (mBackgroundLinks) {
+            if (mBackgroundLinks.containsKey(address)) {
+                return;
+            }
+            final BluetoothGatt gatt = mBluetoothAdapter.getRemoteDevice(address)
+                    .connectGatt(this, true, mBackgroundCallback);
+            if (gatt != null) {
+                Log.d(TAG, "Liaison en arrière-plan vers " + address);
+                mBackgroundLinks.put(address, gatt);
+            }
+        }
+    }
+
+    private void stopBackgroundLink(String address) {
+        final BluetoothGatt gatt;
+        synchronized (mBackgroundLinks) {
+            gatt = mBackgroundLinks.remove(address);
+        }
+        if (gatt != null) {
+            gatt.close();
+        }
+    }
+
+    private void stopBackgroundLinks() {
+        synchronized (mBackgroundLinks) {
+            for (BluetoothGatt gatt : mBackgroundLinks.values()) {
+                gatt.close();
+            }
+            mBackgroundLinks.clear();
+        }
+    }
+
+    /**
+     * Appareils connus, du plus récemment rencontré au plus ancien.
+     * @return
+     */
+    public List<KnownDeviceRegistry.Device> getKnownDevices() {
+        return mKnownDevices.getAll();
+    }
+
+    /**
+     * Appareil épinglé à ouvrir au lancement.
+     * @return l’appareil épinglé le plus récemment rencontré, ou null
+     */
+    public KnownDeviceRegistry.Device getPinnedDevice() {
+        return mKnownDevices.getPinned();
+    }
+
+    /**
+     * Épinglage d’un appareil, ajouté au registre s’il n’y est pas encore.
+     * @param address adresse de l’appareil
+     * @param name nom de l’appareil, ou null
+     * @param pinned
+     */
+    public void setPinned(String address, String name, boolean pinned) {
+        if (pinned && !mKnownDevices.contains(address)) {
+            mKnownDevices.remember(address, name, System.currentTimeMillis());
+        }
+        if (mKnownDevices.setPinned(address, pinned)) {
+            mKnownDevices.save();
+        }
+    }
+
+    /**
+     * @param address adresse de l’appareil
+     * @return true si l’appareil est épinglé
+     */
+    public boolean isPinned(String address) {
+        final KnownDeviceRegistry.Device device = mKnownDevices.get(address);
+        return device != null && device.pinned;
     }
 
     /**
@@ -372,11 +1842,41 @@ public class BluetoothLeService extends Service {
             Log.w(TAG, "BluetoothAdapter not initialized");
             return;
         }
-        mBluetoothGatt.readCharacteristic(characteristic);
+        mGattQueue.enqueue(mBluetoothGatt, new GattOperationQueue.Operation(
+                GattOperationQueue.READ_CHARACTERISTIC, characteristic, null, null,
+                GattOperationQueue.TAG_NONE));
+    }
+
+    /**
+     * Lecture d’une caractéristique, servie par le cache des dernières valeurs si la valeur
+     * connue est assez récente : elle est alors diffusée immédiatement (EXTRA_CACHED), sans
+     * opération radio ; sinon, lecture ordinaire.
+     * @param characteristic caractéristique à lire
+     * @param maxAgeMillis âge maximal accepté pour la valeur en cache, en ms
+     * @return true si la lecture a été servie par le cache
+     */
+    public boolean readCharacteristic(BluetoothGattCharacteristic characteristic,
+                                      long maxAgeMillis) {
+        final CharacteristicSchema.Entry description = describe(characteristic);
+        final LastValueCache.Entry entry = mBluetoothDeviceAddress == null || description == null
+                ? null
+                : mLastValues.getFresh(mBluetoothDeviceAddress, characteristic.getUuid(),
+                        maxAgeMillis, SystemClock.elapsedRealtimeNanos());
+        if (entry == null) {
+            readCharacteristic(characteristic);
+            return false;
+        }
+        sendBroadcast(makeValueIntent(description, entry.address, entry.value, entry.source,
+                entry.timestampNanos, true));
+        return true;
     }
 
     /**
-     * Écriture d’une caractéristique sur le serveur BLE de l’appareil connecté.
+     * Écriture d’une caractéristique sur le serveur BLE de l’appareil connecté.
+     *
+     * Les données sont tronquées à la charge utile permise par le MTU négocié. Si une
+     * écriture de la même caractéristique attend encore son tour, sa valeur est simplement
+     * remplacée : seule la dernière valeur demandée est envoyée.
      * @param characteristic caractéristique où écrire
      * @param data données brutes à envoyer pour écriture
      */
@@ -385,8 +1885,32 @@ public class BluetoothLeService extends Service {
             Log.w(TAG, "BluetoothAdapter not initialized");
             return;
         }
-        characteristic.setValue(data);
-        mBluetoothGatt.writeCharacteristic(characteristic);
+        final int max = getMaxWriteLength();
+        if (data.length > max) {
+            Log.w(TAG, "Écriture de " + data.length + " octets tronquée à " + max + ".");
+            data = Arrays.copyOf(data, max);
+        }
+        if (mGattQueue.enqueueCoalesced(mBluetoothGatt, new GattOperationQueue.Operation(
+                GattOperationQueue.WRITE_CHARACTERISTIC, characteristic, null, data,
+                GattOperationQueue.TAG_NONE))) {
+            Logger.d(LOG_TAG, LOG_WRITE_COALESCED, mGattQueue.coalescedCount());
+        }
+    }
+
+    /**
+     * Longueur maximale d’une valeur écrite, selon le MTU négocié (en-tête ATT déduit.)
+     * @return longueur en octets
+     */
+    public int getMaxWriteLength() {
+        return mMtu - ATT_WRITE_HEADER_LENGTH;
+    }
+
+    /**
+     * Nombre d’écritures remplacées par une écriture plus récente avant d’être envoyées.
+     * @return
+     */
+    public long getCoalescedWriteCount() {
+        return mGattQueue.coalescedCount();
     }
 
     /**
@@ -397,26 +1921,23 @@ public class BluetoothLeService extends Service {
      */
     public void setCharacteristicNotification(BluetoothGattCharacteristic characteristic,
                                               boolean enabled) {
-        if (mBluetoothAdapter == null || mBluetoothGatt == null) {
+        if (mBluetoothAdapter == null || mBluetoothGatt == null || characteristic == null) {
             Log.w(TAG, "BluetoothAdapter not initialized");
             return;
         }
-        Log.d(TAG, "setCharacteristicNotification() appelé");
+        Logger.d(LOG_TAG, LOG_NOTIFICATION, enabled ? 1 : 0);
         // Ne pas oublier d’écrire le descripteur de la caractéristique pour que les serveur
-        // BLE de l’appareil connecté envoie les notifications.
-        if (GattConstants.SENSOR_CHARACTERISTIC_UUID.equals(characteristic.getUuid())) {
+        // BLE de l’appareil connecté envoie les notifications.
+        // L’écriture est mise en file : elle aura lieu dès la fin des opérations en cours.
+        final CharacteristicSchema.Entry entry = describe(characteristic);
+        if (entry != null && entry.canNotify()) {
             BluetoothGattDescriptor descriptor = characteristic.getDescriptor(GattConstants.CHARACTERISTIC_CONFIG_UUID);
-            descriptor.setValue(
-                    enabled ? BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE
-                            : BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE
-            );
-            try {
-                // Parfois plusieurs essais sont nécessaires (l’interface BLE peut être
-                // occupée avec d’autres opérations.)
-                while (!mBluetoothGatt.writeDescriptor(descriptor))
-                    sleep(500);
-            } catch (Exception e) {
-                e.printStackTrace();
+            if (descriptor != null) {
+                mGattQueue.enqueue(mBluetoothGatt, new GattOperationQueue.Operation(
+                        GattOperationQueue.WRITE_DESCRIPTOR, characteristic, descriptor,
+                        enabled ? BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE
+                                : BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE,
+                        GattOperationQueue.TAG_NONE));
             }
         }
         // Demande à l’appareil Android d’écouter et de prendre en compte les notifications
@@ -443,4 +1964,142 @@ public class BluetoothLeService extends Service {
         if (mBluetoothGatt == null) return null;
         return mBluetoothGatt.getService(GattConstants.PRIVATE_SERVICE_UUID);
     }
+
+    /**
+     * Lance le relevé complet des attributs de l’appareil connecté : toutes les
+     * caractéristiques lisibles et tous les descripteurs sont lus, les uns à la suite des
+     * autres sans attendre d’action de l’utilisateur. L’avancement est signalé par
+     * ACTION_DUMP_PROGRESS et le résultat par ACTION_DUMP_COMPLETE.
+     * @return false si aucun appareil n’est prêt ou si un relevé est déjà en cours
+     */
+    public boolean startAttributeDump() {
+        final BluetoothGatt gatt = mBluetoothGatt;
+        if (gatt == null || mConnectionState.get() != ConnectionStateMachine.State.READY) {
+            Log.w(TAG, "Relevé impossible : appareil non prêt.");
+            return false;
+        }
+        final ArrayList<GattOperationQueue.Operation> reads =
+                new ArrayList<GattOperationQueue.Operation>();
+        for (BluetoothGattService service : gatt.getServices()) {
+            for (BluetoothGattCharacteristic characteristic : service.getCharacteristics()) {
+                if ((characteristic.getProperties()
+                        & BluetoothGattCharacteristic.PROPERTY_READ) != 0) {
+                    reads.add(new GattOperationQueue.Operation(
+                            GattOperationQueue.READ_CHARACTERISTIC, characteristic, null, null,
+                            GattOperationQueue.TAG_DUMP));
+                }
+                for (BluetoothGattDescriptor descriptor : characteristic.getDescriptors()) {
+                    reads.add(new GattOperationQueue.Operation(
+                            GattOperationQueue.READ_DESCRIPTOR, characteristic, descriptor, null,
+                            GattOperationQueue.TAG_DUMP));
+                }
+            }
+        }
+        synchronized (mGattQueue) {
+            if (mDump != null) {
+                Log.w(TAG, "Relevé déjà en cours.");
+                return false;
+            }
+            mDump = new AttributeSnapshot(gatt.getDevice().getAddress(),
+                    System.currentTimeMillis());
+            mDumpTotal = reads.size();
+            mDumpDone = 0;
+        }
+        if (reads.isEmpty()) {
+            mHistoryHandler.post(mFinishDumpRunnable);
+        }
+        for (GattOperationQueue.Operation read : reads) {
+            mGattQueue.enqueue(gatt, read);
+        }
+        return true;
+    }
+
+    /**
+     * Enregistrement d’une valeur lue pour le relevé en cours.
+     * @param characteristic caractéristique lue, ou portant le descripteur lu
+     * @param descriptor descripteur lu, ou null
+     * @param value valeur, ou null en cas d’échec
+     */
+    private void recordDump(BluetoothGattCharacteristic characteristic,
+                            BluetoothGattDescriptor descriptor, byte[] value) {
+        final int done;
+        final int total;
+        synchronized (mGattQueue) {
+            if (mDump == null) {
+                return;
+            }
+            String path = characteristic.getService().getUuid() + "#"
+                    + characteristic.getService().getInstanceId() + "/"
+                    + characteristic.getUuid() + "#" + characteristic.getInstanceId();
+            if (descriptor != null) {
+                path += "/" + descriptor.getUuid();
+            }
+            mDump.put(path, value);
+            done = ++mDumpDone;
+            total = mDumpTotal;
+        }
+        final Intent intent = new Intent(ACTION_DUMP_PROGRESS);
+        intent.putExtra(EXTRA_DUMP_DONE, done);
+        intent.putExtra(EXTRA_DUMP_TOTAL, total);
+        sendBroadcast(intent);
+        if (done == total) {
+            mHistoryHandler.post(mFinishDumpRunnable);
+        }
+    }
+
+    /**
+     * Fin du relevé : enregistrement dans un fichier horodaté et comparaison avec le relevé
+     * précédent du même appareil (sur le thread de l’historique, cf. mFinishDumpRunnable.)
+     */
+    private void finishDump() {
+        final AttributeSnapshot dump;
+        synchronized (mGattQueue) {
+            dump = mDump;
+            mDump = null;
+        }
+        if (dump == null) {
+            return;
+        }
+        final File directory = new File(getFilesDir(), "dumps");
+        final String prefix = dump.getAddress().replace(":", "") + "-";
+        final File file = new File(directory, prefix + dump.getTime() + ".txt");
+        final Intent intent = new Intent(ACTION_DUMP_COMPLETE);
+        try {
+            // Relevé précédent : le plus récent fichier du même appareil.
+            File previousFile = null;
+            final File[] files = directory.listFiles();
+            if (files != null) {
+                for (File candidate : files) {
+                    if (candidate.getName().startsWith(prefix) && (previousFile == null
+                            || candidate.getName().compareTo(previousFile.getName()) > 0)) {
+                        previousFile = candidate;
+                    }
+                }
+            }
+            if (previousFile != null) {
+                final Reader reader =
+                        new InputStreamReader(new FileInputStream(previousFile), "UTF-8");
+                try {
+                    intent.putStringArrayListExtra(EXTRA_DUMP_DIFF, new ArrayList<String>(
+                            dump.diff(AttributeSnapshot.read(reader))));
+                } finally {
+                    reader.close();
+                }
+            }
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                throw new IOException("Création de " + directory + " impossible.");
+            }
+            final Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+            try {
+                dump.write(writer);
+            } finally {
+                writer.close();
+            }
+            intent.putExtra(EXTRA_DUMP_FILE, file.getAbsolutePath());
+            Log.i(TAG, "Relevé de " + dump.size() + " attributs enregistré dans " + file);
+        } catch (IOException e) {
+            Log.e(TAG, "Enregistrement du relevé impossible.", e);
+        }
+        sendBroadcast(intent);
+    }
 }
@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2017 CentraleSupélec
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.centralesupelec.students.clientble;
+
+/**
+ * Machine à états de la connexion à un serveur GATT.
+ *
+ * Les transitions sont atomiques (méthodes synchronisées) : elles peuvent être demandées
+ * depuis les callbacks Bluetooth (thread binder) comme depuis le thread principal.
+ * La lecture de l’état courant, elle, ne prend pas de verrou.
+ * Le temps passé dans chaque état est mesuré à chaque transition.
+ */
+public class ConnectionStateMachine {
+
+    /** États possibles de la connexion. */
+    public enum State {
+        DISCONNECTED,
+        CONNECTING,
+        DISCOVERING,
+        READY,
+        DISCONNECTING
+    }
+
+    private volatile State mState = State.DISCONNECTED;
+    private long mEnteredAtNanos = System.nanoTime();
+
+    // Durée (ns) du dernier séjour dans chaque état, indexée par ordinal().
+    private final long[] mLastDurationNanos = new long[State.values().length];
+
+    /**
+     * Retourne l’état courant, sans verrou.
+     * @return
+     */
+    public State get() {
+        return mState;
+    }
+
+    /**
+     * Transition conditionnelle : n’a lieu que si l’état courant est {@code from}.
+     * @param from état attendu
+     * @param to nouvel état
+     * @return true si la transition a eu lieu
+     */
+    public synchronized boolean transition(State from, State to) {
+        if (mState != from) {
+            return false;
+        }
+        enter(to);
+        return true;
+    }
+
+    /**
+     * Transition inconditionnelle.
+     * @param to nouvel état
+     * @return l’état précédent
+     */
+    public synchronized State moveTo(State to) {
+        final State previous = mState;
+        if (previous != to) {
+            enter(to);
+        }
+        return previous;
+    }
+
+    /**
+     * Durée du dernier séjour complet dans un état.
+     * @param state
+     * @return durée en millisecondes, 0 si l’état n’a jamais été quitté
+     */
+    public synchronized long getLastDurationMillis(State state) {
+        return mLastDurationNanos[state.ordinal()] / 1000000L;
+    }
+
+    /**
+     * Temps passé jusqu’ici dans l’état courant.
+     * @return durée en millisecondes
+     */
+    public synchronized long getTimeInCurrentStateMillis() {
+        return (System.nanoTime() - mEnteredAtNanos) / 1000000L;
+    }
+
+    private void enter(State to) {
+        final long now = System.nanoTime();
+        mLastDurationNanos[mState.ordinal()] = now - mEnteredAtNanos;
+        mEnteredAtNanos = now;
+        mState = to;
+    }
+}
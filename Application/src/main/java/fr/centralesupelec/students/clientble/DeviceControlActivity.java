@@ -33,11 +33,9 @@ import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
 import android.widget.ExpandableListView;
-import android.widget.SimpleExpandableListAdapter;
 import android.widget.TextView;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
 
 /**
@@ -59,14 +57,12 @@ public class DeviceControlActivity extends Activity {
     private String mDeviceName;
     private String mDeviceAddress;
     private ExpandableListView mGattServicesList;
+    private GattServiceAdapter mGattServiceAdapter;
     private BluetoothLeService mBluetoothLeService;
-    private ArrayList<ArrayList<BluetoothGattCharacteristic>> mGattCharacteristics =
-            new ArrayList<ArrayList<BluetoothGattCharacteristic>>();
     private boolean mConnected = false;
     private BluetoothGattCharacteristic mNotifyCharacteristic;
-
-    private final String LIST_NAME = "NAME";
-    private final String LIST_UUID = "UUID";
+    // UUID de la caractéristique choisie dans la liste : seules ses valeurs sont affichées.
+    private String mSelectedUuid;
 
     // Code to manage Service lifecycle.
     private final ServiceConnection mServiceConnection = new ServiceConnection() {
@@ -94,6 +90,7 @@ public class DeviceControlActivity extends Activity {
     // ACTION_GATT_SERVICES_DISCOVERED: discovered GATT services.
     // ACTION_SENSOR_VALUE_AVAILABLE: received data from the device.  This can be a result of read
     //                        or notification operations.
+    // ACTION_DUMP_PROGRESS, ACTION_DUMP_COMPLETE : avancement et fin du relevé des attributs.
     private final BroadcastReceiver mGattUpdateReceiver = new BroadcastReceiver() {
         @Override
         public void onReceive(Context context, Intent intent) {
@@ -111,7 +108,16 @@ public class DeviceControlActivity extends Activity {
                 // Show all the supported services and characteristics on the user interface.
                 displayGattServices(mBluetoothLeService.getSupportedGattServices());
             } else if (BluetoothLeService.ACTION_SENSOR_VALUE_AVAILABLE.equals(action)) {
-                displayData(intent.getStringExtra(BluetoothLeService.EXTRA_DATA));
+                if (mSelectedUuid != null && mSelectedUuid.equals(
+                        intent.getStringExtra(BluetoothLeService.EXTRA_CHARACTERISTIC))) {
+                    displayData(intent.getStringExtra(BluetoothLeService.EXTRA_DATA));
+                }
+            } else if (BluetoothLeService.ACTION_DUMP_PROGRESS.equals(action)) {
+                displayData(getString(R.string.dump_progress,
+                        intent.getIntExtra(BluetoothLeService.EXTRA_DUMP_DONE, 0),
+                        intent.getIntExtra(BluetoothLeService.EXTRA_DUMP_TOTAL, 0)));
+            } else if (BluetoothLeService.ACTION_DUMP_COMPLETE.equals(action)) {
+                displayDumpResult(intent);
             }
         }
     };
@@ -125,11 +131,12 @@ public class DeviceControlActivity extends Activity {
                 @Override
                 public boolean onChildClick(ExpandableListView parent, View v, int groupPosition,
                                             int childPosition, long id) {
-                    if (mGattCharacteristics != null) {
+                    if (mGattServiceAdapter.getGroupCount() > groupPosition) {
                         final BluetoothGattCharacteristic characteristic =
-                                mGattCharacteristics.get(groupPosition).get(childPosition);
+                                mGattServiceAdapter.getChild(groupPosition, childPosition);
                         final int charaProp = characteristic.getProperties();
-                        if ((charaProp | BluetoothGattCharacteristic.PROPERTY_READ) > 0) {
+                        mSelectedUuid = characteristic.getUuid().toString();
+                        if ((charaProp & BluetoothGattCharacteristic.PROPERTY_READ) != 0) {
                             // If there is an active notification on a characteristic, clear
                             // it first so it doesn't update the data field on the user interface.
                             if (mNotifyCharacteristic != null) {
@@ -139,7 +146,7 @@ public class DeviceControlActivity extends Activity {
                             }
                             mBluetoothLeService.readCharacteristic(characteristic);
                         }
-                        if ((charaProp | BluetoothGattCharacteristic.PROPERTY_NOTIFY) > 0) {
+                        if ((charaProp & BluetoothGattCharacteristic.PROPERTY_NOTIFY) != 0) {
                             mNotifyCharacteristic = characteristic;
                             mBluetoothLeService.setCharacteristicNotification(
                                     characteristic, true);
@@ -151,7 +158,8 @@ public class DeviceControlActivity extends Activity {
     };
 
     private void clearUI() {
-        mGattServicesList.setAdapter((SimpleExpandableListAdapter) null);
+        mGattServiceAdapter.setServices(null);
+        mSelectedUuid = null;
         mDataField.setText(R.string.no_data);
     }
 
@@ -167,6 +175,8 @@ public class DeviceControlActivity extends Activity {
         // Sets up UI references.
         ((TextView) findViewById(R.id.device_address)).setText(mDeviceAddress);
         mGattServicesList = (ExpandableListView) findViewById(R.id.gatt_services_list);
+        mGattServiceAdapter = new GattServiceAdapter(this, mGattServicesList);
+        mGattServicesList.setAdapter(mGattServiceAdapter);
         mGattServicesList.setOnChildClickListener(servicesListClickListner);
         mConnectionState = (TextView) findViewById(R.id.connection_state);
         mDataField = (TextView) findViewById(R.id.data_value);
@@ -206,9 +216,11 @@ public class DeviceControlActivity extends Activity {
         if (mConnected) {
             menu.findItem(R.id.menu_connect).setVisible(false);
             menu.findItem(R.id.menu_disconnect).setVisible(true);
+            menu.findItem(R.id.menu_dump).setVisible(true);
         } else {
             menu.findItem(R.id.menu_connect).setVisible(true);
             menu.findItem(R.id.menu_disconnect).setVisible(false);
+            menu.findItem(R.id.menu_dump).setVisible(false);
         }
         return true;
     }
@@ -222,6 +234,11 @@ public class DeviceControlActivity extends Activity {
             case R.id.menu_disconnect:
                 mBluetoothLeService.disconnect();
                 return true;
+            case R.id.menu_dump:
+                if (!mBluetoothLeService.startAttributeDump()) {
+                    displayData(getString(R.string.dump_unavailable));
+                }
+                return true;
             case android.R.id.home:
                 onBackPressed();
                 return true;
@@ -244,61 +261,35 @@ public class DeviceControlActivity extends Activity {
         }
     }
 
-    // Demonstrates how to iterate through the supported GATT Services/Characteristics.
-    // In this sample, we populate the data structure that is bound to the ExpandableListView
-    // on the UI.
-    private void displayGattServices(List<BluetoothGattService> gattServices) {
-        if (gattServices == null) return;
-        String uuid = null;
-        String unknownServiceString = getResources().getString(R.string.unknown_service);
-        String unknownCharaString = getResources().getString(R.string.unknown_characteristic);
-        ArrayList<HashMap<String, String>> gattServiceData = new ArrayList<HashMap<String, String>>();
-        ArrayList<ArrayList<HashMap<String, String>>> gattCharacteristicData
-                = new ArrayList<ArrayList<HashMap<String, String>>>();
-        mGattCharacteristics = new ArrayList<ArrayList<BluetoothGattCharacteristic>>();
-
-        // Loops through available GATT Services.
-        for (BluetoothGattService gattService : gattServices) {
-            HashMap<String, String> currentServiceData = new HashMap<String, String>();
-            uuid = gattService.getUuid().toString();
-            currentServiceData.put(
-                    LIST_NAME, GattConstants.lookup(uuid, unknownServiceString));
-            currentServiceData.put(LIST_UUID, uuid);
-            gattServiceData.add(currentServiceData);
-
-            ArrayList<HashMap<String, String>> gattCharacteristicGroupData =
-                    new ArrayList<HashMap<String, String>>();
-            List<BluetoothGattCharacteristic> gattCharacteristics =
-                    gattService.getCharacteristics();
-            ArrayList<BluetoothGattCharacteristic> charas =
-                    new ArrayList<BluetoothGattCharacteristic>();
-
-            // Loops through available Characteristics.
-            for (BluetoothGattCharacteristic gattCharacteristic : gattCharacteristics) {
-                charas.add(gattCharacteristic);
-                HashMap<String, String> currentCharaData = new HashMap<String, String>();
-                uuid = gattCharacteristic.getUuid().toString();
-                currentCharaData.put(
-                        LIST_NAME, GattConstants.lookup(uuid, unknownCharaString));
-                currentCharaData.put(LIST_UUID, uuid);
-                gattCharacteristicGroupData.add(currentCharaData);
+    /**
+     * Affichage du résultat d’un relevé des attributs : fichier enregistré et différences avec
+     * le relevé précédent du même appareil.
+     * @param intent intention ACTION_DUMP_COMPLETE
+     */
+    private void displayDumpResult(Intent intent) {
+        final String file = intent.getStringExtra(BluetoothLeService.EXTRA_DUMP_FILE);
+        if (file == null) {
+            displayData(getString(R.string.dump_failed));
+            return;
+        }
+        final StringBuilder text = new StringBuilder(getString(R.string.dump_saved, file));
+        final ArrayList<String> differences =
+                intent.getStringArrayListExtra(BluetoothLeService.EXTRA_DUMP_DIFF);
+        if (differences != null) {
+            text.append('\n').append(getString(R.string.dump_differences, differences.size()));
+            for (String difference : differences) {
+                text.append('\n').append(difference);
             }
-            mGattCharacteristics.add(charas);
-            gattCharacteristicData.add(gattCharacteristicGroupData);
         }
+        displayData(text.toString());
+    }
 
-        SimpleExpandableListAdapter gattServiceAdapter = new SimpleExpandableListAdapter(
-                this,
-                gattServiceData,
-                android.R.layout.simple_expandable_list_item_2,
-                new String[] {LIST_NAME, LIST_UUID},
-                new int[] { android.R.id.text1, android.R.id.text2 },
-                gattCharacteristicData,
-                android.R.layout.simple_expandable_list_item_2,
-                new String[] {LIST_NAME, LIST_UUID},
-                new int[] { android.R.id.text1, android.R.id.text2 }
-        );
-        mGattServicesList.setAdapter(gattServiceAdapter);
+    // Demonstrates how to iterate through the supported GATT Services/Characteristics.
+    // L’adaptateur lit directement les services découverts : les lignes ne sont calculées
+    // qu’au moment de leur affichage.
+    private void displayGattServices(List<BluetoothGattService> gattServices) {
+        if (gattServices == null) return;
+        mGattServiceAdapter.setServices(gattServices);
     }
 
     private static IntentFilter makeGattUpdateIntentFilter() {
@@ -307,6 +298,8 @@ public class DeviceControlActivity extends Activity {
         intentFilter.addAction(BluetoothLeService.ACTION_GATT_DISCONNECTED);
         intentFilter.addAction(BluetoothLeService.ACTION_GATT_SERVICES_DISCOVERED);
         intentFilter.addAction(BluetoothLeService.ACTION_SENSOR_VALUE_AVAILABLE);
+        intentFilter.addAction(BluetoothLeService.ACTION_DUMP_PROGRESS);
+        intentFilter.addAction(BluetoothLeService.ACTION_DUMP_COMPLETE);
         return intentFilter;
     }
 }
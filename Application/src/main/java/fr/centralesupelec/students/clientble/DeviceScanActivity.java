@@ -23,14 +23,19 @@ import android.app.ListActivity;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothManager;
+import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
+import android.content.ServiceConnection;
 import android.content.pm.PackageManager;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.IBinder;
+import android.os.SystemClock;
 import android.provider.Settings;
 import android.support.v4.app.ActivityCompat;
 import android.support.v4.content.ContextCompat;
+import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.Menu;
 import android.view.MenuItem;
@@ -41,8 +46,21 @@ import android.widget.ListView;
 import android.widget.TextView;
 import android.widget.Toast;
 
-import java.util.ArrayList;
+import fr.centralesupelec.students.clientble.core.AdvertisementParser;
+import fr.centralesupelec.students.clientble.core.SamplePipeline;
+import fr.centralesupelec.students.clientble.core.SampleRing;
+import fr.centralesupelec.students.clientble.core.SensorDecoder;
+import fr.centralesupelec.students.clientble.core.SurveyLog;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Activité qui scanne et affiche les appareils Bluetooth Low Energy
@@ -53,20 +71,63 @@ import java.util.UUID;
  * et d’écriture d’une valeur.
  */
 public class DeviceScanActivity extends ListActivity {
+    private final static String TAG = DeviceScanActivity.class.getSimpleName();
 
     /* Attributs. */
     private LeDeviceListAdapter mLeDeviceListAdapter; // adapte la liste des appareils scanné pour les afficher sur l’interface
     private BluetoothAdapter mBluetoothAdapter; // représente l’interface BLE, permet le scan
-    private boolean mScanning; // si l’activité est en train de scanner
+    private boolean mScanning; // si une session de scan est en cours
+    private boolean mScanWindowOpen; // si la radio scanne en ce moment (fenêtre de scan)
+    private final ScanScheduler mScanScheduler = new ScanScheduler(); // fenêtres de scan
+    private boolean mPassive; // mode télémétrie : valeurs lues dans les annonces, sans connexion
     private Handler mHandler; // gestionnaire de tâches
+    private BluetoothLeService mBluetoothLeService; // service lié dès le scan, prêt à connecter
+    private boolean mServiceBound; // si la liaison au service a été demandée
+    private boolean mOpenPinned; // si l’appareil épinglé doit être ouvert dès que possible
+
+    // RSSI provisoire d’un appareil connu dont aucune annonce n’a encore été reçue : il reste
+    // en fin de liste jusqu’à sa première annonce, dont le RSSI remplace alors cette valeur.
+    private static final int KNOWN_DEVICE_RSSI = -127;
+
+    // Mode relevé : toutes les annonces, de tous les appareils, enregistrées dans un journal
+    // binaire (files/surveys) ; la liste n’est mise à jour qu’à la première annonce de chaque
+    // appareil, et le sous-titre donne les compteurs du journal.
+    private static final int SURVEY_BUFFER_SIZE = 256 * 1024;
+    private static final long SURVEY_FLUSH_INTERVAL = 1000;
+    private static final long SURVEY_METRICS_PERIOD = 1000;
+    private volatile SurveyLog mSurveyLog;
+    private File mSurveyFile;
+    private final Set<String> mSurveyedDevices =
+            Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    // Liaison au service dès l’ouverture de la liste : il est initialisé avant que
+    // l’utilisateur ne choisisse un appareil, et la connexion part dès l’appui.
+    private final ServiceConnection mServiceConnection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName componentName, IBinder service) {
+            mBluetoothLeService = ((BluetoothLeService.LocalBinder) service).getService();
+            if (!mBluetoothLeService.initialize()) {
+                Log.e(TAG, "Unable to initialize Bluetooth");
+                mBluetoothLeService = null;
+                return;
+            }
+            if (mOpenPinned) {
+                mOpenPinned = false;
+                openPinnedDevice();
+            }
+            addKnownDevices();
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName componentName) {
+            mBluetoothLeService = null;
+        }
+    };
 
     /* Constantes : valeurs de retour pour onActivityResult */
     private static final int REQUEST_ENABLE_COARSE_LOCATION = 2;
     private static final int REQUEST_ENABLE_BT = 1;
 
-    /* Constante : durée maximale du scan. */
-    private static final long SCAN_PERIOD = 10000;
-
     /**
      * Méthode appelé lors de la création de l’activité, ou lors d’un changement
      * de l’orientation de l’écran (portrait/paysage.)
@@ -98,6 +159,11 @@ public class DeviceScanActivity extends ListActivity {
             return;
         }
 
+        // Au lancement (et non lors d’une rotation), l’appareil épinglé est ouvert directement.
+        mOpenPinned = savedInstanceState == null;
+        mServiceBound = bindService(new Intent(this, BluetoothLeService.class),
+                mServiceConnection, BIND_AUTO_CREATE);
+
         // Demande de la permission d’accès à la localisation, pour permettre le scan BLE.
         if (ContextCompat.checkSelfPermission(this,
                 Manifest.permission.ACCESS_COARSE_LOCATION)
@@ -137,6 +203,8 @@ public class DeviceScanActivity extends ListActivity {
         getMenuInflater().inflate(R.menu.main, menu);
 
         // Sans scan en cours, n’affiche que le bouton "scan"
+        menu.findItem(R.id.menu_passive).setChecked(mPassive);
+        menu.findItem(R.id.menu_survey).setChecked(mSurveyLog != null);
         if (!mScanning) {
             menu.findItem(R.id.menu_stop).setVisible(false);
             menu.findItem(R.id.menu_scan).setVisible(true);
@@ -170,6 +238,26 @@ public class DeviceScanActivity extends ListActivity {
             case R.id.menu_stop:
                 scanLeDevice(false); // arrêt du scan
                 break;
+            // appui sur "télémétrie" : bascule du mode sans connexion
+            case R.id.menu_passive:
+                mPassive = !mPassive;
+                scanLeDevice(false);
+                mLeDeviceListAdapter.clear();
+                mLeDeviceListAdapter.notifyDataSetChanged();
+                scanLeDevice(true); // en mode télémétrie, le scan est continu
+                break;
+            // appui sur "relevé" : journal de toutes les annonces
+            case R.id.menu_survey:
+                scanLeDevice(false);
+                if (mSurveyLog == null) {
+                    startSurvey();
+                } else {
+                    stopSurvey();
+                }
+                mLeDeviceListAdapter.clear();
+                mLeDeviceListAdapter.notifyDataSetChanged();
+                scanLeDevice(true);
+                break;
         }
         return true;
     }
@@ -212,6 +300,7 @@ public class DeviceScanActivity extends ListActivity {
         // Initializes list view adapter.
         mLeDeviceListAdapter = new LeDeviceListAdapter();
         setListAdapter(mLeDeviceListAdapter);
+        addKnownDevices();
         scanLeDevice(true);
     }
 
@@ -240,9 +329,84 @@ public class DeviceScanActivity extends ListActivity {
     protected void onPause() {
         super.onPause();
         scanLeDevice(false);
+        stopSurvey();
         mLeDeviceListAdapter.clear();
     }
 
+    /**
+     * Démarrage du mode relevé : ouverture d’un nouveau journal.
+     */
+    private void startSurvey() {
+        final File directory = new File(getFilesDir(), "surveys");
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            Toast.makeText(this, R.string.survey_failed, Toast.LENGTH_SHORT).show();
+            return;
+        }
+        final String name = "survey-"
+                + new SimpleDateFormat("yyyyMMdd-HHmmss", Locale.US).format(new Date()) + ".bin";
+        mSurveyFile = new File(directory, name);
+        mSurveyedDevices.clear();
+        try {
+            mSurveyLog = new SurveyLog(mSurveyFile, SURVEY_BUFFER_SIZE, SURVEY_FLUSH_INTERVAL,
+                    System.currentTimeMillis(), SystemClock.elapsedRealtimeNanos());
+        } catch (IOException e) {
+            Log.e(TAG, "Création du journal de relevé impossible.", e);
+            Toast.makeText(this, R.string.survey_failed, Toast.LENGTH_SHORT).show();
+            return;
+        }
+        mHandler.postDelayed(mSurveyMetricsRunnable, SURVEY_METRICS_PERIOD);
+    }
+
+    /**
+     * Fin du mode relevé : écriture des annonces en attente et fermeture du journal.
+     */
+    private void stopSurvey() {
+        final SurveyLog survey = mSurveyLog;
+        if (survey == null) {
+            return;
+        }
+        mSurveyLog = null;
+        mHandler.removeCallbacks(mSurveyMetricsRunnable);
+        getActionBar().setSubtitle(null);
+        try {
+            survey.close();
+            Toast.makeText(this, getString(R.string.survey_saved, mSurveyFile.getPath(),
+                    survey.getRecordCount()), Toast.LENGTH_LONG).show();
+        } catch (IOException e) {
+            Log.e(TAG, "Écriture du journal de relevé impossible.", e);
+            Toast.makeText(this, R.string.survey_failed, Toast.LENGTH_SHORT).show();
+        }
+        invalidateOptionsMenu();
+    }
+
+    /**
+     * Affichage périodique des compteurs du journal de relevé.
+     */
+    private final Runnable mSurveyMetricsRunnable = new Runnable() {
+        @Override
+        public void run() {
+            final SurveyLog survey = mSurveyLog;
+            if (survey != null) {
+                getActionBar().setSubtitle(getString(R.string.survey_metrics,
+                        survey.getRecordCount(), survey.getDroppedCount()));
+                mHandler.postDelayed(this, SURVEY_METRICS_PERIOD);
+            }
+        }
+    };
+
+    /**
+     * Fin de l’activité : fin de la liaison au service.
+     */
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        if (mServiceBound) {
+            unbindService(mServiceConnection);
+            mServiceBound = false;
+        }
+        mBluetoothLeService = null;
+    }
+
     /**
      * Méthode appelée lorsque l’utilisateur clique sur un élément de la liste des appareils
      * détectés par le scan.
@@ -258,14 +422,55 @@ public class DeviceScanActivity extends ListActivity {
 
         if (device == null) return;
 
+        openDevice(device, device.getName());
+    }
+
+    /**
+     * Ouverture de l’appareil épinglé le plus récemment rencontré, s’il y en a un, sans
+     * attendre le scan.
+     */
+    private void openPinnedDevice() {
+        final KnownDeviceRegistry.Device pinned = mBluetoothLeService.getPinnedDevice();
+        if (pinned == null) {
+            return;
+        }
+        Log.i(TAG, "Ouverture de l’appareil épinglé " + pinned.address);
+        final BluetoothDevice device = mBluetoothAdapter.getRemoteDevice(pinned.address);
+        openDevice(device, pinned.name != null ? pinned.name : device.getName());
+    }
+
+    /**
+     * Ajout à la liste des appareils connus, sélectionnables avant même leur première annonce.
+     */
+    private void addKnownDevices() {
+        if (mBluetoothLeService == null || mLeDeviceListAdapter == null) {
+            return;
+        }
+        for (KnownDeviceRegistry.Device known : mBluetoothLeService.getKnownDevices()) {
+            mLeDeviceListAdapter.addKnownDevice(mBluetoothAdapter.getRemoteDevice(known.address));
+        }
+    }
+
+    /**
+     * Connexion à un appareil et ouverture de son activité de détail.
+     * @param device
+     * @param name nom à afficher
+     */
+    private void openDevice(BluetoothDevice device, String name) {
         // Lancement de l’activité "SimpleDetailActivity" pour se connecter à l’appareil
         // et utiliser ses services BLE.
         final Intent intent = new Intent(this, SimpleDetailActivity.class);
-        intent.putExtra(SimpleDetailActivity.EXTRAS_DEVICE_NAME, device.getName());
+        intent.putExtra(SimpleDetailActivity.EXTRAS_DEVICE_NAME, name);
         intent.putExtra(SimpleDetailActivity.EXTRAS_DEVICE_ADDRESS, device.getAddress());
+        intent.putExtra(SimpleDetailActivity.EXTRAS_DEVICE, device);
+        // Arrêt du scan avant la connexion : il ralentit l’établissement de la liaison.
         if (mScanning) {
-            mBluetoothAdapter.stopLeScan(mLeScanCallback);
-            mScanning = false;
+            scanLeDevice(false);
+        }
+        // Connexion lancée dès l’appui, pendant le démarrage de l’activité de détail, avec
+        // l’objet BluetoothDevice obtenu par le scan.
+        if (mBluetoothLeService != null) {
+            mBluetoothLeService.connect(device);
         }
         startActivity(intent);
     }
@@ -273,55 +478,176 @@ public class DeviceScanActivity extends ListActivity {
     /**
      * Méthode qui lance ou arrête le scan des appareils BLE à notre portée qui proposent notre service
      * privé.
+     *
+     * Le scan procède par fenêtres, planifiées par {@link ScanScheduler} : fréquentes tant que
+     * de nouveaux appareils apparaissent, espacées quand la liste est stable. En mode
+     * télémétrie, le scan est continu.
      * @param enable
      */
     private void scanLeDevice(final boolean enable) {
-        // Liste (de taille 1) qui contient l’UUID de notre service privé.
-        UUID [] uuids = {GattConstants.PRIVATE_SERVICE_UUID};
+        mHandler.removeCallbacks(mStartWindowRunnable);
+        mHandler.removeCallbacks(mEndWindowRunnable);
 
         // Démarrage du scan.
         if (enable) {
-            // Stops scanning after a pre-defined scan period.
-            mHandler.postDelayed(new Runnable() {
-                @Override
-                public void run() {
-                    mScanning = false;
-                    mBluetoothAdapter.stopLeScan(mLeScanCallback);
-                    invalidateOptionsMenu();
-                }
-            }, SCAN_PERIOD);
-
             mScanning = true;
-            mBluetoothAdapter.startLeScan(uuids, mLeScanCallback);
+            mScanScheduler.startSession(SystemClock.elapsedRealtime());
+            if (mScanWindowOpen) {
+                // Fenêtre précédente encore ouverte : la nouvelle session la remplace.
+                mBluetoothAdapter.stopLeScan(mLeScanCallback);
+                mScanWindowOpen = false;
+            }
+            final long delay = mScanScheduler.delayBeforeStart(SystemClock.elapsedRealtime());
+            mHandler.postDelayed(mStartWindowRunnable, delay);
         } else {
             // Arrêt du scan.
             mScanning = false;
-            mBluetoothAdapter.stopLeScan(mLeScanCallback);
+            if (mScanWindowOpen) {
+                mBluetoothAdapter.stopLeScan(mLeScanCallback);
+                mScanWindowOpen = false;
+            }
         }
         invalidateOptionsMenu();
     }
 
+    /**
+     * Ouverture d’une fenêtre de scan.
+     */
+    private final Runnable mStartWindowRunnable = new Runnable() {
+        @Override
+        public void run() {
+            // Liste (de taille 1) qui contient l’UUID de notre service privé.
+            UUID [] uuids = {GattConstants.PRIVATE_SERVICE_UUID};
+
+            final long window = mScanScheduler.onWindowStart(SystemClock.elapsedRealtime());
+            // En modes télémétrie et relevé, toutes les annonces sont reçues, sans filtre : la
+            // valeur peut être dans des données de service ou de fabricant, sans l’UUID de
+            // notre service dans la liste des services annoncés. En mode télémétrie, le tri
+            // est fait par AdvertisementParser.
+            mScanWindowOpen = mPassive || mSurveyLog != null
+                    ? mBluetoothAdapter.startLeScan(mLeScanCallback)
+                    : mBluetoothAdapter.startLeScan(uuids, mLeScanCallback);
+            // En modes télémétrie et relevé, la fenêtre reste ouverte jusqu’à l’arrêt par
+            // l’utilisateur.
+            if (!mPassive && mSurveyLog == null) {
+                mHandler.postDelayed(mEndWindowRunnable, window);
+            }
+        }
+    };
+
+    /**
+     * Fermeture d’une fenêtre de scan et planification de la suivante.
+     */
+    private final Runnable mEndWindowRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (mScanWindowOpen) {
+                mBluetoothAdapter.stopLeScan(mLeScanCallback);
+                mScanWindowOpen = false;
+            }
+            final long delay = mScanScheduler.onWindowEnd(SystemClock.elapsedRealtime());
+            mHandler.postDelayed(mStartWindowRunnable, delay);
+            updateDiscoveryMetrics();
+        }
+    };
+
+    /**
+     * Affichage des mesures de découverte dans le sous-titre de la barre supérieure.
+     */
+    private void updateDiscoveryMetrics() {
+        final int count = mScanScheduler.getDiscoveredCount();
+        if (count == 0) {
+            getActionBar().setSubtitle(null);
+        } else {
+            getActionBar().setSubtitle(getString(R.string.discovery_metrics, count,
+                    mScanScheduler.getFirstDiscoveryLatency() / 1000.0,
+                    mScanScheduler.getMeanDiscoveryLatency() / 1000.0,
+                    mScanScheduler.getCurrentInterval() / 1000.0));
+        }
+    }
+
     // Adapter for holding devices found through scanning.
     // Contient les appareils détectés lors du scan et permet de les afficher sur
-    // l’interface.
+    // l’interface, du plus proche (RSSI lissé le plus fort) au plus lointain.
     private class LeDeviceListAdapter extends BaseAdapter {
-        private ArrayList<BluetoothDevice> mLeDevices;
+        private ProximityList<BluetoothDevice> mLeDevices;
         private LayoutInflater mInflator;
+        private boolean mChangePending; // si un notifyDataSetChanged() est déjà planifié
 
         public LeDeviceListAdapter() {
             super();
-            mLeDevices = new ArrayList<BluetoothDevice>();
+            mLeDevices = new ProximityList<BluetoothDevice>();
             mInflator = DeviceScanActivity.this.getLayoutInflater();
         }
 
-        public void addDevice(BluetoothDevice device) {
-            if(!mLeDevices.contains(device)) {
-                mLeDevices.add(device);
+        /**
+         * Prise en compte d’une annonce : ajout de l’appareil ou mise à jour de son RSSI et de
+         * sa valeur annoncée, puis notification minimale de la liste affichée.
+         * @param device
+         * @param rssi RSSI de l’annonce, en dBm
+         * @param value valeur annoncée, ou AdvertisementParser.NOT_FOUND
+         */
+        public void addDevice(BluetoothDevice device, int rssi, int value) {
+            final int from = mLeDevices.update(device.getAddress(), device, rssi);
+            final ProximityList.Entry<BluetoothDevice> entry =
+                    mLeDevices.find(device.getAddress());
+            if (value != AdvertisementParser.NOT_FOUND) {
+                entry.value = value;
+            }
+            if (from == entry.getIndex()) {
+                // Même position : seule la ligne concernée est redessinée, si elle est visible.
+                refreshRow(from);
+            } else {
+                // Changement d’ordre : une seule notification par passage de la boucle
+                // d’événements, quel que soit le nombre d’annonces reçues entre-temps.
+                if (!mChangePending) {
+                    mChangePending = true;
+                    mHandler.post(mNotifyRunnable);
+                }
+            }
+        }
+
+        /**
+         * Ajout d’un appareil connu, s’il n’est pas déjà dans la liste.
+         * @param device
+         */
+        public void addKnownDevice(BluetoothDevice device) {
+            if (mLeDevices.addPlaceholder(device.getAddress(), device, KNOWN_DEVICE_RSSI) >= 0
+                    && !mChangePending) {
+                mChangePending = true;
+                mHandler.post(mNotifyRunnable);
+            }
+        }
+
+        private final Runnable mNotifyRunnable = new Runnable() {
+            @Override
+            public void run() {
+                mChangePending = false;
+                notifyDataSetChanged();
+            }
+        };
+
+        /**
+         * Redessine une ligne visible sans recalculer toute la liste.
+         * @param position
+         */
+        private void refreshRow(int position) {
+            if (mChangePending) {
+                // Toute la liste sera redessinée de toute façon.
+                return;
+            }
+            final ListView listView = getListView();
+            final int first = listView.getFirstVisiblePosition();
+            if (position >= first && position <= listView.getLastVisiblePosition()) {
+                final View view = listView.getChildAt(position - first);
+                if (view != null) {
+                    getView(position, view, listView);
+                }
             }
         }
 
         public BluetoothDevice getDevice(int position) {
-            return mLeDevices.get(position);
+            return mLeDevices.get(position).getItem();
         }
 
         public void clear() {
@@ -335,7 +661,7 @@ public class DeviceScanActivity extends ListActivity {
 
         @Override
         public Object getItem(int i) {
-            return mLeDevices.get(i);
+            return mLeDevices.get(i).getItem();
         }
 
         @Override
@@ -352,18 +678,34 @@ public class DeviceScanActivity extends ListActivity {
                 viewHolder = new ViewHolder();
                 viewHolder.deviceAddress = (TextView) view.findViewById(R.id.device_address);
                 viewHolder.deviceName = (TextView) view.findViewById(R.id.device_name);
+                viewHolder.deviceRssi = (TextView) view.findViewById(R.id.device_rssi);
+                viewHolder.deviceValue = (TextView) view.findViewById(R.id.device_value);
                 view.setTag(viewHolder);
             } else {
                 viewHolder = (ViewHolder) view.getTag();
             }
 
-            BluetoothDevice device = mLeDevices.get(i);
+            final ProximityList.Entry<BluetoothDevice> entry = mLeDevices.get(i);
+            BluetoothDevice device = entry.getItem();
             final String deviceName = device.getName();
             if (deviceName != null && deviceName.length() > 0)
                 viewHolder.deviceName.setText(deviceName);
             else
                 viewHolder.deviceName.setText(R.string.unknown_device);
             viewHolder.deviceAddress.setText(device.getAddress());
+            if (entry.isPlaceholder()) {
+                viewHolder.deviceRssi.setText(R.string.rssi_unknown);
+            } else {
+                viewHolder.deviceRssi.setText(
+                        getString(R.string.rssi_value, Math.round(entry.getRssi())));
+            }
+            if (mPassive && entry.value != AdvertisementParser.NOT_FOUND) {
+                viewHolder.deviceValue.setText(
+                        String.format("%.3f %%", SensorDecoder.toPercent(entry.value)));
+                viewHolder.deviceValue.setVisibility(View.VISIBLE);
+            } else {
+                viewHolder.deviceValue.setVisibility(View.GONE);
+            }
 
             return view;
         }
@@ -377,12 +719,39 @@ public class DeviceScanActivity extends ListActivity {
             new BluetoothAdapter.LeScanCallback() {
 
         @Override
-        public void onLeScan(final BluetoothDevice device, int rssi, byte[] scanRecord) {
+        public void onLeScan(final BluetoothDevice device, final int rssi, byte[] scanRecord) {
+            final long receivedNanos = SystemClock.elapsedRealtimeNanos();
+            // En mode télémétrie, la valeur est lue directement dans l’annonce et publiée
+            // dans la même chaîne que les notifications.
+            final int value = mPassive ? AdvertisementParser.findSensorValue(scanRecord)
+                                       : AdvertisementParser.NOT_FOUND;
+            if (value != AdvertisementParser.NOT_FOUND) {
+                SamplePipeline.getInstance().publish(device.getAddress(), value,
+                        SamplePipeline.SOURCE_ADVERTISEMENT, receivedNanos);
+            }
+            final SurveyLog survey = mSurveyLog;
+            // Scan non filtré en mode télémétrie : seuls les appareils qui annoncent une
+            // valeur sont listés.
+            if (mPassive && survey == null && value == AdvertisementParser.NOT_FOUND) {
+                return;
+            }
+            // En mode relevé, chaque annonce est copiée dans le journal, sans allocation ; la
+            // liste n’est mise à jour qu’à la première annonce d’un appareil.
+            if (survey != null) {
+                survey.append(SampleRing.packAddress(device.getAddress()), rssi, receivedNanos,
+                        scanRecord);
+                if (!mSurveyedDevices.add(device.getAddress())) {
+                    return;
+                }
+            }
             runOnUiThread(new Runnable() {
                 @Override
                 public void run() {
-                    mLeDeviceListAdapter.addDevice(device);
-                    mLeDeviceListAdapter.notifyDataSetChanged();
+                    if (mScanScheduler.onDeviceSeen(device.getAddress(),
+                            SystemClock.elapsedRealtime())) {
+                        updateDiscoveryMetrics();
+                    }
+                    mLeDeviceListAdapter.addDevice(device, rssi, value);
                 }
             });
         }
@@ -394,5 +763,7 @@ public class DeviceScanActivity extends ListActivity {
     static class ViewHolder {
         TextView deviceName;
         TextView deviceAddress;
+        TextView deviceRssi;
+        TextView deviceValue;
     }
 }
\ No newline at end of file
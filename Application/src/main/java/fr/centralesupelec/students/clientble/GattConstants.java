@@ -17,6 +17,13 @@
 
 package fr.centralesupelec.students.clientble;
 
+import android.content.Context;
+import android.util.Log;
+
+import fr.centralesupelec.students.clientble.core.PrivateProfile;
+
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.HashMap;
 import java.util.UUID;
 
@@ -24,58 +31,97 @@ import java.util.UUID;
  * Stockage des UUID des services et caractéristiques BLE interrogées.
  */
 public class GattConstants {
-    private static HashMap<String, String> attributes = new HashMap();
+    private final static String TAG = GattConstants.class.getSimpleName();
 
-    // UUID de notre service privé
-    // Version 4 (random) UUID — https://www.uuidgenerator.net/
-    public static final String PRIVATE_SERVICE_UUID_STRING =
-            "622df401-85ed-4666-a4fe-9efaa3ab47aa";
-    public static final UUID PRIVATE_SERVICE_UUID =
-            UUID.fromString(PRIVATE_SERVICE_UUID_STRING);
+    // Noms des attributs propriétaires (UUID de 128 bits), enregistrés à l’exécution.
+    private static final HashMap<UUID, String> attributes = new HashMap<UUID, String>();
 
-    // UUID (v4, cf. supra) de notre caractéristique privée lisible et notifiable, de deux octets.
-    public static final String SENSOR_CHARACTERISTIC_UUID_STRING =
-            "7817a8eb-f6cb-4be3-8143-52086719754d";
+    // Table des numéros attribués du Bluetooth SIG, chargée à la première recherche.
+    private static AssignedNumbers sAssignedNumbers;
+
+    // UUID de notre service privé et de ses caractéristiques : cf. PrivateProfile (module core.)
+    public static final UUID PRIVATE_SERVICE_UUID = PrivateProfile.SERVICE_UUID;
+    public static final String PRIVATE_SERVICE_UUID_STRING = PRIVATE_SERVICE_UUID.toString();
+
+    // Caractéristique privée lisible et notifiable, de deux octets.
     public static final UUID SENSOR_CHARACTERISTIC_UUID =
-            UUID.fromString(SENSOR_CHARACTERISTIC_UUID_STRING);
+            PrivateProfile.SENSOR_CHARACTERISTIC_UUID;
+    public static final String SENSOR_CHARACTERISTIC_UUID_STRING =
+            SENSOR_CHARACTERISTIC_UUID.toString();
 
-    // UUID (v4, cf. supra) de notre caractéristiuqe privée, lisible, éditable et notifiable,
-    // de vingt octets.
-    public static final String WRITABLE_CHARACTERISTIC_UUID_STRING =
-            "c093685d-005f-4d3c-8240-6d3020a2c608";
+    // Caractéristique privée, lisible, éditable et notifiable, de vingt octets.
     public static final UUID WRITABLE_CHARACTERISTIC_UUID =
-            UUID.fromString(WRITABLE_CHARACTERISTIC_UUID_STRING);
-    public static final int WRITABLE_CHARACTERISTIC_MAX_LENGTH = 20;
+            PrivateProfile.WRITABLE_CHARACTERISTIC_UUID;
+    public static final String WRITABLE_CHARACTERISTIC_UUID_STRING =
+            WRITABLE_CHARACTERISTIC_UUID.toString();
+    public static final int WRITABLE_CHARACTERISTIC_MAX_LENGTH =
+            PrivateProfile.WRITABLE_CHARACTERISTIC_MAX_LENGTH;
 
     // UUID du descripteur qui donne la configuration client d’une caractérisitique
     // (notification ou non.)
-    public static final String CHARACTERISTIC_CONFIG_UUID_STRING =
-            "00002902-0000-1000-8000-00805f9b34fb";
     public static final UUID CHARACTERISTIC_CONFIG_UUID =
-            UUID.fromString(CHARACTERISTIC_CONFIG_UUID_STRING);
+            PrivateProfile.CHARACTERISTIC_CONFIG_UUID;
+    public static final String CHARACTERISTIC_CONFIG_UUID_STRING =
+            CHARACTERISTIC_CONFIG_UUID.toString();
 
-    // UUID de services connus — utilisés dans DeviceControlActivity uniquement
+    // Attributs de notre service privé.
     static {
-        // Sample Services.
-        attributes.put("0000180a-0000-1000-8000-00805f9b34fb", "Device Information");
-        attributes.put("00001801-0000-1000-8000-00805f9b34fb", "Generic Attribute");
-        attributes.put("00001800-0000-1000-8000-00805f9b34fb", "Generic Access");
-        attributes.put("0000180f-0000-1000-8000-00805f9b34fb", "Battery Service");
-        attributes.put(PRIVATE_SERVICE_UUID_STRING, "Private Service");
+        register(PRIVATE_SERVICE_UUID, "Private Service");
+        register(SENSOR_CHARACTERISTIC_UUID, "Sensor value");
+        register(WRITABLE_CHARACTERISTIC_UUID, "3-byte rw notif. char.");
+    }
 
-        // Sample Characteristics.
-        attributes.put("00002a19-0000-1000-8000-00805f9b34fb", "Battery Level");
-        attributes.put("00002a00-0000-1000-8000-00805f9b34fb", "Device Name");
-        attributes.put("00002a01-0000-1000-8000-00805f9b34fb", "Appearance");
-        attributes.put("00002a04-0000-1000-8000-00805f9b34fb", "Peripheral Preferred Connection Parameters");
-        attributes.put("00002a29-0000-1000-8000-00805f9b34fb", "Manufacturer Name");
-        attributes.put(SENSOR_CHARACTERISTIC_UUID_STRING, "Sensor value");
-        attributes.put(WRITABLE_CHARACTERISTIC_UUID_STRING, "3-byte rw notif. char.");
+    /**
+     * Enregistrement du nom d’un attribut propriétaire.
+     * @param uuid UUID de l’attribut
+     * @param name nom à afficher
+     */
+    public static synchronized void register(UUID uuid, String name) {
+        attributes.put(uuid, name);
     }
 
-    // recherche du nom de services connus — utilisé dans DeviceControlActivity uniquement
-    public static String lookup(String uuid, String defaultName) {
+    /**
+     * Recherche du nom d’un attribut : d’abord parmi les attributs enregistrés, puis dans la
+     * table des numéros attribués du Bluetooth SIG.
+     * @param context contexte utilisé pour charger la table lors du premier appel
+     * @param uuid UUID de l’attribut
+     * @param defaultName nom retourné si l’attribut est inconnu
+     * @return
+     */
+    public static synchronized String lookup(Context context, UUID uuid, String defaultName) {
         String name = attributes.get(uuid);
+        if (name == null) {
+            final AssignedNumbers assignedNumbers = getAssignedNumbers(context);
+            if (assignedNumbers != null) {
+                name = assignedNumbers.lookup(uuid);
+            }
+        }
         return name == null ? defaultName : name;
     }
+
+    /**
+     * Chargement paresseux de la table des numéros attribués.
+     * @param context
+     * @return la table, ou null si la ressource est illisible
+     */
+    private static AssignedNumbers getAssignedNumbers(Context context) {
+        if (sAssignedNumbers == null) {
+            InputStream in = null;
+            try {
+                in = context.getResources().openRawResource(R.raw.gatt_assigned_numbers);
+                sAssignedNumbers = AssignedNumbers.read(in);
+            } catch (IOException e) {
+                Log.e(TAG, "Lecture de la table des numéros attribués impossible.", e);
+            } finally {
+                if (in != null) {
+                    try {
+                        in.close();
+                    } catch (IOException e) {
+                        // Rien à faire.
+                    }
+                }
+            }
+        }
+        return sAssignedNumbers;
+    }
 }
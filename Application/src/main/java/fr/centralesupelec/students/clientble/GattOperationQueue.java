@@ -0,0 +1,283 @@
+/*
+ * Copyright (C) 2017 CentraleSupélec
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.centralesupelec.students.clientble;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.os.Handler;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+
+/**
+ * File des opérations GATT (lectures et écritures).
+ *
+ * La pile Bluetooth d’Android n’accepte qu’une opération à la fois : toute demande faite
+ * pendant qu’une autre est en cours échoue. Les opérations sont donc mises en file, et la
+ * suivante est lancée dès le callback de fin de la précédente, sans attente ni scrutation.
+ *
+ * Les écritures ordinaires d’une même caractéristique peuvent être fusionnées : tant qu’une
+ * écriture attend son tour, une nouvelle écriture remplace sa valeur au lieu de s’ajouter à
+ * la file (la dernière valeur l’emporte).
+ *
+ * Un callback peut ne jamais venir (pile Bluetooth bloquée, liaison perdue sans
+ * déconnexion signalée) : chaque opération lancée est surveillée sur le gestionnaire du
+ * service, et abandonnée au-delà d’un délai maximal comme une opération refusée. Un callback
+ * arrivé ensuite est ignoré.
+ *
+ * L’attente puis l’exécution de chaque opération sont tracées ({@link Tracing}) comme
+ * intervalles asynchrones, identifiés par le numéro de l’opération.
+ */
+class GattOperationQueue {
+    private final static String TAG = GattOperationQueue.class.getSimpleName();
+
+    static final int READ_CHARACTERISTIC = 0;
+    static final int WRITE_CHARACTERISTIC = 1;
+    static final int READ_DESCRIPTOR = 2;
+    static final int WRITE_DESCRIPTOR = 3;
+
+    /** Marque d’une opération ordinaire. */
+    static final int TAG_NONE = 0;
+    /** Marque d’une lecture faite pour un relevé complet des attributs. */
+    static final int TAG_DUMP = 1;
+    /** Marque d’une écriture ou relecture de commande de période d’échantillonnage. */
+    static final int TAG_RATE = 2;
+
+    /**
+     * Opération GATT en attente ou en cours.
+     */
+    static final class Operation {
+        final int type;
+        final BluetoothGattCharacteristic characteristic;
+        final BluetoothGattDescriptor descriptor;
+        // Remplaçable tant que l’opération est en attente (écritures fusionnées.)
+        byte[] value;
+        final int tag;
+        // Numéro attribué à la mise en file, pour les traces.
+        long id;
+
+        Operation(int type, BluetoothGattCharacteristic characteristic,
+                  BluetoothGattDescriptor descriptor, byte[] value, int tag) {
+            this.type = type;
+            this.characteristic = characteristic;
+            this.descriptor = descriptor;
+            this.value = value;
+            this.tag = tag;
+        }
+    }
+
+    /**
+     * Prévenu des opérations refusées par la pile Bluetooth, ou abandonnées faute de
+     * callback, dont le résultat ne viendra pas.
+     */
+    interface Listener {
+        void onOperationRejected(Operation operation);
+    }
+
+    /** Délai maximal (ms) d’attente du callback d’une opération lancée. */
+    static final long OPERATION_TIMEOUT = 5000;
+
+    private final ArrayDeque<Operation> mPending = new ArrayDeque<Operation>();
+    private Operation mCurrent;
+    // Client GATT de l’opération en cours, pour lancer la suivante après un abandon.
+    private BluetoothGatt mGatt;
+    private final Listener mListener;
+    private final Handler mHandler;
+    private final long mTimeout;
+    private long mCoalescedCount;
+    private long mTimeoutCount;
+    private long mNextId;
+
+    private final Runnable mWatchdog = new Runnable() {
+        @Override
+        public void run() {
+            expire();
+        }
+    };
+
+    /**
+     * @param listener prévenu des opérations refusées ou abandonnées, depuis le thread de
+     *                 la demande ou celui du gestionnaire
+     * @param handler gestionnaire de la surveillance des opérations lancées
+     * @param timeout délai maximal (ms) d’attente du callback d’une opération
+     */
+    GattOperationQueue(Listener listener, Handler handler, long timeout) {
+        mListener = listener;
+        mHandler = handler;
+        mTimeout = timeout;
+    }
+
+    /**
+     * Ajout d’une opération ; elle est lancée immédiatement si aucune n’est en cours.
+     * @param gatt client GATT
+     * @param operation
+     */
+    synchronized void enqueue(BluetoothGatt gatt, Operation operation) {
+        operation.id = mNextId++;
+        Tracing.asyncBegin(Tracing.GATT_QUEUED, operation.id);
+        mPending.add(operation);
+        if (mCurrent == null) {
+            next(gatt);
+        }
+    }
+
+    /**
+     * Ajout d’une écriture de caractéristique ; si une écriture de la même caractéristique,
+     * de même marque, attend déjà son tour, sa valeur est remplacée par la nouvelle.
+     * @param gatt client GATT
+     * @param operation écriture (WRITE_CHARACTERISTIC)
+     * @return true si l’écriture a été fusionnée avec une écriture en attente
+     */
+    synchronized boolean enqueueCoalesced(BluetoothGatt gatt, Operation operation) {
+        for (Operation pending : mPending) {
+            if (pending.type == WRITE_CHARACTERISTIC
+                    && pending.characteristic == operation.characteristic
+                    && pending.tag == operation.tag) {
+                pending.value = operation.value;
+                mCoalescedCount++;
+                return true;
+            }
+        }
+        enqueue(gatt, operation);
+        return false;
+    }
+
+    /**
+     * Nombre d’écritures remplacées par une écriture plus récente avant d’être envoyées.
+     * @return
+     */
+    synchronized long coalescedCount() {
+        return mCoalescedCount;
+    }
+
+    /**
+     * Nombre d’opérations abandonnées faute de callback.
+     * @return
+     */
+    synchronized long timeoutCount() {
+        return mTimeoutCount;
+    }
+
+    /**
+     * Retourne l’opération en cours si elle porte sur l’attribut du callback reçu.
+     * @param attribute caractéristique ou descripteur du callback
+     * @return null si aucune opération n’est en cours, ou si le callback est celui d’une
+     * opération abandonnée
+     */
+    synchronized Operation current(Object attribute) {
+        return mCurrent != null && target(mCurrent) == attribute ? mCurrent : null;
+    }
+
+    /**
+     * Fin de l’opération en cours (à appeler depuis son callback, après traitement du
+     * résultat) et lancement de la suivante. Le callback tardif d’une opération abandonnée
+     * est ignoré.
+     * @param gatt client GATT
+     * @param attribute caractéristique ou descripteur du callback
+     */
+    synchronized void complete(BluetoothGatt gatt, Object attribute) {
+        if (mCurrent == null || target(mCurrent) != attribute) {
+            Log.w(TAG, "Callback GATT sans opération en cours, ignoré.");
+            return;
+        }
+        mHandler.removeCallbacks(mWatchdog);
+        Tracing.asyncEnd(Tracing.gattOperation(mCurrent.type), mCurrent.id);
+        mCurrent = null;
+        next(gatt);
+    }
+
+    /**
+     * Abandon de toutes les opérations, par exemple lors d’une déconnexion.
+     */
+    synchronized void clear() {
+        for (Operation operation : mPending) {
+            Tracing.asyncEnd(Tracing.GATT_QUEUED, operation.id);
+        }
+        if (mCurrent != null) {
+            Tracing.asyncEnd(Tracing.gattOperation(mCurrent.type), mCurrent.id);
+        }
+        mHandler.removeCallbacks(mWatchdog);
+        mPending.clear();
+        mCurrent = null;
+        mGatt = null;
+    }
+
+    /**
+     * Nombre d’opérations en attente (hors opération en cours).
+     * @return
+     */
+    synchronized int size() {
+        return mPending.size();
+    }
+
+    private void next(BluetoothGatt gatt) {
+        while (mCurrent == null && !mPending.isEmpty()) {
+            final Operation operation = mPending.poll();
+            final int name = Tracing.gattOperation(operation.type);
+            Tracing.asyncEnd(Tracing.GATT_QUEUED, operation.id);
+            Tracing.asyncBegin(name, operation.id);
+            if (execute(gatt, operation)) {
+                mCurrent = operation;
+                mGatt = gatt;
+                mHandler.postDelayed(mWatchdog, mTimeout);
+            } else {
+                Tracing.asyncEnd(name, operation.id);
+                Log.w(TAG, "Opération GATT " + operation.type + " refusée.");
+                mListener.onOperationRejected(operation);
+            }
+        }
+    }
+
+    /**
+     * Abandon de l’opération en cours, dont le callback n’est pas venu dans le délai, et
+     * lancement de la suivante.
+     */
+    private synchronized void expire() {
+        final Operation operation = mCurrent;
+        if (operation == null) {
+            return;
+        }
+        Tracing.asyncEnd(Tracing.gattOperation(operation.type), operation.id);
+        mCurrent = null;
+        mTimeoutCount++;
+        Log.w(TAG, "Opération GATT " + operation.type + " sans callback après "
+                + mTimeout + " ms, abandonnée.");
+        mListener.onOperationRejected(operation);
+        next(mGatt);
+    }
+
+    private static Object target(Operation operation) {
+        return operation.descriptor != null ? operation.descriptor : operation.characteristic;
+    }
+
+    private static boolean execute(BluetoothGatt gatt, Operation operation) {
+        switch (operation.type) {
+            case READ_CHARACTERISTIC:
+                return gatt.readCharacteristic(operation.characteristic);
+            case WRITE_CHARACTERISTIC:
+                operation.characteristic.setValue(operation.value);
+                return gatt.writeCharacteristic(operation.characteristic);
+            case READ_DESCRIPTOR:
+                return gatt.readDescriptor(operation.descriptor);
+            case WRITE_DESCRIPTOR:
+                operation.descriptor.setValue(operation.value);
+                return gatt.writeDescriptor(operation.descriptor);
+            default:
+                return false;
+        }
+    }
+}
@@ -0,0 +1,312 @@
+/*
+ * Copyright (C) 2017 CentraleSupélec
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.centralesupelec.students.clientble;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattService;
+import android.content.Context;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.BaseExpandableListAdapter;
+import android.widget.ExpandableListView;
+import android.widget.TextView;
+
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Adaptateur de l’arbre des services et caractéristiques GATT d’un appareil.
+ *
+ * Les données sont lues directement dans les objets {@link BluetoothGattService}, sans copie :
+ * le nom, l’UUID et les propriétés d’une ligne ne sont calculés que lorsque la ligne est
+ * affichée, puis gardés en cache par position. Après une nouvelle découverte des services
+ * ({@link #setServices(List)}), le cache est gardé pour les services inchangés, reconnus par
+ * leur UUID et leur numéro d’instance ; si la forme de l’arbre ne change pas, seules les
+ * lignes visibles des services modifiés sont redessinées.
+ */
+public class GattServiceAdapter extends BaseExpandableListAdapter {
+
+    private final Context mContext;
+    private final LayoutInflater mInflater;
+    private final ExpandableListView mListView;
+    private final String mUnknownService;
+    private final String mUnknownCharacteristic;
+
+    private List<BluetoothGattService> mServices;
+
+    // Clé de chaque service (UUID et numéro d’instance), pour retrouver son cache après une
+    // nouvelle découverte.
+    private String[] mKeys = new String[0];
+    // Textes déjà calculés : [service][0] pour le service, [service][1 + caractéristique]
+    // pour ses caractéristiques. Alloués à la première lecture.
+    private String[][] mNames = new String[0][];
+    private String[][] mDetails = new String[0][];
+
+    /**
+     * @param context
+     * @param listView liste affichant cet adaptateur, dont les lignes visibles sont
+     *                 redessinées service par service
+     */
+    public GattServiceAdapter(Context context, ExpandableListView listView) {
+        mContext = context;
+        mInflater = LayoutInflater.from(context);
+        mListView = listView;
+        mUnknownService = context.getString(R.string.unknown_service);
+        mUnknownCharacteristic = context.getString(R.string.unknown_characteristic);
+    }
+
+    /**
+     * Remplace la liste des services affichés. Après une nouvelle découverte, le cache des
+     * services inchangés (même UUID, même numéro d’instance, même nombre de
+     * caractéristiques) est conservé : seuls les services modifiés seront recalculés. Si le
+     * nombre de services et de caractéristiques de chacun est le même, seules les lignes
+     * visibles des services modifiés sont redessinées ; sinon, toute la liste.
+     * @param services services découverts, ou null pour vider la liste
+     */
+    public void setServices(List<BluetoothGattService> services) {
+        final List<BluetoothGattService> previous = mServices;
+        final HashMap<String, Integer> previousPositions = new HashMap<String, Integer>();
+        for (int i = 0; i < mKeys.length; i++) {
+            previousPositions.put(mKeys[i], i);
+        }
+        final String[][] previousNames = mNames;
+        final String[][] previousDetails = mDetails;
+        final int count = services == null ? 0 : services.size();
+        final String[] keys = new String[count];
+        final String[][] names = new String[count][];
+        final String[][] details = new String[count][];
+        final boolean[] changed = new boolean[count];
+        boolean sameShape = previous != null && count == previous.size();
+        for (int i = 0; i < count; i++) {
+            final BluetoothGattService service = services.get(i);
+            final int size = 1 + service.getCharacteristics().size();
+            keys[i] = key(service);
+            final Integer position = previousPositions.get(keys[i]);
+            if (position != null && previousNames[position] != null
+                    && sameCharacteristics(previous.get(position), service)) {
+                names[i] = previousNames[position];
+                details[i] = previousDetails[position];
+            }
+            changed[i] = names[i] == null || position != i;
+            if (sameShape && previous.get(i).getCharacteristics().size() != size - 1) {
+                sameShape = false;
+            }
+        }
+        mServices = services;
+        mKeys = keys;
+        mNames = names;
+        mDetails = details;
+        if (sameShape) {
+            refreshGroups(changed);
+        } else {
+            notifyDataSetChanged();
+        }
+    }
+
+    @Override
+    public int getGroupCount() {
+        return mServices == null ? 0 : mServices.size();
+    }
+
+    @Override
+    public int getChildrenCount(int groupPosition) {
+        return mServices.get(groupPosition).getCharacteristics().size();
+    }
+
+    @Override
+    public BluetoothGattService getGroup(int groupPosition) {
+        return mServices.get(groupPosition);
+    }
+
+    @Override
+    public BluetoothGattCharacteristic getChild(int groupPosition, int childPosition) {
+        return mServices.get(groupPosition).getCharacteristics().get(childPosition);
+    }
+
+    @Override
+    public long getGroupId(int groupPosition) {
+        return groupPosition;
+    }
+
+    @Override
+    public long getChildId(int groupPosition, int childPosition) {
+        return childPosition;
+    }
+
+    @Override
+    public boolean hasStableIds() {
+        return false;
+    }
+
+    @Override
+    public boolean isChildSelectable(int groupPosition, int childPosition) {
+        return true;
+    }
+
+    @Override
+    public View getGroupView(int groupPosition, boolean isExpanded, View convertView,
+                             ViewGroup parent) {
+        final View view = inflate(convertView, parent);
+        bindRow(view, groupPosition, 0);
+        return view;
+    }
+
+    @Override
+    public View getChildView(int groupPosition, int childPosition, boolean isLastChild,
+                             View convertView, ViewGroup parent) {
+        final View view = inflate(convertView, parent);
+        bindRow(view, groupPosition, 1 + childPosition);
+        return view;
+    }
+
+    /**
+     * Nouvel affichage des lignes visibles des services modifiés, sans reconstruire la
+     * liste.
+     * @param changed services modifiés, par position
+     */
+    private void refreshGroups(boolean[] changed) {
+        final int first = mListView.getFirstVisiblePosition();
+        for (int i = 0; i < mListView.getChildCount(); i++) {
+            final long packed = mListView.getExpandableListPosition(first + i);
+            final int type = ExpandableListView.getPackedPositionType(packed);
+            if (type == ExpandableListView.PACKED_POSITION_TYPE_NULL) {
+                continue;
+            }
+            final int group = ExpandableListView.getPackedPositionGroup(packed);
+            if (group >= changed.length || !changed[group]) {
+                continue;
+            }
+            final View view = mListView.getChildAt(i);
+            if (!(view.getTag() instanceof ViewHolder)) {
+                continue;
+            }
+            bindRow(view, group, type == ExpandableListView.PACKED_POSITION_TYPE_GROUP
+                    ? 0 : 1 + ExpandableListView.getPackedPositionChild(packed));
+        }
+    }
+
+    private void bindRow(View view, int groupPosition, int row) {
+        ensureCached(groupPosition, row);
+        final ViewHolder viewHolder = (ViewHolder) view.getTag();
+        viewHolder.name.setText(mNames[groupPosition][row]);
+        viewHolder.uuid.setText(mDetails[groupPosition][row]);
+    }
+
+    /**
+     * Calcul, si nécessaire, du nom et du détail (UUID, propriétés d’une caractéristique)
+     * affichés d’une ligne.
+     * @param groupPosition position du service
+     * @param row 0 pour le service, 1 + position pour une caractéristique
+     */
+    private void ensureCached(int groupPosition, int row) {
+        final BluetoothGattService service = mServices.get(groupPosition);
+        if (mNames[groupPosition] == null) {
+            final int size = 1 + service.getCharacteristics().size();
+            mNames[groupPosition] = new String[size];
+            mDetails[groupPosition] = new String[size];
+        }
+        if (mNames[groupPosition][row] != null) {
+            return;
+        }
+        if (row == 0) {
+            mNames[groupPosition][0] =
+                    GattConstants.lookup(mContext, service.getUuid(), mUnknownService);
+            mDetails[groupPosition][0] = service.getUuid().toString();
+        } else {
+            final BluetoothGattCharacteristic characteristic =
+                    service.getCharacteristics().get(row - 1);
+            mNames[groupPosition][row] = GattConstants.lookup(
+                    mContext, characteristic.getUuid(), mUnknownCharacteristic);
+            mDetails[groupPosition][row] = characteristic.getUuid() + " "
+                    + describeProperties(characteristic.getProperties());
+        }
+    }
+
+    /**
+     * Propriétés d’une caractéristique, par exemple « [read, notify] ».
+     * @param properties masque BluetoothGattCharacteristic.PROPERTY_*
+     * @return
+     */
+    private static String describeProperties(int properties) {
+        final StringBuilder builder = new StringBuilder("[");
+        appendProperty(builder, properties, BluetoothGattCharacteristic.PROPERTY_READ, "read");
+        appendProperty(builder, properties, BluetoothGattCharacteristic.PROPERTY_WRITE, "write");
+        appendProperty(builder, properties,
+                BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE, "write without response");
+        appendProperty(builder, properties, BluetoothGattCharacteristic.PROPERTY_NOTIFY, "notify");
+        appendProperty(builder, properties,
+                BluetoothGattCharacteristic.PROPERTY_INDICATE, "indicate");
+        return builder.append(']').toString();
+    }
+
+    private static void appendProperty(StringBuilder builder, int properties, int property,
+                                       String name) {
+        if ((properties & property) == 0) {
+            return;
+        }
+        if (builder.length() > 1) {
+            builder.append(", ");
+        }
+        builder.append(name);
+    }
+
+    /**
+     * Si deux services ont les mêmes caractéristiques (UUID, numéro d’instance et
+     * propriétés), dans le même ordre.
+     */
+    private static boolean sameCharacteristics(BluetoothGattService a, BluetoothGattService b) {
+        final List<BluetoothGattCharacteristic> first = a.getCharacteristics();
+        final List<BluetoothGattCharacteristic> second = b.getCharacteristics();
+        if (first.size() != second.size()) {
+            return false;
+        }
+        for (int i = 0; i < first.size(); i++) {
+            final BluetoothGattCharacteristic x = first.get(i);
+            final BluetoothGattCharacteristic y = second.get(i);
+            if (!x.getUuid().equals(y.getUuid()) || x.getInstanceId() != y.getInstanceId()
+                    || x.getProperties() != y.getProperties()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String key(BluetoothGattService service) {
+        return service.getUuid() + "#" + service.getInstanceId();
+    }
+
+    private View inflate(View convertView, ViewGroup parent) {
+        if (convertView != null) {
+            return convertView;
+        }
+        final View view = mInflater.inflate(
+                android.R.layout.simple_expandable_list_item_2, parent, false);
+        final ViewHolder viewHolder = new ViewHolder();
+        viewHolder.name = (TextView) view.findViewById(android.R.id.text1);
+        viewHolder.uuid = (TextView) view.findViewById(android.R.id.text2);
+        view.setTag(viewHolder);
+        return view;
+    }
+
+    /**
+     * Références aux objets de l’interface d’une ligne.
+     */
+    static class ViewHolder {
+        TextView name;
+        TextView uuid;
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2017 CentraleSupélec
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.centralesupelec.students.clientble;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattService;
+import android.os.SystemClock;
+
+import fr.centralesupelec.students.clientble.core.SensorProtocol;
+import fr.centralesupelec.students.clientble.core.SimulatedTransport;
+import fr.centralesupelec.students.clientble.core.Transport;
+
+import java.util.UUID;
+
+/**
+ * Liaison avec l’appareil connecté par la pile Bluetooth d’Android : adaptateur du service
+ * vers l’interface {@link Transport} du cœur.
+ *
+ * Les opérations passent par la file des opérations GATT du service. Les callbacks GATT du
+ * service sont transmis au {@link Transport.Callback} ({@link SensorProtocol}) par les
+ * méthodes dispatch*, qui sont ainsi les mêmes points d’entrée que ceux de
+ * {@link SimulatedTransport} sur la JVM.
+ */
+final class GattTransport implements Transport {
+
+    private final BluetoothLeService mService;
+    private volatile Callback mCallback;
+    // Appareil choisi pour la prochaine connexion ; mDevice peut être null.
+    private volatile String mAddress;
+    private volatile BluetoothDevice mDevice;
+
+    GattTransport(BluetoothLeService service) {
+        mService = service;
+    }
+
+    @Override
+    public void setCallback(Callback callback) {
+        mCallback = callback;
+    }
+
+    /**
+     * Choix de l’appareil à connecter.
+     * @param address adresse de l’appareil
+     * @param device appareil obtenu par le scan, réutilisé tel quel, ou null
+     */
+    void setTarget(String address, BluetoothDevice device) {
+        mAddress = address;
+        mDevice = device;
+    }
+
+    @Override
+    public String getAddress() {
+        return mAddress;
+    }
+
+    @Override
+    public long nanoTime() {
+        return SystemClock.elapsedRealtimeNanos();
+    }
+
+    @Override
+    public boolean connect() {
+        return mService.connectGatt(mAddress, mDevice);
+    }
+
+    @Override
+    public void disconnect() {
+        mService.disconnect();
+    }
+
+    @Override
+    public boolean read(UUID characteristic) {
+        final BluetoothGattCharacteristic gattCharacteristic = find(characteristic);
+        if (gattCharacteristic == null) {
+            return false;
+        }
+        mService.readCharacteristic(gattCharacteristic);
+        return true;
+    }
+
+    @Override
+    public boolean write(UUID characteristic, byte[] value) {
+        final BluetoothGattCharacteristic gattCharacteristic = find(characteristic);
+        if (gattCharacteristic == null) {
+            return false;
+        }
+        mService.writeCharacterisitic(gattCharacteristic, value);
+        return true;
+    }
+
+    @Override
+    public boolean setNotification(UUID characteristic, boolean enabled) {
+        final BluetoothGattCharacteristic gattCharacteristic = find(characteristic);
+        if (gattCharacteristic == null || (gattCharacteristic.getProperties()
+                & BluetoothGattCharacteristic.PROPERTY_NOTIFY) == 0) {
+            return false;
+        }
+        mService.setCharacteristicNotification(gattCharacteristic, enabled);
+        return true;
+    }
+
+    /**
+     * Appareil prêt (services découverts), depuis le callback GATT du service.
+     * @param address
+     */
+    void dispatchConnected(String address) {
+        final Callback callback = mCallback;
+        if (callback != null) {
+            callback.onConnected(address);
+        }
+    }
+
+    /**
+     * Fin de la connexion, depuis le service.
+     * @param address
+     */
+    void dispatchDisconnected(String address) {
+        final Callback callback = mCallback;
+        if (callback != null && address != null) {
+            callback.onDisconnected(address);
+        }
+    }
+
+    /**
+     * Valeur lue ou notifiée, depuis le callback GATT du service.
+     * @param address adresse de l’appareil
+     * @param characteristic UUID de la caractéristique
+     * @param value valeur
+     * @param notification true pour une notification
+     * @param timestampNanos date de réception (SystemClock.elapsedRealtimeNanos())
+     */
+    void dispatchValue(String address, UUID characteristic, byte[] value, boolean notification,
+                       long timestampNanos) {
+        final Callback callback = mCallback;
+        if (callback != null) {
+            callback.onValue(address, characteristic, value, notification, timestampNanos);
+        }
+    }
+
+    private BluetoothGattCharacteristic find(UUID characteristic) {
+        final BluetoothGattService service = mService.getPrivateService();
+        return service == null ? null : service.getCharacteristic(characteristic);
+    }
+}
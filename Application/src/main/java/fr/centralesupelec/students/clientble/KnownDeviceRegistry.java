@@ -0,0 +1,289 @@
+/*
+ * Copyright (C) 2017 CentraleSupélec
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.centralesupelec.students.clientble;
+
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Registre des appareils déjà connectés, enregistré sur disque au format JSON : adresse,
+ * nom, organisation des services (chemins « service/caractéristique »), date de dernière
+ * rencontre et épinglage.
+ *
+ * Le service s’en sert pour maintenir des liaisons en arrière-plan vers ces appareils, et la
+ * liste des appareils pour les proposer sans attendre le scan ou ouvrir directement
+ * l’appareil épinglé.
+ */
+public class KnownDeviceRegistry {
+    private final static String TAG = KnownDeviceRegistry.class.getSimpleName();
+
+    private static final String KEY_ADDRESS = "address";
+    private static final String KEY_NAME = "name";
+    private static final String KEY_LAYOUT = "layout";
+    private static final String KEY_LAST_SEEN = "lastSeen";
+    private static final String KEY_PINNED = "pinned";
+
+    /**
+     * Appareil connu.
+     */
+    public static final class Device {
+        public final String address;
+        public String name;
+        /** Chemins « service/caractéristique » relevés à la dernière découverte. */
+        public final List<String> layout = new ArrayList<String>();
+        /** Date de dernière rencontre (ms depuis l’époque Unix.) */
+        public long lastSeen;
+        public boolean pinned;
+
+        Device(String address) {
+            this.address = address;
+        }
+
+        Device copy() {
+            final Device copy = new Device(address);
+            copy.name = name;
+            copy.layout.addAll(layout);
+            copy.lastSeen = lastSeen;
+            copy.pinned = pinned;
+            return copy;
+        }
+    }
+
+    private final File mFile;
+    private final LinkedHashMap<String, Device> mDevices = new LinkedHashMap<String, Device>();
+
+    /**
+     * @param file fichier du registre
+     */
+    public KnownDeviceRegistry(File file) {
+        mFile = file;
+    }
+
+    /**
+     * Lecture du registre depuis le disque ; un fichier absent ou illisible donne un registre
+     * vide.
+     */
+    public synchronized void load() {
+        mDevices.clear();
+        if (!mFile.exists()) {
+            return;
+        }
+        try {
+            final JSONArray array = new JSONArray(readFile(mFile));
+            for (int i = 0; i < array.length(); i++) {
+                final JSONObject object = array.getJSONObject(i);
+                final Device device = new Device(object.getString(KEY_ADDRESS));
+                device.name = object.optString(KEY_NAME, null);
+                device.lastSeen = object.optLong(KEY_LAST_SEEN);
+                device.pinned = object.optBoolean(KEY_PINNED);
+                final JSONArray layout = object.optJSONArray(KEY_LAYOUT);
+                if (layout != null) {
+                    for (int j = 0; j < layout.length(); j++) {
+                        device.layout.add(layout.getString(j));
+                    }
+                }
+                mDevices.put(device.address, device);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Lecture du registre impossible.", e);
+        } catch (JSONException e) {
+            Log.e(TAG, "Registre illisible, ignoré.", e);
+        }
+    }
+
+    /**
+     * Écriture du registre : fichier temporaire, puis renommage, pour ne jamais laisser de
+     * registre tronqué.
+     * @return false en cas d’échec
+     */
+    public synchronized boolean save() {
+        final File tmp = new File(mFile.getPath() + ".tmp");
+        try {
+            final JSONArray array = new JSONArray();
+            for (Device device : mDevices.values()) {
+                final JSONObject object = new JSONObject();
+                object.put(KEY_ADDRESS, device.address);
+                if (device.name != null) {
+                    object.put(KEY_NAME, device.name);
+                }
+                object.put(KEY_LAST_SEEN, device.lastSeen);
+                object.put(KEY_PINNED, device.pinned);
+                object.put(KEY_LAYOUT, new JSONArray(device.layout));
+                array.put(object);
+            }
+            final Writer writer = new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8");
+            try {
+                writer.write(array.toString());
+            } finally {
+                writer.close();
+            }
+            if (!tmp.renameTo(mFile)) {
+                throw new IOException("Renommage de " + tmp + " impossible.");
+            }
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, "Écriture du registre impossible.", e);
+        } catch (JSONException e) {
+            Log.e(TAG, "Écriture du registre impossible.", e);
+        }
+        return false;
+    }
+
+    /**
+     * Enregistrement d’un appareil rencontré, ou mise à jour de son nom et de sa date de
+     * dernière rencontre.
+     * @param address adresse de l’appareil
+     * @param name nom annoncé, ou null pour garder le nom connu
+     * @param time date de la rencontre (ms depuis l’époque Unix)
+     */
+    public synchronized void remember(String address, String name, long time) {
+        Device device = mDevices.get(address);
+        if (device == null) {
+            device = new Device(address);
+            mDevices.put(address, device);
+        }
+        if (name != null) {
+            device.name = name;
+        }
+        device.lastSeen = Math.max(device.lastSeen, time);
+    }
+
+    /**
+     * Mise à jour de la date de dernière rencontre d’un appareil connu.
+     * @param address adresse de l’appareil
+     * @param time date de la rencontre (ms depuis l’époque Unix)
+     * @return false si l’appareil est inconnu
+     */
+    public synchronized boolean markSeen(String address, long time) {
+        final Device device = mDevices.get(address);
+        if (device == null) {
+            return false;
+        }
+        device.lastSeen = Math.max(device.lastSeen, time);
+        return true;
+    }
+
+    /**
+     * Remplacement de l’organisation des services d’un appareil connu.
+     * @param address adresse de l’appareil
+     * @param layout chemins « service/caractéristique »
+     */
+    public synchronized void setLayout(String address, List<String> layout) {
+        final Device device = mDevices.get(address);
+        if (device != null) {
+            device.layout.clear();
+            device.layout.addAll(layout);
+        }
+    }
+
+    /**
+     * Épinglage d’un appareil connu : il est ouvert directement au lancement.
+     * @param address adresse de l’appareil
+     * @param pinned
+     * @return false si l’appareil est inconnu
+     */
+    public synchronized boolean setPinned(String address, boolean pinned) {
+        final Device device = mDevices.get(address);
+        if (device == null) {
+            return false;
+        }
+        device.pinned = pinned;
+        return true;
+    }
+
+    /**
+     * Oubli d’un appareil.
+     * @param address adresse de l’appareil
+     * @return false si l’appareil était inconnu
+     */
+    public synchronized boolean forget(String address) {
+        return mDevices.remove(address) != null;
+    }
+
+    public synchronized boolean contains(String address) {
+        return mDevices.containsKey(address);
+    }
+
+    /**
+     * Copie d’un appareil connu.
+     * @param address adresse de l’appareil
+     * @return la copie, ou null si l’appareil est inconnu
+     */
+    public synchronized Device get(String address) {
+        final Device device = mDevices.get(address);
+        return device == null ? null : device.copy();
+    }
+
+    /**
+     * Copie de tous les appareils connus, du plus récemment rencontré au plus ancien.
+     * @return
+     */
+    public synchronized List<Device> getAll() {
+        final ArrayList<Device> devices = new ArrayList<Device>(mDevices.size());
+        for (Device device : mDevices.values()) {
+            int i = 0;
+            while (i < devices.size() && devices.get(i).lastSeen >= device.lastSeen) {
+                i++;
+            }
+            devices.add(i, device.copy());
+        }
+        return devices;
+    }
+
+    /**
+     * Appareil épinglé le plus récemment rencontré.
+     * @return une copie, ou null si aucun appareil n’est épinglé
+     */
+    public synchronized Device getPinned() {
+        Device pinned = null;
+        for (Device device : mDevices.values()) {
+            if (device.pinned && (pinned == null || device.lastSeen > pinned.lastSeen)) {
+                pinned = device;
+            }
+        }
+        return pinned == null ? null : pinned.copy();
+    }
+
+    private static String readFile(File file) throws IOException {
+        final Reader reader = new InputStreamReader(new FileInputStream(file), "UTF-8");
+        try {
+            final StringBuilder builder = new StringBuilder();
+            final char[] buffer = new char[1024];
+            int count;
+            while ((count = reader.read(buffer)) > 0) {
+                builder.append(buffer, 0, count);
+            }
+            return builder.toString();
+        } finally {
+            reader.close();
+        }
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2017 CentraleSupélec
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.centralesupelec.students.clientble;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.Writer;
+
+import fr.centralesupelec.students.clientble.core.LogRing;
+
+/**
+ * Journalisation de l’application, pour les chemins fréquents (callbacks GATT, réception des
+ * valeurs) : étiquettes et messages sont enregistrés une fois, et un message ne porte que
+ * deux arguments entiers. Rien n’est alloué quand le niveau n’est pas retenu, et le texte
+ * n’est construit que pour logcat.
+ *
+ * Les messages de niveau DEBUG et au-delà sont toujours gardés, sous forme binaire, dans un
+ * anneau ({@link LogRing}) écrit à la demande par {@link BluetoothLeService#exportLog()} et
+ * lors d’un plantage. Logcat ne reçoit que les messages de niveau INFO et au-delà, sauf en
+ * build de debug.
+ */
+final class Logger {
+
+    private static final int CAPACITY = 4096;
+
+    static final LogRing RING = new LogRing(CAPACITY);
+
+    private static final int RING_LEVEL = LogRing.DEBUG;
+    private static volatile int sLogcatLevel = BuildConfig.DEBUG ? LogRing.DEBUG : LogRing.INFO;
+
+    private Logger() {
+    }
+
+    /**
+     * Enregistrement d’une étiquette ou d’un message ; chaque « {} » du message sera remplacé
+     * par un argument.
+     * @param text
+     * @return identifiant, à garder dans une constante
+     */
+    static int register(String text) {
+        return RING.register(text);
+    }
+
+    /**
+     * Niveau minimal des messages envoyés à logcat.
+     * @param level LogRing.VERBOSE à LogRing.ERROR
+     */
+    static void setLogcatLevel(int level) {
+        sLogcatLevel = level;
+    }
+
+    static void d(int tag, int message) {
+        log(LogRing.DEBUG, tag, message, 0, 0);
+    }
+
+    static void d(int tag, int message, long first) {
+        log(LogRing.DEBUG, tag, message, first, 0);
+    }
+
+    static void d(int tag, int message, long first, long second) {
+        log(LogRing.DEBUG, tag, message, first, second);
+    }
+
+    static void i(int tag, int message, long first, long second) {
+        log(LogRing.INFO, tag, message, first, second);
+    }
+
+    static void w(int tag, int message, long first, long second) {
+        log(LogRing.WARN, tag, message, first, second);
+    }
+
+    private static void log(int level, int tag, int message, long first, long second) {
+        if (level >= RING_LEVEL) {
+            RING.add(level, tag, message, first, second);
+        }
+        if (level >= sLogcatLevel) {
+            Log.println(level, RING.getString(tag),
+                    LogRing.render(RING.getString(message), first, second));
+        }
+    }
+
+    /**
+     * Écriture du contenu de l’anneau.
+     * @param out
+     * @throws IOException
+     */
+    static void dump(Writer out) throws IOException {
+        RING.dump(out);
+    }
+}
@@ -0,0 +1,237 @@
+/*
+ * Copyright (C) 2017 CentraleSupélec
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.centralesupelec.students.clientble;
+
+import fr.centralesupelec.students.clientble.core.AdvertisementParser;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Liste d’appareils triée par RSSI lissé décroissant (le plus proche en premier).
+ *
+ * Le RSSI de chaque appareil est lissé par une moyenne mobile exponentielle (EWMA).
+ * Le tri est maintenu de façon incrémentale : à chaque annonce, seule l’entrée concernée est
+ * déplacée, vers sa nouvelle place, les autres restant triées. Le coût d’une mise à jour est
+ * donc proportionnel au déplacement, le plus souvent nul ou de quelques positions.
+ *
+ * Non synchronisée : à n’utiliser que depuis un seul thread (le thread principal.)
+ * @param <T> type des éléments (appareils)
+ */
+public class ProximityList<T> {
+
+    /** Coefficient de lissage par défaut : poids de la nouvelle mesure. */
+    public static final double DEFAULT_ALPHA = 0.25;
+
+    /**
+     * Entrée de la liste.
+     * @param <T>
+     */
+    public static final class Entry<T> {
+        private final String mKey;
+        private T mItem;
+        private double mRssi;
+        private int mIndex;
+        private boolean mPlaceholder;
+
+        /** Valeur associée par l’appelant (par exemple une mesure annoncée.) */
+        public int value = AdvertisementParser.NOT_FOUND;
+
+        Entry(String key, T item, int rssi) {
+            mKey = key;
+            mItem = item;
+            mRssi = rssi;
+        }
+
+        public String getKey() {
+            return mKey;
+        }
+
+        public T getItem() {
+            return mItem;
+        }
+
+        /** RSSI lissé, en dBm. */
+        public double getRssi() {
+            return mRssi;
+        }
+
+        /**
+         * Si l’entrée a été insérée par {@link #addPlaceholder(String, Object, int)} et
+         * qu’aucune mesure n’a encore été reçue : son RSSI n’est pas une mesure.
+         */
+        public boolean isPlaceholder() {
+            return mPlaceholder;
+        }
+
+        /** Position courante dans la liste. */
+        public int getIndex() {
+            return mIndex;
+        }
+    }
+
+    private final double mAlpha;
+    private final HashMap<String, Entry<T>> mByKey = new HashMap<String, Entry<T>>();
+    private Entry<T>[] mEntries;
+    private int mSize;
+
+    public ProximityList() {
+        this(DEFAULT_ALPHA);
+    }
+
+    /**
+     * @param alpha coefficient de lissage, entre 0 (aucune prise en compte des nouvelles
+     *              mesures) et 1 (aucun lissage)
+     */
+    @SuppressWarnings("unchecked")
+    public ProximityList(double alpha) {
+        mAlpha = alpha;
+        mEntries = new Entry[16];
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public Entry<T> get(int index) {
+        return mEntries[index];
+    }
+
+    public Entry<T> find(String key) {
+        return mByKey.get(key);
+    }
+
+    public void clear() {
+        Arrays.fill(mEntries, 0, mSize, null);
+        mSize = 0;
+        mByKey.clear();
+    }
+
+    /**
+     * Prise en compte d’une annonce : insertion de l’appareil ou mise à jour de son RSSI lissé,
+     * puis déplacement de l’entrée à sa place. La nouvelle position est donnée par
+     * {@link Entry#getIndex()}.
+     * @param key clé unique de l’appareil (son adresse)
+     * @param item appareil
+     * @param rssi RSSI mesuré, en dBm
+     * @return l’ancienne position de l’entrée, ou -1 si elle vient d’être insérée
+     */
+    public int update(String key, T item, int rssi) {
+        final Entry<T> entry = mByKey.get(key);
+        if (entry == null) {
+            insert(key, item, rssi);
+            return -1;
+        }
+        final int from = entry.mIndex;
+        entry.mItem = item;
+        if (entry.mPlaceholder) {
+            // Première mesure : elle remplace la valeur provisoire au lieu d’y être mélangée.
+            entry.mPlaceholder = false;
+            entry.mRssi = rssi;
+        } else {
+            entry.mRssi += mAlpha * (rssi - entry.mRssi);
+        }
+        moveTo(entry, findPlace(entry));
+        return from;
+    }
+
+    /**
+     * Insertion d’un appareil dont aucune mesure n’a encore été reçue, s’il n’est pas déjà dans
+     * la liste. Il est placé selon un RSSI provisoire, que la première mesure transmise à
+     * {@link #update(String, Object, int)} remplace.
+     * @param key clé unique de l’appareil (son adresse)
+     * @param item appareil
+     * @param rssi RSSI provisoire, en dBm (en général très faible, pour le placer en fin)
+     * @return la position de l’entrée insérée, ou -1 si l’appareil était déjà dans la liste
+     */
+    public int addPlaceholder(String key, T item, int rssi) {
+        if (mByKey.containsKey(key)) {
+            return -1;
+        }
+        final Entry<T> entry = insert(key, item, rssi);
+        entry.mPlaceholder = true;
+        return entry.mIndex;
+    }
+
+    private Entry<T> insert(String key, T item, int rssi) {
+        final Entry<T> entry = new Entry<T>(key, item, rssi);
+        mByKey.put(key, entry);
+        if (mSize == mEntries.length) {
+            mEntries = Arrays.copyOf(mEntries, 2 * mSize);
+        }
+        entry.mIndex = mSize;
+        mEntries[mSize++] = entry;
+        moveTo(entry, findPlace(entry));
+        return entry;
+    }
+
+    /**
+     * Recherche de la place d’une entrée dont le RSSI vient de changer, les autres entrées étant
+     * triées : recherche dichotomique du côté où elle doit se déplacer.
+     */
+    private int findPlace(Entry<T> entry) {
+        final int index = entry.mIndex;
+        final double rssi = entry.mRssi;
+        if (index > 0 && mEntries[index - 1].mRssi < rssi) {
+            // Vers le début : première position de [0, index) de RSSI inférieur.
+            int low = 0;
+            int high = index - 1;
+            while (low < high) {
+                final int mid = (low + high) >>> 1;
+                if (mEntries[mid].mRssi < rssi) {
+                    high = mid;
+                } else {
+                    low = mid + 1;
+                }
+            }
+            return low;
+        }
+        if (index < mSize - 1 && mEntries[index + 1].mRssi > rssi) {
+            // Vers la fin : dernière position de (index, size) de RSSI supérieur.
+            int low = index + 1;
+            int high = mSize - 1;
+            while (low < high) {
+                final int mid = (low + high + 1) >>> 1;
+                if (mEntries[mid].mRssi > rssi) {
+                    low = mid;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            return low;
+        }
+        return index;
+    }
+
+    /**
+     * Déplacement d’une entrée, en décalant d’une position les entrées intermédiaires.
+     */
+    private void moveTo(Entry<T> entry, int to) {
+        final int from = entry.mIndex;
+        if (from == to) {
+            return;
+        }
+        if (to < from) {
+            System.arraycopy(mEntries, to, mEntries, to + 1, from - to);
+        } else {
+            System.arraycopy(mEntries, from + 1, mEntries, from, to - from);
+        }
+        mEntries[to] = entry;
+        for (int i = Math.min(from, to); i <= Math.max(from, to); i++) {
+            mEntries[i].mIndex = i;
+        }
+    }
+}
@@ -0,0 +1,898 @@
+/*
+ * Copyright (C) 2017 CentraleSupélec
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.centralesupelec.students.clientble;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import fr.centralesupelec.students.clientble.core.BlockIndex;
+import fr.centralesupelec.students.clientble.core.RollupTier;
+import fr.centralesupelec.students.clientble.core.SampleBlock;
+import fr.centralesupelec.students.clientble.core.SamplePipeline;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Historique des mesures de chaque appareil, enregistré sur disque en blocs compressés
+ * ({@link SampleBlock}).
+ *
+ * Un fichier par appareil, suite de blocs de taille fixe : le dernier, en cours de
+ * remplissage, est gardé en mémoire et réécrit à sa place toutes les FLUSH_INTERVAL mesures.
+ * Abonné à {@link SamplePipeline}, l’historique reçoit toutes les mesures publiées.
+ *
+ * Un index clairsemé ({@link BlockIndex}) donne la date de début de chaque bloc : gardé en
+ * mémoire, il est enregistré à côté des données (« .idx », date de début de chaque bloc
+ * complet sur 64 bits) et reconstruit à partir des en-têtes des blocs s’il manque. Une
+ * requête sur un intervalle ne lit ainsi que les blocs qui le recouvrent.
+ *
+ * Des agrégats par seconde, minute et heure ({@link RollupTier} : minimum, maximum, moyenne
+ * et nombre de mesures) sont tenus à jour à chaque mesure, en mémoire ; {@link #compact()},
+ * à appeler périodiquement hors du fil des mesures, les ajoute à leurs fichiers
+ * (« -1000.rollup », etc.) et supprime les blocs de mesures brutes plus anciens que la durée
+ * de conservation, les agrégats étant gardés. Les agrégats non enregistrés à l’arrêt sont
+ * recalculés depuis les mesures brutes à l’ouverture suivante.
+ *
+ * La suppression se fait par lots d’au moins DROP_BATCH blocs : les blocs gardés sont
+ * recopiés dans un nouveau fichier sans tenir le verrou de l’historique (les blocs complets ne
+ * changent plus), puis seuls les blocs complétés entre-temps et le remplacement du fichier
+ * se font sous le verrou.
+ */
+public class SampleHistory implements SamplePipeline.Listener {
+    private final static String TAG = SampleHistory.class.getSimpleName();
+
+    /** Nombre de mesures entre deux écritures du bloc en cours. */
+    public static final int FLUSH_INTERVAL = 64;
+
+    private static final String EXTENSION = ".ts";
+    private static final String INDEX_EXTENSION = ".idx";
+    private static final String ROLLUP_EXTENSION = ".rollup";
+
+    /** Durées des intervalles d’agrégation, du plus fin au plus grossier, en ms. */
+    public static final long[] ROLLUP_WIDTHS = { 1000, 60 * 1000, 60 * 60 * 1000 };
+
+    /** Durée de conservation par défaut des mesures brutes : 7 jours. */
+    public static final long DEFAULT_RAW_RETENTION = 7L * 24 * 60 * 60 * 1000;
+
+    // Nombre de seaux lus à la fois par un curseur d’agrégats.
+    private static final int ROLLUP_READ_COUNT = 64;
+
+    /**
+     * Nombre minimal de blocs supprimés à la fois : en deçà, ils attendent un compactage
+     * suivant, pour ne pas recopier le fichier à chaque passage.
+     */
+    public static final int DROP_BATCH = 64;
+
+    /**
+     * Série de mesures d’un appareil.
+     */
+    private static final class Series {
+        RandomAccessFile file;
+        final RandomAccessFile indexFile;
+        final BlockIndex index = new BlockIndex();
+        final RollupTier[] tiers = new RollupTier[ROLLUP_WIDTHS.length];
+        final RandomAccessFile[] rollupFiles = new RandomAccessFile[ROLLUP_WIDTHS.length];
+        SampleBlock block;
+        // Position du bloc en cours dans le fichier, en nombre de blocs.
+        int blockIndex;
+        int unflushed;
+        // Nombre de blocs supprimés depuis l’ouverture : numéro absolu = position + dropped.
+        int dropped;
+        // Écart entre l’horloge murale et SystemClock.elapsedRealtime(), en ms, pris une fois
+        // à l’ouverture : les dates des mesures reçues suivent ensuite l’horloge monotone.
+        long clockOffset;
+
+        Series(RandomAccessFile file, RandomAccessFile indexFile) {
+            this.file = file;
+            this.indexFile = indexFile;
+            for (int i = 0; i < tiers.length; i++) {
+                tiers[i] = new RollupTier(ROLLUP_WIDTHS[i]);
+            }
+        }
+    }
+
+    /**
+     * Suppression de blocs préparée par un compactage.
+     */
+    private static final class Drop {
+        final String address;
+        final Series series;
+        // Nombre de blocs supprimés, en tête du fichier.
+        final int count;
+        // Nombre de blocs complets lors de la préparation : [count, end) recopiés hors verrou.
+        final int end;
+
+        Drop(String address, Series series, int count, int end) {
+            this.address = address;
+            this.series = series;
+            this.count = count;
+            this.end = end;
+        }
+    }
+
+    /**
+     * Parcours des mesures d’un appareil sur un intervalle de dates, bloc par bloc à la
+     * demande, sans allocation par mesure. Un curseur n’est pas partagé entre threads.
+     */
+    public final class Cursor {
+        private final String mAddress;
+        private final long mFrom;
+        private final long mTo;
+        private final byte[] mBuffer = new byte[SampleBlock.BLOCK_SIZE];
+        private final SampleBlock.Decoder mDecoder = new SampleBlock.Decoder();
+        private int mBlock;
+        private boolean mInBlock;
+        private boolean mDone;
+
+        Cursor(String address, long from, long to, int firstBlock, boolean empty) {
+            mAddress = address;
+            mFrom = from;
+            mTo = to;
+            mBlock = firstBlock;
+            mDone = empty;
+        }
+
+        /**
+         * Passage à la mesure suivante de l’intervalle.
+         * @return false une fois l’intervalle parcouru
+         * @throws IOException
+         */
+        public boolean next() throws IOException {
+            while (!mDone) {
+                if (mInBlock && mDecoder.next()) {
+                    final long time = mDecoder.getTime();
+                    if (time >= mTo) {
+                        mDone = true;
+                    } else if (time >= mFrom) {
+                        return true;
+                    }
+                } else {
+                    // Les blocs supprimés entre-temps sont sautés.
+                    final int loaded = loadBlock(mAddress, mBlock, mTo, mBuffer);
+                    if (loaded < 0) {
+                        mDone = true;
+                    } else {
+                        mBlock = loaded + 1;
+                        mDecoder.reset(mBuffer, 0);
+                        mInBlock = true;
+                    }
+                }
+            }
+            return false;
+        }
+
+        /** Date de la mesure courante, en ms. */
+        public long getTime() {
+            return mDecoder.getTime();
+        }
+
+        /** Valeur de la mesure courante. */
+        public int getValue() {
+            return mDecoder.getValue();
+        }
+    }
+
+    /**
+     * Parcours des agrégats d’un appareil sur un intervalle de dates : seaux d’un niveau
+     * d’agrégation enregistré, ou seaux calculés à la volée depuis les mesures brutes pour une
+     * résolution plus fine que le premier niveau. Un curseur n’est pas partagé entre threads.
+     */
+    public final class RollupCursor {
+        private final String mAddress;
+        private final long mFrom;
+        private final long mTo;
+        // Niveau lu, -1 pour une agrégation à la volée.
+        private final int mTier;
+        private final long mWidth;
+        private final byte[] mBuffer;
+        private int mRecord;
+        private int mBufferCount;
+        private int mBufferIndex;
+        private final Cursor mRaw;
+        private final RollupTier mRawTier;
+        private int mRawRead;
+        private boolean mDone;
+
+        private long mStart;
+        private long mSum;
+        private int mCount;
+        private int mMin;
+        private int mMax;
+
+        RollupCursor(String address, long from, long to, int tier, long width, int firstRecord,
+                     Cursor raw) {
+            mAddress = address;
+            mFrom = from;
+            mTo = to;
+            mTier = tier;
+            mWidth = width;
+            mRecord = firstRecord;
+            mRaw = raw;
+            mRawTier = raw == null ? null : new RollupTier(width);
+            mBuffer = new byte[(raw == null ? ROLLUP_READ_COUNT : 1) * RollupTier.RECORD_SIZE];
+            mDone = from >= to;
+        }
+
+        /**
+         * Passage au seau suivant de l’intervalle.
+         * @return false une fois l’intervalle parcouru
+         * @throws IOException
+         */
+        public boolean next() throws IOException {
+            while (!mDone) {
+                if (mBufferIndex == mBufferCount && !fill()) {
+                    mDone = true;
+                    return false;
+                }
+                final int offset = mBufferIndex * RollupTier.RECORD_SIZE;
+                mBufferIndex++;
+                final long start = RollupTier.readStart(mBuffer, offset);
+                if (start >= mTo) {
+                    mDone = true;
+                } else if (start + mWidth > mFrom) {
+                    mStart = start;
+                    mSum = RollupTier.readSum(mBuffer, offset);
+                    mCount = RollupTier.readCount(mBuffer, offset);
+                    mMin = RollupTier.readMin(mBuffer, offset);
+                    mMax = RollupTier.readMax(mBuffer, offset);
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private boolean fill() throws IOException {
+            mBufferIndex = 0;
+            if (mRaw == null) {
+                mBufferCount = loadRollups(mAddress, mTier, mRecord, mBuffer);
+                mRecord += mBufferCount;
+                return mBufferCount > 0;
+            }
+            // Agrégation à la volée : seau suivant, fermé ou dernier seau en cours.
+            while (mRawRead == mRawTier.getClosedCount()) {
+                mRawTier.clearClosed();
+                mRawRead = 0;
+                if (mRaw.next()) {
+                    mRawTier.add(mRaw.getTime(), mRaw.getValue());
+                } else if (mRawTier.hasOpen()) {
+                    mRawTier.close();
+                } else {
+                    return false;
+                }
+            }
+            System.arraycopy(mRawTier.getClosed(), mRawRead * RollupTier.RECORD_SIZE,
+                    mBuffer, 0, RollupTier.RECORD_SIZE);
+            mRawRead++;
+            mBufferCount = 1;
+            return true;
+        }
+
+        /** Durée des seaux parcourus, en ms. */
+        public long getWidth() {
+            return mWidth;
+        }
+
+        /** Début de l’intervalle du seau courant, en ms. */
+        public long getStart() {
+            return mStart;
+        }
+
+        /** Nombre de mesures du seau courant. */
+        public int getCount() {
+            return mCount;
+        }
+
+        /** Minimum du seau courant. */
+        public int getMin() {
+            return mMin;
+        }
+
+        /** Maximum du seau courant. */
+        public int getMax() {
+            return mMax;
+        }
+
+        /** Moyenne du seau courant. */
+        public double getMean() {
+            return mCount == 0 ? 0 : (double) mSum / mCount;
+        }
+    }
+
+    private final File mDirectory;
+    private final HashMap<String, Series> mSeries = new HashMap<String, Series>();
+    private final byte[] mBuffer = new byte[SampleBlock.BLOCK_SIZE];
+    private long mRawRetention = DEFAULT_RAW_RETENTION;
+    // Un seul compactage à la fois (gardé par mCompactLock, hors du verrou de l’historique.)
+    private final Object mCompactLock = new Object();
+    private final byte[] mCompactBuffer = new byte[SampleBlock.BLOCK_SIZE];
+
+    /**
+     * @param directory répertoire des fichiers d’historique, créé si besoin
+     */
+    public SampleHistory(File directory) {
+        mDirectory = directory;
+    }
+
+    @Override
+    public void onSample(String address, int value, int source, long timestampNanos) {
+        if (value < 0) {
+            return;
+        }
+        try {
+            appendReceived(address, timestampNanos, value);
+        } catch (IOException e) {
+            Log.e(TAG, "Écriture de l’historique de " + address + " impossible.", e);
+        }
+    }
+
+    /**
+     * Ajout d’une mesure reçue, datée par l’horloge monotone : la date de réception est
+     * ramenée à l’horloge murale par l’écart pris à l’ouverture de la série, et ne recule donc
+     * pas lors d’un réglage de l’horloge murale.
+     */
+    private synchronized void appendReceived(String address, long timestampNanos, int value)
+            throws IOException {
+        final Series series = open(address);
+        append(address, series.clockOffset + timestampNanos / 1000000, value);
+    }
+
+    /**
+     * Ajout d’une mesure à l’historique d’un appareil. Une date antérieure à la mesure
+     * précédente est ramenée à celle-ci : les dates restent croissantes, dans le bloc comme
+     * dans l’index.
+     * @param address adresse de l’appareil
+     * @param time date de la mesure, en ms
+     * @param value valeur (16 bits non signés)
+     * @throws IOException
+     */
+    public synchronized void append(String address, long time, int value) throws IOException {
+        final Series series = open(address);
+        if (!series.block.isEmpty() && time < series.block.getLastTime()) {
+            // Sinon le bloc refuserait la mesure et serait fermé à moitié rempli.
+            time = series.block.getLastTime();
+        }
+        if (series.block.isEmpty()) {
+            series.index.set(series.blockIndex, time);
+        }
+        if (!series.block.append(time, value)) {
+            // Bloc plein (ou écart de dates trop grand pour le codage) : écriture définitive et
+            // indexation, puis nouveau bloc.
+            writeBlock(series);
+            series.indexFile.seek((long) series.blockIndex * 8);
+            series.indexFile.writeLong(series.index.get(series.blockIndex));
+            series.blockIndex++;
+            series.block = new SampleBlock();
+            series.block.append(time, value);
+            series.index.set(series.blockIndex, time);
+        }
+        for (RollupTier tier : series.tiers) {
+            tier.add(time, value);
+        }
+        if (++series.unflushed >= FLUSH_INTERVAL) {
+            writeBlock(series);
+        }
+    }
+
+    /**
+     * Lecture des mesures d’un appareil comprises entre deux dates.
+     * @param address adresse de l’appareil
+     * @param from date de début, incluse (ms)
+     * @param to date de fin, exclue (ms)
+     * @param times dates des mesures lues
+     * @param values valeurs des mesures lues
+     * @return le nombre de mesures lues, limité à la taille des tableaux
+     * @throws IOException
+     */
+    public int read(String address, long from, long to, long[] times, int[] values)
+            throws IOException {
+        final Cursor cursor = query(address, from, to);
+        final int capacity = Math.min(times.length, values.length);
+        int count = 0;
+        while (count < capacity && cursor.next()) {
+            times[count] = cursor.getTime();
+            values[count] = cursor.getValue();
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Requête sur les mesures d’un appareil comprises entre deux dates : seuls les blocs
+     * recouvrant l’intervalle sont lus, au fil du parcours.
+     * @param address adresse de l’appareil
+     * @param from date de début, incluse (ms)
+     * @param to date de fin, exclue (ms)
+     * @return curseur sur les mesures, vide si l’appareil n’a pas d’historique
+     * @throws IOException
+     */
+    public synchronized Cursor query(String address, long from, long to) throws IOException {
+        if (!mSeries.containsKey(address) && !new File(mDirectory, fileName(address)).exists()) {
+            return new Cursor(address, from, to, 0, true);
+        }
+        final Series series = open(address);
+        return new Cursor(address, from, to, series.index.floor(from) + series.dropped,
+                from >= to);
+    }
+
+    /**
+     * Requête sur les agrégats d’un appareil entre deux dates, au niveau le plus grossier
+     * dont les seaux ne dépassent pas la résolution demandée ; pour une résolution plus fine
+     * que le premier niveau, les mesures brutes sont agrégées à la volée.
+     * @param address adresse de l’appareil
+     * @param from date de début (ms) : premier seau contenant cette date
+     * @param to date de fin, exclue (ms) : dernier seau commençant avant cette date
+     * @param resolution durée maximale d’un seau, en ms
+     * @return curseur sur les seaux, vide si l’appareil n’a pas d’historique
+     * @throws IOException
+     */
+    public synchronized RollupCursor queryRollup(String address, long from, long to,
+                                                 long resolution) throws IOException {
+        int tier = ROLLUP_WIDTHS.length - 1;
+        while (tier >= 0 && ROLLUP_WIDTHS[tier] > resolution) {
+            tier--;
+        }
+        if (tier < 0) {
+            final long width = Math.max(1, resolution);
+            final RollupTier aligned = new RollupTier(width);
+            return new RollupCursor(address, from, to, -1, width, 0,
+                    query(address, aligned.bucketStart(from), to));
+        }
+        if (!mSeries.containsKey(address) && !new File(mDirectory, fileName(address)).exists()) {
+            return new RollupCursor(address, from, to, tier, ROLLUP_WIDTHS[tier], 0, null);
+        }
+        final Series series = open(address);
+        return new RollupCursor(address, from, to, tier, ROLLUP_WIDTHS[tier],
+                findRollup(series.rollupFiles[tier], from - ROLLUP_WIDTHS[tier] + 1), null);
+    }
+
+    /**
+     * Durée de conservation des mesures brutes, appliquée par {@link #compact()}.
+     * @param retention durée en ms
+     */
+    public synchronized void setRawRetention(long retention) {
+        mRawRetention = retention;
+    }
+
+    /**
+     * Compactage de l’historique de tous les appareils : enregistrement des agrégats fermés
+     * et suppression des blocs de mesures brutes entièrement plus anciens que la durée de
+     * conservation, dès qu’il y en a au moins DROP_BATCH. À appeler périodiquement, depuis un
+     * thread d’arrière-plan : la recopie des blocs gardés ne bloque pas les mesures.
+     */
+    public void compact() {
+        synchronized (mCompactLock) {
+            for (Drop drop : prepareCompaction()) {
+                final File temporary = new File(mDirectory, fileName(drop.address) + ".tmp");
+                try {
+                    copyBlocks(drop, temporary);
+                    replaceBlocks(drop, temporary);
+                } catch (IOException e) {
+                    temporary.delete();
+                    Log.e(TAG, "Compactage de l’historique de " + drop.address
+                            + " impossible.", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Enregistrement des agrégats fermés et recherche des blocs à supprimer.
+     * @return les suppressions à faire, d’au moins DROP_BATCH blocs chacune
+     */
+    private synchronized List<Drop> prepareCompaction() {
+        final long limit = System.currentTimeMillis() - mRawRetention;
+        final ArrayList<Drop> drops = new ArrayList<Drop>();
+        for (String address : mSeries.keySet()) {
+            final Series series = mSeries.get(address);
+            // Les mesures des seaux en cours sont gardées : elles servent à leur reprise.
+            long cutoff = limit;
+            for (RollupTier tier : series.tiers) {
+                cutoff = Math.min(cutoff, tier.getOpenStart());
+            }
+            try {
+                writeRollups(series);
+            } catch (IOException e) {
+                Log.e(TAG, "Compactage de l’historique de " + address + " impossible.", e);
+                continue;
+            }
+            // Un bloc est entièrement antérieur si le suivant commence avant la date limite.
+            int count = 0;
+            while (count < series.blockIndex && count + 1 < series.index.size()
+                    && series.index.get(count + 1) <= cutoff) {
+                count++;
+            }
+            if (count >= DROP_BATCH) {
+                drops.add(new Drop(address, series, count, series.blockIndex));
+            }
+        }
+        return drops;
+    }
+
+    /**
+     * Requête sur les mesures d’une caractéristique d’un appareil : seule la valeur du
+     * potentiomètre est enregistrée, toute autre caractéristique donne un curseur vide.
+     * @param address adresse de l’appareil
+     * @param characteristic UUID de la caractéristique
+     * @param from date de début, incluse (ms)
+     * @param to date de fin, exclue (ms)
+     * @return
+     * @throws IOException
+     */
+    public Cursor query(String address, UUID characteristic, long from, long to)
+            throws IOException {
+        if (!GattConstants.SENSOR_CHARACTERISTIC_UUID.equals(characteristic)) {
+            return new Cursor(address, from, to, 0, true);
+        }
+        return query(address, from, to);
+    }
+
+    /**
+     * Adresses des appareils ayant un historique.
+     * @return
+     */
+    public synchronized List<String> getAddresses() {
+        final ArrayList<String> addresses = new ArrayList<String>();
+        final String[] names = mDirectory.list();
+        if (names == null) {
+            return addresses;
+        }
+        for (String name : names) {
+            if (name.endsWith(EXTENSION) && name.length() == 12 + EXTENSION.length()) {
+                final StringBuilder address = new StringBuilder(17);
+                for (int i = 0; i < 12; i += 2) {
+                    if (i > 0) {
+                        address.append(':');
+                    }
+                    address.append(name, i, i + 2);
+                }
+                addresses.add(address.toString());
+            }
+        }
+        return addresses;
+    }
+
+    /**
+     * Copie d’un bloc pour un curseur : depuis le fichier, ou depuis la mémoire pour le bloc
+     * en cours de remplissage.
+     * @return false si le bloc n’existe pas ou commence à la date de fin ou après
+     */
+    private synchronized int loadBlock(String address, int block, long to, byte[] into)
+            throws IOException {
+        final Series series = mSeries.get(address);
+        if (series == null) {
+            return -1;
+        }
+        final int position = Math.max(0, block - series.dropped);
+        if (position > series.blockIndex || position >= series.index.size()
+                || series.index.get(position) >= to) {
+            return -1;
+        }
+        if (position < series.blockIndex) {
+            series.file.seek((long) position * SampleBlock.BLOCK_SIZE);
+            series.file.readFully(into);
+        } else {
+            System.arraycopy(series.block.array(), 0, into, 0, SampleBlock.BLOCK_SIZE);
+        }
+        return position + series.dropped;
+    }
+
+    /**
+     * Copie de seaux pour un curseur d’agrégats : seaux enregistrés, puis seaux fermés en
+     * attente, puis seau en cours, numérotés à la suite.
+     * @return nombre de seaux copiés, 0 après le dernier
+     */
+    private synchronized int loadRollups(String address, int tier, int record, byte[] into)
+            throws IOException {
+        final Series series = mSeries.get(address);
+        if (series == null) {
+            return 0;
+        }
+        final RandomAccessFile file = series.rollupFiles[tier];
+        final RollupTier rollup = series.tiers[tier];
+        final int capacity = into.length / RollupTier.RECORD_SIZE;
+        final int stored = (int) (file.length() / RollupTier.RECORD_SIZE);
+        if (record < stored) {
+            final int count = Math.min(capacity, stored - record);
+            file.seek((long) record * RollupTier.RECORD_SIZE);
+            file.readFully(into, 0, count * RollupTier.RECORD_SIZE);
+            return count;
+        }
+        final int closed = record - stored;
+        if (closed < rollup.getClosedCount()) {
+            final int count = Math.min(capacity, rollup.getClosedCount() - closed);
+            System.arraycopy(rollup.getClosed(), closed * RollupTier.RECORD_SIZE, into, 0,
+                    count * RollupTier.RECORD_SIZE);
+            return count;
+        }
+        if (closed == rollup.getClosedCount() && rollup.hasOpen()) {
+            rollup.writeOpen(into, 0);
+            return 1;
+        }
+        return 0;
+    }
+
+    /**
+     * Premier seau enregistré commençant à une date ou après (recherche dichotomique).
+     */
+    private static int findRollup(RandomAccessFile file, long start) throws IOException {
+        int low = 0;
+        int high = (int) (file.length() / RollupTier.RECORD_SIZE);
+        while (low < high) {
+            final int middle = (low + high) >>> 1;
+            file.seek((long) middle * RollupTier.RECORD_SIZE);
+            if (file.readLong() < start) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Taille de l’historique d’un appareil sur disque.
+     * @param address adresse de l’appareil
+     * @return taille en octets
+     */
+    public synchronized long getSizeBytes(String address) {
+        return new File(mDirectory, fileName(address)).length();
+    }
+
+    /**
+     * Écriture des blocs en cours de tous les appareils.
+     */
+    public synchronized void flush() {
+        for (Series series : mSeries.values()) {
+            try {
+                writeBlock(series);
+                writeRollups(series);
+            } catch (IOException e) {
+                Log.e(TAG, "Écriture de l’historique impossible.", e);
+            }
+        }
+    }
+
+    /**
+     * Écriture des blocs en cours et fermeture des fichiers.
+     */
+    public synchronized void close() {
+        flush();
+        for (Series series : mSeries.values()) {
+            try {
+                series.file.close();
+                series.indexFile.close();
+                for (RandomAccessFile rollupFile : series.rollupFiles) {
+                    rollupFile.close();
+                }
+            } catch (IOException e) {
+                Log.w(TAG, "Fermeture de l’historique impossible.", e);
+            }
+        }
+        mSeries.clear();
+    }
+
+    private Series open(String address) throws IOException {
+        Series series = mSeries.get(address);
+        if (series != null) {
+            return series;
+        }
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            throw new IOException("Création de " + mDirectory + " impossible.");
+        }
+        final String name = fileName(address);
+        final String base = name.substring(0, name.length() - EXTENSION.length());
+        series = new Series(new RandomAccessFile(new File(mDirectory, name), "rw"),
+                new RandomAccessFile(new File(mDirectory, base + INDEX_EXTENSION), "rw"));
+        series.clockOffset = System.currentTimeMillis() - SystemClock.elapsedRealtime();
+        for (int i = 0; i < ROLLUP_WIDTHS.length; i++) {
+            final RandomAccessFile rollupFile = new RandomAccessFile(
+                    new File(mDirectory, base + "-" + ROLLUP_WIDTHS[i] + ROLLUP_EXTENSION), "rw");
+            // Enregistrement incomplet (arrêt pendant une écriture) abandonné.
+            rollupFile.setLength(rollupFile.length()
+                    - rollupFile.length() % RollupTier.RECORD_SIZE);
+            series.rollupFiles[i] = rollupFile;
+        }
+        final int blocks = (int) (series.file.length() / SampleBlock.BLOCK_SIZE);
+        if (blocks > 0) {
+            // Reprise du dernier bloc, éventuellement incomplet.
+            series.blockIndex = blocks - 1;
+            series.file.seek((long) series.blockIndex * SampleBlock.BLOCK_SIZE);
+            series.file.readFully(mBuffer);
+            series.block = SampleBlock.wrap(mBuffer);
+        } else {
+            series.block = new SampleBlock();
+        }
+        loadIndex(series);
+        resumeRollups(series);
+        mSeries.put(address, series);
+        return series;
+    }
+
+    /**
+     * Reprise des agrégats : les mesures brutes postérieures au dernier seau enregistré de
+     * chaque niveau y sont agrégées à nouveau.
+     */
+    private void resumeRollups(Series series) throws IOException {
+        final long[] resume = new long[ROLLUP_WIDTHS.length];
+        long from = Long.MAX_VALUE;
+        for (int i = 0; i < ROLLUP_WIDTHS.length; i++) {
+            final RandomAccessFile file = series.rollupFiles[i];
+            resume[i] = Long.MIN_VALUE;
+            if (file.length() > 0) {
+                file.seek(file.length() - RollupTier.RECORD_SIZE);
+                resume[i] = file.readLong() + ROLLUP_WIDTHS[i];
+            }
+            from = Math.min(from, resume[i]);
+        }
+        if (series.index.size() == 0) {
+            return;
+        }
+        final SampleBlock.Decoder decoder = new SampleBlock.Decoder();
+        for (int block = series.index.floor(from); block <= series.blockIndex; block++) {
+            if (block < series.blockIndex) {
+                series.file.seek((long) block * SampleBlock.BLOCK_SIZE);
+                series.file.readFully(mBuffer);
+                decoder.reset(mBuffer, 0);
+            } else {
+                decoder.reset(series.block.array(), 0);
+            }
+            while (decoder.next()) {
+                for (int i = 0; i < ROLLUP_WIDTHS.length; i++) {
+                    if (decoder.getTime() >= resume[i]) {
+                        series.tiers[i].add(decoder.getTime(), decoder.getValue());
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Ajout des seaux fermés de chaque niveau à la fin de leurs fichiers.
+     */
+    private static void writeRollups(Series series) throws IOException {
+        for (int i = 0; i < ROLLUP_WIDTHS.length; i++) {
+            final RollupTier tier = series.tiers[i];
+            if (tier.getClosedCount() == 0) {
+                continue;
+            }
+            final RandomAccessFile file = series.rollupFiles[i];
+            file.seek(file.length());
+            file.write(tier.getClosed(), 0, tier.getClosedCount() * RollupTier.RECORD_SIZE);
+            tier.clearClosed();
+        }
+    }
+
+    /**
+     * Recopie des blocs complets gardés dans un nouveau fichier, sans le verrou de
+     * l’historique : ces blocs ne sont plus modifiés, et seul le compactage remplace le
+     * fichier.
+     */
+    private void copyBlocks(Drop drop, File temporary) throws IOException {
+        final RandomAccessFile in =
+                new RandomAccessFile(new File(mDirectory, fileName(drop.address)), "r");
+        try {
+            final RandomAccessFile out = new RandomAccessFile(temporary, "rw");
+            try {
+                out.setLength(0);
+                in.seek((long) drop.count * SampleBlock.BLOCK_SIZE);
+                for (int i = drop.count; i < drop.end; i++) {
+                    in.readFully(mCompactBuffer);
+                    out.write(mCompactBuffer);
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Fin de la suppression, sous le verrou : ajout des blocs complétés depuis la recopie et du
+     * bloc en cours, puis remplacement du fichier et de l’index.
+     */
+    private synchronized void replaceBlocks(Drop drop, File temporary) throws IOException {
+        final Series series = drop.series;
+        if (mSeries.get(drop.address) != series) {
+            // Historique fermé pendant la recopie : suppression reportée.
+            temporary.delete();
+            return;
+        }
+        final RandomAccessFile out = new RandomAccessFile(temporary, "rw");
+        try {
+            out.seek((long) (drop.end - drop.count) * SampleBlock.BLOCK_SIZE);
+            for (int i = drop.end; i < series.blockIndex; i++) {
+                series.file.seek((long) i * SampleBlock.BLOCK_SIZE);
+                series.file.readFully(mBuffer);
+                out.write(mBuffer);
+            }
+            if (!series.block.isEmpty()) {
+                out.write(series.block.array());
+            }
+        } finally {
+            out.close();
+        }
+        final File file = new File(mDirectory, fileName(drop.address));
+        series.file.close();
+        final boolean renamed = temporary.renameTo(file);
+        series.file = new RandomAccessFile(file, "rw");
+        if (!renamed) {
+            temporary.delete();
+            throw new IOException("Remplacement de " + file + " impossible.");
+        }
+        series.unflushed = 0;
+        series.index.drop(drop.count);
+        series.blockIndex -= drop.count;
+        series.dropped += drop.count;
+        // Index réécrit en une seule écriture.
+        final byte[] index = new byte[series.blockIndex * 8];
+        for (int i = 0; i < series.blockIndex; i++) {
+            final long start = series.index.get(i);
+            for (int b = 0; b < 8; b++) {
+                index[i * 8 + b] = (byte) (start >>> (56 - 8 * b));
+            }
+        }
+        series.indexFile.setLength(0);
+        series.indexFile.write(index);
+        Log.i(TAG, drop.count + " blocs de " + drop.address + " supprimés.");
+    }
+
+    /**
+     * Lecture de l’index des blocs complets, reconstruit depuis les en-têtes des blocs s’il
+     * manque ou ne correspond pas aux données ; le bloc en cours y est ajouté.
+     */
+    private void loadIndex(Series series) throws IOException {
+        final int complete = series.blockIndex;
+        if (series.indexFile.length() == (long) complete * 8) {
+            series.indexFile.seek(0);
+            for (int i = 0; i < complete; i++) {
+                series.index.set(i, series.indexFile.readLong());
+            }
+        } else {
+            Log.i(TAG, "Reconstruction de l’index (" + complete + " blocs.)");
+            final byte[] header = new byte[SampleBlock.BLOCK_SIZE];
+            series.indexFile.setLength(0);
+            for (int i = 0; i < complete; i++) {
+                series.file.seek((long) i * SampleBlock.BLOCK_SIZE);
+                series.file.readFully(header, 0, 16);
+                final long firstTime = SampleBlock.readFirstTime(header, 0);
+                series.index.set(i, firstTime);
+                series.indexFile.writeLong(firstTime);
+            }
+        }
+        if (!series.block.isEmpty()) {
+            series.index.set(complete, SampleBlock.readFirstTime(series.block.array(), 0));
+        }
+    }
+
+    private static void writeBlock(Series series) throws IOException {
+        if (series.block.isEmpty()) {
+            return;
+        }
+        series.file.seek((long) series.blockIndex * SampleBlock.BLOCK_SIZE);
+        series.file.write(series.block.array());
+        series.unflushed = 0;
+    }
+
+    private static String fileName(String address) {
+        return address.replace(":", "") + EXTENSION;
+    }
+}
@@ -0,0 +1,209 @@
+/*
+ * Copyright (C) 2017 CentraleSupélec
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.centralesupelec.students.clientble;
+
+import java.util.HashMap;
+
+/**
+ * Planification du scan BLE par fenêtres (durée de scan) et intervalles (période entre deux
+ * débuts de scan).
+ *
+ * Tant que de nouveaux appareils apparaissent, le motif « agressif » est utilisé ; quand la
+ * liste des appareils est stable, le motif « économe » est utilisé et son intervalle est
+ * doublé à chaque fenêtre sans nouveauté, jusqu’à un maximum.
+ *
+ * Android refuse (silencieusement) plus de 5 démarrages de scan par période de 30 s :
+ * les démarrages sont donc retardés si nécessaire pour rester sous cette limite.
+ *
+ * Mesure aussi la latence de découverte de chaque appareil, c’est-à-dire le temps écoulé
+ * entre le début de la session de scan (faute de connaître la mise sous tension de
+ * l’appareil) et sa première détection.
+ *
+ * Toutes les dates sont en millisecondes, sur une horloge monotone fournie par l’appelant.
+ */
+public class ScanScheduler {
+
+    /** Nombre maximal de démarrages de scan autorisés par Android… */
+    public static final int MAX_STARTS = 5;
+    /** … par période glissante de cette durée (ms). */
+    public static final long STARTS_PERIOD = 30000;
+
+    // Motif agressif : 5 s de scan toutes les 6 s (exactement 5 démarrages par 30 s.)
+    private long mAggressiveWindow = 5000;
+    private long mAggressiveInterval = 6000;
+    // Motif économe : 3 s de scan toutes les 15 s, intervalle doublé jusqu’à 2 min.
+    private long mRelaxedWindow = 3000;
+    private long mRelaxedInterval = 15000;
+    private long mMaxInterval = 120000;
+    // Nombre de fenêtres sans nouvel appareil avant de passer au motif économe.
+    private int mStableWindows = 2;
+
+    // Dates des derniers démarrages, en tampon circulaire.
+    private final long[] mStarts = new long[MAX_STARTS];
+    private int mStartCount;
+
+    private long mSessionStart;
+    private long mWindowStart;
+    private long mInterval;
+    private long mWindow;
+    private int mWindowsWithoutNews;
+    private boolean mNewInWindow;
+
+    // Latence de découverte de chaque appareil, par adresse.
+    private final HashMap<String, Long> mLatencies = new HashMap<String, Long>();
+    private long mLatencySum;
+    private long mLatencyMax;
+    private long mFirstLatency = -1;
+
+    /**
+     * Configure le motif utilisé tant que de nouveaux appareils apparaissent.
+     * @param window durée de scan (ms)
+     * @param interval période entre deux débuts de scan (ms), au moins égale à window
+     */
+    public void setAggressivePattern(long window, long interval) {
+        mAggressiveWindow = window;
+        mAggressiveInterval = Math.max(window, interval);
+    }
+
+    /**
+     * Configure le motif utilisé quand la liste des appareils est stable.
+     * @param window durée de scan (ms)
+     * @param interval période initiale entre deux débuts de scan (ms)
+     * @param maxInterval période maximale après doublements successifs (ms)
+     * @param stableWindows nombre de fenêtres sans nouveauté avant de passer à ce motif
+     */
+    public void setRelaxedPattern(long window, long interval, long maxInterval,
+                                  int stableWindows) {
+        mRelaxedWindow = window;
+        mRelaxedInterval = Math.max(window, interval);
+        mMaxInterval = Math.max(mRelaxedInterval, maxInterval);
+        mStableWindows = stableWindows;
+    }
+
+    /**
+     * Début d’une session de scan : repart du motif agressif et remet à zéro les mesures.
+     * @param now date courante
+     */
+    public void startSession(long now) {
+        mSessionStart = now;
+        mWindowsWithoutNews = 0;
+        mInterval = mAggressiveInterval;
+        mWindow = mAggressiveWindow;
+        mLatencies.clear();
+        mLatencySum = 0;
+        mLatencyMax = 0;
+        mFirstLatency = -1;
+    }
+
+    /**
+     * Délai à attendre avant de pouvoir démarrer un scan sans dépasser la limite d’Android.
+     * @param now date courante
+     * @return délai (ms), 0 si le scan peut démarrer immédiatement
+     */
+    public long delayBeforeStart(long now) {
+        if (mStartCount < MAX_STARTS) {
+            return 0;
+        }
+        // Le plus ancien des MAX_STARTS derniers démarrages.
+        final long oldest = mStarts[mStartCount % MAX_STARTS];
+        return Math.max(0, oldest + STARTS_PERIOD - now);
+    }
+
+    /**
+     * Début d’une fenêtre de scan.
+     * @param now date courante
+     * @return durée de la fenêtre (ms)
+     */
+    public long onWindowStart(long now) {
+        mStarts[mStartCount % MAX_STARTS] = now;
+        mStartCount++;
+        mWindowStart = now;
+        mNewInWindow = false;
+        return mWindow;
+    }
+
+    /**
+     * Fin d’une fenêtre de scan : choix du motif suivant.
+     * @param now date courante
+     * @return délai (ms) avant le début de la fenêtre suivante
+     */
+    public long onWindowEnd(long now) {
+        if (mNewInWindow) {
+            mWindowsWithoutNews = 0;
+            mInterval = mAggressiveInterval;
+            mWindow = mAggressiveWindow;
+        } else if (++mWindowsWithoutNews == mStableWindows) {
+            mInterval = mRelaxedInterval;
+            mWindow = mRelaxedWindow;
+        } else if (mWindowsWithoutNews > mStableWindows) {
+            mInterval = Math.min(2 * mInterval, mMaxInterval);
+        }
+        final long delay = Math.max(0, mWindowStart + mInterval - now);
+        return delay + delayBeforeStart(now + delay);
+    }
+
+    /**
+     * Détection d’un appareil.
+     * @param address adresse de l’appareil
+     * @param now date courante
+     * @return true si l’appareil n’avait pas encore été vu pendant cette session
+     */
+    public boolean onDeviceSeen(String address, long now) {
+        if (mLatencies.containsKey(address)) {
+            return false;
+        }
+        final long latency = now - mSessionStart;
+        mLatencies.put(address, latency);
+        mLatencySum += latency;
+        mLatencyMax = Math.max(mLatencyMax, latency);
+        if (mFirstLatency < 0) {
+            mFirstLatency = latency;
+        }
+        mNewInWindow = true;
+        return true;
+    }
+
+    /** Nombre d’appareils découverts pendant la session. */
+    public int getDiscoveredCount() {
+        return mLatencies.size();
+    }
+
+    /** Latence de découverte d’un appareil (ms), ou -1 s’il n’a pas été vu. */
+    public long getDiscoveryLatency(String address) {
+        final Long latency = mLatencies.get(address);
+        return latency == null ? -1 : latency;
+    }
+
+    /** Latence de découverte du premier appareil (ms), ou -1. */
+    public long getFirstDiscoveryLatency() {
+        return mFirstLatency;
+    }
+
+    /** Latence moyenne de découverte (ms), ou -1 si aucun appareil n’a été vu. */
+    public long getMeanDiscoveryLatency() {
+        return mLatencies.isEmpty() ? -1 : mLatencySum / mLatencies.size();
+    }
+
+    /** Latence maximale de découverte (ms). */
+    public long getMaxDiscoveryLatency() {
+        return mLatencyMax;
+    }
+
+    /** Période courante entre deux débuts de scan (ms). */
+    public long getCurrentInterval() {
+        return mInterval;
+    }
+}
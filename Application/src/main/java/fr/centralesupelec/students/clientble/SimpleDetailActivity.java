@@ -16,20 +16,36 @@
 package fr.centralesupelec.students.clientble;
 
 import android.app.Activity;
+import android.app.AlertDialog;
+import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothGattCharacteristic;
 import android.bluetooth.BluetoothGattService;
 import android.content.BroadcastReceiver;
 import android.content.ComponentName;
 import android.content.Context;
+import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.ServiceConnection;
 import android.os.IBinder;
 import android.os.Bundle;
 import android.util.Log;
+import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
+import android.widget.EditText;
 import android.widget.TextView;
+import android.widget.Toast;
+
+import fr.centralesupelec.students.clientble.core.LinkQualityTracker;
+import fr.centralesupelec.students.clientble.core.RateController;
+import fr.centralesupelec.students.clientble.core.SampleStatistics;
+import fr.centralesupelec.students.clientble.core.SensorDecoder;
+import fr.centralesupelec.students.clientble.core.SensorProtocol;
+import fr.centralesupelec.students.clientble.core.StreamingStats;
+
+import java.io.File;
+import java.util.ArrayList;
 
 /**
  * Activité qui se connecte à un appareil BLE proposant notre service privé et
@@ -40,24 +56,44 @@ import android.widget.TextView;
 public class SimpleDetailActivity extends Activity {
     private final static String TAG = SimpleDetailActivity.class.getSimpleName();
 
+    // Journalisation de la réception des valeurs (voir Logger.)
+    private static final int LOG_TAG = Logger.register(TAG);
+    private static final int LOG_SERVICES_DISCOVERED =
+            Logger.register("ACTION_GATT_SERVICES_DISCOVERED reçu.");
+    private static final int LOG_SENSOR_VALUE =
+            Logger.register("ACTION_SENSOR_VALUE_AVAILABLE reçu, cache : {}, source : {}.");
+    private static final int LOG_WRITABLE_VALUE =
+            Logger.register("ACTION_WRITABLE_VALUE_AVAILABLE reçu, cache : {}.");
+
     public static final String EXTRAS_DEVICE_NAME = "DEVICE_NAME";
     public static final String EXTRAS_DEVICE_ADDRESS = "DEVICE_ADDRESS";
+    // Objet BluetoothDevice obtenu par le scan (facultatif.)
+    public static final String EXTRAS_DEVICE = "DEVICE";
+
+    // Âge maximal de la valeur de la caractéristique éditable reprise du cache du service à
+    // la découverte des services, en ms ; le bouton "Read" force une lecture.
+    private static final long WRITABLE_VALUE_MAX_AGE = 10 * 1000;
 
     /* Référence à des objets de l’interface. */
     private TextView mDeviceAddressView;
     private TextView mConnectionStateView;
     private TextView mSensorValueView;
+    private TextView mStatisticsView;
     private TextView mWritableValueView;
     private TextView mFormView;
 
     private String mDeviceName;
     private String mDeviceAddress;
+    private BluetoothDevice mDevice;
 
     private BluetoothLeService mBluetoothLeService;
     private boolean mConnected = false;
-    private BluetoothGattCharacteristic mSensorValueCharac;
     private BluetoothGattCharacteristic mWritableValueCharac;
 
+    // Statistiques copiées depuis le service pour l’affichage (réutilisées.)
+    private final StreamingStats mStats = new StreamingStats();
+    private final LinkQualityTracker.Quality mLinkQuality = new LinkQualityTracker.Quality();
+
 
     // Code to manage Service lifecycle.
     private final ServiceConnection mServiceConnection = new ServiceConnection() {
@@ -70,7 +106,17 @@ public class SimpleDetailActivity extends Activity {
                 finish();
             }
             // Automatically connects to the device upon successful start-up initialization.
-            mBluetoothLeService.connect(mDeviceAddress);
+            // Sans effet si la liste des appareils a déjà lancé la connexion.
+            if (mDevice != null) {
+                mBluetoothLeService.connect(mDevice);
+            } else {
+                mBluetoothLeService.connect(mDeviceAddress);
+            }
+            // Valeur affichée : l’appareil doit échantillonner rapidement.
+            mBluetoothLeService.setRateDemand(RateController.CONSUMER_DISPLAY,
+                    RateController.DISPLAY_INTERVAL);
+            // Dernières valeurs connues affichées sans attendre les lectures.
+            mBluetoothLeService.replayLastValues(mDeviceAddress);
         }
 
         @Override
@@ -90,6 +136,15 @@ public class SimpleDetailActivity extends Activity {
     private final BroadcastReceiver mGattUpdateReceiver = new BroadcastReceiver() {
         @Override
         public void onReceive(Context context, Intent intent) {
+            Tracing.begin(Tracing.UI_RECEIVE);
+            try {
+                handleUpdate(intent);
+            } finally {
+                Tracing.end(Tracing.UI_RECEIVE);
+            }
+        }
+
+        private void handleUpdate(Intent intent) {
             final String action = intent.getAction();
             if (BluetoothLeService.ACTION_GATT_CONNECTED.equals(action)) {
                 mConnected = true;
@@ -102,18 +157,45 @@ public class SimpleDetailActivity extends Activity {
                 clearUI();
             } else if (BluetoothLeService.ACTION_GATT_SERVICES_DISCOVERED.equals(action)) {
                 // Show all the supported services and characteristics on the user interface.
-                Log.d(TAG, "ACTION_GATT_SERVICES_DISCOVERED reçu.");
-                requestValues(); // Demande des valeurs des caractéristiques.
+                Logger.d(LOG_TAG, LOG_SERVICES_DISCOVERED);
+                requestValues(); // Demande de la valeur de la caractéristique éditable.
             } else if (BluetoothLeService.ACTION_SENSOR_VALUE_AVAILABLE.equals(action)) {
-                Log.d(TAG, "ACTION_SENSOR_VALUE_AVAILABLE reçu.");
+                // Seule la valeur du potentiomètre est affichée : les autres capteurs décrits
+                // par le schéma ne doivent pas la remplacer.
+                if (!GattConstants.SENSOR_CHARACTERISTIC_UUID_STRING.equals(
+                        intent.getStringExtra(BluetoothLeService.EXTRA_CHARACTERISTIC))) {
+                    return;
+                }
+                Logger.d(LOG_TAG, LOG_SENSOR_VALUE,
+                        intent.getBooleanExtra(BluetoothLeService.EXTRA_CACHED, false) ? 1 : 0,
+                        intent.getIntExtra(BluetoothLeService.EXTRA_SOURCE, -1));
                 final String data = intent.getStringExtra(BluetoothLeService.EXTRA_DATA);
-                Log.d(TAG, data);
                 displaySensorValue(data); // Affichage de la nouvelle valeur.
+                displayStatistics();
             } else if (BluetoothLeService.ACTION_WRITABLE_VALUE_AVAILABLE.equals(action)) {
-                Log.d(TAG, "ACTION_WRITABLE_VALUE_AVAILABLE reçu.");
+                if (!GattConstants.WRITABLE_CHARACTERISTIC_UUID_STRING.equals(
+                        intent.getStringExtra(BluetoothLeService.EXTRA_CHARACTERISTIC))) {
+                    return;
+                }
+                Logger.d(LOG_TAG, LOG_WRITABLE_VALUE,
+                        intent.getBooleanExtra(BluetoothLeService.EXTRA_CACHED, false) ? 1 : 0);
                 final String data = intent.getStringExtra(BluetoothLeService.EXTRA_DATA);
-                Log.d(TAG, data);
                 displayWritableValue(data); // Affichage de la nouvelle valeur.
+            } else if (BluetoothLeService.ACTION_ALERT.equals(action)) {
+                Toast.makeText(SimpleDetailActivity.this,
+                        intent.getStringExtra(BluetoothLeService.EXTRA_DATA),
+                        Toast.LENGTH_LONG).show();
+            } else if (BluetoothLeService.ACTION_DUMP_PROGRESS.equals(action)) {
+                getActionBar().setSubtitle(getString(R.string.dump_progress,
+                        intent.getIntExtra(BluetoothLeService.EXTRA_DUMP_DONE, 0),
+                        intent.getIntExtra(BluetoothLeService.EXTRA_DUMP_TOTAL, 0)));
+            } else if (BluetoothLeService.ACTION_DUMP_COMPLETE.equals(action)) {
+                getActionBar().setSubtitle(null);
+                displayDumpResult(intent);
+            } else if (BluetoothLeService.ACTION_STREAMING_SERVER_STOPPED.equals(action)) {
+                Toast.makeText(SimpleDetailActivity.this, R.string.server_stopped,
+                        Toast.LENGTH_LONG).show();
+                invalidateOptionsMenu();
             } else {
                 Log.w(TAG, "Action non reconnue.");
             }
@@ -125,6 +207,7 @@ public class SimpleDetailActivity extends Activity {
      */
     private void clearUI() {
         mSensorValueView.setText(R.string.no_data);
+        mStatisticsView.setText(R.string.no_data);
         mWritableValueView.setText(R.string.no_data);
     }
 
@@ -142,6 +225,7 @@ public class SimpleDetailActivity extends Activity {
         final Intent intent = getIntent();
         mDeviceName = intent.getStringExtra(EXTRAS_DEVICE_NAME);
         mDeviceAddress = intent.getStringExtra(EXTRAS_DEVICE_ADDRESS);
+        mDevice = intent.getParcelableExtra(EXTRAS_DEVICE);
 
         // Configuration des références vers les objets de l’interface
         mDeviceAddressView = (TextView) findViewById(R.id.device_address);
@@ -150,6 +234,7 @@ public class SimpleDetailActivity extends Activity {
         mFormView = (TextView) findViewById(R.id.form_view);
         mConnectionStateView = (TextView) findViewById(R.id.connection_state);
         mSensorValueView = (TextView) findViewById(R.id.sensor_value);
+        mStatisticsView = (TextView) findViewById(R.id.statistics_value);
         mWritableValueView = (TextView) findViewById(R.id.writable_value);
 
         // Configuration de la barre supérieure
@@ -173,7 +258,9 @@ public class SimpleDetailActivity extends Activity {
         if (mBluetoothLeService != null) {
             final boolean result = mBluetoothLeService.connect(mDeviceAddress);
             Log.d(TAG, "Connect request result=" + result);
-            mBluetoothLeService.setCharacteristicNotification(mSensorValueCharac, true);
+            mBluetoothLeService.setRateDemand(RateController.CONSUMER_DISPLAY,
+                    RateController.DISPLAY_INTERVAL);
+            mBluetoothLeService.replayLastValues(mDeviceAddress);
         }
     }
 
@@ -184,8 +271,9 @@ public class SimpleDetailActivity extends Activity {
     @Override
     protected void onPause() {
         super.onPause();
-        // Cesser de recevoir les notifications de la valeur du potentiomètre.
-        mBluetoothLeService.setCharacteristicNotification(mSensorValueCharac, false);
+        // Plus rien d’affiché : seuls l’historique et les alertes fixent la période. Le
+        // service garde les notifications tant qu’ils en ont besoin.
+        mBluetoothLeService.setRateDemand(RateController.CONSUMER_DISPLAY, 0);
         unregisterReceiver(mGattUpdateReceiver);
     }
 
@@ -195,11 +283,32 @@ public class SimpleDetailActivity extends Activity {
     @Override
     protected void onDestroy() {
         super.onDestroy();
+        // Fin de la connexion : le service reste lié à la liste des appareils, onUnbind() ne
+        // suffit donc plus à libérer le client GATT.
+        if (mBluetoothLeService != null) {
+            mBluetoothLeService.close();
+        }
         // Fin de la liaison avec le service
         unbindService(mServiceConnection);
         mBluetoothLeService = null;
     }
 
+    /**
+     * Création du menu de la barre supérieure.
+     * @param menu
+     * @return
+     */
+    @Override
+    public boolean onCreateOptionsMenu(Menu menu) {
+        getMenuInflater().inflate(R.menu.detail, menu);
+        menu.findItem(R.id.menu_dump).setVisible(mConnected);
+        menu.findItem(R.id.menu_pin).setChecked(mBluetoothLeService != null
+                && mBluetoothLeService.isPinned(mDeviceAddress));
+        menu.findItem(R.id.menu_server).setChecked(mBluetoothLeService != null
+                && mBluetoothLeService.getStreamingServer() != null);
+        return true;
+    }
+
     /**
      * Gestion de l’appui sur un bouton de la barre supérieure.
      * @param item
@@ -214,6 +323,63 @@ public class SimpleDetailActivity extends Activity {
                 // de la barre inférieure d’Android.
                 onBackPressed();
                 return true;
+            // Relevé complet des attributs de l’appareil.
+            case R.id.menu_dump:
+                if (mBluetoothLeService == null || !mBluetoothLeService.startAttributeDump()) {
+                    Toast.makeText(this, R.string.dump_unavailable, Toast.LENGTH_SHORT).show();
+                }
+                return true;
+            // Épinglage : l’appareil sera ouvert directement au lancement.
+            case R.id.menu_pin:
+                if (mBluetoothLeService != null) {
+                    mBluetoothLeService.setPinned(mDeviceAddress, mDeviceName,
+                            !item.isChecked());
+                    item.setChecked(!item.isChecked());
+                }
+                return true;
+            // Diffusion des mesures aux outils d’analyse, sur le réseau local.
+            case R.id.menu_server:
+                if (mBluetoothLeService != null) {
+                    final boolean enable = !item.isChecked();
+                    if (mBluetoothLeService.setStreamingServerEnabled(enable)) {
+                        item.setChecked(enable);
+                        if (enable) {
+                            Toast.makeText(this, getString(R.string.server_started,
+                                    BluetoothLeService.SERVER_PORT), Toast.LENGTH_LONG).show();
+                        }
+                    } else {
+                        Toast.makeText(this, R.string.server_failed, Toast.LENGTH_SHORT).show();
+                    }
+                }
+                return true;
+            // Export des traces récentes, au format Chrome (Perfetto.)
+            case R.id.menu_trace:
+                final File trace = mBluetoothLeService == null
+                        ? null : mBluetoothLeService.exportTrace();
+                if (trace != null) {
+                    Toast.makeText(this, getString(R.string.trace_saved, trace.getPath()),
+                            Toast.LENGTH_LONG).show();
+                } else {
+                    Toast.makeText(this, R.string.trace_failed, Toast.LENGTH_SHORT).show();
+                }
+                return true;
+            // Écriture des derniers messages de journalisation.
+            case R.id.menu_log:
+                final File log = mBluetoothLeService == null
+                        ? null : mBluetoothLeService.exportLog();
+                if (log != null) {
+                    Toast.makeText(this, getString(R.string.log_saved, log.getPath()),
+                            Toast.LENGTH_LONG).show();
+                } else {
+                    Toast.makeText(this, R.string.log_failed, Toast.LENGTH_SHORT).show();
+                }
+                return true;
+            // Édition des règles d’alerte.
+            case R.id.menu_alerts:
+                if (mBluetoothLeService != null) {
+                    showAlertRulesDialog();
+                }
+                return true;
         }
         return super.onOptionsItemSelected(item);
     }
@@ -241,12 +407,112 @@ public class SimpleDetailActivity extends Activity {
             @Override
             public void run() {
                 if (data != null) {
-                    mSensorValueView.setText(data);
+                    Tracing.begin(Tracing.UI_SENSOR_VALUE);
+                    try {
+                        mSensorValueView.setText(data);
+                    } finally {
+                        Tracing.end(Tracing.UI_SENSOR_VALUE);
+                    }
                 }
             }
         });
     }
 
+    /**
+     * Affichage des statistiques du potentiomètre : dernière seconde complète, minute en
+     * cours et session, en pourcentage de la pleine échelle.
+     */
+    private void displayStatistics() {
+        if (mBluetoothLeService == null) {
+            return;
+        }
+        final SampleStatistics statistics = mBluetoothLeService.getStatistics();
+        final StringBuilder text = new StringBuilder();
+        statistics.copy(mDeviceAddress, SampleStatistics.WINDOW_SECOND, false, mStats);
+        appendStatistics(text, R.string.statistics_second);
+        statistics.copy(mDeviceAddress, SampleStatistics.WINDOW_MINUTE, true, mStats);
+        appendStatistics(text, R.string.statistics_minute);
+        statistics.copy(mDeviceAddress, SampleStatistics.WINDOW_SESSION, true, mStats);
+        appendStatistics(text, R.string.statistics_session);
+        if (mBluetoothLeService.getLinkQuality().copy(mDeviceAddress, mLinkQuality)) {
+            text.append('\n').append(getString(R.string.link_quality_format,
+                    mLinkQuality.received, 100.0 * mLinkQuality.getLossRate(),
+                    mLinkQuality.duplicates, mLinkQuality.reordered,
+                    mLinkQuality.meanIntervalNanos / 1e6, mLinkQuality.jitterNanos / 1e6));
+        }
+        mStatisticsView.setText(text);
+    }
+
+    private void appendStatistics(StringBuilder text, int labelId) {
+        if (text.length() > 0) {
+            text.append('\n');
+        }
+        if (mStats.getCount() == 0) {
+            text.append(getString(labelId)).append(' ').append(getString(R.string.no_data));
+            return;
+        }
+        text.append(getString(R.string.statistics_format, getString(labelId), mStats.getCount(),
+                SensorDecoder.toPercent(mStats.getMin()),
+                SensorDecoder.toPercent(mStats.getMax()),
+                100.0 * mStats.getMean() / SensorDecoder.MAX_VALUE,
+                100.0 * mStats.getStandardDeviation() / SensorDecoder.MAX_VALUE,
+                100.0 * mStats.getQuantile(0.50) / SensorDecoder.MAX_VALUE,
+                100.0 * mStats.getQuantile(0.95) / SensorDecoder.MAX_VALUE,
+                100.0 * mStats.getQuantile(0.99) / SensorDecoder.MAX_VALUE));
+    }
+
+    /**
+     * Boîte de dialogue d’édition des règles d’alerte du service.
+     */
+    private void showAlertRulesDialog() {
+        final EditText input = new EditText(this);
+        input.setHint(R.string.alert_rules_hint);
+        input.setText(mBluetoothLeService.getAlertRules().getSpec());
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.menu_alerts)
+                .setMessage(R.string.alert_rules_help)
+                .setView(input)
+                .setNegativeButton(android.R.string.cancel, null)
+                .setPositiveButton(android.R.string.ok, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        if (mBluetoothLeService == null) {
+                            return;
+                        }
+                        try {
+                            mBluetoothLeService.setAlertRules(input.getText().toString());
+                        } catch (IllegalArgumentException e) {
+                            Toast.makeText(SimpleDetailActivity.this, e.getMessage(),
+                                    Toast.LENGTH_LONG).show();
+                        }
+                    }
+                })
+                .show();
+    }
+
+    /**
+     * Affichage du résultat d’un relevé des attributs : fichier enregistré et nombre de
+     * différences avec le relevé précédent (détaillées dans le journal.)
+     * @param intent intention ACTION_DUMP_COMPLETE
+     */
+    private void displayDumpResult(Intent intent) {
+        final String file = intent.getStringExtra(BluetoothLeService.EXTRA_DUMP_FILE);
+        if (file == null) {
+            Toast.makeText(this, R.string.dump_failed, Toast.LENGTH_LONG).show();
+            return;
+        }
+        String text = getString(R.string.dump_saved, file);
+        final ArrayList<String> differences =
+                intent.getStringArrayListExtra(BluetoothLeService.EXTRA_DUMP_DIFF);
+        if (differences != null) {
+            text += "\n" + getString(R.string.dump_differences, differences.size());
+            for (String difference : differences) {
+                Log.i(TAG, difference);
+            }
+        }
+        Toast.makeText(this, text, Toast.LENGTH_LONG).show();
+    }
+
     /**
      * Affichage de la valeur de la caractéristique longue éditable.
      * @param data
@@ -268,7 +534,7 @@ public class SimpleDetailActivity extends Activity {
      */
     public void onRefreshClick(View view) {
         Log.d(TAG, "onRefreshClick()");
-        requestWritableValue();
+        requestWritableValue(0);
     }
 
     /**
@@ -278,22 +544,18 @@ public class SimpleDetailActivity extends Activity {
      */
     public void onSendClick(View view) {
         Log.d(TAG, "onSendClick()");
-        // Récupération du contenu du champ textuel éditable par l’utilisateur.
-        byte [] text = mFormView.getText().toString().getBytes();
-        // Longueur maximale de la valeur de la caractéristique: 20 octets.
-        byte [] data = new byte[20];
-        int max = Math.min(text.length, GattConstants.WRITABLE_CHARACTERISTIC_MAX_LENGTH);
-        for (int i = 0; i < max; i++) {
-            data[i] = text[i];
-        }
+        // Contenu du champ textuel éditable par l’utilisateur, sans remplissage.
+        byte [] data = SensorProtocol.encodeWritableText(mFormView.getText().toString());
         Log.d(TAG, "envoi de: " + data.toString());
         mBluetoothLeService.writeCharacterisitic(mWritableValueCharac, data);
     }
 
     /**
-     * Demande de la valeur de la caractéristique longue éditable.
+     * Demande de la valeur de la caractéristique longue éditable, servie par le cache du
+     * service si elle est assez récente.
+     * @param maxAgeMillis âge maximal accepté pour une valeur en cache, en ms
      */
-    private void requestWritableValue() {
+    private void requestWritableValue(long maxAgeMillis) {
         BluetoothGattService privateService = mBluetoothLeService.getPrivateService();
         if (privateService == null) {
             Log.w(TAG, "Service Gatt privé non détecté.");
@@ -302,45 +564,19 @@ public class SimpleDetailActivity extends Activity {
         mWritableValueCharac =
                 privateService.getCharacteristic(GattConstants.WRITABLE_CHARACTERISTIC_UUID);
         if (mWritableValueCharac != null) {
-            mBluetoothLeService.readCharacteristic(mWritableValueCharac);
+            mBluetoothLeService.readCharacteristic(mWritableValueCharac, maxAgeMillis);
         } else {
             Log.w(TAG, "WRITABLE_CHARACTERISTIC_UUID non trouvé.");
         }
     }
 
     /**
-     * Demande la valeur du potentiomètre, et souscrit à ses notifications.
-     */
-    private void requestAndSubscribeSensorValue() {
-        BluetoothGattService privateService = mBluetoothLeService.getPrivateService();
-        if (privateService == null) {
-            Log.w(TAG, "Service Gatt privé non détecté.");
-            return;
-        }
-        mSensorValueCharac =
-                privateService.getCharacteristic(GattConstants.SENSOR_CHARACTERISTIC_UUID);
-        if (mSensorValueCharac != null) {
-            // Lecture.
-            mBluetoothLeService.readCharacteristic(mSensorValueCharac);
-
-            // Souscription aux notifications.
-            final int charaProp = mSensorValueCharac.getProperties();
-            if ((charaProp | BluetoothGattCharacteristic.PROPERTY_NOTIFY) > 0) {
-                Log.d(TAG, "Demande de notification.");
-                mBluetoothLeService.setCharacteristicNotification(mSensorValueCharac, true);
-            }
-        } else {
-            Log.w(TAG, "SENSOR_CHARACTERISTIC_UUID non trouvé");
-        }
-    }
-
-    /**
-     * Demande les valeurs de deux caractéristiques du service,
-     * et souscrit aux notifications de la valeur du potentiomètre.
+     * Demande la valeur de la caractéristique éditable ; la lecture du potentiomètre et la
+     * souscription à ses notifications sont faites par le service dès la découverte des
+     * services.
      */
     private void requestValues() {
-        requestWritableValue();
-        requestAndSubscribeSensorValue();
+        requestWritableValue(WRITABLE_VALUE_MAX_AGE);
     }
 
     /**
@@ -355,6 +591,10 @@ public class SimpleDetailActivity extends Activity {
         intentFilter.addAction(BluetoothLeService.ACTION_GATT_SERVICES_DISCOVERED);
         intentFilter.addAction(BluetoothLeService.ACTION_SENSOR_VALUE_AVAILABLE);
         intentFilter.addAction(BluetoothLeService.ACTION_WRITABLE_VALUE_AVAILABLE);
+        intentFilter.addAction(BluetoothLeService.ACTION_DUMP_PROGRESS);
+        intentFilter.addAction(BluetoothLeService.ACTION_DUMP_COMPLETE);
+        intentFilter.addAction(BluetoothLeService.ACTION_STREAMING_SERVER_STOPPED);
+        intentFilter.addAction(BluetoothLeService.ACTION_ALERT);
         return intentFilter;
     }
 }
@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2017 CentraleSupélec
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.centralesupelec.students.clientble;
+
+import android.os.Process;
+import android.os.Trace;
+
+import fr.centralesupelec.students.clientble.core.TraceRing;
+
+/**
+ * Traces de l’application, de la liaison radio à l’affichage : opérations GATT, étapes de
+ * traitement des callbacks, diffusion et mise à jour de l’interface.
+ *
+ * Les intervalles synchrones sont enregistrés dans un anneau ({@link TraceRing}), exporté
+ * au format Chrome par {@link BluetoothLeService#exportTrace()}, et doublés de sections
+ * android.os.Trace visibles dans systrace et Perfetto. Les intervalles asynchrones (attente
+ * et exécution des opérations GATT) ne vont que dans l’anneau : les sections asynchrones
+ * d’android.os.Trace demandent l’API 29. Les événements portent l’identifiant système du
+ * thread (Process.myTid()), pour se superposer aux threads de systrace.
+ */
+final class Tracing {
+
+    private static final int CAPACITY = 16384;
+    private static final String[] sNames = new String[32];
+
+    static final TraceRing RING = new TraceRing(CAPACITY);
+
+    // Opérations GATT (asynchrones) : attente dans la file, puis exécution.
+    static final int GATT_QUEUED = register("gatt.queued");
+    static final int GATT_READ_CHARACTERISTIC = register("gatt.readCharacteristic");
+    static final int GATT_WRITE_CHARACTERISTIC = register("gatt.writeCharacteristic");
+    static final int GATT_READ_DESCRIPTOR = register("gatt.readDescriptor");
+    static final int GATT_WRITE_DESCRIPTOR = register("gatt.writeDescriptor");
+    // Callbacks GATT et étapes de leur traitement.
+    static final int CALLBACK_READ = register("callback.onCharacteristicRead");
+    static final int CALLBACK_WRITE = register("callback.onCharacteristicWrite");
+    static final int CALLBACK_CHANGED = register("callback.onCharacteristicChanged");
+    static final int CALLBACK_DESCRIPTOR_WRITE = register("callback.onDescriptorWrite");
+    static final int PROTOCOL_SENSOR_VALUE = register("protocol.handleSensorValue");
+    static final int DISPATCH_BROADCAST = register("dispatch.sendBroadcast");
+    // Interface.
+    static final int UI_RECEIVE = register("ui.onReceive");
+    static final int UI_SENSOR_VALUE = register("ui.displaySensorValue");
+
+    private Tracing() {
+    }
+
+    private static int register(String name) {
+        final int id = RING.register(name);
+        sNames[id] = name;
+        return id;
+    }
+
+    /**
+     * Début d’un intervalle sur le thread courant, à terminer par {@link #end(int)} sur le
+     * même thread (dans un bloc finally.)
+     */
+    static void begin(int name) {
+        RING.record(TraceRing.PHASE_BEGIN, name, 0, Process.myTid());
+        Trace.beginSection(sNames[name]);
+    }
+
+    static void end(int name) {
+        Trace.endSection();
+        RING.record(TraceRing.PHASE_END, name, 0, Process.myTid());
+    }
+
+    /**
+     * Début d’un intervalle asynchrone, terminé par {@link #asyncEnd(int, long)} avec le
+     * même nom et le même identifiant, depuis n’importe quel thread.
+     */
+    static void asyncBegin(int name, long id) {
+        RING.record(TraceRing.PHASE_ASYNC_BEGIN, name, id, Process.myTid());
+    }
+
+    static void asyncEnd(int name, long id) {
+        RING.record(TraceRing.PHASE_ASYNC_END, name, id, Process.myTid());
+    }
+
+    /**
+     * Nom de l’intervalle d’exécution d’une opération GATT.
+     * @param type type d’opération (GattOperationQueue.READ_CHARACTERISTIC, etc.)
+     * @return
+     */
+    static int gattOperation(int type) {
+        switch (type) {
+            case GattOperationQueue.READ_CHARACTERISTIC:
+                return GATT_READ_CHARACTERISTIC;
+            case GattOperationQueue.WRITE_CHARACTERISTIC:
+                return GATT_WRITE_CHARACTERISTIC;
+            case GattOperationQueue.READ_DESCRIPTOR:
+                return GATT_READ_DESCRIPTOR;
+            default:
+                return GATT_WRITE_DESCRIPTOR;
+        }
+    }
+}
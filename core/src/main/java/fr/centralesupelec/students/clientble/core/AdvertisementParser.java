@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2017 CentraleSupélec
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.centralesupelec.students.clientble.core;
+
+import java.util.UUID;
+
+/**
+ * Extraction de la valeur du potentiomètre d’une annonce BLE (scanRecord), sans connexion.
+ *
+ * Le scanRecord est une suite de structures AD : [longueur][type][données…], la longueur
+ * comptant l’octet de type. La valeur est cherchée :
+ * - dans une structure « Service Data - 128-bit UUID » (0x21) portant l’UUID de notre
+ *   service privé, suivie de la valeur sur un ou deux octets ;
+ * - à défaut, dans une structure « Manufacturer Specific Data » (0xFF) portant l’identifiant
+ *   d’entreprise attendu, suivi de la valeur.
+ *
+ * Le tableau est lu sur place, sans copie ni allocation. Une structure dont la longueur
+ * dépasse la fin du tableau arrête l’analyse : les structures précédentes restent valides.
+ */
+public final class AdvertisementParser {
+
+    /** Valeur retournée quand l’annonce ne contient pas de mesure. */
+    public static final int NOT_FOUND = -1;
+
+    /** Identifiant d’entreprise réservé aux tests par le Bluetooth SIG. */
+    public static final int DEFAULT_COMPANY_ID = 0xFFFF;
+
+    static final int AD_TYPE_SERVICE_DATA_128 = 0x21;
+    static final int AD_TYPE_MANUFACTURER_DATA = 0xFF;
+
+    private static final long PRIVATE_SERVICE_MSB =
+            PrivateProfile.SERVICE_UUID.getMostSignificantBits();
+    private static final long PRIVATE_SERVICE_LSB =
+            PrivateProfile.SERVICE_UUID.getLeastSignificantBits();
+
+    private AdvertisementParser() {
+    }
+
+    /**
+     * Recherche de la valeur du potentiomètre dans une annonce de notre service privé.
+     * @param scanRecord contenu brut de l’annonce
+     * @return la valeur brute, ou NOT_FOUND
+     */
+    public static int findSensorValue(byte[] scanRecord) {
+        return findSensorValue(scanRecord, PRIVATE_SERVICE_MSB, PRIVATE_SERVICE_LSB,
+                DEFAULT_COMPANY_ID);
+    }
+
+    /**
+     * Recherche de la valeur du potentiomètre dans une annonce.
+     * @param scanRecord contenu brut de l’annonce
+     * @param serviceMsb bits de poids fort de l’UUID du service (cf. {@link UUID})
+     * @param serviceLsb bits de poids faible de l’UUID du service
+     * @param companyId identifiant d’entreprise des données constructeur, ou -1 pour les ignorer
+     * @return la valeur brute, ou NOT_FOUND
+     */
+    public static int findSensorValue(byte[] scanRecord, long serviceMsb, long serviceLsb,
+                                      int companyId) {
+        if (scanRecord == null) {
+            return NOT_FOUND;
+        }
+        int manufacturerValue = NOT_FOUND;
+        int i = 0;
+        while (i < scanRecord.length) {
+            final int length = scanRecord[i] & 0xff;
+            if (length == 0) {
+                // Fin des données significatives (le reste est du remplissage.)
+                break;
+            }
+            if (i + 1 + length > scanRecord.length) {
+                // Structure tronquée : annonce malformée.
+                break;
+            }
+            final int type = scanRecord[i + 1] & 0xff;
+            final int data = i + 2;
+            final int dataLength = length - 1;
+
+            if (type == AD_TYPE_SERVICE_DATA_128 && dataLength > 16
+                    && readLongLE(scanRecord, data) == serviceLsb
+                    && readLongLE(scanRecord, data + 8) == serviceMsb) {
+                // Donnée de service prioritaire sur les données constructeur.
+                return SensorDecoder.decode(scanRecord, data + 16, dataLength - 16);
+            }
+            if (type == AD_TYPE_MANUFACTURER_DATA && dataLength > 2
+                    && manufacturerValue == NOT_FOUND
+                    && ((scanRecord[data] & 0xff) | (scanRecord[data + 1] & 0xff) << 8)
+                    == companyId) {
+                manufacturerValue = SensorDecoder.decode(scanRecord, data + 2, dataLength - 2);
+            }
+            i += 1 + length;
+        }
+        return manufacturerValue;
+    }
+
+    /**
+     * Lecture d’un entier de 64 bits, octet de poids faible en premier (ordre des UUID
+     * dans les annonces.)
+     */
+    private static long readLongLE(byte[] data, int offset) {
+        long value = 0;
+        for (int i = 7; i >= 0; i--) {
+            value = value << 8 | (data[offset + i] & 0xffL);
+        }
+        return value;
+    }
+}
@@ -0,0 +1,299 @@
+/*
+ * Copyright (C) 2017 CentraleSupélec
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.centralesupelec.students.clientble.core;
+
+import java.util.ArrayList;
+
+/**
+ * Règles d’alerte sur la valeur du potentiomètre.
+ *
+ * Les règles sont décrites par une chaîne, une règle par ligne ou séparées par « ; », les
+ * valeurs étant en pourcentage de la pleine échelle :
+ * <ul>
+ * <li>« above 80 75 » : valeur supérieure à 80 %, réarmée quand elle repasse sous 75 %
+ * (hystérésis ; sans second nombre, réarmée sous 80 %) ;</li>
+ * <li>« below 10 15 » : valeur inférieure à 10 %, réarmée au-dessus de 15 % ;</li>
+ * <li>« rate 20 » : variation de plus de 20 % par seconde, réarmée quand elle redescend ;</li>
+ * <li>« silence 30 » : aucune mesure depuis 30 s, réarmée à la mesure suivante.</li>
+ * </ul>
+ * Les règles sont compilées dans des tableaux primitifs (type, seuil, seuil de réarmement,
+ * état) : l’évaluation d’une mesure ne fait qu’un parcours de ces tableaux, sans allocation.
+ * Chaque déclenchement est enregistré dans un anneau d’événements de taille fixe et signalé
+ * à l’abonné.
+ */
+public final class AlertRules {
+
+    public static final int TYPE_ABOVE = 0;
+    public static final int TYPE_BELOW = 1;
+    public static final int TYPE_RATE = 2;
+    public static final int TYPE_SILENCE = 3;
+
+    private static final String[] KEYWORDS = {"above", "below", "rate", "silence"};
+
+    /** Nombre d’événements conservés. */
+    public static final int EVENT_CAPACITY = 64;
+
+    /**
+     * Abonné aux déclenchements des règles.
+     */
+    public interface Listener {
+        /**
+         * Appelée à chaque déclenchement d’une règle, sur le thread de l’évaluation.
+         * @param rules règles
+         * @param rule numéro de la règle déclenchée
+         * @param value valeur en cause (dernière valeur reçue pour TYPE_SILENCE)
+         */
+        void onAlert(AlertRules rules, int rule, int value);
+    }
+
+    private final String mSpec;
+    private final String[] mSources;
+    private final int[] mTypes;
+    // Seuils, en unités brutes (TYPE_ABOVE, TYPE_BELOW), en unités brutes par ms (TYPE_RATE)
+    // ou en ms (TYPE_SILENCE.)
+    private final double[] mLimits;
+    private final double[] mRearms;
+    private final boolean[] mArmed;
+
+    private boolean mHasLast;
+    private long mLastTime;
+    private int mLastValue;
+
+    private Listener mListener;
+
+    // Anneau des derniers événements.
+    private final long[] mEventTimes = new long[EVENT_CAPACITY];
+    private final int[] mEventRules = new int[EVENT_CAPACITY];
+    private final int[] mEventValues = new int[EVENT_CAPACITY];
+    private int mEventCount;
+
+    private AlertRules(String spec, String[] sources, int[] types, double[] limits,
+                       double[] rearms) {
+        mSpec = spec;
+        mSources = sources;
+        mTypes = types;
+        mLimits = limits;
+        mRearms = rearms;
+        mArmed = new boolean[types.length];
+        reset();
+    }
+
+    /**
+     * Compilation d’une description de règles.
+     * @param spec description (cf. description de la classe) ; vide : aucune règle
+     * @return
+     * @throws IllegalArgumentException si la description est invalide
+     */
+    public static AlertRules compile(String spec) {
+        final ArrayList<String> sources = new ArrayList<String>();
+        for (String line : spec.split("[;\n]")) {
+            if (line.trim().length() > 0) {
+                sources.add(line.trim());
+            }
+        }
+        final int count = sources.size();
+        final int[] types = new int[count];
+        final double[] limits = new double[count];
+        final double[] rearms = new double[count];
+        for (int i = 0; i < count; i++) {
+            final String[] words = sources.get(i).split("\\s+");
+            int type = -1;
+            for (int k = 0; k < KEYWORDS.length; k++) {
+                if (KEYWORDS[k].equalsIgnoreCase(words[0])) {
+                    type = k;
+                }
+            }
+            final int expected = type == TYPE_ABOVE || type == TYPE_BELOW ? 3 : 2;
+            if (type < 0 || words.length < 2 || words.length > expected) {
+                throw new IllegalArgumentException("Règle invalide : " + sources.get(i));
+            }
+            final double limit = parse(words[1], sources.get(i));
+            final double rearm = words.length > 2 ? parse(words[2], sources.get(i)) : limit;
+            types[i] = type;
+            switch (type) {
+                case TYPE_ABOVE:
+                case TYPE_BELOW:
+                    if (type == TYPE_ABOVE ? rearm > limit : rearm < limit) {
+                        throw new IllegalArgumentException(
+                                "Seuil de réarmement du mauvais côté : " + sources.get(i));
+                    }
+                    limits[i] = fromPercent(limit);
+                    rearms[i] = fromPercent(rearm);
+                    break;
+                case TYPE_RATE:
+                    limits[i] = fromPercent(limit) / 1000;
+                    break;
+                default:
+                    limits[i] = limit * 1000;
+                    break;
+            }
+        }
+        return new AlertRules(spec, sources.toArray(new String[count]), types, limits, rearms);
+    }
+
+    private static double parse(String word, String source) {
+        try {
+            return Double.parseDouble(word.replace(',', '.'));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Nombre invalide dans la règle : " + source);
+        }
+    }
+
+    private static double fromPercent(double percent) {
+        return percent * SensorDecoder.MAX_VALUE / 100;
+    }
+
+    public synchronized void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Réarmement de toutes les règles et oubli de la dernière mesure (nouvelle connexion.)
+     */
+    public synchronized void reset() {
+        for (int i = 0; i < mArmed.length; i++) {
+            mArmed[i] = true;
+        }
+        mHasLast = false;
+    }
+
+    /**
+     * Évaluation des règles sur une nouvelle mesure.
+     * @param time date de la mesure, en ms (horloge monotone)
+     * @param value valeur brute
+     */
+    public synchronized void evaluate(long time, int value) {
+        for (int i = 0; i < mTypes.length; i++) {
+            final boolean violated;
+            final boolean cleared;
+            switch (mTypes[i]) {
+                case TYPE_ABOVE:
+                    violated = value > mLimits[i];
+                    cleared = value < mRearms[i];
+                    break;
+                case TYPE_BELOW:
+                    violated = value < mLimits[i];
+                    cleared = value > mRearms[i];
+                    break;
+                case TYPE_RATE:
+                    if (!mHasLast || time <= mLastTime) {
+                        continue;
+                    }
+                    violated = Math.abs(value - mLastValue) > mLimits[i] * (time - mLastTime);
+                    cleared = !violated;
+                    break;
+                default:
+                    // Silence interrompu par cette mesure.
+                    violated = false;
+                    cleared = true;
+                    break;
+            }
+            update(i, violated, cleared, time, value);
+        }
+        mHasLast = true;
+        mLastTime = time;
+        mLastValue = value;
+    }
+
+    /**
+     * Évaluation des règles d’absence de mesure, à appeler périodiquement.
+     * @param now date courante, en ms (même horloge que les mesures)
+     */
+    public synchronized void checkSilence(long now) {
+        if (!mHasLast) {
+            return;
+        }
+        for (int i = 0; i < mTypes.length; i++) {
+            if (mTypes[i] == TYPE_SILENCE) {
+                update(i, now - mLastTime > mLimits[i], false, now, mLastValue);
+            }
+        }
+    }
+
+    private void update(int rule, boolean violated, boolean cleared, long time, int value) {
+        if (mArmed[rule]) {
+            if (violated) {
+                mArmed[rule] = false;
+                final int slot = mEventCount % EVENT_CAPACITY;
+                mEventTimes[slot] = time;
+                mEventRules[slot] = rule;
+                mEventValues[slot] = value;
+                mEventCount++;
+                if (mListener != null) {
+                    mListener.onAlert(this, rule, value);
+                }
+            }
+        } else if (cleared) {
+            mArmed[rule] = true;
+        }
+    }
+
+    /**
+     * Présence d’une règle d’un type donné.
+     * @param type TYPE_*
+     * @return
+     */
+    public boolean hasType(int type) {
+        for (int t : mTypes) {
+            if (t == type) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Description d’origine des règles. */
+    public String getSpec() {
+        return mSpec;
+    }
+
+    public int getRuleCount() {
+        return mTypes.length;
+    }
+
+    public int getType(int rule) {
+        return mTypes[rule];
+    }
+
+    /** Texte de la règle, tel qu’écrit dans la description. */
+    public String getSource(int rule) {
+        return mSources[rule];
+    }
+
+    /** Nombre total de déclenchements depuis la compilation. */
+    public synchronized int getEventCount() {
+        return mEventCount;
+    }
+
+    /**
+     * Copie des derniers événements, du plus récent au plus ancien.
+     * @param times dates
+     * @param rules numéros des règles
+     * @param values valeurs en cause
+     * @return le nombre d’événements copiés
+     */
+    public synchronized int copyEvents(long[] times, int[] rules, int[] values) {
+        final int count = Math.min(Math.min(mEventCount, EVENT_CAPACITY),
+                Math.min(times.length, Math.min(rules.length, values.length)));
+        for (int i = 0; i < count; i++) {
+            final int slot = (mEventCount - 1 - i) % EVENT_CAPACITY;
+            times[i] = mEventTimes[slot];
+            rules[i] = mEventRules[slot];
+            values[i] = mEventValues[slot];
+        }
+        return count;
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2017 CentraleSupélec
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.centralesupelec.students.clientble.core;
+
+/**
+ * Index clairsemé d’une suite de blocs de mesures ({@link SampleBlock}) : la date de la
+ * première mesure de chaque bloc, par numéro de bloc.
+ *
+ * Les blocs étant remplis par dates croissantes, la recherche du premier bloc utile pour
+ * une date est une recherche dichotomique, sans lecture des blocs eux-mêmes.
+ */
+public final class BlockIndex {
+
+    private long[] mFirstTimes = new long[16];
+    private int mSize;
+
+    /** Nombre de blocs indexés. */
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * Date de la première mesure d’un bloc.
+     * @param block numéro du bloc
+     * @return
+     */
+    public long get(int block) {
+        if (block >= mSize) {
+            throw new IndexOutOfBoundsException("Bloc " + block + " / " + mSize);
+        }
+        return mFirstTimes[block];
+    }
+
+    /**
+     * Indexation d’un bloc, à la suite ou en remplacement.
+     * @param block numéro du bloc, au plus size()
+     * @param firstTime date de sa première mesure
+     */
+    public void set(int block, long firstTime) {
+        if (block > mSize) {
+            throw new IndexOutOfBoundsException("Bloc " + block + " / " + mSize);
+        }
+        if (block == mFirstTimes.length) {
+            final long[] grown = new long[2 * mFirstTimes.length];
+            System.arraycopy(mFirstTimes, 0, grown, 0, mSize);
+            mFirstTimes = grown;
+        }
+        mFirstTimes[block] = firstTime;
+        mSize = Math.max(mSize, block + 1);
+    }
+
+    /**
+     * Suppression des blocs à partir d’un numéro.
+     * @param size nouveau nombre de blocs
+     */
+    public void truncate(int size) {
+        mSize = Math.min(mSize, Math.max(0, size));
+    }
+
+    /**
+     * Suppression des premiers blocs : les suivants sont renumérotés à partir de 0.
+     * @param count nombre de blocs supprimés
+     */
+    public void drop(int count) {
+        count = Math.min(mSize, Math.max(0, count));
+        System.arraycopy(mFirstTimes, count, mFirstTimes, 0, mSize - count);
+        mSize -= count;
+    }
+
+    /**
+     * Premier bloc pouvant contenir des mesures datées de time ou après : celui qui précède
+     * le premier bloc commençant à time ou après (plusieurs blocs successifs peuvent
+     * commencer à la même date.)
+     * @param time date recherchée
+     * @return numéro du bloc, 0 si tous commencent à time ou après
+     */
+    public int floor(long time) {
+        int low = 0;
+        int high = mSize;
+        while (low < high) {
+            final int middle = (low + high) >>> 1;
+            if (mFirstTimes[middle] < time) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return Math.max(0, low - 1);
+    }
+}
@@ -0,0 +1,305 @@
+/*
+ * Copyright (C) 2017 CentraleSupélec
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.centralesupelec.students.clientble.core;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.UUID;
+
+/**
+ * Schéma des caractéristiques connues : pour chacune, son rôle, les opérations permises et la
+ * disposition de sa valeur. Une ligne par caractéristique, les lignes vides et celles
+ * commençant par « # » étant ignorées :
+ *
+ *   uuid rôle accès [layout=…] [offset=…] [scale=…] [unit=…] [name=…]
+ *
+ * - rôle : « sensor » (valeur numérique, publiée dans la chaîne des mesures) ou « text »
+ *   (texte éditable) ;
+ * - accès : « read », « write » et « notify », séparés par des virgules ;
+ * - layout : entier u8, s8, u16, s16, u32 ou s32 (non signé ou signé), suivi de « be »
+ *   (poids fort en premier) ou « le » pour plus d’un octet ; obligatoire pour « sensor » ;
+ * - offset : position du premier octet de l’entier (0 par défaut) ;
+ * - scale : facteur appliqué à l’entier (1 par défaut), unit : unité de la valeur obtenue ;
+ * - name : nom affiché, jusqu’à la fin de la ligne.
+ *
+ * Le décodeur de chaque caractéristique est construit une fois, au chargement.
+ */
+public final class CharacteristicSchema {
+
+    /** Valeur numérique d’un capteur. */
+    public static final int ROLE_SENSOR = 0;
+    /** Texte éditable. */
+    public static final int ROLE_TEXT = 1;
+
+    public static final int ACCESS_READ = 1;
+    public static final int ACCESS_WRITE = 2;
+    public static final int ACCESS_NOTIFY = 4;
+
+    /** Résultat du décodage d’une valeur trop courte. */
+    public static final long MISSING = Long.MIN_VALUE;
+
+    /**
+     * Lecture de l’entier d’une valeur brute.
+     */
+    public interface Decoder {
+        /**
+         * @param data valeur brute
+         * @param length nombre d’octets disponibles
+         * @return l’entier, ou MISSING si la valeur ne le contient pas
+         */
+        long decode(byte[] data, int length);
+    }
+
+    /**
+     * Description d’une caractéristique.
+     */
+    public static final class Entry {
+        public final UUID uuid;
+        public final int role;
+        public final int access;
+        /** Décodeur de l’entier, null pour un texte. */
+        public final Decoder decoder;
+        public final double scale;
+        public final String unit;
+        public final String name;
+
+        Entry(UUID uuid, int role, int access, Decoder decoder, double scale, String unit,
+              String name) {
+            this.uuid = uuid;
+            this.role = role;
+            this.access = access;
+            this.decoder = decoder;
+            this.scale = scale;
+            this.unit = unit;
+            this.name = name;
+        }
+
+        public boolean canNotify() {
+            return (access & ACCESS_NOTIFY) != 0;
+        }
+
+        /**
+         * Valeur d’un capteur, facteur appliqué.
+         * @param data valeur brute
+         * @return la valeur, NaN si elle n’est pas numérique ou trop courte
+         */
+        public double decodeScaled(byte[] data) {
+            if (decoder == null || data == null) {
+                return Double.NaN;
+            }
+            final long value = decoder.decode(data, data.length);
+            return value == MISSING ? Double.NaN : value * scale;
+        }
+    }
+
+    /**
+     * Entier de un à quatre octets, à position fixe. Si la valeur est plus courte que
+     * prévu, les octets disponibles sont lus comme un entier plus étroit (l’appareil peut
+     * envoyer un seul octet pour une petite valeur.)
+     */
+    private static final class IntegerDecoder implements Decoder {
+        private final int mOffset;
+        private final int mWidth;
+        private final boolean mSigned;
+        private final boolean mBigEndian;
+
+        IntegerDecoder(int offset, int width, boolean signed, boolean bigEndian) {
+            mOffset = offset;
+            mWidth = width;
+            mSigned = signed;
+            mBigEndian = bigEndian;
+        }
+
+        @Override
+        public long decode(byte[] data, int length) {
+            final int width = Math.min(mWidth, length - mOffset);
+            if (width <= 0) {
+                return MISSING;
+            }
+            long value = 0;
+            for (int i = 0; i < width; i++) {
+                final int b = data[mOffset + (mBigEndian ? i : width - 1 - i)] & 0xff;
+                value = value << 8 | b;
+            }
+            if (mSigned) {
+                final int shift = 64 - 8 * width;
+                value = value << shift >> shift;
+            }
+            return value;
+        }
+    }
+
+    private final HashMap<UUID, Entry> mEntries;
+
+    private CharacteristicSchema(HashMap<UUID, Entry> entries) {
+        mEntries = entries;
+    }
+
+    /** Schéma vide. */
+    public static CharacteristicSchema empty() {
+        return new CharacteristicSchema(new HashMap<UUID, Entry>());
+    }
+
+    /**
+     * @param uuid UUID de la caractéristique
+     * @return sa description, null si elle n’est pas dans le schéma
+     */
+    public Entry get(UUID uuid) {
+        return mEntries.get(uuid);
+    }
+
+    public Collection<Entry> getEntries() {
+        return Collections.unmodifiableCollection(mEntries.values());
+    }
+
+    /**
+     * Lecture d’un schéma (texte UTF-8.)
+     * @param in
+     * @return
+     * @throws IOException
+     * @throws IllegalArgumentException si le schéma est invalide
+     */
+    public static CharacteristicSchema read(InputStream in) throws IOException {
+        final BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+        final ArrayList<String> lines = new ArrayList<String>();
+        String line;
+        while ((line = reader.readLine()) != null) {
+            lines.add(line);
+        }
+        return parse(lines);
+    }
+
+    /**
+     * Analyse d’un schéma.
+     * @param spec texte du schéma, cf. description de la classe
+     * @return
+     * @throws IllegalArgumentException si le schéma est invalide
+     */
+    public static CharacteristicSchema parse(String spec) {
+        final ArrayList<String> lines = new ArrayList<String>();
+        Collections.addAll(lines, spec.split("\n"));
+        return parse(lines);
+    }
+
+    private static CharacteristicSchema parse(ArrayList<String> lines) {
+        final HashMap<UUID, Entry> entries = new HashMap<UUID, Entry>();
+        for (String line : lines) {
+            final String source = line.trim();
+            if (source.length() == 0 || source.startsWith("#")) {
+                continue;
+            }
+            final Entry entry = parseEntry(source);
+            if (entries.put(entry.uuid, entry) != null) {
+                throw new IllegalArgumentException("Caractéristique en double : " + source);
+            }
+        }
+        return new CharacteristicSchema(entries);
+    }
+
+    private static Entry parseEntry(String source) {
+        // Le nom, en fin de ligne, peut contenir des espaces.
+        final int nameStart = source.indexOf(" name=");
+        final String name = nameStart < 0 ? null : source.substring(nameStart + 6).trim();
+        final String[] words = (nameStart < 0 ? source : source.substring(0, nameStart))
+                .split("\\s+");
+        if (words.length < 3) {
+            throw new IllegalArgumentException("Description incomplète : " + source);
+        }
+        final UUID uuid;
+        try {
+            uuid = UUID.fromString(words[0]);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("UUID invalide : " + source);
+        }
+        final int role;
+        if ("sensor".equals(words[1])) {
+            role = ROLE_SENSOR;
+        } else if ("text".equals(words[1])) {
+            role = ROLE_TEXT;
+        } else {
+            throw new IllegalArgumentException("Rôle inconnu : " + source);
+        }
+        int access = 0;
+        for (String word : words[2].split(",")) {
+            if ("read".equals(word)) {
+                access |= ACCESS_READ;
+            } else if ("write".equals(word)) {
+                access |= ACCESS_WRITE;
+            } else if ("notify".equals(word)) {
+                access |= ACCESS_NOTIFY;
+            } else {
+                throw new IllegalArgumentException("Accès inconnu : " + source);
+            }
+        }
+        String layout = null;
+        int offset = 0;
+        double scale = 1;
+        String unit = "";
+        for (int i = 3; i < words.length; i++) {
+            final int separator = words[i].indexOf('=');
+            final String key = separator < 0 ? words[i] : words[i].substring(0, separator);
+            final String value = separator < 0 ? "" : words[i].substring(separator + 1);
+            try {
+                if ("layout".equals(key)) {
+                    layout = value;
+                } else if ("offset".equals(key)) {
+                    offset = Integer.parseInt(value);
+                } else if ("scale".equals(key)) {
+                    scale = Double.parseDouble(value);
+                } else if ("unit".equals(key)) {
+                    unit = value;
+                } else {
+                    throw new IllegalArgumentException("Attribut inconnu : " + source);
+                }
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Nombre invalide : " + source);
+            }
+        }
+        if (offset < 0) {
+            throw new IllegalArgumentException("Position négative : " + source);
+        }
+        final Decoder decoder = layout == null ? null : compile(layout, offset, source);
+        if (role == ROLE_SENSOR && decoder == null) {
+            throw new IllegalArgumentException("Disposition manquante : " + source);
+        }
+        return new Entry(uuid, role, access, decoder, scale, unit, name);
+    }
+
+    private static Decoder compile(String layout, int offset, String source) {
+        if (layout.length() < 2 || (layout.charAt(0) != 'u' && layout.charAt(0) != 's')) {
+            throw new IllegalArgumentException("Disposition invalide : " + source);
+        }
+        final boolean signed = layout.charAt(0) == 's';
+        int end = 1;
+        while (end < layout.length() && Character.isDigit(layout.charAt(end))) {
+            end++;
+        }
+        final String bits = layout.substring(1, end);
+        final String order = layout.substring(end);
+        final int width = "8".equals(bits) ? 1 : "16".equals(bits) ? 2 : "32".equals(bits) ? 4 : 0;
+        if (width == 0 || (width == 1 ? order.length() > 0
+                : !"be".equals(order) && !"le".equals(order))) {
+            throw new IllegalArgumentException("Disposition invalide : " + source);
+        }
+        return new IntegerDecoder(offset, width, signed, !"le".equals(order));
+    }
+}
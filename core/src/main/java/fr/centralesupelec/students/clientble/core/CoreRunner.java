@@ -0,0 +1,273 @@
+/*
+ * Copyright (C) 2017 CentraleSupélec
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.centralesupelec.students.clientble.core;
+
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Exécution du cœur sur la JVM, avec des appareils simulés, pour en mesurer le débit, la
+ * latence de traitement et l’activité du ramasse-miettes sans téléphone ni appareil BLE.
+ *
+ * Usage : CoreRunner [--devices N] [--rate HZ] [--seconds S] [--warmup S] [--loss P]
+ * [--serve PORT]
+ *
+ * Avec --serve, les mesures sont aussi diffusées par un {@link SampleServer} sur le port
+ * donné de toutes les interfaces, par exemple pour essayer un outil d’analyse en local.
+ *
+ * La latence mesurée va de la réception de la notification au dernier abonné de la chaîne
+ * des mesures : décodage, qualité de la liaison, statistiques et règles d’alerte. Le délai
+ * de première mesure va de la demande de connexion à la première mesure publiée.
+ */
+public final class CoreRunner {
+
+    /** Plus grande latence enregistrée individuellement, en µs ; au-delà, dernière case. */
+    private static final int MAX_LATENCY_MICROS = 100000;
+
+    private CoreRunner() {
+    }
+
+    /**
+     * Histogramme des latences, par pas de 1 µs, alimenté sans verrou par les threads des
+     * appareils simulés.
+     */
+    private static final class LatencyRecorder implements SamplePipeline.Listener {
+        final AtomicLongArray counts = new AtomicLongArray(MAX_LATENCY_MICROS + 1);
+        volatile boolean recording;
+
+        @Override
+        public void onSample(String address, int value, int source, long timestampNanos) {
+            if (recording) {
+                final long micros = (System.nanoTime() - timestampNanos) / 1000;
+                counts.incrementAndGet((int) Math.max(0, Math.min(MAX_LATENCY_MICROS, micros)));
+            }
+        }
+
+        long total() {
+            long total = 0;
+            for (int i = 0; i < counts.length(); i++) {
+                total += counts.get(i);
+            }
+            return total;
+        }
+
+        int percentile(double p) {
+            final long rank = (long) Math.ceil(p * total());
+            long seen = 0;
+            for (int i = 0; i < counts.length(); i++) {
+                seen += counts.get(i);
+                if (seen >= rank && seen > 0) {
+                    return i;
+                }
+            }
+            return 0;
+        }
+    }
+
+    /**
+     * Date de la première mesure de chaque appareil.
+     */
+    private static final class FirstSampleRecorder implements SamplePipeline.Listener {
+        final HashMap<String, Integer> indexes = new HashMap<String, Integer>();
+        final long[] requested;
+        final AtomicLongArray first;
+
+        FirstSampleRecorder(int devices) {
+            requested = new long[devices];
+            first = new AtomicLongArray(devices);
+        }
+
+        @Override
+        public void onSample(String address, int value, int source, long timestampNanos) {
+            final Integer index = indexes.get(address);
+            if (index != null) {
+                first.compareAndSet(index, 0, timestampNanos);
+            }
+        }
+
+        /** Délais de première mesure triés, en µs ; -1 pour un appareil resté muet. */
+        long[] delaysMicros() {
+            final long[] delays = new long[requested.length];
+            for (int i = 0; i < delays.length; i++) {
+                final long nanos = first.get(i);
+                delays[i] = nanos == 0 ? -1 : (nanos - requested[i]) / 1000;
+            }
+            Arrays.sort(delays);
+            return delays;
+        }
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        int devices = 4;
+        double rate = 1000;
+        double seconds = 10;
+        double warmup = 2;
+        double loss = 0;
+        int port = -1;
+        for (int i = 0; i < args.length; i++) {
+            final String arg = args[i];
+            if (i + 1 >= args.length) {
+                usage("Valeur manquante pour " + arg);
+            }
+            final String value = args[++i];
+            if ("--devices".equals(arg)) {
+                devices = Integer.parseInt(value);
+            } else if ("--rate".equals(arg)) {
+                rate = Double.parseDouble(value);
+            } else if ("--seconds".equals(arg)) {
+                seconds = Double.parseDouble(value);
+            } else if ("--warmup".equals(arg)) {
+                warmup = Double.parseDouble(value);
+            } else if ("--loss".equals(arg)) {
+                loss = Double.parseDouble(value);
+            } else if ("--serve".equals(arg)) {
+                port = Integer.parseInt(value);
+            } else {
+                usage("Option inconnue : " + arg);
+            }
+        }
+        if (devices < 1 || rate <= 0 || seconds <= 0 || loss < 0 || loss >= 1) {
+            usage("Valeurs invalides.");
+        }
+
+        final SamplePipeline pipeline = SamplePipeline.getInstance();
+        final SampleStatistics statistics = new SampleStatistics();
+        final LatencyRecorder latency = new LatencyRecorder();
+        final FirstSampleRecorder firstSample = new FirstSampleRecorder(devices);
+        pipeline.addListener(statistics);
+        pipeline.addListener(latency);
+        pipeline.addListener(firstSample);
+        SampleServer server = null;
+        if (port >= 0) {
+            server = new SampleServer(new InetSocketAddress(port), 256 * 1024, 20, 8192);
+            try {
+                server.start();
+            } catch (IOException e) {
+                usage("Ouverture du port " + port + " impossible : " + e.getMessage());
+            }
+            pipeline.addListener(server);
+            System.out.println("diffusion sur le port " + server.getPort());
+        }
+
+        // Un traitement par appareil, comme dans le service : chacun a ses règles d’alerte.
+        final SimulatedTransport[] transports = new SimulatedTransport[devices];
+        final SensorProtocol[] protocols = new SensorProtocol[devices];
+        for (int i = 0; i < devices; i++) {
+            transports[i] = new SimulatedTransport(String.format(Locale.ROOT,
+                    "00:00:00:00:%02X:%02X", i >> 8, i & 0xff), (long) (1e9 / rate), loss, i);
+            protocols[i] = new SensorProtocol(pipeline);
+            protocols[i].setAlertRules(AlertRules.compile("above 90 85; below 10 15; rate 50"));
+            transports[i].setCallback(protocols[i]);
+            firstSample.indexes.put(transports[i].getAddress(), i);
+        }
+        for (int i = 0; i < devices; i++) {
+            firstSample.requested[i] = System.nanoTime();
+            transports[i].connect();
+            transports[i].setNotification(PrivateProfile.SENSOR_CHARACTERISTIC_UUID, true);
+        }
+
+        Thread.sleep((long) (warmup * 1000));
+        for (int i = 0; i < devices; i++) {
+            protocols[i].getLinkQuality().reset(transports[i].getAddress());
+        }
+        final long gcCount = gcCount();
+        final long gcTime = gcTime();
+        final long start = System.nanoTime();
+        latency.recording = true;
+        Thread.sleep((long) (seconds * 1000));
+        latency.recording = false;
+        final double elapsed = (System.nanoTime() - start) / 1e9;
+        final long gcCountDelta = gcCount() - gcCount;
+        final long gcTimeDelta = gcTime() - gcTime;
+
+        final LinkQualityTracker.Quality quality = new LinkQualityTracker.Quality();
+        long received = 0;
+        long lost = 0;
+        for (int i = 0; i < devices; i++) {
+            if (protocols[i].getLinkQuality().copy(transports[i].getAddress(), quality)) {
+                received += quality.received;
+                lost += quality.lost;
+            }
+        }
+        for (SimulatedTransport transport : transports) {
+            transport.disconnect();
+        }
+        if (server != null) {
+            System.out.println(String.format(Locale.ROOT,
+                    "diffusion : %d clients connectés, %d déconnectés (trop lents), %d mesures"
+                            + " perdues", server.getClientCount(), server.getDroppedClients(),
+                    server.getDroppedSamples()));
+            server.stop();
+        }
+
+        final long samples = latency.total();
+        final long[] firstDelays = firstSample.delaysMicros();
+        // Délais triés, appareils muets (-1) en tête : médiane des seuls appareils ayant émis.
+        int silent = 0;
+        while (silent < devices && firstDelays[silent] < 0) {
+            silent++;
+        }
+        System.out.println(String.format(Locale.ROOT,
+                "%d appareils à %.0f Hz pendant %.1f s", devices, rate, elapsed));
+        System.out.println(String.format(Locale.ROOT,
+                "débit : %.0f mesures/s (attendu %.0f)", samples / elapsed, devices * rate));
+        System.out.println(String.format(Locale.ROOT,
+                "notifications : %d reçues, %d perdues (%.2f %%)", received, lost,
+                received + lost > 0 ? 100.0 * lost / (received + lost) : 0));
+        System.out.println(String.format(Locale.ROOT,
+                "latence (µs) : p50 %d, p99 %d, p99.9 %d, max %d", latency.percentile(0.5),
+                latency.percentile(0.99), latency.percentile(0.999), latency.percentile(1)));
+        if (silent < devices) {
+            System.out.println(String.format(Locale.ROOT,
+                    "première mesure (µs) : médiane %d, max %d, %d appareils muets",
+                    firstDelays[silent + (devices - silent) / 2], firstDelays[devices - 1],
+                    silent));
+        } else {
+            System.out.println("première mesure : aucun appareil n’a émis");
+        }
+        System.out.println(String.format(Locale.ROOT,
+                "ramasse-miettes : %d collectes, %d ms", gcCountDelta, gcTimeDelta));
+    }
+
+    private static long gcCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, bean.getCollectionCount());
+        }
+        return count;
+    }
+
+    private static long gcTime() {
+        long time = 0;
+        for (GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans()) {
+            time += Math.max(0, bean.getCollectionTime());
+        }
+        return time;
+    }
+
+    private static void usage(String message) {
+        System.err.println(message);
+        System.err.println("Usage : CoreRunner [--devices N] [--rate HZ] [--seconds S]"
+                + " [--warmup S] [--loss P] [--serve PORT]");
+        System.exit(2);
+    }
+}
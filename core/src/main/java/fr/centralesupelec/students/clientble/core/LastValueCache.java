@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2017 CentraleSupélec
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.centralesupelec.students.clientble.core;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Dernière valeur reçue de chaque caractéristique de chaque appareil, avec sa date de
+ * réception et son origine (lecture ou notification).
+ *
+ * Permet d’afficher immédiatement une valeur connue, et de répondre à une lecture sans
+ * passer par la liaison radio tant que la valeur est assez récente. L’enregistrement d’une
+ * valeur de même longueur que la précédente ne fait pas d’allocation. Synchronisé.
+ */
+public final class LastValueCache {
+
+    /**
+     * Valeur d’une caractéristique.
+     */
+    public static final class Entry {
+        public final String address;
+        public final UUID characteristic;
+        public byte[] value;
+        /** Date de réception, en ns (horloge monotone). */
+        public long timestampNanos;
+        /** Origine de la valeur (SamplePipeline.SOURCE_*). */
+        public int source;
+
+        Entry(String address, UUID characteristic) {
+            this.address = address;
+            this.characteristic = characteristic;
+        }
+
+        /**
+         * Âge de la valeur.
+         * @param nowNanos date courante, en ns (même horloge que timestampNanos)
+         * @return âge en ms
+         */
+        public long getAgeMillis(long nowNanos) {
+            return (nowNanos - timestampNanos) / 1000000;
+        }
+
+        private Entry copy() {
+            final Entry copy = new Entry(address, characteristic);
+            copy.value = value.clone();
+            copy.timestampNanos = timestampNanos;
+            copy.source = source;
+            return copy;
+        }
+    }
+
+    private final HashMap<String, HashMap<UUID, Entry>> mEntries =
+            new HashMap<String, HashMap<UUID, Entry>>();
+
+    /**
+     * Enregistrement d’une valeur reçue.
+     * @param address adresse de l’appareil
+     * @param characteristic UUID de la caractéristique
+     * @param value valeur brute, recopiée
+     * @param source origine (SamplePipeline.SOURCE_*)
+     * @param timestampNanos date de réception, en ns (horloge monotone)
+     */
+    public synchronized void put(String address, UUID characteristic, byte[] value, int source,
+                                 long timestampNanos) {
+        HashMap<UUID, Entry> device = mEntries.get(address);
+        if (device == null) {
+            device = new HashMap<UUID, Entry>();
+            mEntries.put(address, device);
+        }
+        Entry entry = device.get(characteristic);
+        if (entry == null) {
+            entry = new Entry(address, characteristic);
+            device.put(characteristic, entry);
+        }
+        if (entry.value == null || entry.value.length != value.length) {
+            entry.value = new byte[value.length];
+        }
+        System.arraycopy(value, 0, entry.value, 0, value.length);
+        entry.source = source;
+        entry.timestampNanos = timestampNanos;
+    }
+
+    /**
+     * Dernière valeur d’une caractéristique.
+     * @param address adresse de l’appareil
+     * @param characteristic UUID de la caractéristique
+     * @return copie de la valeur, null si aucune n’a été reçue
+     */
+    public synchronized Entry get(String address, UUID characteristic) {
+        final HashMap<UUID, Entry> device = mEntries.get(address);
+        final Entry entry = device == null ? null : device.get(characteristic);
+        return entry == null ? null : entry.copy();
+    }
+
+    /**
+     * Dernière valeur d’une caractéristique, si elle est assez récente.
+     * @param address adresse de l’appareil
+     * @param characteristic UUID de la caractéristique
+     * @param maxAgeMillis âge maximal accepté, en ms
+     * @param nowNanos date courante, en ns (même horloge que les dates de réception)
+     * @return copie de la valeur, null si aucune ou si elle est trop ancienne
+     */
+    public synchronized Entry getFresh(String address, UUID characteristic, long maxAgeMillis,
+                                       long nowNanos) {
+        final HashMap<UUID, Entry> device = mEntries.get(address);
+        final Entry entry = device == null ? null : device.get(characteristic);
+        if (entry == null || entry.getAgeMillis(nowNanos) > maxAgeMillis) {
+            return null;
+        }
+        return entry.copy();
+    }
+
+    /**
+     * Dernières valeurs de toutes les caractéristiques d’un appareil.
+     * @param address adresse de l’appareil
+     * @return copies des valeurs, vide si aucune n’a été reçue
+     */
+    public synchronized List<Entry> getAll(String address) {
+        final ArrayList<Entry> entries = new ArrayList<Entry>();
+        final HashMap<UUID, Entry> device = mEntries.get(address);
+        if (device != null) {
+            for (Entry entry : device.values()) {
+                entries.add(entry.copy());
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Oubli des valeurs d’un appareil.
+     * @param address adresse de l’appareil
+     */
+    public synchronized void remove(String address) {
+        mEntries.remove(address);
+    }
+}
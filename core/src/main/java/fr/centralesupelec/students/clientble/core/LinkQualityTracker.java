@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2017 CentraleSupélec
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.centralesupelec.students.clientble.core;
+
+import java.util.HashMap;
+
+/**
+ * Qualité de la liaison avec chaque appareil, d’après les notifications reçues : pertes,
+ * doublons et gigue.
+ *
+ * Si l’appareil ajoute un compteur de séquence (un octet, incrémenté à chaque notification),
+ * les écarts de ce compteur révèlent les notifications perdues (saut de plus d’un), en double
+ * (compteur inchangé) ou arrivées dans le désordre (recul.) Sans compteur, seules la période
+ * moyenne et la gigue sont mesurées.
+ *
+ * La gigue est l’écart moyen entre l’intervalle d’arrivée et sa moyenne, lissée comme dans
+ * RTP (RFC 3550) : J += (|D - moyenne| - J) / 16. Les dates sont celles de l’entrée dans le
+ * callback ({@code SystemClock.elapsedRealtimeNanos()}.)
+ */
+public class LinkQualityTracker {
+
+    /** Absence de compteur de séquence. */
+    public static final int NO_SEQUENCE = -1;
+
+    // Au-delà de ce saut, le compteur (8 bits) est considéré comme ayant reculé.
+    private static final int MAX_FORWARD_GAP = 128;
+
+    /**
+     * Qualité de la liaison avec un appareil (copie.)
+     */
+    public static final class Quality {
+        /** Notifications reçues. */
+        public long received;
+        /** Notifications perdues (sauts du compteur de séquence.) */
+        public long lost;
+        /** Notifications reçues en double. */
+        public long duplicates;
+        /** Notifications arrivées dans le désordre (non comptées comme perdues.) */
+        public long reordered;
+        /** Nombre de notifications portant un compteur de séquence. */
+        public long sequenced;
+        /** Intervalle moyen entre deux notifications, en ns (lissé.) */
+        public double meanIntervalNanos;
+        /** Gigue, en ns. */
+        public double jitterNanos;
+
+        /**
+         * Taux de perte, parmi les notifications attendues d’après le compteur de séquence.
+         * @return taux entre 0 et 1, ou 0 sans compteur
+         */
+        public double getLossRate() {
+            final long expected = sequenced - duplicates + lost;
+            return expected <= 0 ? 0 : (double) lost / expected;
+        }
+
+        void copyFrom(Quality other) {
+            received = other.received;
+            lost = other.lost;
+            duplicates = other.duplicates;
+            reordered = other.reordered;
+            sequenced = other.sequenced;
+            meanIntervalNanos = other.meanIntervalNanos;
+            jitterNanos = other.jitterNanos;
+        }
+    }
+
+    /**
+     * État d’un appareil.
+     */
+    private static final class Link {
+        final Quality quality = new Quality();
+        long lastNanos;
+        int lastSequence = NO_SEQUENCE;
+    }
+
+    private final HashMap<String, Link> mLinks = new HashMap<String, Link>();
+
+    /**
+     * Prise en compte d’une notification.
+     * @param address adresse de l’appareil
+     * @param timestampNanos date de réception (horloge monotone), en ns
+     * @param sequence compteur de séquence (0 à 255), ou NO_SEQUENCE
+     */
+    public synchronized void onNotification(String address, long timestampNanos, int sequence) {
+        Link link = mLinks.get(address);
+        if (link == null) {
+            link = new Link();
+            mLinks.put(address, link);
+        }
+        final Quality quality = link.quality;
+        if (quality.received > 0) {
+            final long interval = timestampNanos - link.lastNanos;
+            if (quality.received == 1) {
+                quality.meanIntervalNanos = interval;
+            } else {
+                quality.jitterNanos +=
+                        (Math.abs(interval - quality.meanIntervalNanos) - quality.jitterNanos) / 16;
+                quality.meanIntervalNanos += (interval - quality.meanIntervalNanos) / 16;
+            }
+        }
+        quality.received++;
+        link.lastNanos = timestampNanos;
+
+        if (sequence == NO_SEQUENCE) {
+            return;
+        }
+        quality.sequenced++;
+        if (link.lastSequence != NO_SEQUENCE) {
+            final int gap = (sequence - link.lastSequence) & 0xff;
+            if (gap == 0) {
+                quality.duplicates++;
+                return;
+            }
+            if (gap >= MAX_FORWARD_GAP) {
+                // Notification en retard : elle avait été comptée comme perdue.
+                quality.reordered++;
+                if (quality.lost > 0) {
+                    quality.lost--;
+                }
+                return;
+            }
+            quality.lost += gap - 1;
+        }
+        link.lastSequence = sequence;
+    }
+
+    /**
+     * Copie de la qualité de la liaison avec un appareil.
+     * @param address adresse de l’appareil
+     * @param into qualité à remplir
+     * @return false si aucune notification n’a été reçue de cet appareil
+     */
+    public synchronized boolean copy(String address, Quality into) {
+        final Link link = mLinks.get(address);
+        if (link == null) {
+            into.copyFrom(new Quality());
+            return false;
+        }
+        into.copyFrom(link.quality);
+        return true;
+    }
+
+    /**
+     * Oubli de l’historique d’un appareil, par exemple à une nouvelle connexion (le compteur
+     * de séquence repart alors de zéro.)
+     * @param address adresse de l’appareil
+     */
+    public synchronized void reset(String address) {
+        mLinks.remove(address);
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2017 CentraleSupélec
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.centralesupelec.students.clientble.core;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Locale;
+
+/**
+ * Anneau des derniers messages de journalisation, sous forme binaire : date, niveau, thread,
+ * étiquette et message enregistrés à l’avance, et deux arguments entiers. Le texte n’est
+ * produit qu’à la lecture ({@link #dump(Writer)}), en remplaçant chaque « {} » du message
+ * par l’argument suivant.
+ *
+ * Capacité fixe : les messages les plus anciens sont remplacés. L’enregistrement d’un
+ * message ne fait aucune allocation.
+ */
+public final class LogRing {
+
+    /** Niveaux, mêmes valeurs que android.util.Log. */
+    public static final int VERBOSE = 2;
+    public static final int DEBUG = 3;
+    public static final int INFO = 4;
+    public static final int WARN = 5;
+    public static final int ERROR = 6;
+
+    private static final String LEVELS = "??VDIWE";
+
+    private final int mCapacity;
+    private final long[] mTimes;
+    private final long[] mThreads;
+    private final long[] mFirstArguments;
+    private final long[] mSecondArguments;
+    private final int[] mTags;
+    private final int[] mMessages;
+    private final byte[] mLevels;
+    private long mCount;
+
+    private final ArrayList<String> mStrings = new ArrayList<String>();
+
+    // Correspondance entre l’horloge monotone des messages et l’horloge murale.
+    private final long mOriginWallMillis = System.currentTimeMillis();
+    private final long mOriginNanos = System.nanoTime();
+
+    /**
+     * @param capacity nombre de messages gardés
+     */
+    public LogRing(int capacity) {
+        mCapacity = capacity;
+        mTimes = new long[capacity];
+        mThreads = new long[capacity];
+        mFirstArguments = new long[capacity];
+        mSecondArguments = new long[capacity];
+        mTags = new int[capacity];
+        mMessages = new int[capacity];
+        mLevels = new byte[capacity];
+    }
+
+    /**
+     * Enregistrement d’une étiquette ou d’un message (texte dont chaque « {} » sera remplacé
+     * par un argument).
+     * @param text
+     * @return identifiant du texte, le même pour un texte déjà enregistré
+     */
+    public synchronized int register(String text) {
+        final int existing = mStrings.indexOf(text);
+        if (existing >= 0) {
+            return existing;
+        }
+        mStrings.add(text);
+        return mStrings.size() - 1;
+    }
+
+    /**
+     * @param id identifiant d’un texte enregistré
+     * @return le texte
+     */
+    public synchronized String getString(int id) {
+        return mStrings.get(id);
+    }
+
+    /**
+     * Ajout d’un message, sans allocation.
+     * @param level niveau (VERBOSE à ERROR)
+     * @param tag identifiant de l’étiquette
+     * @param message identifiant du message
+     * @param first premier argument
+     * @param second second argument
+     */
+    public void add(int level, int tag, int message, long first, long second) {
+        final long now = System.nanoTime();
+        final long thread = Thread.currentThread().getId();
+        synchronized (this) {
+            final int slot = (int) (mCount % mCapacity);
+            mTimes[slot] = now;
+            mThreads[slot] = thread;
+            mFirstArguments[slot] = first;
+            mSecondArguments[slot] = second;
+            mTags[slot] = tag;
+            mMessages[slot] = message;
+            mLevels[slot] = (byte) level;
+            mCount++;
+        }
+    }
+
+    /** Nombre de messages gardés. */
+    public synchronized int size() {
+        return (int) Math.min(mCount, mCapacity);
+    }
+
+    /**
+     * Texte d’un message : chaque « {} » est remplacé par l’argument suivant.
+     * @param message texte du message
+     * @param first
+     * @param second
+     * @return
+     */
+    public static String render(String message, long first, long second) {
+        final StringBuilder text = new StringBuilder(message.length() + 16);
+        int argument = 0;
+        int start = 0;
+        int placeholder;
+        while ((placeholder = message.indexOf("{}", start)) >= 0) {
+            text.append(message, start, placeholder);
+            text.append(argument == 0 ? first : second);
+            argument++;
+            start = placeholder + 2;
+        }
+        return text.append(message, start, message.length()).toString();
+    }
+
+    /**
+     * Écriture des messages gardés, du plus ancien au plus récent, une ligne chacun : date,
+     * thread, niveau, étiquette et texte.
+     * @param out destination
+     * @throws IOException
+     */
+    public void dump(Writer out) throws IOException {
+        final int size;
+        final long first;
+        final long[] times;
+        final long[] threads;
+        final long[] firstArguments;
+        final long[] secondArguments;
+        final int[] tags;
+        final int[] messages;
+        final byte[] levels;
+        final String[] strings;
+        synchronized (this) {
+            size = size();
+            first = mCount - size;
+            times = mTimes.clone();
+            threads = mThreads.clone();
+            firstArguments = mFirstArguments.clone();
+            secondArguments = mSecondArguments.clone();
+            tags = mTags.clone();
+            messages = mMessages.clone();
+            levels = mLevels.clone();
+            strings = mStrings.toArray(new String[mStrings.size()]);
+        }
+        final SimpleDateFormat format = new SimpleDateFormat("MM-dd HH:mm:ss.SSS", Locale.US);
+        for (long n = first; n < first + size; n++) {
+            final int slot = (int) (n % mCapacity);
+            final long wall = mOriginWallMillis + (times[slot] - mOriginNanos) / 1000000;
+            final int level = levels[slot];
+            out.write(format.format(new Date(wall)) + " " + threads[slot] + " "
+                    + LEVELS.charAt(level >= 0 && level < LEVELS.length() ? level : 0) + " "
+                    + strings[tags[slot]] + ": " + render(strings[messages[slot]],
+                    firstArguments[slot], secondArguments[slot]) + "\n");
+        }
+        out.flush();
+    }
+}
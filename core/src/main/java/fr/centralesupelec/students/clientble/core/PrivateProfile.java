@@ -0,0 +1,46 @@
+/*
+ * Copyright (C) 2017 CentraleSupélec
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.centralesupelec.students.clientble.core;
+
+import java.util.UUID;
+
+/**
+ * Identifiants de notre profil GATT privé, indépendants d’Android.
+ */
+public final class PrivateProfile {
+
+    // UUID de notre service privé
+    // Version 4 (random) UUID — https://www.uuidgenerator.net/
+    public static final UUID SERVICE_UUID =
+            UUID.fromString("622df401-85ed-4666-a4fe-9efaa3ab47aa");
+
+    // Caractéristique lisible et notifiable : valeur du potentiomètre (deux octets), suivie
+    // éventuellement d’un compteur de séquence (un octet.)
+    public static final UUID SENSOR_CHARACTERISTIC_UUID =
+            UUID.fromString("7817a8eb-f6cb-4be3-8143-52086719754d");
+
+    // Caractéristique lisible, éditable et notifiable, de vingt octets.
+    public static final UUID WRITABLE_CHARACTERISTIC_UUID =
+            UUID.fromString("c093685d-005f-4d3c-8240-6d3020a2c608");
+    public static final int WRITABLE_CHARACTERISTIC_MAX_LENGTH = 20;
+
+    // Descripteur de configuration client (activation des notifications.)
+    public static final UUID CHARACTERISTIC_CONFIG_UUID =
+            UUID.fromString("00002902-0000-1000-8000-00805f9b34fb");
+
+    private PrivateProfile() {
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2017 CentraleSupélec
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.centralesupelec.students.clientble.core;
+
+/**
+ * Protocole de commandes tramées envoyées à l’appareil par la caractéristique longue éditable.
+ *
+ * Trame : [0xA5][opération][longueur][charge utile…][somme de contrôle], la somme de contrôle
+ * étant le OU exclusif de l’opération, de la longueur et de la charge utile. L’octet de début
+ * 0xA5, hors de l’ASCII, distingue les commandes du texte saisi par l’utilisateur. Une trame
+ * tient dans la caractéristique (20 octets) : au plus 16 octets de charge utile.
+ *
+ * L’appareil confirme une commande en laissant dans la caractéristique soit la trame reçue,
+ * soit une trame d’acquittement (opération | 0x80) de même charge utile.
+ */
+public final class RateCommand {
+
+    public static final int START = 0xA5;
+    /** Réglage de la période d’échantillonnage : charge utile u16 gros-boutiste, en ms. */
+    public static final int OP_SET_INTERVAL = 0x01;
+    /** Bit des trames d’acquittement. */
+    public static final int ACK = 0x80;
+
+    public static final int MAX_PAYLOAD = PrivateProfile.WRITABLE_CHARACTERISTIC_MAX_LENGTH - 4;
+
+    private RateCommand() {
+    }
+
+    /**
+     * Construction d’une trame.
+     * @param op opération
+     * @param payload charge utile
+     * @return
+     */
+    public static byte[] frame(int op, byte[] payload) {
+        if (payload.length > MAX_PAYLOAD) {
+            throw new IllegalArgumentException("Charge utile trop longue : " + payload.length);
+        }
+        final byte[] frame = new byte[payload.length + 4];
+        frame[0] = (byte) START;
+        frame[1] = (byte) op;
+        frame[2] = (byte) payload.length;
+        System.arraycopy(payload, 0, frame, 3, payload.length);
+        frame[frame.length - 1] = checksum(frame, 1, payload.length + 2);
+        return frame;
+    }
+
+    /**
+     * Trame de réglage de la période d’échantillonnage.
+     * @param intervalMillis période, en ms (1 à 65535)
+     * @return
+     */
+    public static byte[] setInterval(int intervalMillis) {
+        final int interval = Math.max(1, Math.min(0xffff, intervalMillis));
+        return frame(OP_SET_INTERVAL, new byte[]{(byte) (interval >>> 8), (byte) interval});
+    }
+
+    /**
+     * Vérifie que la valeur relue confirme la trame envoyée : trame identique ou acquittement
+     * de même charge utile. Les octets suivant la trame (remplissage) sont ignorés.
+     * @param sent trame envoyée
+     * @param readBack valeur relue
+     * @return
+     */
+    public static boolean confirms(byte[] sent, byte[] readBack) {
+        if (readBack == null || readBack.length < sent.length || !isValid(readBack)) {
+            return false;
+        }
+        if ((readBack[1] & 0xff) != (sent[1] & 0xff)
+                && (readBack[1] & 0xff) != ((sent[1] & 0xff) | ACK)) {
+            return false;
+        }
+        for (int i = 2; i < sent.length - 1; i++) {
+            if (readBack[i] != sent[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Vérification de l’octet de début, de la longueur et de la somme de contrôle.
+     * @param data
+     * @return
+     */
+    public static boolean isValid(byte[] data) {
+        if (data == null || data.length < 4 || (data[0] & 0xff) != START) {
+            return false;
+        }
+        final int length = data[2] & 0xff;
+        return length <= MAX_PAYLOAD && data.length >= length + 4
+                && data[length + 3] == checksum(data, 1, length + 2);
+    }
+
+    /**
+     * Période lue dans une trame de réglage ou son acquittement.
+     * @param data
+     * @return la période en ms, ou -1 si la trame n’en est pas une
+     */
+    public static int parseInterval(byte[] data) {
+        if (!isValid(data) || (data[1] & 0x7f) != OP_SET_INTERVAL || data[2] != 2) {
+            return -1;
+        }
+        return ((data[3] & 0xff) << 8) | (data[4] & 0xff);
+    }
+
+    private static byte checksum(byte[] data, int offset, int length) {
+        int sum = 0;
+        for (int i = offset; i < offset + length; i++) {
+            sum ^= data[i];
+        }
+        return (byte) sum;
+    }
+}
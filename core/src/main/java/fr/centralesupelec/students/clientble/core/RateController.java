@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2017 CentraleSupélec
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.centralesupelec.students.clientble.core;
+
+/**
+ * Calcul de la période d’échantillonnage nécessaire à l’appareil, selon les besoins des
+ * consommateurs actifs de ses mesures.
+ *
+ * Chaque consommateur déclare la période dont il a besoin (0 s’il est inactif) ; la période
+ * demandée à l’appareil est la plus courte d’entre elles, ou IDLE_INTERVAL si aucun
+ * consommateur n’est actif. La dernière période confirmée par l’appareil est mémorisée pour
+ * n’envoyer une commande que si elle diffère.
+ */
+public final class RateController {
+
+    /** Graphique ou valeur affichés à l’écran. */
+    public static final int CONSUMER_DISPLAY = 0;
+    /** Enregistrement de l’historique en arrière-plan. */
+    public static final int CONSUMER_LOGGING = 1;
+    /** Règles d’alerte. */
+    public static final int CONSUMER_ALERTS = 2;
+    private static final int CONSUMER_COUNT = 3;
+
+    /** Périodes usuelles (ms.) */
+    public static final int DISPLAY_INTERVAL = 50;
+    public static final int LOGGING_INTERVAL = 1000;
+    public static final int ALERTS_INTERVAL = 200;
+    /** Période demandée quand aucun consommateur n’est actif (ms.) */
+    public static final int IDLE_INTERVAL = 10000;
+    /** Période minimale acceptée (ms.) */
+    public static final int MIN_INTERVAL = 10;
+
+    private final int[] mDemands = new int[CONSUMER_COUNT];
+    private int mConfirmed = -1;
+
+    /**
+     * Déclaration du besoin d’un consommateur.
+     * @param consumer CONSUMER_*
+     * @param intervalMillis période nécessaire, en ms, ou 0 si le consommateur est inactif
+     * @return true si la période nécessaire diffère de la dernière période confirmée
+     */
+    public synchronized boolean setDemand(int consumer, int intervalMillis) {
+        mDemands[consumer] = intervalMillis <= 0 ? 0 : Math.max(MIN_INTERVAL, intervalMillis);
+        return getRequiredInterval() != mConfirmed;
+    }
+
+    /**
+     * Présence d’au moins un consommateur actif : les mesures doivent alors être reçues.
+     * @return
+     */
+    public synchronized boolean hasDemand() {
+        for (int demand : mDemands) {
+            if (demand > 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Période nécessaire : la plus courte des périodes demandées.
+     * @return période en ms
+     */
+    public synchronized int getRequiredInterval() {
+        int required = 0;
+        for (int demand : mDemands) {
+            if (demand > 0 && (required == 0 || demand < required)) {
+                required = demand;
+            }
+        }
+        return required == 0 ? IDLE_INTERVAL : required;
+    }
+
+    /**
+     * Mémorisation de la période confirmée par l’appareil.
+     * @param intervalMillis période en ms, ou -1 si inconnue (nouvelle connexion)
+     */
+    public synchronized void setConfirmed(int intervalMillis) {
+        mConfirmed = intervalMillis;
+    }
+
+    /**
+     * Dernière période confirmée par l’appareil.
+     * @return période en ms, ou -1 si inconnue
+     */
+    public synchronized int getConfirmed() {
+        return mConfirmed;
+    }
+}
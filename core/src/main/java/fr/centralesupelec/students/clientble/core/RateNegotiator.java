@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2017 CentraleSupélec
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.centralesupelec.students.clientble.core;
+
+/**
+ * Négociation de la période d’échantillonnage avec l’appareil : une commande
+ * ({@link RateCommand}) est écrite dans la caractéristique longue puis relue ; la période
+ * n’est tenue pour confirmée qu’après une relecture identique ou un acquittement.
+ *
+ * Une seule commande est en attente à la fois. Une relecture qui ne confirme pas la commande
+ * (appareil qui garde sa période, lecture échouée) donne lieu à un nouvel envoi, au plus
+ * MAX_ATTEMPTS fois pour une même période ; un nouveau besoin relance les essais.
+ */
+public final class RateNegotiator {
+
+    /** Nombre maximal d’envois pour une même période. */
+    public static final int MAX_ATTEMPTS = 3;
+
+    private final RateController mController;
+    private byte[] mPending;
+    private int mAttemptInterval = -1;
+    private int mAttempts;
+
+    /**
+     * @param controller besoins des consommateurs et période confirmée
+     */
+    public RateNegotiator(RateController controller) {
+        mController = controller;
+    }
+
+    /**
+     * Commande à envoyer pour atteindre la période nécessaire, marquée en attente de
+     * confirmation.
+     * @return la trame à écrire puis relire, ou null si une commande est déjà en attente, si
+     * la période nécessaire est confirmée ou si les essais sont épuisés
+     */
+    public synchronized byte[] nextCommand() {
+        if (mPending != null) {
+            // Commande déjà en cours : la confirmation relancera l’envoi si besoin.
+            return null;
+        }
+        final int interval = mController.getRequiredInterval();
+        if (interval == mController.getConfirmed()) {
+            return null;
+        }
+        if (interval != mAttemptInterval) {
+            mAttemptInterval = interval;
+            mAttempts = 0;
+        }
+        if (mAttempts >= MAX_ATTEMPTS) {
+            return null;
+        }
+        mAttempts++;
+        mPending = RateCommand.setInterval(interval);
+        return mPending.clone();
+    }
+
+    /**
+     * Vérification de la relecture de la commande en attente, qui n’est plus en attente
+     * ensuite ; appeler {@link #nextCommand()} pour un éventuel nouvel envoi.
+     * @param readBack valeur relue, ou null si la lecture a échoué (ou la commande refusée)
+     * @return true si la période est confirmée
+     */
+    public synchronized boolean confirm(byte[] readBack) {
+        final byte[] frame = mPending;
+        if (frame == null) {
+            return false;
+        }
+        mPending = null;
+        if (!RateCommand.confirms(frame, readBack)) {
+            return false;
+        }
+        mController.setConfirmed(RateCommand.parseInterval(frame));
+        return true;
+    }
+
+    /** Présence d’une commande en attente de relecture. */
+    public synchronized boolean isPending() {
+        return mPending != null;
+    }
+
+    /**
+     * Abandon : la période nécessaire n’est pas confirmée après MAX_ATTEMPTS envois.
+     * @return
+     */
+    public synchronized boolean hasGivenUp() {
+        return mPending == null && mAttempts >= MAX_ATTEMPTS
+                && mAttemptInterval == mController.getRequiredInterval()
+                && mAttemptInterval != mController.getConfirmed();
+    }
+
+    /**
+     * Oubli de la période confirmée et des essais en cours (nouvelle connexion.)
+     */
+    public synchronized void reset() {
+        mController.setConfirmed(-1);
+        mPending = null;
+        mAttemptInterval = -1;
+        mAttempts = 0;
+    }
+}
@@ -0,0 +1,210 @@
+/*
+ * Copyright (C) 2017 CentraleSupélec
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.centralesupelec.students.clientble.core;
+
+/**
+ * Agrégation d’une suite de mesures horodatées en intervalles de durée fixe (« seaux ») :
+ * minimum, maximum, somme et nombre de mesures de chaque intervalle.
+ *
+ * Les mesures sont ajoutées par dates croissantes ; un seau est fermé à la première mesure
+ * d’un intervalle suivant et codé dans une zone d’attente, à vider par le propriétaire (par
+ * exemple pour écriture dans un fichier). Le seau en cours reste consultable.
+ *
+ * Enregistrement d’un seau (RECORD_SIZE octets, gros-boutiste) : début de l’intervalle
+ * (i64, ms), somme des valeurs (i64), nombre de mesures (i32), minimum (u16), maximum (u16).
+ *
+ * Ajout d’une mesure en temps constant, sans allocation hors agrandissement de la zone
+ * d’attente. Non synchronisée.
+ */
+public final class RollupTier {
+
+    /** Taille d’un seau codé, en octets. */
+    public static final int RECORD_SIZE = 24;
+
+    private final long mWidth;
+
+    // Seau en cours.
+    private long mStart;
+    private long mSum;
+    private int mCount;
+    private int mMin;
+    private int mMax;
+
+    // Seaux fermés, codés, en attente.
+    private byte[] mClosed = new byte[16 * RECORD_SIZE];
+    private int mClosedCount;
+
+    /**
+     * @param width durée d’un intervalle, en ms
+     */
+    public RollupTier(long width) {
+        if (width <= 0) {
+            throw new IllegalArgumentException("Durée d’intervalle invalide : " + width);
+        }
+        mWidth = width;
+    }
+
+    /** Durée d’un intervalle, en ms. */
+    public long getWidth() {
+        return mWidth;
+    }
+
+    /**
+     * Début de l’intervalle contenant une date.
+     * @param time date, en ms
+     * @return
+     */
+    public long bucketStart(long time) {
+        final long remainder = time % mWidth;
+        return remainder < 0 ? time - remainder - mWidth : time - remainder;
+    }
+
+    /**
+     * Prise en compte d’une mesure. Une date antérieure au seau en cours (horloge reculée)
+     * est comptée dans ce seau.
+     * @param time date, en ms
+     * @param value valeur (16 bits non signés)
+     */
+    public void add(long time, int value) {
+        value &= 0xffff;
+        final long start = bucketStart(time);
+        if (mCount > 0 && start > mStart) {
+            close();
+        }
+        if (mCount == 0) {
+            mStart = start;
+            mSum = 0;
+            mMin = value;
+            mMax = value;
+        } else if (value < mMin) {
+            mMin = value;
+        } else if (value > mMax) {
+            mMax = value;
+        }
+        mSum += value;
+        mCount++;
+    }
+
+    /**
+     * Fermeture du seau en cours, s’il n’est pas vide : il passe dans la zone d’attente.
+     */
+    public void close() {
+        if (mCount == 0) {
+            return;
+        }
+        if ((mClosedCount + 1) * RECORD_SIZE > mClosed.length) {
+            final byte[] grown = new byte[2 * mClosed.length];
+            System.arraycopy(mClosed, 0, grown, 0, mClosedCount * RECORD_SIZE);
+            mClosed = grown;
+        }
+        writeOpen(mClosed, mClosedCount * RECORD_SIZE);
+        mClosedCount++;
+        mCount = 0;
+    }
+
+    /** Présence d’un seau en cours, non vide. */
+    public boolean hasOpen() {
+        return mCount > 0;
+    }
+
+    /**
+     * Début de l’intervalle du seau en cours.
+     * @return Long.MAX_VALUE s’il n’y a pas de seau en cours
+     */
+    public long getOpenStart() {
+        return mCount > 0 ? mStart : Long.MAX_VALUE;
+    }
+
+    /**
+     * Codage du seau en cours.
+     * @param out tableau destination
+     * @param offset position de l’enregistrement dans le tableau
+     */
+    public void writeOpen(byte[] out, int offset) {
+        writeLong(out, offset, mStart);
+        writeLong(out, offset + 8, mSum);
+        out[offset + 16] = (byte) (mCount >>> 24);
+        out[offset + 17] = (byte) (mCount >>> 16);
+        out[offset + 18] = (byte) (mCount >>> 8);
+        out[offset + 19] = (byte) mCount;
+        out[offset + 20] = (byte) (mMin >>> 8);
+        out[offset + 21] = (byte) mMin;
+        out[offset + 22] = (byte) (mMax >>> 8);
+        out[offset + 23] = (byte) mMax;
+    }
+
+    /** Nombre de seaux fermés en attente. */
+    public int getClosedCount() {
+        return mClosedCount;
+    }
+
+    /**
+     * Seaux fermés en attente, codés à la suite : seuls les getClosedCount() premiers
+     * enregistrements sont valides.
+     * @return tableau interne, non recopié
+     */
+    public byte[] getClosed() {
+        return mClosed;
+    }
+
+    /**
+     * Vidage de la zone d’attente, une fois les seaux fermés enregistrés.
+     */
+    public void clearClosed() {
+        mClosedCount = 0;
+    }
+
+    /** Début de l’intervalle d’un seau codé. */
+    public static long readStart(byte[] data, int offset) {
+        return readLong(data, offset);
+    }
+
+    /** Somme des valeurs d’un seau codé. */
+    public static long readSum(byte[] data, int offset) {
+        return readLong(data, offset + 8);
+    }
+
+    /** Nombre de mesures d’un seau codé. */
+    public static int readCount(byte[] data, int offset) {
+        return ((data[offset + 16] & 0xff) << 24) | ((data[offset + 17] & 0xff) << 16)
+                | ((data[offset + 18] & 0xff) << 8) | (data[offset + 19] & 0xff);
+    }
+
+    /** Minimum d’un seau codé. */
+    public static int readMin(byte[] data, int offset) {
+        return ((data[offset + 20] & 0xff) << 8) | (data[offset + 21] & 0xff);
+    }
+
+    /** Maximum d’un seau codé. */
+    public static int readMax(byte[] data, int offset) {
+        return ((data[offset + 22] & 0xff) << 8) | (data[offset + 23] & 0xff);
+    }
+
+    private static void writeLong(byte[] out, int offset, long value) {
+        for (int i = 7; i >= 0; i--) {
+            out[offset + i] = (byte) value;
+            value >>>= 8;
+        }
+    }
+
+    private static long readLong(byte[] data, int offset) {
+        long value = 0;
+        for (int i = 0; i < 8; i++) {
+            value = (value << 8) | (data[offset + i] & 0xff);
+        }
+        return value;
+    }
+}
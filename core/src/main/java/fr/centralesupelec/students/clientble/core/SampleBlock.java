@@ -0,0 +1,342 @@
+/*
+ * Copyright (C) 2017 CentraleSupélec
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.centralesupelec.students.clientble.core;
+
+import java.util.Arrays;
+
+/**
+ * Bloc compressé de mesures horodatées, de taille fixe et décodable indépendamment des autres.
+ *
+ * Les mesures (valeurs de 16 bits non signés, dates en millisecondes) sont codées bit à bit, à
+ * la manière de Gorilla :
+ * <ul>
+ * <li>date : différence de l’écart avec l’écart précédent (« delta of delta »), nulle pour des
+ * mesures régulières, codée sur 1 bit (0), 9 bits (10 + 7), 12 bits (110 + 9), 16 bits
+ * (1110 + 12) ou 36 bits (1111 + 32) ;</li>
+ * <li>valeur : écart avec la valeur précédente, en zig-zag, codé sur 1 bit (0), 6 bits
+ * (10 + 4), 11 bits (110 + 8) ou 20 bits (111 + 17).</li>
+ * </ul>
+ * Une mesure régulière et inchangée occupe ainsi 2 bits.
+ *
+ * En-tête (12 octets, gros-boutiste) : nombre de mesures (u16), date de la première mesure
+ * (i64), première valeur (u16). Suivent les bits des mesures suivantes. Les mesures sont à
+ * ajouter par dates croissantes.
+ */
+public final class SampleBlock {
+
+    /** Taille d’un bloc, en octets. */
+    public static final int BLOCK_SIZE = 1024;
+
+    private static final int HEADER_SIZE = 12;
+    // Taille maximale d’une mesure : 36 + 20 bits.
+    private static final int MAX_SAMPLE_BITS = 56;
+
+    private final byte[] mData;
+    private int mCount;
+    // Position d’écriture, en bits depuis le début du bloc.
+    private int mBitPosition;
+
+    // État du codeur : dernière date, dernier écart et dernière valeur.
+    private long mLastTime;
+    private long mLastDelta;
+    private int mLastValue;
+
+    /**
+     * Bloc vide.
+     */
+    public SampleBlock() {
+        mData = new byte[BLOCK_SIZE];
+        mBitPosition = 8 * HEADER_SIZE;
+    }
+
+    /**
+     * Reprise d’un bloc existant, par exemple relu depuis un fichier : les mesures déjà
+     * présentes sont décodées pour restaurer l’état du codeur.
+     * @param data contenu du bloc (BLOCK_SIZE octets), recopié
+     * @return
+     */
+    public static SampleBlock wrap(byte[] data) {
+        final SampleBlock block = new SampleBlock();
+        System.arraycopy(data, 0, block.mData, 0, BLOCK_SIZE);
+        final Decoder decoder = new Decoder(block.mData);
+        while (decoder.next()) {
+            block.mLastTime = decoder.mTime;
+            block.mLastDelta = decoder.mDelta;
+            block.mLastValue = decoder.mValue;
+        }
+        block.mBitPosition = decoder.mBitPosition;
+        block.mCount = decoder.getCount();
+        return block;
+    }
+
+    /**
+     * Ajout d’une mesure.
+     * @param time date, en ms, postérieure ou égale à la précédente
+     * @param value valeur (16 bits non signés)
+     * @return false si le bloc est plein (ou l’écart de dates trop grand) : la mesure est
+     * alors à ajouter dans un nouveau bloc
+     */
+    public boolean append(long time, int value) {
+        value &= 0xffff;
+        if (mCount == 0) {
+            writeHeader(1, time, value);
+            mCount = 1;
+            mLastTime = time;
+            mLastDelta = 0;
+            mLastValue = value;
+            return true;
+        }
+        if (mCount == 0xffff || mBitPosition + MAX_SAMPLE_BITS > 8 * BLOCK_SIZE) {
+            return false;
+        }
+        final long delta = time - mLastTime;
+        final long deltaOfDelta = delta - mLastDelta;
+        if (delta < 0 || deltaOfDelta < Integer.MIN_VALUE || deltaOfDelta > Integer.MAX_VALUE) {
+            return false;
+        }
+        writeTime((int) deltaOfDelta);
+        writeValue(value - mLastValue);
+        mLastTime = time;
+        mLastDelta = delta;
+        mLastValue = value;
+        mCount++;
+        mData[0] = (byte) (mCount >>> 8);
+        mData[1] = (byte) mCount;
+        return true;
+    }
+
+    private void writeTime(int deltaOfDelta) {
+        if (deltaOfDelta == 0) {
+            writeBits(0, 1);
+        } else if (deltaOfDelta >= -63 && deltaOfDelta <= 64) {
+            writeBits(0x2, 2);
+            writeBits(deltaOfDelta + 63, 7);
+        } else if (deltaOfDelta >= -255 && deltaOfDelta <= 256) {
+            writeBits(0x6, 3);
+            writeBits(deltaOfDelta + 255, 9);
+        } else if (deltaOfDelta >= -2047 && deltaOfDelta <= 2048) {
+            writeBits(0xe, 4);
+            writeBits(deltaOfDelta + 2047, 12);
+        } else {
+            writeBits(0xf, 4);
+            writeBits(deltaOfDelta, 32);
+        }
+    }
+
+    private void writeValue(int delta) {
+        final int zigzag = (delta << 1) ^ (delta >> 31);
+        if (zigzag == 0) {
+            writeBits(0, 1);
+        } else if (zigzag < (1 << 4)) {
+            writeBits(0x2, 2);
+            writeBits(zigzag, 4);
+        } else if (zigzag < (1 << 8)) {
+            writeBits(0x6, 3);
+            writeBits(zigzag, 8);
+        } else {
+            writeBits(0x7, 3);
+            writeBits(zigzag, 17);
+        }
+    }
+
+    private void writeBits(long bits, int length) {
+        for (int i = length - 1; i >= 0; i--) {
+            if (((bits >>> i) & 1) != 0) {
+                mData[mBitPosition >>> 3] |= (byte) (0x80 >>> (mBitPosition & 7));
+            }
+            mBitPosition++;
+        }
+    }
+
+    private void writeHeader(int count, long time, int value) {
+        Arrays.fill(mData, (byte) 0);
+        mData[0] = (byte) (count >>> 8);
+        mData[1] = (byte) count;
+        for (int i = 0; i < 8; i++) {
+            mData[2 + i] = (byte) (time >>> (56 - 8 * i));
+        }
+        mData[10] = (byte) (value >>> 8);
+        mData[11] = (byte) value;
+        mBitPosition = 8 * HEADER_SIZE;
+    }
+
+    public int getCount() {
+        return mCount;
+    }
+
+    public boolean isEmpty() {
+        return mCount == 0;
+    }
+
+    /**
+     * Date de la dernière mesure ajoutée.
+     * @return
+     */
+    public long getLastTime() {
+        return mLastTime;
+    }
+
+    /**
+     * Nombre d’octets utilisés (en-tête compris.)
+     * @return
+     */
+    public int getUsedBytes() {
+        return (mBitPosition + 7) >>> 3;
+    }
+
+    /**
+     * Contenu du bloc (BLOCK_SIZE octets), sans copie.
+     * @return
+     */
+    public byte[] array() {
+        return mData;
+    }
+
+    /**
+     * Date de la première mesure d’un bloc, lue dans son en-tête.
+     * @param data tableau contenant le bloc
+     * @param offset position du bloc dans le tableau
+     * @return
+     */
+    public static long readFirstTime(byte[] data, int offset) {
+        long time = 0;
+        for (int i = 0; i < 8; i++) {
+            time = (time << 8) | (data[offset + 2 + i] & 0xff);
+        }
+        return time;
+    }
+
+    /**
+     * Nombre de mesures d’un bloc, lu dans son en-tête.
+     * @param data tableau contenant le bloc
+     * @param offset position du bloc dans le tableau
+     * @return
+     */
+    public static int readCount(byte[] data, int offset) {
+        return ((data[offset] & 0xff) << 8) | (data[offset + 1] & 0xff);
+    }
+
+    /**
+     * Décodeur d’un bloc : parcours des mesures dans l’ordre, sans allocation.
+     */
+    public static final class Decoder {
+        private byte[] mData;
+        private int mOffset;
+        private int mCount;
+        private int mIndex;
+        private int mBitPosition;
+        private long mTime;
+        private long mDelta;
+        private int mValue;
+
+        public Decoder() {
+        }
+
+        public Decoder(byte[] data) {
+            reset(data, 0);
+        }
+
+        /**
+         * Positionnement sur un bloc.
+         * @param data tableau contenant le bloc
+         * @param offset position du bloc dans le tableau
+         */
+        public void reset(byte[] data, int offset) {
+            mData = data;
+            mOffset = offset;
+            mCount = readCount(data, offset);
+            mIndex = 0;
+            mBitPosition = 8 * HEADER_SIZE;
+        }
+
+        /**
+         * Passage à la mesure suivante.
+         * @return false à la fin du bloc
+         */
+        public boolean next() {
+            if (mIndex >= mCount) {
+                return false;
+            }
+            if (mIndex == 0) {
+                mTime = readFirstTime(mData, mOffset);
+                mDelta = 0;
+                mValue = ((mData[mOffset + 10] & 0xff) << 8) | (mData[mOffset + 11] & 0xff);
+            } else {
+                mDelta += readTime();
+                mTime += mDelta;
+                final int zigzag = readValue();
+                mValue += (zigzag >>> 1) ^ -(zigzag & 1);
+            }
+            mIndex++;
+            return true;
+        }
+
+        private long readTime() {
+            if (readBits(1) == 0) {
+                return 0;
+            }
+            if (readBits(1) == 0) {
+                return readBits(7) - 63;
+            }
+            if (readBits(1) == 0) {
+                return readBits(9) - 255;
+            }
+            if (readBits(1) == 0) {
+                return readBits(12) - 2047;
+            }
+            return (int) readBits(32);
+        }
+
+        private int readValue() {
+            if (readBits(1) == 0) {
+                return 0;
+            }
+            if (readBits(1) == 0) {
+                return (int) readBits(4);
+            }
+            if (readBits(1) == 0) {
+                return (int) readBits(8);
+            }
+            return (int) readBits(17);
+        }
+
+        private long readBits(int length) {
+            long bits = 0;
+            for (int i = 0; i < length; i++) {
+                final int bit = (mData[mOffset + (mBitPosition >>> 3)]
+                        >>> (7 - (mBitPosition & 7))) & 1;
+                bits = (bits << 1) | bit;
+                mBitPosition++;
+            }
+            return bits;
+        }
+
+        /** Nombre de mesures du bloc. */
+        public int getCount() {
+            return mCount;
+        }
+
+        /** Date de la mesure courante, en ms. */
+        public long getTime() {
+            return mTime;
+        }
+
+        /** Valeur de la mesure courante. */
+        public int getValue() {
+            return mValue;
+        }
+    }
+}
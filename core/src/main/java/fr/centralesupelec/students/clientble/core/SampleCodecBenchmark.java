@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2017 CentraleSupélec
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.centralesupelec.students.clientble.core;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * Mesure des performances de {@link SampleBlock} : vitesse de codage et de décodage, taille
+ * par mesure. Sans dépendance à Android, à lancer sur la JVM :
+ * <pre>
+ * java -cp classes fr.centralesupelec.students.clientble.SampleCodecBenchmark [mesures]
+ * </pre>
+ * Trois séries synthétiques sont mesurées, à une mesure par seconde : potentiomètre immobile,
+ * lente dérive bruitée, et valeurs aléatoires (pire cas).
+ */
+public final class SampleCodecBenchmark {
+
+    private static final int DEFAULT_SAMPLES = 1000000;
+    private static final int ROUNDS = 5;
+    private static final long WEEK_SECONDS = 7 * 24 * 3600;
+
+    private SampleCodecBenchmark() {
+    }
+
+    public static void main(String[] args) {
+        final int samples = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_SAMPLES;
+        final String[] names = {"immobile", "dérive", "aléatoire"};
+        for (int kind = 0; kind < names.length; kind++) {
+            final long[] times = new long[samples];
+            final int[] values = new int[samples];
+            generate(kind, times, values);
+            run(names[kind], times, values);
+        }
+    }
+
+    private static void generate(int kind, long[] times, int[] values) {
+        final Random random = new Random(42);
+        long time = 1500000000000L;
+        double value = 32768;
+        for (int i = 0; i < times.length; i++) {
+            // Une mesure par seconde, avec une gigue de quelques millisecondes.
+            time += 1000 + random.nextInt(11) - 5;
+            times[i] = time;
+            switch (kind) {
+                case 0:
+                    values[i] = 32768;
+                    break;
+                case 1:
+                    value += random.nextGaussian() * 4;
+                    value = Math.max(0, Math.min(SensorDecoder.MAX_VALUE, value));
+                    values[i] = (int) value;
+                    break;
+                default:
+                    values[i] = random.nextInt(SensorDecoder.MAX_VALUE + 1);
+                    break;
+            }
+        }
+    }
+
+    private static void run(String name, long[] times, int[] values) {
+        ArrayList<SampleBlock> blocks = null;
+        long encodeNanos = Long.MAX_VALUE;
+        long decodeNanos = Long.MAX_VALUE;
+        long checksum = 0;
+        for (int round = 0; round < ROUNDS; round++) {
+            long start = System.nanoTime();
+            blocks = encode(times, values);
+            encodeNanos = Math.min(encodeNanos, System.nanoTime() - start);
+
+            start = System.nanoTime();
+            checksum = decode(blocks);
+            decodeNanos = Math.min(decodeNanos, System.nanoTime() - start);
+        }
+        long expected = 0;
+        for (int i = 0; i < times.length; i++) {
+            expected += times[i] ^ values[i];
+        }
+        int usedBytes = 0;
+        for (SampleBlock block : blocks) {
+            usedBytes += block.getUsedBytes();
+        }
+        final long storedBytes = (long) blocks.size() * SampleBlock.BLOCK_SIZE;
+        final double bytesPerSample = (double) storedBytes / times.length;
+        System.out.println(String.format(
+                "%-10s %d mesures, %d blocs : codage %.1f ns/mesure, décodage %.1f ns/mesure,"
+                        + " %.3f octets/mesure (%.3f utiles), %.2f Mo/semaine à 1 Hz%s",
+                name, times.length, blocks.size(),
+                (double) encodeNanos / times.length, (double) decodeNanos / times.length,
+                bytesPerSample, (double) usedBytes / times.length,
+                bytesPerSample * WEEK_SECONDS / (1024 * 1024),
+                checksum == expected ? "" : " ERREUR DE DÉCODAGE"));
+    }
+
+    private static ArrayList<SampleBlock> encode(long[] times, int[] values) {
+        final ArrayList<SampleBlock> blocks = new ArrayList<SampleBlock>();
+        SampleBlock block = new SampleBlock();
+        blocks.add(block);
+        for (int i = 0; i < times.length; i++) {
+            if (!block.append(times[i], values[i])) {
+                block = new SampleBlock();
+                blocks.add(block);
+                block.append(times[i], values[i]);
+            }
+        }
+        return blocks;
+    }
+
+    private static long decode(ArrayList<SampleBlock> blocks) {
+        final SampleBlock.Decoder decoder = new SampleBlock.Decoder();
+        long checksum = 0;
+        for (SampleBlock block : blocks) {
+            decoder.reset(block.array(), 0);
+            while (decoder.next()) {
+                checksum += decoder.getTime() ^ decoder.getValue();
+            }
+        }
+        return checksum;
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2017 CentraleSupélec
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.centralesupelec.students.clientble.core;
+
+/**
+ * Chaîne de distribution des mesures du potentiomètre, commune à toute l’application.
+ *
+ * Les mesures y sont publiées quelle que soit leur origine (lecture, notification ou annonce
+ * BLE reçue sans connexion) et transmises à tous les abonnés, sur le thread de publication.
+ * La publication ne provoque aucune allocation : la liste des abonnés est un tableau
+ * recopié à chaque modification.
+ */
+public final class SamplePipeline {
+
+    /** Origine d’une mesure : lecture de la caractéristique. */
+    public static final int SOURCE_READ = 0;
+    /** Origine d’une mesure : notification de la caractéristique. */
+    public static final int SOURCE_NOTIFICATION = 1;
+    /** Origine d’une mesure : annonce BLE, sans connexion. */
+    public static final int SOURCE_ADVERTISEMENT = 2;
+
+    /**
+     * Abonné aux mesures.
+     */
+    public interface Listener {
+        /**
+         * Appelée pour chaque mesure publiée.
+         * @param address adresse de l’appareil BLE
+         * @param value valeur brute (16 bits non signés)
+         * @param source origine de la mesure (SOURCE_*)
+         * @param timestampNanos date de réception ({@code SystemClock.elapsedRealtimeNanos()},
+         *                       prise à l’entrée du callback)
+         */
+        void onSample(String address, int value, int source, long timestampNanos);
+    }
+
+    private static final SamplePipeline sInstance = new SamplePipeline();
+
+    private volatile Listener[] mListeners = new Listener[0];
+
+    private SamplePipeline() {
+    }
+
+    public static SamplePipeline getInstance() {
+        return sInstance;
+    }
+
+    public synchronized void addListener(Listener listener) {
+        final Listener[] listeners = new Listener[mListeners.length + 1];
+        System.arraycopy(mListeners, 0, listeners, 0, mListeners.length);
+        listeners[mListeners.length] = listener;
+        mListeners = listeners;
+    }
+
+    public synchronized void removeListener(Listener listener) {
+        for (int i = 0; i < mListeners.length; i++) {
+            if (mListeners[i] == listener) {
+                final Listener[] listeners = new Listener[mListeners.length - 1];
+                System.arraycopy(mListeners, 0, listeners, 0, i);
+                System.arraycopy(mListeners, i + 1, listeners, i, listeners.length - i);
+                mListeners = listeners;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Publication d’une mesure.
+     * @param address adresse de l’appareil BLE
+     * @param value valeur brute
+     * @param source origine de la mesure (SOURCE_*)
+     * @param timestampNanos date de réception, en ns (horloge monotone)
+     */
+    public void publish(String address, int value, int source, long timestampNanos) {
+        final Listener[] listeners = mListeners;
+        for (int i = 0; i < listeners.length; i++) {
+            listeners[i].onSample(address, value, source, timestampNanos);
+        }
+    }
+}
@@ -0,0 +1,265 @@
+/*
+ * Copyright (C) 2017 CentraleSupélec
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.centralesupelec.students.clientble.core;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Anneau de mesures en mémoire partagée : un seul écrivain, des lecteurs sans verrou, dans
+ * d’autres processus le cas échéant (fichier projeté en mémoire.)
+ *
+ * Organisation (petit-boutiste) : un en-tête de HEADER_SIZE octets (MAGIC, VERSION,
+ * capacité, taille d’une case, puis le nombre total de mesures publiées, sur 64 bits à
+ * l’offset PUBLISHED_OFFSET), suivi de capacité cases de SLOT_SIZE octets :
+ * <pre>
+ * 0  tampon (long) : numéro de la mesure + 1, 0 pendant l’écriture
+ * 8  date de réception (long, ns, horloge monotone de l’appareil)
+ * 16 adresse de l’appareil (long, les 48 bits de l’adresse MAC)
+ * 24 valeur (int)
+ * 28 origine (int, SamplePipeline.SOURCE_*)
+ * </pre>
+ * La mesure n est écrite dans la case n % capacité : le tampon est mis à 0, la mesure
+ * écrite, puis le tampon mis à n + 1 et le compteur de l’en-tête à n + 1. Un lecteur lit le
+ * tampon avant et après la mesure : s’ils diffèrent de n + 1, la case a été réécrite
+ * entre-temps et le lecteur a été dépassé.
+ *
+ * Les écritures et lectures volatiles d’un champ sans autre usage servent de barrières
+ * mémoire autour de ces accès, que ByteBuffer n’ordonne pas de lui-même.
+ */
+public final class SampleRing {
+
+    public static final int MAGIC = 0x454c4243; // « CBLE »
+    public static final int VERSION = 1;
+    public static final int HEADER_SIZE = 64;
+    public static final int SLOT_SIZE = 32;
+    public static final int PUBLISHED_OFFSET = 16;
+
+    private static final int CAPACITY_OFFSET = 8;
+    private static final int SLOT_SIZE_OFFSET = 12;
+
+    private SampleRing() {
+    }
+
+    /**
+     * Taille de l’anneau en octets.
+     * @param capacity nombre de cases
+     * @return
+     */
+    public static int sizeOf(int capacity) {
+        return HEADER_SIZE + capacity * SLOT_SIZE;
+    }
+
+    /**
+     * Adresse MAC « AA:BB:CC:DD:EE:FF » sous forme d’entier, sans allocation.
+     * @param address
+     * @return les 48 bits de l’adresse, ou 0 si elle est mal formée
+     */
+    public static long packAddress(String address) {
+        long packed = 0;
+        int digits = 0;
+        for (int i = 0; i < address.length(); i++) {
+            final int digit = Character.digit(address.charAt(i), 16);
+            if (digit >= 0) {
+                packed = packed << 4 | digit;
+                digits++;
+            }
+        }
+        return digits == 12 ? packed : 0;
+    }
+
+    /**
+     * Écrivain de l’anneau. Les appels concurrents sont sérialisés : l’anneau n’a jamais
+     * qu’un écrivain à la fois.
+     */
+    public static final class Writer implements SamplePipeline.Listener {
+        private final ByteBuffer mBuffer;
+        private final int mCapacity;
+        private long mPublished;
+        // Barrière mémoire : écrite entre les données d’une case et son tampon.
+        @SuppressWarnings("unused")
+        private volatile long mFence;
+
+        /**
+         * Initialisation d’un anneau vide dans le tampon.
+         * @param buffer tampon d’au moins sizeOf(capacity) octets
+         * @param capacity nombre de cases
+         */
+        public Writer(ByteBuffer buffer, int capacity) {
+            if (buffer.capacity() < sizeOf(capacity)) {
+                throw new IllegalArgumentException("Tampon trop petit : " + buffer.capacity());
+            }
+            mBuffer = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+            mCapacity = capacity;
+            for (int i = 0; i < sizeOf(capacity); i += 8) {
+                mBuffer.putLong(i, 0);
+            }
+            mBuffer.putInt(0, MAGIC);
+            mBuffer.putInt(4, VERSION);
+            mBuffer.putInt(CAPACITY_OFFSET, capacity);
+            mBuffer.putInt(SLOT_SIZE_OFFSET, SLOT_SIZE);
+        }
+
+        @Override
+        public void onSample(String address, int value, int source, long timestampNanos) {
+            append(packAddress(address), value, source, timestampNanos);
+        }
+
+        /**
+         * Publication d’une mesure.
+         * @return le numéro de la mesure
+         */
+        public synchronized long append(long address, int value, int source,
+                                        long timestampNanos) {
+            final long sequence = mPublished;
+            final int slot = HEADER_SIZE + (int) (sequence % mCapacity) * SLOT_SIZE;
+            mBuffer.putLong(slot, 0);
+            mFence = sequence;
+            mBuffer.putLong(slot + 8, timestampNanos);
+            mBuffer.putLong(slot + 16, address);
+            mBuffer.putInt(slot + 24, value);
+            mBuffer.putInt(slot + 28, source);
+            mFence = sequence;
+            mBuffer.putLong(slot, sequence + 1);
+            mPublished = sequence + 1;
+            mBuffer.putLong(PUBLISHED_OFFSET, mPublished);
+            mFence = sequence;
+            return sequence;
+        }
+
+        /** Nombre total de mesures publiées. */
+        public synchronized long getPublished() {
+            return mPublished;
+        }
+    }
+
+    /**
+     * Lecteur de l’anneau, propre à un consommateur (non partagé entre threads.)
+     */
+    public static final class Reader {
+        private final ByteBuffer mBuffer;
+        private final int mCapacity;
+        private long mNext;
+        private long mOverruns;
+        private long mLost;
+        @SuppressWarnings("unused")
+        private volatile long mFence;
+
+        // Dernière mesure lue.
+        private long mSequence;
+        private long mTimestampNanos;
+        private long mAddress;
+        private int mValue;
+        private int mSource;
+
+        /**
+         * Lecteur d’un anneau existant, positionné sur la mesure la plus récente.
+         * @param buffer tampon de l’anneau (projection en lecture seule acceptée)
+         * @throws IllegalArgumentException si le tampon ne contient pas d’anneau
+         */
+        public Reader(ByteBuffer buffer) {
+            mBuffer = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+            if (mBuffer.capacity() < HEADER_SIZE || mBuffer.getInt(0) != MAGIC
+                    || mBuffer.getInt(4) != VERSION
+                    || mBuffer.getInt(SLOT_SIZE_OFFSET) != SLOT_SIZE) {
+                throw new IllegalArgumentException("Anneau de mesures invalide.");
+            }
+            mCapacity = mBuffer.getInt(CAPACITY_OFFSET);
+            if (mCapacity <= 0 || mBuffer.capacity() < sizeOf(mCapacity)) {
+                throw new IllegalArgumentException("Anneau de mesures tronqué.");
+            }
+            mNext = getPublished();
+        }
+
+        /** Nombre total de mesures publiées par l’écrivain. */
+        public long getPublished() {
+            final long published = mBuffer.getLong(PUBLISHED_OFFSET);
+            mFence = published;
+            return published;
+        }
+
+        /**
+         * Lecture de la mesure suivante, sans attente.
+         *
+         * Si l’écrivain a pris plus d’un tour d’avance, le lecteur saute aux mesures encore
+         * présentes ; les mesures sautées sont comptées dans getLost().
+         * @return false si aucune nouvelle mesure n’est disponible
+         */
+        public boolean next() {
+            while (true) {
+                final long published = getPublished();
+                if (mNext >= published) {
+                    return false;
+                }
+                if (published - mNext > mCapacity) {
+                    overrun(published - mCapacity);
+                    continue;
+                }
+                final int slot = HEADER_SIZE + (int) (mNext % mCapacity) * SLOT_SIZE;
+                final long before = mBuffer.getLong(slot);
+                mFence = before;
+                mTimestampNanos = mBuffer.getLong(slot + 8);
+                mAddress = mBuffer.getLong(slot + 16);
+                mValue = mBuffer.getInt(slot + 24);
+                mSource = mBuffer.getInt(slot + 28);
+                mFence = before;
+                final long after = mBuffer.getLong(slot);
+                if (before == mNext + 1 && after == before) {
+                    mSequence = mNext++;
+                    return true;
+                }
+                // Case réécrite pendant la lecture : le lecteur a été dépassé.
+                overrun(Math.max(mNext + 1, getPublished() - mCapacity));
+            }
+        }
+
+        private void overrun(long resumeAt) {
+            mOverruns++;
+            mLost += resumeAt - mNext;
+            mNext = resumeAt;
+        }
+
+        /** Nombre de fois où le lecteur a été dépassé par l’écrivain. */
+        public long getOverruns() {
+            return mOverruns;
+        }
+
+        /** Nombre de mesures perdues par dépassement. */
+        public long getLost() {
+            return mLost;
+        }
+
+        public long getSequence() {
+            return mSequence;
+        }
+
+        public long getTimestampNanos() {
+            return mTimestampNanos;
+        }
+
+        public long getAddress() {
+            return mAddress;
+        }
+
+        public int getValue() {
+            return mValue;
+        }
+
+        public int getSource() {
+            return mSource;
+        }
+    }
+}
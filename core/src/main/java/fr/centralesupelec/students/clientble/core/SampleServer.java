@@ -0,0 +1,537 @@
+/*
+ * Copyright (C) 2017 CentraleSupélec
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.centralesupelec.students.clientble.core;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.Channel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+
+/**
+ * Serveur TCP de diffusion des mesures, pour les outils d’analyse sur ordinateur.
+ *
+ * Un seul thread traite toutes les connexions en entrées-sorties non bloquantes (NIO.)
+ * Chaque client choisit son format en envoyant une ligne :
+ * <ul>
+ * <li>« BINARY » : trames binaires (gros-boutistes) d’un octet FRAME_SAMPLES, du nombre de
+ * mesures (u16), puis pour chaque mesure la date de réception (i64, ns), l’adresse de
+ * l’appareil (i64, 48 bits de l’adresse MAC), la valeur (i32) et l’origine (i32) ;</li>
+ * <li>« TEXT » : une ligne par mesure, « date adresse valeur origine ».</li>
+ * </ul>
+ * Les mesures publiées sont mises de côté sans bloquer le producteur, puis envoyées par lots
+ * toutes les batchMillis ms : un lot est encodé une fois par format, puis copié dans le
+ * tampon d’envoi de chaque client. Ce tampon est borné : un client trop lent pour le vider
+ * est déconnecté, sans jamais ralentir l’acquisition.
+ *
+ * Une erreur propre à un client (réglage ou lecture de sa connexion) ne ferme que cette
+ * connexion ; seule une erreur du sélecteur ou du port d’écoute arrête le serveur, ce dont
+ * le {@link Listener} est prévenu.
+ */
+public class SampleServer implements SamplePipeline.Listener {
+
+    public static final int FRAME_SAMPLES = 0x01;
+    /** Taille d’une mesure dans une trame binaire. */
+    public static final int RECORD_SIZE = 24;
+
+    private static final int FORMAT_UNKNOWN = 0;
+    private static final int FORMAT_BINARY = 1;
+    private static final int FORMAT_TEXT = 2;
+    private static final int MAX_COMMAND_LENGTH = 32;
+    private static final int MAX_ADDRESS_LENGTH = 17;
+    // Plus longue ligne de texte : date (20), adresse, valeur (11), origine (11), séparateurs.
+    private static final int MAX_LINE_LENGTH = 64;
+
+    /**
+     * Prévenu de l’arrêt du thread du serveur.
+     */
+    public interface Listener {
+        /**
+         * Appelé depuis le thread du serveur, qui se termine.
+         * @param server serveur arrêté
+         * @param error erreur du sélecteur ou du port d’écoute, ou null après {@link #stop()}
+         */
+        void onStopped(SampleServer server, IOException error);
+    }
+
+    /**
+     * Connexion d’un client.
+     */
+    private static final class Client {
+        final SocketChannel channel;
+        final ByteBuffer command = ByteBuffer.allocate(MAX_COMMAND_LENGTH);
+        final ByteBuffer output;
+        int format = FORMAT_UNKNOWN;
+
+        Client(SocketChannel channel, int bufferSize) {
+            this.channel = channel;
+            this.output = ByteBuffer.allocate(bufferSize);
+        }
+    }
+
+    private final InetSocketAddress mAddress;
+    private final int mClientBufferSize;
+    private final long mBatchMillis;
+
+    // Mesures en attente du prochain lot (gardées par mLock.)
+    private final Object mLock = new Object();
+    private final int mBatchCapacity;
+    private final long[] mTimes;
+    private final String[] mAddresses;
+    private final int[] mValues;
+    private final int[] mSources;
+    private int mStaged;
+    private long mDroppedSamples;
+
+    // Copie du lot en cours d’envoi, et lot encodé dans chaque format (thread du serveur.)
+    private final long[] mBatchTimes;
+    private final String[] mBatchAddresses;
+    private final int[] mBatchValues;
+    private final int[] mBatchSources;
+    private final ByteBuffer mBinaryBatch;
+    private final ByteBuffer mTextBatch;
+    private final byte[] mLine = new byte[MAX_LINE_LENGTH];
+
+    private Selector mSelector;
+    private ServerSocketChannel mServerChannel;
+    private Thread mThread;
+    private volatile boolean mRunning;
+    private volatile Listener mListener;
+    private volatile IOException mError;
+    private volatile int mClientCount;
+    private volatile long mDroppedClients;
+
+    /**
+     * @param address adresse d’écoute (port 0 : port libre choisi par le système)
+     * @param clientBufferSize taille du tampon d’envoi de chaque client, en octets
+     * @param batchMillis période d’envoi des lots, en ms
+     * @param batchCapacity nombre maximal de mesures par lot ; au-delà, elles sont perdues
+     */
+    public SampleServer(InetSocketAddress address, int clientBufferSize, long batchMillis,
+                        int batchCapacity) {
+        if (batchCapacity <= 0 || batchCapacity > 0xffff) {
+            throw new IllegalArgumentException("Taille de lot invalide : " + batchCapacity);
+        }
+        mAddress = address;
+        mBatchMillis = batchMillis;
+        mBatchCapacity = batchCapacity;
+        mTimes = new long[batchCapacity];
+        mAddresses = new String[batchCapacity];
+        mValues = new int[batchCapacity];
+        mSources = new int[batchCapacity];
+        mBatchTimes = new long[batchCapacity];
+        mBatchAddresses = new String[batchCapacity];
+        mBatchValues = new int[batchCapacity];
+        mBatchSources = new int[batchCapacity];
+        mBinaryBatch = ByteBuffer.allocate(3 + batchCapacity * RECORD_SIZE);
+        mTextBatch = ByteBuffer.allocate(batchCapacity * MAX_LINE_LENGTH);
+        // Un lot complet doit tenir dans le tampon d’un client.
+        mClientBufferSize = Math.max(clientBufferSize, mTextBatch.capacity());
+    }
+
+    /**
+     * Ouverture du port et démarrage du thread du serveur.
+     * @throws IOException si le port ne peut pas être ouvert
+     */
+    public synchronized void start() throws IOException {
+        if (mRunning) {
+            return;
+        }
+        mSelector = Selector.open();
+        mServerChannel = ServerSocketChannel.open();
+        mServerChannel.configureBlocking(false);
+        mServerChannel.socket().setReuseAddress(true);
+        mServerChannel.socket().bind(mAddress);
+        mServerChannel.register(mSelector, SelectionKey.OP_ACCEPT);
+        mRunning = true;
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                serve();
+            }
+        }, "sample-server");
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    /**
+     * Arrêt du serveur et fermeture de toutes les connexions.
+     */
+    public synchronized void stop() {
+        if (!mRunning) {
+            return;
+        }
+        mRunning = false;
+        mSelector.wakeup();
+        try {
+            mThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        mThread = null;
+    }
+
+    /**
+     * Port d’écoute effectif.
+     * @return le port, ou -1 si le serveur est arrêté
+     */
+    public int getPort() {
+        final ServerSocketChannel channel = mServerChannel;
+        return mRunning && channel != null ? channel.socket().getLocalPort() : -1;
+    }
+
+    public boolean isRunning() {
+        return mRunning;
+    }
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Erreur ayant arrêté le serveur.
+     * @return null si le serveur est en marche ou a été arrêté par {@link #stop()}
+     */
+    public IOException getError() {
+        return mError;
+    }
+
+    /** Nombre de clients connectés. */
+    public int getClientCount() {
+        return mClientCount;
+    }
+
+    /** Nombre de clients déconnectés pour ne pas avoir lu assez vite. */
+    public long getDroppedClients() {
+        return mDroppedClients;
+    }
+
+    /** Nombre de mesures perdues faute de place dans le lot en attente. */
+    public long getDroppedSamples() {
+        synchronized (mLock) {
+            return mDroppedSamples;
+        }
+    }
+
+    @Override
+    public void onSample(String address, int value, int source, long timestampNanos) {
+        if (!mRunning) {
+            return;
+        }
+        synchronized (mLock) {
+            if (mStaged == mBatchCapacity) {
+                mDroppedSamples++;
+                return;
+            }
+            mTimes[mStaged] = timestampNanos;
+            mAddresses[mStaged] = address;
+            mValues[mStaged] = value;
+            mSources[mStaged] = source;
+            mStaged++;
+        }
+    }
+
+    private void serve() {
+        long nextBatch = System.nanoTime();
+        IOException error = null;
+        try {
+            while (mRunning) {
+                final long wait = (nextBatch - System.nanoTime()) / 1000000;
+                if (wait > 0) {
+                    mSelector.select(wait);
+                } else {
+                    mSelector.selectNow();
+                }
+                final Iterator<SelectionKey> keys = mSelector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    final SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+                    try {
+                        if (key.isReadable()) {
+                            read(key);
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            flush(key);
+                        }
+                    } catch (CancelledKeyException e) {
+                        // Connexion déjà fermée (et décomptée) pendant son traitement.
+                        closeQuietly(key);
+                    }
+                }
+                if (System.nanoTime() - nextBatch >= 0) {
+                    nextBatch = System.nanoTime() + mBatchMillis * 1000000;
+                    sendBatch();
+                }
+            }
+        } catch (IOException e) {
+            // Erreur du sélecteur ou du port d’écoute : le serveur s’arrête.
+            error = e;
+        } finally {
+            mError = error;
+            mRunning = false;
+            for (SelectionKey key : mSelector.keys()) {
+                closeQuietly(key);
+            }
+            try {
+                mSelector.close();
+            } catch (IOException e) {
+                // Fermeture : rien de plus à faire.
+            }
+            try {
+                mServerChannel.close();
+            } catch (IOException e) {
+                // Fermeture : rien de plus à faire.
+            }
+            mClientCount = 0;
+            final Listener listener = mListener;
+            if (listener != null) {
+                listener.onStopped(this, error);
+            }
+        }
+    }
+
+    /**
+     * Acceptation d’une connexion ; une connexion qui ne peut être réglée est refusée sans
+     * toucher aux autres.
+     */
+    private void accept() {
+        final SocketChannel channel;
+        try {
+            channel = mServerChannel.accept();
+        } catch (IOException e) {
+            // Connexion abandonnée par le client, ou plus de descripteurs libres.
+            return;
+        }
+        if (channel == null) {
+            return;
+        }
+        try {
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            channel.register(mSelector, SelectionKey.OP_READ,
+                    new Client(channel, mClientBufferSize));
+        } catch (IOException e) {
+            closeQuietly(channel);
+            return;
+        }
+        mClientCount++;
+    }
+
+    private void read(SelectionKey key) {
+        final Client client = (Client) key.attachment();
+        try {
+            if (client.format != FORMAT_UNKNOWN) {
+                // Format déjà choisi : les données reçues sont ignorées.
+                client.command.clear();
+            }
+            if (client.channel.read(client.command) < 0) {
+                close(key);
+                return;
+            }
+        } catch (IOException e) {
+            close(key);
+            return;
+        }
+        if (client.format != FORMAT_UNKNOWN) {
+            return;
+        }
+        final ByteBuffer command = client.command;
+        for (int i = 0; i < command.position(); i++) {
+            if (command.get(i) == '\n') {
+                client.format = parseFormat(command, i);
+                if (client.format == FORMAT_UNKNOWN) {
+                    close(key);
+                }
+                command.clear();
+                return;
+            }
+        }
+        if (!command.hasRemaining()) {
+            close(key);
+        }
+    }
+
+    private static int parseFormat(ByteBuffer command, int end) {
+        final StringBuilder builder = new StringBuilder(end);
+        for (int i = 0; i < end; i++) {
+            builder.append((char) (command.get(i) & 0xff));
+        }
+        final String format = builder.toString().trim();
+        if ("BINARY".equalsIgnoreCase(format)) {
+            return FORMAT_BINARY;
+        } else if ("TEXT".equalsIgnoreCase(format)) {
+            return FORMAT_TEXT;
+        }
+        return FORMAT_UNKNOWN;
+    }
+
+    private void sendBatch() {
+        final int count;
+        synchronized (mLock) {
+            count = mStaged;
+            System.arraycopy(mTimes, 0, mBatchTimes, 0, count);
+            System.arraycopy(mAddresses, 0, mBatchAddresses, 0, count);
+            System.arraycopy(mValues, 0, mBatchValues, 0, count);
+            System.arraycopy(mSources, 0, mBatchSources, 0, count);
+            mStaged = 0;
+        }
+        if (count == 0) {
+            return;
+        }
+        boolean binary = false;
+        boolean text = false;
+        for (SelectionKey key : mSelector.keys()) {
+            final Object attachment = key.attachment();
+            if (attachment instanceof Client) {
+                binary |= ((Client) attachment).format == FORMAT_BINARY;
+                text |= ((Client) attachment).format == FORMAT_TEXT;
+            }
+        }
+        if (binary) {
+            encodeBinary(count);
+        }
+        if (text) {
+            encodeText(count);
+        }
+        for (SelectionKey key : mSelector.keys()) {
+            final Object attachment = key.attachment();
+            if (!key.isValid() || !(attachment instanceof Client)) {
+                continue;
+            }
+            final Client client = (Client) attachment;
+            final ByteBuffer batch;
+            if (client.format == FORMAT_BINARY) {
+                batch = mBinaryBatch;
+            } else if (client.format == FORMAT_TEXT) {
+                batch = mTextBatch;
+            } else {
+                continue;
+            }
+            if (client.output.remaining() < batch.limit()) {
+                // Tampon plein : client trop lent, déconnecté.
+                mDroppedClients++;
+                close(key);
+                continue;
+            }
+            client.output.put(batch.array(), 0, batch.limit());
+            flush(key);
+        }
+        for (int i = 0; i < count; i++) {
+            mBatchAddresses[i] = null;
+        }
+    }
+
+    private void encodeBinary(int count) {
+        final ByteBuffer batch = mBinaryBatch;
+        batch.clear();
+        batch.put((byte) FRAME_SAMPLES);
+        batch.putShort((short) count);
+        for (int i = 0; i < count; i++) {
+            batch.putLong(mBatchTimes[i]);
+            batch.putLong(SampleRing.packAddress(mBatchAddresses[i]));
+            batch.putInt(mBatchValues[i]);
+            batch.putInt(mBatchSources[i]);
+        }
+        batch.flip();
+    }
+
+    private void encodeText(int count) {
+        final ByteBuffer batch = mTextBatch;
+        batch.clear();
+        for (int i = 0; i < count; i++) {
+            int length = appendNumber(mLine, 0, mBatchTimes[i]);
+            mLine[length++] = ' ';
+            final String address = mBatchAddresses[i];
+            for (int j = 0; j < address.length() && j < MAX_ADDRESS_LENGTH; j++) {
+                mLine[length++] = (byte) address.charAt(j);
+            }
+            mLine[length++] = ' ';
+            length = appendNumber(mLine, length, mBatchValues[i]);
+            mLine[length++] = ' ';
+            length = appendNumber(mLine, length, mBatchSources[i]);
+            mLine[length++] = '\n';
+            batch.put(mLine, 0, length);
+        }
+        batch.flip();
+    }
+
+    /**
+     * Écriture décimale d’un entier, sans allocation.
+     * @return la position suivant le dernier chiffre
+     */
+    private static int appendNumber(byte[] line, int offset, long value) {
+        if (value < 0) {
+            line[offset++] = '-';
+            value = -value;
+        }
+        int end = offset;
+        do {
+            line[end++] = (byte) ('0' + value % 10);
+            value /= 10;
+        } while (value > 0);
+        for (int i = offset, j = end - 1; i < j; i++, j--) {
+            final byte digit = line[i];
+            line[i] = line[j];
+            line[j] = digit;
+        }
+        return end;
+    }
+
+    private void flush(SelectionKey key) {
+        final Client client = (Client) key.attachment();
+        final ByteBuffer output = client.output;
+        output.flip();
+        try {
+            client.channel.write(output);
+        } catch (IOException e) {
+            close(key);
+            return;
+        }
+        output.compact();
+        key.interestOps(output.position() > 0
+                ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+    }
+
+    private void close(SelectionKey key) {
+        closeQuietly(key);
+        mClientCount--;
+    }
+
+    private static void closeQuietly(SelectionKey key) {
+        key.cancel();
+        closeQuietly(key.channel());
+    }
+
+    private static void closeQuietly(Channel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // Connexion déjà fermée.
+        }
+    }
+}
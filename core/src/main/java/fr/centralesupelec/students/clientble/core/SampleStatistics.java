@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2017 CentraleSupélec
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.centralesupelec.students.clientble.core;
+
+import java.util.HashMap;
+
+/**
+ * Statistiques des mesures de chaque appareil, tenues à jour au fil de la chaîne
+ * {@link SamplePipeline} : sur toute la session et par fenêtres fixes (« tumbling ») d’une
+ * seconde, une minute et une heure.
+ *
+ * Pour chaque fenêtre sont conservées la fenêtre en cours et la dernière fenêtre complète ;
+ * elles échangent leurs rôles quand la fenêtre se termine, sans allocation. Les consommateurs
+ * obtiennent une copie des statistiques par {@link #copy(String, int, boolean, StreamingStats)},
+ * sans relire l’historique.
+ */
+public class SampleStatistics implements SamplePipeline.Listener {
+
+    /** Fenêtre d’une seconde. */
+    public static final int WINDOW_SECOND = 0;
+    /** Fenêtre d’une minute. */
+    public static final int WINDOW_MINUTE = 1;
+    /** Fenêtre d’une heure. */
+    public static final int WINDOW_HOUR = 2;
+    /** Toute la session, depuis le démarrage ou la dernière remise à zéro. */
+    public static final int WINDOW_SESSION = 3;
+
+    private static final long[] WINDOW_LENGTHS = {1000, 60 * 1000, 3600 * 1000};
+
+    /**
+     * Statistiques d’un appareil.
+     */
+    private static final class Device {
+        final StreamingStats session = new StreamingStats();
+        final StreamingStats[] current = new StreamingStats[WINDOW_LENGTHS.length];
+        final StreamingStats[] last = new StreamingStats[WINDOW_LENGTHS.length];
+        // Début de la fenêtre en cours, en ms.
+        final long[] start = new long[WINDOW_LENGTHS.length];
+
+        Device() {
+            for (int i = 0; i < WINDOW_LENGTHS.length; i++) {
+                current[i] = new StreamingStats();
+                last[i] = new StreamingStats();
+            }
+        }
+
+        void add(long time, int value) {
+            session.add(value);
+            for (int i = 0; i < WINDOW_LENGTHS.length; i++) {
+                final long length = WINDOW_LENGTHS[i];
+                if (time >= start[i] + length) {
+                    final StreamingStats ended = current[i];
+                    current[i] = last[i];
+                    // Fenêtre complète seulement si elle précède immédiatement la nouvelle.
+                    if (time >= start[i] + 2 * length) {
+                        ended.reset();
+                    }
+                    last[i] = ended;
+                    current[i].reset();
+                    start[i] = time - time % length;
+                }
+                current[i].add(value);
+            }
+        }
+    }
+
+    private final HashMap<String, Device> mDevices = new HashMap<String, Device>();
+
+    @Override
+    public void onSample(String address, int value, int source, long timestampNanos) {
+        if (value >= 0) {
+            add(address, timestampNanos / 1000000, value);
+        }
+    }
+
+    /**
+     * Prise en compte d’une mesure.
+     * @param address adresse de l’appareil
+     * @param time date de la mesure, en ms (horloge monotone)
+     * @param value valeur (16 bits non signés)
+     */
+    public synchronized void add(String address, long time, int value) {
+        Device device = mDevices.get(address);
+        if (device == null) {
+            device = new Device();
+            mDevices.put(address, device);
+        }
+        device.add(time, value);
+    }
+
+    /**
+     * Copie des statistiques d’un appareil.
+     * @param address adresse de l’appareil
+     * @param window WINDOW_*
+     * @param current true pour la fenêtre en cours, false pour la dernière fenêtre complète
+     *                (sans effet pour WINDOW_SESSION)
+     * @param into statistiques à remplir
+     * @return false si l’appareil n’a envoyé aucune mesure
+     */
+    public synchronized boolean copy(String address, int window, boolean current,
+                                     StreamingStats into) {
+        final Device device = mDevices.get(address);
+        if (device == null) {
+            into.reset();
+            return false;
+        }
+        if (window == WINDOW_SESSION) {
+            into.copyFrom(device.session);
+        } else {
+            into.copyFrom(current ? device.current[window] : device.last[window]);
+        }
+        return true;
+    }
+
+    /**
+     * Remise à zéro des statistiques d’un appareil (nouvelle session.)
+     * @param address adresse de l’appareil
+     */
+    public synchronized void reset(String address) {
+        mDevices.remove(address);
+    }
+}
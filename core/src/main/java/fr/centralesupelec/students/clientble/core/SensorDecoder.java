@@ -0,0 +1,66 @@
+/*
+ * Copyright (C) 2017 CentraleSupélec
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.centralesupelec.students.clientble.core;
+
+/**
+ * Décodage de la valeur du potentiomètre (lecture par le CAN sur 16 bits), qu’elle provienne
+ * de la caractéristique SENSOR_CHARACTERISTIC_UUID ou d’une annonce BLE.
+ */
+public final class SensorDecoder {
+
+    /** Valeur maximale du CAN : 2^16 - 1 (16 bits). */
+    public static final int MAX_VALUE = 65535;
+
+    private SensorDecoder() {
+    }
+
+    /**
+     * Lecture de l’entier non signé, d’un ou deux octets (poids fort en premier.)
+     * @param data tampon contenant la valeur
+     * @param offset position du premier octet
+     * @param length nombre d’octets disponibles (seuls les deux premiers sont lus)
+     * @return la valeur brute, ou -1 si aucun octet n’est disponible
+     */
+    public static int decode(byte[] data, int offset, int length) {
+        if (length <= 0) {
+            return -1;
+        }
+        if (length >= 2) {
+            return (data[offset] & 0xff) << 8 | data[offset + 1] & 0xff;
+        }
+        return data[offset] & 0xff;
+    }
+
+    /**
+     * Lecture du compteur de séquence facultatif, placé par l’appareil après la valeur.
+     * @param data tampon contenant la valeur
+     * @param offset position du premier octet de la valeur
+     * @param length nombre d’octets disponibles
+     * @return le compteur (0 à 255), ou -1 si la charge utile n’en contient pas
+     */
+    public static int decodeSequence(byte[] data, int offset, int length) {
+        return length >= 3 ? data[offset + 2] & 0xff : -1;
+    }
+
+    /**
+     * Conversion de la valeur brute en pourcentage de la pleine échelle.
+     * @param value valeur brute
+     * @return
+     */
+    public static double toPercent(int value) {
+        return 100.0 * value / MAX_VALUE;
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2017 CentraleSupélec
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.centralesupelec.students.clientble.core;
+
+import java.io.UnsupportedEncodingException;
+import java.util.Arrays;
+import java.util.UUID;
+
+/**
+ * Traitement des valeurs reçues de notre service privé, indépendant de la liaison : aiguillage
+ * par UUID, décodage de la valeur du potentiomètre, suivi de la qualité de la liaison,
+ * publication dans la chaîne des mesures et évaluation des règles d’alerte.
+ *
+ * Branché comme {@link Transport.Callback} sur la liaison : celle du service Android
+ * (GattTransport) comme celles du lanceur en ligne de commande ({@link SimulatedTransport}).
+ *
+ * Une instance par appareil : le suivi de la qualité est tenu par adresse, mais les règles
+ * d’alerte n’ont qu’un état (dernière valeur, date, règles déclenchées), réarmé à chaque
+ * connexion. Plusieurs appareils sur une même instance mêleraient leurs mesures.
+ */
+public class SensorProtocol implements Transport.Callback {
+
+    private final SamplePipeline mPipeline;
+    private final LinkQualityTracker mLinkQuality = new LinkQualityTracker();
+    private volatile AlertRules mAlertRules = AlertRules.compile("");
+
+    /**
+     * @param pipeline chaîne dans laquelle publier les mesures
+     */
+    public SensorProtocol(SamplePipeline pipeline) {
+        mPipeline = pipeline;
+    }
+
+    /**
+     * Traitement de la valeur de la caractéristique du potentiomètre.
+     * @param address adresse de l’appareil
+     * @param data valeur brute : deux octets, puis éventuellement un compteur de séquence
+     * @param source origine (SamplePipeline.SOURCE_*)
+     * @param timestampNanos date de réception, en ns (horloge monotone)
+     * @return la valeur décodée, ou -1 si la charge utile est vide
+     */
+    public int handleSensorValue(String address, byte[] data, int source, long timestampNanos) {
+        final int value = SensorDecoder.decode(data, 0, data.length);
+        if (value < 0) {
+            return value;
+        }
+        if (source == SamplePipeline.SOURCE_NOTIFICATION) {
+            mLinkQuality.onNotification(address, timestampNanos,
+                    SensorDecoder.decodeSequence(data, 0, data.length));
+        }
+        mPipeline.publish(address, value, source, timestampNanos);
+        mAlertRules.evaluate(timestampNanos / 1000000, value);
+        return value;
+    }
+
+    @Override
+    public void onConnected(String address) {
+        // Le compteur de séquence repart de zéro à chaque connexion.
+        mLinkQuality.reset(address);
+        mAlertRules.reset();
+    }
+
+    @Override
+    public void onDisconnected(String address) {
+    }
+
+    @Override
+    public void onValue(String address, UUID characteristic, byte[] value, boolean notification,
+                        long timestampNanos) {
+        if (PrivateProfile.SENSOR_CHARACTERISTIC_UUID.equals(characteristic)) {
+            handleSensorValue(address, value, notification
+                    ? SamplePipeline.SOURCE_NOTIFICATION : SamplePipeline.SOURCE_READ,
+                    timestampNanos);
+        }
+    }
+
+    /**
+     * Vérification des règles d’absence de mesure, à appeler périodiquement.
+     * @param nowMillis date courante, en ms (même horloge que les mesures)
+     */
+    public void checkSilence(long nowMillis) {
+        mAlertRules.checkSilence(nowMillis);
+    }
+
+    public AlertRules getAlertRules() {
+        return mAlertRules;
+    }
+
+    public void setAlertRules(AlertRules rules) {
+        mAlertRules = rules;
+    }
+
+    public LinkQualityTracker getLinkQuality() {
+        return mLinkQuality;
+    }
+
+    /**
+     * Valeur à écrire dans la caractéristique longue éditable pour un texte : ses seuls octets
+     * UTF-8, sans remplissage, tronqués à la longueur de la caractéristique sans couper de
+     * caractère.
+     * @param text texte saisi
+     * @return
+     */
+    public static byte[] encodeWritableText(String text) {
+        final byte[] bytes;
+        try {
+            bytes = text.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+        if (bytes.length <= PrivateProfile.WRITABLE_CHARACTERISTIC_MAX_LENGTH) {
+            return bytes;
+        }
+        int length = PrivateProfile.WRITABLE_CHARACTERISTIC_MAX_LENGTH;
+        // Recul jusqu’au début d’un caractère (octet qui n’est pas de continuation.)
+        while (length > 0 && (bytes[length] & 0xc0) == 0x80) {
+            length--;
+        }
+        return Arrays.copyOf(bytes, length);
+    }
+}
@@ -0,0 +1,209 @@
+/*
+ * Copyright (C) 2017 CentraleSupélec
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.centralesupelec.students.clientble.core;
+
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Appareil simulé proposant notre profil privé, pour exécuter le cœur hors d’Android.
+ *
+ * Un thread par appareil notifie la valeur du potentiomètre (sinusoïde bruitée sur 16 bits,
+ * suivie d’un compteur de séquence) à la période demandée ; une fraction des notifications
+ * peut être perdue. La caractéristique longue éditable conserve la dernière valeur écrite ;
+ * une trame de réglage de période ({@link RateCommand}) y est remplacée par son acquittement
+ * et prend effet aussitôt, comme sur l’appareil.
+ */
+public class SimulatedTransport implements Transport {
+
+    /** Période des variations de la valeur simulée, en ns. */
+    private static final long SIGNAL_PERIOD_NANOS = 10L * 1000 * 1000 * 1000;
+
+    private final String mAddress;
+    private final double mLossRate;
+    private final Random mRandom;
+    private volatile long mIntervalNanos;
+    private volatile Callback mCallback;
+    private volatile boolean mNotifying;
+    private Thread mThread;
+    private final byte[] mWritable = new byte[PrivateProfile.WRITABLE_CHARACTERISTIC_MAX_LENGTH];
+    private final byte[] mSensorValue = new byte[3];
+    private int mSequence;
+
+    /**
+     * @param address adresse simulée
+     * @param intervalNanos période initiale des notifications, en ns
+     * @param lossRate probabilité de perte de chaque notification (0 à 1)
+     * @param seed graine du bruit et des pertes
+     */
+    public SimulatedTransport(String address, long intervalNanos, double lossRate, long seed) {
+        mAddress = address;
+        mIntervalNanos = intervalNanos;
+        mLossRate = lossRate;
+        mRandom = new Random(seed);
+    }
+
+    @Override
+    public void setCallback(Callback callback) {
+        mCallback = callback;
+    }
+
+    @Override
+    public String getAddress() {
+        return mAddress;
+    }
+
+    @Override
+    public long nanoTime() {
+        return System.nanoTime();
+    }
+
+    @Override
+    public synchronized boolean connect() {
+        if (mThread != null) {
+            return false;
+        }
+        mSequence = 0;
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                emit();
+            }
+        }, "sim-" + mAddress);
+        mThread.setDaemon(true);
+        mThread.start();
+        final Callback callback = mCallback;
+        if (callback != null) {
+            callback.onConnected(mAddress);
+        }
+        return true;
+    }
+
+    @Override
+    public void disconnect() {
+        final Thread thread;
+        synchronized (this) {
+            thread = mThread;
+            mThread = null;
+        }
+        if (thread == null) {
+            return;
+        }
+        thread.interrupt();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        mNotifying = false;
+        final Callback callback = mCallback;
+        if (callback != null) {
+            callback.onDisconnected(mAddress);
+        }
+    }
+
+    @Override
+    public boolean read(UUID characteristic) {
+        final Callback callback = mCallback;
+        if (callback == null) {
+            return false;
+        }
+        final byte[] value;
+        if (PrivateProfile.SENSOR_CHARACTERISTIC_UUID.equals(characteristic)) {
+            synchronized (mSensorValue) {
+                value = mSensorValue.clone();
+            }
+        } else if (PrivateProfile.WRITABLE_CHARACTERISTIC_UUID.equals(characteristic)) {
+            synchronized (mWritable) {
+                value = mWritable.clone();
+            }
+        } else {
+            return false;
+        }
+        callback.onValue(mAddress, characteristic, value, false, System.nanoTime());
+        return true;
+    }
+
+    @Override
+    public boolean write(UUID characteristic, byte[] value) {
+        if (!PrivateProfile.WRITABLE_CHARACTERISTIC_UUID.equals(characteristic)
+                || value.length > mWritable.length) {
+            return false;
+        }
+        synchronized (mWritable) {
+            System.arraycopy(value, 0, mWritable, 0, value.length);
+            for (int i = value.length; i < mWritable.length; i++) {
+                mWritable[i] = 0;
+            }
+            final int interval = RateCommand.parseInterval(value);
+            if (interval > 0 && (value[1] & RateCommand.ACK) == 0) {
+                mIntervalNanos = interval * 1000000L;
+                final byte[] ack = RateCommand.frame(RateCommand.OP_SET_INTERVAL | RateCommand.ACK,
+                        new byte[]{value[3], value[4]});
+                System.arraycopy(ack, 0, mWritable, 0, ack.length);
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public boolean setNotification(UUID characteristic, boolean enabled) {
+        if (!PrivateProfile.SENSOR_CHARACTERISTIC_UUID.equals(characteristic)) {
+            return false;
+        }
+        mNotifying = enabled;
+        return true;
+    }
+
+    /**
+     * Période courante des notifications.
+     * @return période en ns
+     */
+    public long getIntervalNanos() {
+        return mIntervalNanos;
+    }
+
+    private void emit() {
+        final long start = System.nanoTime();
+        long deadline = start;
+        while (!Thread.currentThread().isInterrupted()) {
+            deadline += mIntervalNanos;
+            long delay;
+            while ((delay = deadline - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(delay);
+                if (Thread.currentThread().isInterrupted()) {
+                    return;
+                }
+            }
+            final double phase = 2 * Math.PI * (deadline - start) / SIGNAL_PERIOD_NANOS;
+            final int value = Math.max(0, Math.min(SensorDecoder.MAX_VALUE,
+                    (int) (32768 + 20000 * Math.sin(phase) + 500 * mRandom.nextGaussian())));
+            synchronized (mSensorValue) {
+                mSensorValue[0] = (byte) (value >>> 8);
+                mSensorValue[1] = (byte) value;
+                mSensorValue[2] = (byte) mSequence;
+            }
+            mSequence = (mSequence + 1) & 0xff;
+            final Callback callback = mCallback;
+            if (mNotifying && callback != null && mRandom.nextDouble() >= mLossRate) {
+                // Le tableau est réutilisé : seul ce thread le modifie entre deux notifications.
+                callback.onValue(mAddress, PrivateProfile.SENSOR_CHARACTERISTIC_UUID,
+                        mSensorValue, true, System.nanoTime());
+            }
+        }
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2017 CentraleSupélec
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.centralesupelec.students.clientble.core;
+
+import java.util.UUID;
+
+/**
+ * Séquence de mise en route des mesures d’un appareil, indépendante de la liaison : dès que
+ * l’appareil est prêt, lecture de la valeur du potentiomètre et souscription à ses
+ * notifications, demandées ensemble avant toute autre opération, puis mesure du délai entre
+ * la demande de connexion et la première mesure.
+ *
+ * Branchée comme {@link Transport.Callback} sur la liaison, elle transmet les valeurs à son
+ * {@link SensorProtocol} (une session par appareil.) La souscription est tenue ici : gardée
+ * tant qu’un consommateur des mesures la demande ({@link #setSubscriptionWanted(boolean)}),
+ * rétablie à chaque connexion.
+ */
+public class StreamingSession implements Transport.Callback {
+
+    private static final UUID SENSOR = PrivateProfile.SENSOR_CHARACTERISTIC_UUID;
+
+    /**
+     * Réception de la première mesure après une demande de connexion.
+     */
+    public interface Listener {
+        /**
+         * @param address adresse de l’appareil
+         * @param delayNanos délai depuis la demande de connexion, en ns
+         */
+        void onFirstSample(String address, long delayNanos);
+    }
+
+    private final Transport mTransport;
+    private final SensorProtocol mProtocol;
+    private volatile Listener mListener;
+
+    // Gardés par this.
+    private boolean mConnected;
+    private boolean mWanted;
+    private boolean mSubscribed;
+    private long mRequestNanos;
+    private long mTimeToFirstSampleNanos = -1;
+
+    /**
+     * @param transport liaison avec l’appareil ; la session devient son callback
+     * @param protocol traitement des valeurs reçues
+     */
+    public StreamingSession(Transport transport, SensorProtocol protocol) {
+        mTransport = transport;
+        mProtocol = protocol;
+        transport.setCallback(this);
+    }
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Demande de connexion : le délai de première mesure est compté à partir d’ici.
+     * @return false si la demande ne peut pas être lancée
+     */
+    public boolean connect() {
+        synchronized (this) {
+            mRequestNanos = mTransport.nanoTime();
+            mTimeToFirstSampleNanos = -1;
+        }
+        return mTransport.connect();
+    }
+
+    /**
+     * Besoin des notifications du potentiomètre : souscription ou désabonnement immédiat si
+     * l’appareil est prêt, sinon à la prochaine connexion.
+     * @param wanted
+     * @return true si la souscription vient de changer
+     */
+    public boolean setSubscriptionWanted(boolean wanted) {
+        synchronized (this) {
+            mWanted = wanted;
+            if (!mConnected || mSubscribed == wanted) {
+                return false;
+            }
+            mSubscribed = wanted;
+        }
+        // Hors du verrou : la liaison peut appeler le callback pendant l’opération.
+        if (!mTransport.setNotification(SENSOR, wanted) && wanted) {
+            synchronized (this) {
+                mSubscribed = false;
+            }
+            return false;
+        }
+        return true;
+    }
+
+    /** Si les notifications du potentiomètre sont demandées à l’appareil prêt. */
+    public synchronized boolean isSubscribed() {
+        return mSubscribed;
+    }
+
+    /**
+     * Délai entre la dernière demande de connexion et la première mesure reçue ensuite.
+     * @return délai en ns, ou -1 si aucune mesure n’a encore été reçue
+     */
+    public synchronized long getTimeToFirstSampleNanos() {
+        return mTimeToFirstSampleNanos;
+    }
+
+    @Override
+    public void onConnected(String address) {
+        mProtocol.onConnected(address);
+        final boolean subscribe;
+        synchronized (this) {
+            mConnected = true;
+            mSubscribed = mWanted;
+            subscribe = mSubscribed;
+        }
+        // Lecture et souscription ensemble : la première mesure n’attend ni la première
+        // notification ni les opérations demandées ensuite (commande de période, affichage.)
+        mTransport.read(SENSOR);
+        if (subscribe && !mTransport.setNotification(SENSOR, true)) {
+            synchronized (this) {
+                mSubscribed = false;
+            }
+        }
+    }
+
+    @Override
+    public void onDisconnected(String address) {
+        synchronized (this) {
+            mConnected = false;
+            mSubscribed = false;
+        }
+        mProtocol.onDisconnected(address);
+    }
+
+    @Override
+    public void onValue(String address, UUID characteristic, byte[] value, boolean notification,
+                        long timestampNanos) {
+        if (!SENSOR.equals(characteristic)) {
+            mProtocol.onValue(address, characteristic, value, notification, timestampNanos);
+            return;
+        }
+        final int sample = mProtocol.handleSensorValue(address, value, notification
+                ? SamplePipeline.SOURCE_NOTIFICATION : SamplePipeline.SOURCE_READ, timestampNanos);
+        if (sample < 0) {
+            return;
+        }
+        final long delay;
+        synchronized (this) {
+            if (mTimeToFirstSampleNanos >= 0 || mRequestNanos == 0) {
+                return;
+            }
+            delay = timestampNanos - mRequestNanos;
+            mTimeToFirstSampleNanos = delay;
+        }
+        final Listener listener = mListener;
+        if (listener != null) {
+            listener.onFirstSample(address, delay);
+        }
+    }
+}
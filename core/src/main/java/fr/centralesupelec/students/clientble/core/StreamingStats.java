@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2017 CentraleSupélec
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.centralesupelec.students.clientble.core;
+
+import java.util.Arrays;
+
+/**
+ * Statistiques incrémentales d’une suite de mesures (valeurs de 16 bits non signés).
+ *
+ * Nombre, minimum, maximum, moyenne et variance sont tenus à jour par l’algorithme de Welford,
+ * numériquement stable. Les quantiles sont estimés par un histogramme de BIN_COUNT classes
+ * de même largeur sur [0, 65535] : erreur au plus d’une demi-classe (32 unités, soit 0,05 %
+ * de la pleine échelle). L’histogramme se fusionne par simple addition : les statistiques de
+ * plusieurs fenêtres ou appareils se combinent sans perte ({@link #merge(StreamingStats)}).
+ *
+ * Ajout d’une mesure en temps constant, sans allocation. Non synchronisée.
+ */
+public final class StreamingStats {
+
+    /** Nombre de classes de l’histogramme. */
+    public static final int BIN_COUNT = 1024;
+    private static final int BIN_SHIFT = 6; // 65536 / 1024 = 64 = 2^6
+    private static final int BIN_WIDTH = 1 << BIN_SHIFT;
+
+    private long mCount;
+    private int mMin;
+    private int mMax;
+    private double mMean;
+    // Somme des carrés des écarts à la moyenne.
+    private double mM2;
+    private final int[] mBins = new int[BIN_COUNT];
+
+    public StreamingStats() {
+        reset();
+    }
+
+    public void reset() {
+        mCount = 0;
+        mMin = Integer.MAX_VALUE;
+        mMax = Integer.MIN_VALUE;
+        mMean = 0;
+        mM2 = 0;
+        Arrays.fill(mBins, 0);
+    }
+
+    /**
+     * Prise en compte d’une mesure.
+     * @param value valeur (16 bits non signés)
+     */
+    public void add(int value) {
+        value &= 0xffff;
+        mCount++;
+        if (value < mMin) {
+            mMin = value;
+        }
+        if (value > mMax) {
+            mMax = value;
+        }
+        final double delta = value - mMean;
+        mMean += delta / mCount;
+        mM2 += delta * (value - mMean);
+        mBins[value >>> BIN_SHIFT]++;
+    }
+
+    /**
+     * Fusion des statistiques d’une autre suite de mesures (méthode de Chan et al.)
+     * @param other
+     */
+    public void merge(StreamingStats other) {
+        if (other.mCount == 0) {
+            return;
+        }
+        if (mCount == 0) {
+            copyFrom(other);
+            return;
+        }
+        final long count = mCount + other.mCount;
+        final double delta = other.mMean - mMean;
+        mMean += delta * other.mCount / count;
+        mM2 += other.mM2 + delta * delta * ((double) mCount * other.mCount / count);
+        mCount = count;
+        mMin = Math.min(mMin, other.mMin);
+        mMax = Math.max(mMax, other.mMax);
+        for (int i = 0; i < BIN_COUNT; i++) {
+            mBins[i] += other.mBins[i];
+        }
+    }
+
+    /**
+     * Copie des statistiques d’une autre suite, sans allocation.
+     * @param other
+     */
+    public void copyFrom(StreamingStats other) {
+        mCount = other.mCount;
+        mMin = other.mMin;
+        mMax = other.mMax;
+        mMean = other.mMean;
+        mM2 = other.mM2;
+        System.arraycopy(other.mBins, 0, mBins, 0, BIN_COUNT);
+    }
+
+    public long getCount() {
+        return mCount;
+    }
+
+    /** Minimum, ou -1 si aucune mesure. */
+    public int getMin() {
+        return mCount == 0 ? -1 : mMin;
+    }
+
+    /** Maximum, ou -1 si aucune mesure. */
+    public int getMax() {
+        return mCount == 0 ? -1 : mMax;
+    }
+
+    public double getMean() {
+        return mMean;
+    }
+
+    /** Variance de l’échantillon (non biaisée), 0 pour moins de deux mesures. */
+    public double getVariance() {
+        return mCount < 2 ? 0 : mM2 / (mCount - 1);
+    }
+
+    public double getStandardDeviation() {
+        return Math.sqrt(getVariance());
+    }
+
+    /**
+     * Estimation d’un quantile, par interpolation linéaire dans la classe qui le contient.
+     * @param q rang, entre 0 et 1 (0,5 pour la médiane)
+     * @return la valeur estimée, ou -1 si aucune mesure
+     */
+    public double getQuantile(double q) {
+        if (mCount == 0) {
+            return -1;
+        }
+        final double rank = Math.max(0, Math.min(1, q)) * (mCount - 1);
+        long cumulated = 0;
+        for (int i = 0; i < BIN_COUNT; i++) {
+            final int inBin = mBins[i];
+            if (inBin > 0 && cumulated + inBin > rank) {
+                final double estimate =
+                        (i + (rank - cumulated + 0.5) / inBin) * BIN_WIDTH;
+                return Math.max(mMin, Math.min(mMax, estimate));
+            }
+            cumulated += inBin;
+        }
+        return mMax;
+    }
+}
@@ -0,0 +1,341 @@
+/*
+ * Copyright (C) 2017 CentraleSupélec
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.centralesupelec.students.clientble.core;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Journal binaire des annonces BLE reçues, pour les relevés radio (« site surveys ») :
+ * chaque annonce, sans dédoublonnage, avec adresse, RSSI, date de réception et contenu brut.
+ *
+ * Conçu pour plusieurs centaines d’annonces par seconde : l’ajout d’une annonce ne fait
+ * qu’une copie dans un tampon préalloué, sans allocation ni écriture disque. Deux tampons
+ * alternent : pendant qu’un thread d’écriture vide le premier dans le fichier, les annonces
+ * remplissent le second. Si les deux sont pleins, les annonces sont perdues et comptées.
+ *
+ * Format (gros-boutiste) : en-tête de HEADER_SIZE octets (MAGIC, VERSION, date murale et
+ * date monotone du début, en ms et ns), puis une suite d’enregistrements : date de
+ * réception (i64, ns, horloge monotone), adresse (u48), RSSI (i8), longueur (u8), contenu
+ * de l’annonce sans le remplissage final.
+ */
+public final class SurveyLog {
+
+    /** « CBSV » */
+    public static final int MAGIC = 0x43425356;
+    public static final int VERSION = 1;
+    public static final int HEADER_SIZE = 32;
+    /** Taille d’un enregistrement hors contenu de l’annonce. */
+    public static final int RECORD_HEADER_SIZE = 16;
+    /** Longueur maximale enregistrée d’une annonce. */
+    public static final int MAX_DATA_LENGTH = 255;
+
+    private final FileOutputStream mOutput;
+    private final FileChannel mChannel;
+    private final long mFlushInterval;
+    private final Thread mFlusher;
+
+    // Tampons : en remplissage, plein en cours d’écriture, et libre (l’un des deux derniers
+    // est toujours null.)
+    private ByteBuffer mActive;
+    private ByteBuffer mFull;
+    private ByteBuffer mSpare;
+    private boolean mClosed;
+    private IOException mError;
+
+    private long mRecordCount;
+    private long mDroppedCount;
+    private long mBytesWritten;
+
+    /**
+     * Création du fichier et démarrage du thread d’écriture.
+     * @param file fichier du journal, remplacé s’il existe
+     * @param bufferSize taille de chacun des deux tampons, en octets
+     * @param flushInterval délai maximal avant écriture d’un tampon incomplet, en ms
+     * @param startWallMillis date murale du début (System.currentTimeMillis())
+     * @param startNanos même date, sur l’horloge monotone des annonces
+     * @throws IOException
+     */
+    public SurveyLog(File file, int bufferSize, long flushInterval, long startWallMillis,
+                     long startNanos) throws IOException {
+        if (bufferSize < RECORD_HEADER_SIZE + MAX_DATA_LENGTH) {
+            throw new IllegalArgumentException("Tampon trop petit : " + bufferSize);
+        }
+        mOutput = new FileOutputStream(file);
+        mChannel = mOutput.getChannel();
+        mFlushInterval = flushInterval;
+        mActive = ByteBuffer.allocateDirect(bufferSize);
+        mSpare = ByteBuffer.allocateDirect(bufferSize);
+
+        final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).putInt(VERSION).putLong(startWallMillis).putLong(startNanos);
+        header.clear();
+        try {
+            while (header.hasRemaining()) {
+                mChannel.write(header);
+            }
+        } catch (IOException e) {
+            mOutput.close();
+            throw e;
+        }
+        mBytesWritten = HEADER_SIZE;
+
+        mFlusher = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                flushLoop();
+            }
+        }, "survey-log");
+        mFlusher.start();
+    }
+
+    /**
+     * Ajout d’une annonce, sans allocation. Appelable depuis plusieurs threads.
+     * @param address adresse de l’appareil (48 bits, voir {@link SampleRing#packAddress})
+     * @param rssi puissance reçue, en dBm
+     * @param timestampNanos date de réception, en ns (horloge monotone)
+     * @param data contenu brut de l’annonce (éventuellement complété de zéros)
+     * @return false si l’annonce est perdue (tampons pleins ou journal fermé)
+     */
+    public synchronized boolean append(long address, int rssi, long timestampNanos,
+                                       byte[] data) {
+        if (mClosed) {
+            return false;
+        }
+        final int length = data == null ? 0 : Math.min(MAX_DATA_LENGTH, significantLength(data));
+        if (mActive.remaining() < RECORD_HEADER_SIZE + length) {
+            if (mSpare == null) {
+                // Écriture du tampon précédent pas encore terminée.
+                mDroppedCount++;
+                return false;
+            }
+            mFull = mActive;
+            mActive = mSpare;
+            mSpare = null;
+            notifyAll();
+        }
+        mActive.putLong(timestampNanos);
+        mActive.putShort((short) (address >>> 32));
+        mActive.putInt((int) address);
+        mActive.put((byte) Math.max(-128, Math.min(127, rssi)));
+        mActive.put((byte) length);
+        if (length > 0) {
+            mActive.put(data, 0, length);
+        }
+        mRecordCount++;
+        return true;
+    }
+
+    /**
+     * Longueur utile d’une annonce : suite des structures de données (longueur, type,
+     * valeur) jusqu’à la première de longueur nulle, qui marque le remplissage.
+     */
+    static int significantLength(byte[] data) {
+        int position = 0;
+        while (position < data.length) {
+            final int length = data[position] & 0xff;
+            if (length == 0) {
+                break;
+            }
+            position += 1 + length;
+        }
+        return Math.min(position, data.length);
+    }
+
+    private void flushLoop() {
+        try {
+            while (true) {
+                final ByteBuffer full;
+                final boolean closed;
+                synchronized (this) {
+                    if (mFull == null && !mClosed) {
+                        wait(mFlushInterval);
+                    }
+                    if (mFull == null && mActive.position() > 0) {
+                        // Délai écoulé ou fermeture : écriture du tampon incomplet.
+                        mFull = mActive;
+                        mActive = mSpare;
+                        mSpare = null;
+                    }
+                    full = mFull;
+                    closed = mClosed;
+                }
+                if (full == null) {
+                    if (closed) {
+                        return;
+                    }
+                    continue;
+                }
+                full.flip();
+                final int size = full.remaining();
+                while (full.hasRemaining()) {
+                    mChannel.write(full);
+                }
+                full.clear();
+                synchronized (this) {
+                    mFull = null;
+                    mSpare = full;
+                    mBytesWritten += size;
+                }
+            }
+        } catch (IOException e) {
+            synchronized (this) {
+                mError = e;
+                mClosed = true;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Écriture des annonces en attente et fermeture du fichier.
+     * @throws IOException en cas d’échec d’une écriture, ici ou dans le thread d’écriture
+     */
+    public void close() throws IOException {
+        synchronized (this) {
+            mClosed = true;
+            notifyAll();
+        }
+        try {
+            mFlusher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        mOutput.close();
+        synchronized (this) {
+            if (mError != null) {
+                throw mError;
+            }
+        }
+    }
+
+    /** Nombre d’annonces enregistrées (y compris celles pas encore écrites). */
+    public synchronized long getRecordCount() {
+        return mRecordCount;
+    }
+
+    /** Nombre d’annonces perdues, faute de tampon libre. */
+    public synchronized long getDroppedCount() {
+        return mDroppedCount;
+    }
+
+    /** Nombre d’octets écrits dans le fichier. */
+    public synchronized long getBytesWritten() {
+        return mBytesWritten;
+    }
+
+    /**
+     * Lecture séquentielle d’un journal.
+     */
+    public static final class Reader {
+        private final DataInputStream mInput;
+        private final long mStartWallMillis;
+        private final long mStartNanos;
+        private final byte[] mData = new byte[MAX_DATA_LENGTH];
+
+        private long mTimestampNanos;
+        private long mAddress;
+        private int mRssi;
+        private int mLength;
+
+        /**
+         * @param file fichier du journal
+         * @throws IOException si le fichier n’est pas un journal de relevé
+         */
+        public Reader(File file) throws IOException {
+            mInput = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            try {
+                if (mInput.readInt() != MAGIC) {
+                    throw new IOException(file + " n’est pas un journal de relevé.");
+                }
+                final int version = mInput.readInt();
+                if (version != VERSION) {
+                    throw new IOException("Version de journal non reconnue : " + version);
+                }
+                mStartWallMillis = mInput.readLong();
+                mStartNanos = mInput.readLong();
+                mInput.skipBytes(HEADER_SIZE - 24);
+            } catch (IOException e) {
+                mInput.close();
+                throw e;
+            }
+        }
+
+        /**
+         * Passage à l’annonce suivante.
+         * @return false à la fin du journal (un dernier enregistrement tronqué est ignoré)
+         * @throws IOException
+         */
+        public boolean next() throws IOException {
+            try {
+                mTimestampNanos = mInput.readLong();
+                mAddress = (mInput.readShort() & 0xffffL) << 32 | (mInput.readInt() & 0xffffffffL);
+                mRssi = mInput.readByte();
+                mLength = mInput.readUnsignedByte();
+                mInput.readFully(mData, 0, mLength);
+                return true;
+            } catch (EOFException e) {
+                return false;
+            }
+        }
+
+        /** Date murale du début du journal, en ms. */
+        public long getStartWallMillis() {
+            return mStartWallMillis;
+        }
+
+        /** Date de réception de l’annonce courante, en ns (horloge monotone). */
+        public long getTimestampNanos() {
+            return mTimestampNanos;
+        }
+
+        /** Date murale de réception de l’annonce courante, en ms. */
+        public long getWallMillis() {
+            return mStartWallMillis + (mTimestampNanos - mStartNanos) / 1000000;
+        }
+
+        /** Adresse de l’appareil (48 bits). */
+        public long getAddress() {
+            return mAddress;
+        }
+
+        /** Puissance reçue, en dBm. */
+        public int getRssi() {
+            return mRssi;
+        }
+
+        /** Contenu de l’annonce courante : les getLength() premiers octets. */
+        public byte[] getData() {
+            return mData;
+        }
+
+        public int getLength() {
+            return mLength;
+        }
+
+        public void close() throws IOException {
+            mInput.close();
+        }
+    }
+}
@@ -0,0 +1,218 @@
+/*
+ * Copyright (C) 2017 CentraleSupélec
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.centralesupelec.students.clientble.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Résumé hors ligne d’un journal de relevé ({@link SurveyLog}) : pour chaque appareil,
+ * nombre et fréquence des annonces, et répartition du RSSI (minimum, quantiles, maximum,
+ * moyenne, histogramme par pas de 5 dBm).
+ *
+ * Usage : SurveySummary FICHIER...
+ */
+public final class SurveySummary {
+
+    private static final int RSSI_MIN = -128;
+    private static final int RSSI_BIN_WIDTH = 5;
+
+    /**
+     * Annonces d’un appareil.
+     */
+    public static final class Device {
+        public final long address;
+        public long count;
+        public long firstNanos;
+        public long lastNanos;
+        private long mRssiSum;
+        // Nombre d’annonces par valeur de RSSI, de -128 à 127 dBm.
+        private final long[] mRssiCounts = new long[256];
+
+        Device(long address) {
+            this.address = address;
+        }
+
+        void add(long timestampNanos, int rssi) {
+            if (count == 0) {
+                firstNanos = timestampNanos;
+            }
+            lastNanos = timestampNanos;
+            count++;
+            mRssiSum += rssi;
+            mRssiCounts[rssi - RSSI_MIN]++;
+        }
+
+        /**
+         * Fréquence moyenne des annonces entre la première et la dernière.
+         * @return annonces par seconde, 0 pour moins de deux annonces
+         */
+        public double getRate() {
+            return count < 2 || lastNanos == firstNanos
+                    ? 0 : (count - 1) * 1e9 / (lastNanos - firstNanos);
+        }
+
+        public double getMeanRssi() {
+            return count == 0 ? 0 : (double) mRssiSum / count;
+        }
+
+        /**
+         * Quantile du RSSI.
+         * @param quantile entre 0 et 1
+         * @return RSSI en dBm
+         */
+        public int getRssiQuantile(double quantile) {
+            final long rank = Math.max(1, (long) Math.ceil(quantile * count));
+            long seen = 0;
+            for (int i = 0; i < mRssiCounts.length; i++) {
+                seen += mRssiCounts[i];
+                if (seen >= rank) {
+                    return i + RSSI_MIN;
+                }
+            }
+            return mRssiCounts.length - 1 + RSSI_MIN;
+        }
+
+        /**
+         * Nombre d’annonces par classe de RSSI_BIN_WIDTH dBm.
+         * @param rssi borne inférieure de la classe, en dBm
+         * @return
+         */
+        public long getRssiCount(int rssi) {
+            long total = 0;
+            for (int i = rssi; i < rssi + RSSI_BIN_WIDTH && i - RSSI_MIN < 256; i++) {
+                if (i >= RSSI_MIN) {
+                    total += mRssiCounts[i - RSSI_MIN];
+                }
+            }
+            return total;
+        }
+    }
+
+    private final HashMap<Long, Device> mDevices = new HashMap<Long, Device>();
+    private long mRecordCount;
+    private long mFirstNanos;
+    private long mLastNanos;
+
+    /**
+     * Prise en compte de toutes les annonces d’un journal.
+     * @param file fichier du journal
+     * @throws IOException
+     */
+    public void read(File file) throws IOException {
+        final SurveyLog.Reader reader = new SurveyLog.Reader(file);
+        try {
+            while (reader.next()) {
+                add(reader.getAddress(), reader.getTimestampNanos(), reader.getRssi());
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    void add(long address, long timestampNanos, int rssi) {
+        Device device = mDevices.get(address);
+        if (device == null) {
+            device = new Device(address);
+            mDevices.put(address, device);
+        }
+        device.add(timestampNanos, rssi);
+        if (mRecordCount == 0) {
+            mFirstNanos = timestampNanos;
+        }
+        mFirstNanos = Math.min(mFirstNanos, timestampNanos);
+        mLastNanos = Math.max(mLastNanos, timestampNanos);
+        mRecordCount++;
+    }
+
+    /**
+     * Appareils, par nombre d’annonces décroissant.
+     * @return
+     */
+    public List<Device> getDevices() {
+        final ArrayList<Device> devices = new ArrayList<Device>(mDevices.values());
+        Collections.sort(devices, new Comparator<Device>() {
+            @Override
+            public int compare(Device a, Device b) {
+                return a.count == b.count ? 0 : a.count > b.count ? -1 : 1;
+            }
+        });
+        return devices;
+    }
+
+    /**
+     * Impression du résumé.
+     * @param out
+     */
+    public void print(PrintStream out) {
+        final double seconds = (mLastNanos - mFirstNanos) / 1e9;
+        out.println(String.format(Locale.ROOT, "%d annonces, %d appareils, %.1f s (%.1f /s)",
+                mRecordCount, mDevices.size(), seconds,
+                seconds > 0 ? mRecordCount / seconds : 0));
+        out.println("adresse            annonces   /s     min  p10  p50  p90  max  moy.");
+        for (Device device : getDevices()) {
+            out.println(String.format(Locale.ROOT,
+                    "%s %9d %6.2f %5d %4d %4d %4d %4d %5.1f", formatAddress(device.address),
+                    device.count, device.getRate(), device.getRssiQuantile(0),
+                    device.getRssiQuantile(0.1), device.getRssiQuantile(0.5),
+                    device.getRssiQuantile(0.9), device.getRssiQuantile(1),
+                    device.getMeanRssi()));
+            final StringBuilder histogram = new StringBuilder("                  ");
+            final int min = device.getRssiQuantile(0);
+            final int low = min - ((min % RSSI_BIN_WIDTH) + RSSI_BIN_WIDTH) % RSSI_BIN_WIDTH;
+            for (int rssi = low; rssi <= device.getRssiQuantile(1); rssi += RSSI_BIN_WIDTH) {
+                histogram.append(' ').append(rssi).append(':')
+                        .append(device.getRssiCount(rssi));
+            }
+            out.println(histogram);
+        }
+    }
+
+    /**
+     * Adresse au format habituel (AA:BB:CC:DD:EE:FF).
+     * @param address adresse sur 48 bits
+     * @return
+     */
+    public static String formatAddress(long address) {
+        final StringBuilder text = new StringBuilder(17);
+        for (int shift = 40; shift >= 0; shift -= 8) {
+            if (shift < 40) {
+                text.append(':');
+            }
+            text.append(String.format("%02X", (address >>> shift) & 0xff));
+        }
+        return text.toString();
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length == 0) {
+            System.err.println("Usage : SurveySummary FICHIER...");
+            System.exit(2);
+        }
+        final SurveySummary summary = new SurveySummary();
+        for (String name : args) {
+            summary.read(new File(name));
+        }
+        summary.print(System.out);
+    }
+}
@@ -0,0 +1,295 @@
+/*
+ * Copyright (C) 2017 CentraleSupélec
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.centralesupelec.students.clientble.core;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+
+/**
+ * Anneau d’événements de trace : débuts et fins d’intervalles (« spans »), synchrones (sur un
+ * même thread) ou asynchrones (identifiés, par exemple une opération GATT lancée sur un
+ * thread et terminée dans un callback), et événements ponctuels.
+ *
+ * Capacité fixe : les événements les plus anciens sont remplacés. Les noms sont enregistrés
+ * une fois pour toutes ({@link #register(String)}) ; l’enregistrement d’un événement ne fait
+ * ensuite aucune allocation. L’anneau s’exporte au format JSON « Trace Event » de Chrome,
+ * lisible par Perfetto et chrome://tracing.
+ *
+ * Les méthodes sans identifiant de thread notent celui de la JVM (Thread.getId()) ; sur
+ * Android, {@link #record(byte, int, long, long)} reçoit l’identifiant système du thread
+ * (android.os.Process.myTid()), le même que dans systrace et Perfetto.
+ */
+public final class TraceRing {
+
+    public static final byte PHASE_BEGIN = 'B';
+    public static final byte PHASE_END = 'E';
+    public static final byte PHASE_INSTANT = 'i';
+    public static final byte PHASE_ASYNC_BEGIN = 'b';
+    public static final byte PHASE_ASYNC_END = 'e';
+
+    // Nombre maximal de threads nommés dans l’export.
+    private static final int MAX_THREADS = 64;
+
+    private final int mCapacity;
+    private final long[] mTimes;
+    private final long[] mThreads;
+    private final long[] mIds;
+    private final int[] mNames;
+    private final byte[] mPhases;
+    private long mCount;
+
+    private final ArrayList<String> mNameTable = new ArrayList<String>();
+    private final long[] mThreadIds = new long[MAX_THREADS];
+    private final String[] mThreadNames = new String[MAX_THREADS];
+    private int mThreadCount;
+
+    private volatile boolean mEnabled = true;
+
+    /**
+     * @param capacity nombre d’événements gardés
+     */
+    public TraceRing(int capacity) {
+        mCapacity = capacity;
+        mTimes = new long[capacity];
+        mThreads = new long[capacity];
+        mIds = new long[capacity];
+        mNames = new int[capacity];
+        mPhases = new byte[capacity];
+    }
+
+    /**
+     * Enregistrement d’un nom d’événement, de la forme « catégorie.nom ».
+     * @param name
+     * @return identifiant du nom, le même pour un nom déjà enregistré
+     */
+    public synchronized int register(String name) {
+        final int existing = mNameTable.indexOf(name);
+        if (existing >= 0) {
+            return existing;
+        }
+        mNameTable.add(name);
+        return mNameTable.size() - 1;
+    }
+
+    /**
+     * @param name identifiant du nom
+     * @return le nom enregistré
+     */
+    public synchronized String getName(int name) {
+        return mNameTable.get(name);
+    }
+
+    public void setEnabled(boolean enabled) {
+        mEnabled = enabled;
+    }
+
+    public boolean isEnabled() {
+        return mEnabled;
+    }
+
+    /** Début d’un intervalle sur le thread courant. */
+    public void begin(int name) {
+        record(PHASE_BEGIN, name, 0);
+    }
+
+    /** Fin de l’intervalle en cours sur le thread courant. */
+    public void end(int name) {
+        record(PHASE_END, name, 0);
+    }
+
+    /** Événement ponctuel. */
+    public void instant(int name) {
+        record(PHASE_INSTANT, name, 0);
+    }
+
+    /**
+     * Début d’un intervalle asynchrone, terminé par {@link #asyncEnd(int, long)} avec le
+     * même nom et le même identifiant, depuis n’importe quel thread.
+     */
+    public void asyncBegin(int name, long id) {
+        record(PHASE_ASYNC_BEGIN, name, id);
+    }
+
+    /** Fin d’un intervalle asynchrone. */
+    public void asyncEnd(int name, long id) {
+        record(PHASE_ASYNC_END, name, id);
+    }
+
+    private void record(byte phase, int name, long id) {
+        if (mEnabled) {
+            record(phase, name, id, Thread.currentThread().getId());
+        }
+    }
+
+    /**
+     * Enregistrement d’un événement du thread courant.
+     * @param phase PHASE_*
+     * @param name identifiant du nom
+     * @param id identifiant de l’intervalle asynchrone, 0 sinon
+     * @param threadId identifiant du thread courant à indiquer dans l’export
+     */
+    public void record(byte phase, int name, long id, long threadId) {
+        if (!mEnabled) {
+            return;
+        }
+        final long now = System.nanoTime();
+        final Thread thread = Thread.currentThread();
+        synchronized (this) {
+            final int slot = (int) (mCount % mCapacity);
+            mTimes[slot] = now;
+            mThreads[slot] = threadId;
+            mIds[slot] = id;
+            mNames[slot] = name;
+            mPhases[slot] = phase;
+            mCount++;
+            noteThread(threadId, thread);
+        }
+    }
+
+    private void noteThread(long threadId, Thread thread) {
+        for (int i = 0; i < mThreadCount; i++) {
+            if (mThreadIds[i] == threadId) {
+                return;
+            }
+        }
+        if (mThreadCount < MAX_THREADS) {
+            mThreadIds[mThreadCount] = threadId;
+            mThreadNames[mThreadCount] = thread.getName();
+            mThreadCount++;
+        }
+    }
+
+    /** Nombre d’événements gardés. */
+    public synchronized int size() {
+        return (int) Math.min(mCount, mCapacity);
+    }
+
+    /** Nombre d’événements remplacés par de plus récents. */
+    public synchronized long getOverwritten() {
+        return Math.max(0, mCount - mCapacity);
+    }
+
+    public synchronized void clear() {
+        mCount = 0;
+    }
+
+    /**
+     * Export au format JSON « Trace Event » de Chrome. Les événements sont copiés, puis
+     * écrits sans bloquer l’enregistrement. Les fins dont le début a été remplacé sont
+     * omises.
+     * @param out destination
+     * @param processId identifiant de processus à indiquer
+     * @throws IOException
+     */
+    public void writeChromeJson(Writer out, int processId) throws IOException {
+        final int size;
+        final long first;
+        final long[] times;
+        final long[] threads;
+        final long[] ids;
+        final int[] names;
+        final byte[] phases;
+        final String[] nameTable;
+        final HashMap<Long, String> threadNames = new HashMap<Long, String>();
+        synchronized (this) {
+            size = size();
+            first = mCount - size;
+            times = mTimes.clone();
+            threads = mThreads.clone();
+            ids = mIds.clone();
+            names = mNames.clone();
+            phases = mPhases.clone();
+            nameTable = mNameTable.toArray(new String[mNameTable.size()]);
+            for (int i = 0; i < mThreadCount; i++) {
+                threadNames.put(mThreadIds[i], mThreadNames[i]);
+            }
+        }
+
+        out.write("{\"displayTimeUnit\":\"ms\",\"traceEvents\":[");
+        boolean comma = false;
+        for (Long thread : threadNames.keySet()) {
+            out.write(comma ? ",\n" : "\n");
+            comma = true;
+            out.write("{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":" + processId
+                    + ",\"tid\":" + thread + ",\"args\":{\"name\":\""
+                    + escape(threadNames.get(thread)) + "\"}}");
+        }
+        // Profondeur des intervalles ouverts par thread, et intervalles asynchrones ouverts.
+        final HashMap<Long, Integer> depths = new HashMap<Long, Integer>();
+        final HashSet<String> open = new HashSet<String>();
+        final StringBuilder event = new StringBuilder(160);
+        for (long n = first; n < first + size; n++) {
+            final int slot = (int) (n % mCapacity);
+            final String name = nameTable[names[slot]];
+            final byte phase = phases[slot];
+            if (phase == PHASE_BEGIN || phase == PHASE_END) {
+                final Integer depth = depths.get(threads[slot]);
+                final int current = depth == null ? 0 : depth;
+                if (phase == PHASE_END && current == 0) {
+                    continue;
+                }
+                depths.put(threads[slot], phase == PHASE_BEGIN ? current + 1 : current - 1);
+            } else if (phase == PHASE_ASYNC_BEGIN) {
+                open.add(name + '#' + ids[slot]);
+            } else if (phase == PHASE_ASYNC_END && !open.remove(name + '#' + ids[slot])) {
+                continue;
+            }
+            event.setLength(0);
+            event.append("{\"name\":\"").append(escape(name))
+                    .append("\",\"cat\":\"").append(escape(category(name)))
+                    .append("\",\"ph\":\"").append((char) phase)
+                    .append("\",\"ts\":").append(times[slot] / 1000)
+                    .append('.').append(String.format(Locale.ROOT, "%03d", times[slot] % 1000))
+                    .append(",\"pid\":").append(processId)
+                    .append(",\"tid\":").append(threads[slot]);
+            if (phase == PHASE_ASYNC_BEGIN || phase == PHASE_ASYNC_END) {
+                event.append(",\"id\":\"0x").append(Long.toHexString(ids[slot])).append('"');
+            } else if (phase == PHASE_INSTANT) {
+                event.append(",\"s\":\"t\"");
+            }
+            event.append('}');
+            out.write(comma ? ",\n" : "\n");
+            comma = true;
+            out.write(event.toString());
+        }
+        out.write("\n]}\n");
+        out.flush();
+    }
+
+    private static String category(String name) {
+        final int dot = name.indexOf('.');
+        return dot > 0 ? name.substring(0, dot) : name;
+    }
+
+    private static String escape(String text) {
+        final StringBuilder escaped = new StringBuilder(text.length());
+        for (int i = 0; i < text.length(); i++) {
+            final char c = text.charAt(i);
+            if (c == '"' || c == '\\') {
+                escaped.append('\\').append(c);
+            } else if (c < 0x20) {
+                escaped.append(String.format("\\u%04x", (int) c));
+            } else {
+                escaped.append(c);
+            }
+        }
+        return escaped.toString();
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2017 CentraleSupélec
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.centralesupelec.students.clientble.core;
+
+import java.util.UUID;
+
+/**
+ * Liaison avec un appareil proposant notre profil privé : pile Bluetooth d’Android, ou
+ * appareil simulé ({@link SimulatedTransport}) pour exécuter et mesurer le cœur sur la JVM.
+ *
+ * Les opérations sont asynchrones : leur résultat arrive par le {@link Callback}.
+ */
+public interface Transport {
+
+    /**
+     * Événements de la liaison.
+     */
+    interface Callback {
+        /**
+         * Connexion établie et services découverts : l’appareil est prêt.
+         * @param address adresse de l’appareil
+         */
+        void onConnected(String address);
+
+        /**
+         * Fin de la connexion.
+         * @param address adresse de l’appareil
+         */
+        void onDisconnected(String address);
+
+        /**
+         * Valeur lue ou notifiée d’une caractéristique.
+         * @param address adresse de l’appareil
+         * @param characteristic UUID de la caractéristique
+         * @param value valeur ; le tableau peut être réutilisé après le retour de l’appel
+         * @param notification true pour une notification, false pour une lecture
+         * @param timestampNanos date de réception (horloge monotone de la plateforme), en ns
+         */
+        void onValue(String address, UUID characteristic, byte[] value, boolean notification,
+                     long timestampNanos);
+    }
+
+    void setCallback(Callback callback);
+
+    /** Adresse de l’appareil. */
+    String getAddress();
+
+    /**
+     * Date courante, sur l’horloge des dates de réception passées au callback.
+     * @return date en ns
+     */
+    long nanoTime();
+
+    /**
+     * Demande de connexion.
+     * @return false si la demande ne peut pas être lancée
+     */
+    boolean connect();
+
+    void disconnect();
+
+    /**
+     * Demande de lecture d’une caractéristique.
+     * @param characteristic UUID de la caractéristique
+     * @return false si la demande ne peut pas être lancée
+     */
+    boolean read(UUID characteristic);
+
+    /**
+     * Demande d’écriture d’une caractéristique.
+     * @param characteristic UUID de la caractéristique
+     * @param value valeur à écrire
+     * @return false si la demande ne peut pas être lancée
+     */
+    boolean write(UUID characteristic, byte[] value);
+
+    /**
+     * Activation ou désactivation des notifications d’une caractéristique.
+     * @param characteristic UUID de la caractéristique
+     * @param enabled
+     * @return false si la demande ne peut pas être lancée
+     */
+    boolean setNotification(UUID characteristic, boolean enabled);
+}
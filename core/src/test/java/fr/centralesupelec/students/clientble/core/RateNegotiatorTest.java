@@ -0,0 +1,190 @@
+/*
+ * Copyright (C) 2017 CentraleSupélec
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.centralesupelec.students.clientble.core;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.UUID;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Négociation de la période d’échantillonnage avec l’appareil simulé : envoi, acquittement,
+ * confirmation par relecture, nouvel envoi et abandon.
+ */
+public class RateNegotiatorTest {
+
+    private static final UUID WRITABLE = PrivateProfile.WRITABLE_CHARACTERISTIC_UUID;
+
+    /**
+     * Appareil qui garde sa période : toute commande est remplacée par un réglage à 1000 ms,
+     * dont l’acquittement ne confirme donc pas la commande envoyée.
+     */
+    private static class StubbornTransport extends SimulatedTransport {
+        StubbornTransport() {
+            super("00:00:00:00:00:02", 1000000000L, 0, 1);
+        }
+
+        @Override
+        public boolean write(UUID characteristic, byte[] value) {
+            return super.write(characteristic, RateCommand.setInterval(1000));
+        }
+    }
+
+    private RateController mController;
+    private RateNegotiator mNegotiator;
+    private byte[] mReadBack;
+
+    @Before
+    public void setUp() {
+        mController = new RateController();
+        mNegotiator = new RateNegotiator(mController);
+        mReadBack = null;
+    }
+
+    private void attach(Transport transport) {
+        transport.setCallback(new Transport.Callback() {
+            @Override
+            public void onConnected(String address) {
+            }
+
+            @Override
+            public void onDisconnected(String address) {
+            }
+
+            @Override
+            public void onValue(String address, UUID characteristic, byte[] value,
+                                boolean notification, long timestampNanos) {
+                if (WRITABLE.equals(characteristic)) {
+                    mReadBack = value.clone();
+                }
+            }
+        });
+    }
+
+    /**
+     * Envoi d’une commande puis relecture, comme le fait le service.
+     * @return true si la période est confirmée
+     */
+    private boolean exchange(Transport transport, byte[] frame) {
+        assertTrue(transport.write(WRITABLE, frame));
+        assertTrue(transport.read(WRITABLE));
+        return mNegotiator.confirm(mReadBack);
+    }
+
+    @Test
+    public void setAckAndConfirm() {
+        final SimulatedTransport transport =
+                new SimulatedTransport("00:00:00:00:00:01", 1000000000L, 0, 1);
+        attach(transport);
+        mController.setDemand(RateController.CONSUMER_DISPLAY, RateController.DISPLAY_INTERVAL);
+
+        final byte[] frame = mNegotiator.nextCommand();
+        assertNotNull(frame);
+        assertEquals(RateController.DISPLAY_INTERVAL, RateCommand.parseInterval(frame));
+        assertTrue(mNegotiator.isPending());
+        // Une seule commande en attente à la fois.
+        assertNull(mNegotiator.nextCommand());
+
+        assertTrue(exchange(transport, frame));
+        // L’appareil a remplacé la trame par son acquittement, et appliqué la période.
+        assertEquals(RateCommand.OP_SET_INTERVAL | RateCommand.ACK, mReadBack[1] & 0xff);
+        assertEquals(RateController.DISPLAY_INTERVAL * 1000000L, transport.getIntervalNanos());
+        assertEquals(RateController.DISPLAY_INTERVAL, mController.getConfirmed());
+        assertFalse(mNegotiator.isPending());
+        // Période confirmée : plus rien à envoyer.
+        assertNull(mNegotiator.nextCommand());
+    }
+
+    @Test
+    public void identicalReadBackConfirms() {
+        mController.setDemand(RateController.CONSUMER_ALERTS, RateController.ALERTS_INTERVAL);
+        final byte[] frame = mNegotiator.nextCommand();
+        final byte[] padded = new byte[PrivateProfile.WRITABLE_CHARACTERISTIC_MAX_LENGTH];
+        System.arraycopy(frame, 0, padded, 0, frame.length);
+        assertTrue(mNegotiator.confirm(padded));
+        assertEquals(RateController.ALERTS_INTERVAL, mController.getConfirmed());
+    }
+
+    @Test
+    public void mismatchIsRetried() {
+        final StubbornTransport transport = new StubbornTransport();
+        attach(transport);
+        mController.setDemand(RateController.CONSUMER_DISPLAY, RateController.DISPLAY_INTERVAL);
+
+        final byte[] first = mNegotiator.nextCommand();
+        assertFalse(exchange(transport, first));
+        assertEquals(-1, mController.getConfirmed());
+        assertFalse(mNegotiator.hasGivenUp());
+
+        final byte[] second = mNegotiator.nextCommand();
+        assertNotNull(second);
+        assertArrayEquals(first, second);
+    }
+
+    @Test
+    public void failedReadIsRetried() {
+        mController.setDemand(RateController.CONSUMER_DISPLAY, RateController.DISPLAY_INTERVAL);
+        assertNotNull(mNegotiator.nextCommand());
+        // Relecture refusée par la pile Bluetooth.
+        assertFalse(mNegotiator.confirm(null));
+        assertFalse(mNegotiator.isPending());
+        assertNotNull(mNegotiator.nextCommand());
+    }
+
+    @Test
+    public void givesUpAfterMaxAttempts() {
+        final StubbornTransport transport = new StubbornTransport();
+        attach(transport);
+        mController.setDemand(RateController.CONSUMER_DISPLAY, RateController.DISPLAY_INTERVAL);
+
+        int attempts = 0;
+        byte[] frame;
+        while ((frame = mNegotiator.nextCommand()) != null) {
+            attempts++;
+            assertFalse(exchange(transport, frame));
+            assertTrue(attempts <= RateNegotiator.MAX_ATTEMPTS);
+        }
+        assertEquals(RateNegotiator.MAX_ATTEMPTS, attempts);
+        assertTrue(mNegotiator.hasGivenUp());
+
+        // Nouveau besoin (plus aucun consommateur) : les essais reprennent.
+        mController.setDemand(RateController.CONSUMER_DISPLAY, 0);
+        frame = mNegotiator.nextCommand();
+        assertNotNull(frame);
+        assertEquals(RateController.IDLE_INTERVAL, RateCommand.parseInterval(frame));
+        assertFalse(mNegotiator.hasGivenUp());
+    }
+
+    @Test
+    public void resetForgetsConfirmedInterval() {
+        mController.setDemand(RateController.CONSUMER_DISPLAY, RateController.DISPLAY_INTERVAL);
+        final byte[] frame = mNegotiator.nextCommand();
+        assertTrue(mNegotiator.confirm(frame));
+        assertNull(mNegotiator.nextCommand());
+
+        mNegotiator.reset();
+        assertEquals(-1, mController.getConfirmed());
+        // Nouvelle connexion : la période est envoyée à nouveau.
+        assertNotNull(mNegotiator.nextCommand());
+    }
+}
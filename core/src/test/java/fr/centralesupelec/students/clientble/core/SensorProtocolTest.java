@@ -0,0 +1,252 @@
+/*
+ * Copyright (C) 2017 CentraleSupélec
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.centralesupelec.students.clientble.core;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Traitement des valeurs du service privé, branché sur l’appareil simulé ou alimenté comme
+ * par une liaison : décodage, pertes et désordre des notifications, règles d’alerte.
+ */
+public class SensorProtocolTest {
+
+    private static final UUID SENSOR = PrivateProfile.SENSOR_CHARACTERISTIC_UUID;
+    private static final String ADDRESS = "00:00:00:00:00:10";
+    private static final long MILLIS = 1000000L;
+
+    private SensorProtocol mProtocol;
+    private SimulatedTransport mTransport;
+
+    // Mesures publiées pour ADDRESS : valeur et origine.
+    private final ArrayList<Integer> mValues = new ArrayList<Integer>();
+    private final ArrayList<Integer> mSources = new ArrayList<Integer>();
+    private volatile CountDownLatch mSamplesLatch = new CountDownLatch(0);
+
+    private final SamplePipeline.Listener mListener = new SamplePipeline.Listener() {
+        @Override
+        public void onSample(String address, int value, int source, long timestampNanos) {
+            if (!ADDRESS.equals(address)) {
+                return;
+            }
+            synchronized (mValues) {
+                mValues.add(value);
+                mSources.add(source);
+            }
+            mSamplesLatch.countDown();
+        }
+    };
+
+    // Déclenchements des règles d’alerte : numéro de règle et valeur.
+    private final ArrayList<int[]> mAlerts = new ArrayList<int[]>();
+    private volatile CountDownLatch mAlertLatch = new CountDownLatch(0);
+
+    private final AlertRules.Listener mAlertListener = new AlertRules.Listener() {
+        @Override
+        public void onAlert(AlertRules rules, int rule, int value) {
+            synchronized (mAlerts) {
+                mAlerts.add(new int[]{rule, value});
+            }
+            mAlertLatch.countDown();
+        }
+    };
+
+    @Before
+    public void setUp() {
+        mProtocol = new SensorProtocol(SamplePipeline.getInstance());
+        SamplePipeline.getInstance().addListener(mListener);
+    }
+
+    @After
+    public void tearDown() {
+        if (mTransport != null) {
+            mTransport.disconnect();
+        }
+        SamplePipeline.getInstance().removeListener(mListener);
+    }
+
+    private void setRules(String spec) {
+        final AlertRules rules = AlertRules.compile(spec);
+        rules.setListener(mAlertListener);
+        mProtocol.setAlertRules(rules);
+    }
+
+    /** Notification reçue comme d’une liaison : valeur sur 16 bits et compteur de séquence. */
+    private void notify(int value, int sequence, long timeMillis) {
+        mProtocol.onValue(ADDRESS, SENSOR,
+                new byte[]{(byte) (value >>> 8), (byte) value, (byte) sequence}, true,
+                timeMillis * MILLIS);
+    }
+
+    private static int percent(double percent) {
+        return (int) Math.round(percent * SensorDecoder.MAX_VALUE / 100);
+    }
+
+    private LinkQualityTracker.Quality quality() {
+        final LinkQualityTracker.Quality quality = new LinkQualityTracker.Quality();
+        mProtocol.getLinkQuality().copy(ADDRESS, quality);
+        return quality;
+    }
+
+    @Test
+    public void decodesValues() {
+        assertEquals(0x1234, mProtocol.handleSensorValue(ADDRESS, new byte[]{0x12, 0x34, 7},
+                SamplePipeline.SOURCE_READ, 0));
+        // Un seul octet : petite valeur.
+        assertEquals(0x7f, mProtocol.handleSensorValue(ADDRESS, new byte[]{0x7f},
+                SamplePipeline.SOURCE_READ, 0));
+        assertEquals(0xffff, mProtocol.handleSensorValue(ADDRESS,
+                new byte[]{(byte) 0xff, (byte) 0xff}, SamplePipeline.SOURCE_READ, 0));
+        // Charge utile vide : rien n’est publié.
+        assertEquals(-1, mProtocol.handleSensorValue(ADDRESS, new byte[0],
+                SamplePipeline.SOURCE_READ, 0));
+        assertEquals(3, mValues.size());
+        // Les autres caractéristiques ne sont pas des mesures.
+        mProtocol.onValue(ADDRESS, PrivateProfile.WRITABLE_CHARACTERISTIC_UUID,
+                new byte[]{1, 2}, true, 0);
+        assertEquals(3, mValues.size());
+    }
+
+    @Test
+    public void decodesSimulatedNotificationsAndReads() throws InterruptedException {
+        mTransport = new SimulatedTransport(ADDRESS, 2 * MILLIS, 0, 1);
+        mTransport.setCallback(mProtocol);
+        mSamplesLatch = new CountDownLatch(50);
+        assertTrue(mTransport.connect());
+        assertTrue(mTransport.setNotification(SENSOR, true));
+        assertTrue(mSamplesLatch.await(5, TimeUnit.SECONDS));
+        mTransport.setNotification(SENSOR, false);
+        assertTrue(mTransport.read(SENSOR));
+
+        synchronized (mValues) {
+            for (int i = 0; i < mValues.size(); i++) {
+                assertTrue(mValues.get(i) >= 0 && mValues.get(i) <= SensorDecoder.MAX_VALUE);
+            }
+            assertEquals(SamplePipeline.SOURCE_NOTIFICATION, (int) mSources.get(0));
+            assertEquals(SamplePipeline.SOURCE_READ, (int) mSources.get(mSources.size() - 1));
+        }
+        // Aucune perte simulée : séquence complète.
+        final LinkQualityTracker.Quality quality = quality();
+        assertTrue(quality.received >= 50);
+        assertEquals(quality.received, quality.sequenced);
+        assertEquals(0, quality.lost);
+    }
+
+    @Test
+    public void countsSimulatedLosses() throws InterruptedException {
+        mTransport = new SimulatedTransport(ADDRESS, MILLIS, 0.3, 42);
+        mTransport.setCallback(mProtocol);
+        mSamplesLatch = new CountDownLatch(300);
+        assertTrue(mTransport.connect());
+        assertTrue(mTransport.setNotification(SENSOR, true));
+        assertTrue(mSamplesLatch.await(10, TimeUnit.SECONDS));
+        mTransport.disconnect();
+        mTransport = null;
+
+        final LinkQualityTracker.Quality quality = quality();
+        assertTrue(quality.lost > 0);
+        assertEquals(0, quality.duplicates);
+        assertTrue("taux de pertes " + quality.getLossRate(),
+                quality.getLossRate() > 0.15 && quality.getLossRate() < 0.45);
+    }
+
+    @Test
+    public void tracksLossReorderingAndDuplicates() {
+        notify(100, 0, 0);
+        notify(100, 1, 10);
+        notify(100, 4, 20);
+        assertEquals(2, quality().lost);
+        // Notification 2 arrivée en retard : plus comptée comme perdue.
+        notify(100, 2, 30);
+        assertEquals(1, quality().lost);
+        assertEquals(1, quality().reordered);
+        notify(100, 4, 40);
+        assertEquals(1, quality().duplicates);
+        // Passage du compteur de 255 à 0 sans perte.
+        for (int sequence = 5; sequence <= 260; sequence++) {
+            notify(100, sequence & 0xff, 40 + sequence);
+        }
+        assertEquals(1, quality().lost);
+        // Nouvelle connexion : le compteur repart de zéro.
+        mProtocol.onConnected(ADDRESS);
+        notify(100, 0, 1000);
+        assertEquals(0, quality().lost);
+    }
+
+    @Test
+    public void firesThresholdRulesWithHysteresis() {
+        setRules("above 80 75");
+        notify(percent(50), 0, 0);
+        notify(percent(90), 1, 10);
+        notify(percent(95), 2, 20);
+        assertEquals(1, mAlerts.size());
+        assertEquals(0, mAlerts.get(0)[0]);
+        assertEquals(percent(90), mAlerts.get(0)[1]);
+        // Entre les deux seuils : pas de réarmement.
+        notify(percent(78), 3, 30);
+        notify(percent(85), 4, 40);
+        assertEquals(1, mAlerts.size());
+        // Sous le seuil de réarmement, puis nouveau dépassement.
+        notify(percent(70), 5, 50);
+        notify(percent(85), 6, 60);
+        assertEquals(2, mAlerts.size());
+    }
+
+    @Test
+    public void firesRateAndSilenceRules() {
+        setRules("rate 20; silence 1");
+        notify(percent(10), 0, 0);
+        // 40 % en 1 s : au-delà de 20 %/s.
+        notify(percent(50), 1, 1000);
+        assertEquals(1, mAlerts.size());
+        assertEquals(0, mAlerts.get(0)[0]);
+
+        mProtocol.checkSilence(1500);
+        assertEquals(1, mAlerts.size());
+        mProtocol.checkSilence(2500);
+        assertEquals(2, mAlerts.size());
+        assertEquals(1, mAlerts.get(1)[0]);
+        // Une seule alerte tant que le silence dure.
+        mProtocol.checkSilence(3500);
+        assertEquals(2, mAlerts.size());
+    }
+
+    @Test
+    public void firesAlertsFromSimulatedDevice() throws InterruptedException {
+        // La valeur simulée oscille autour de la mi-échelle : toujours au-dessus de 1 %.
+        setRules("above 1");
+        mTransport = new SimulatedTransport(ADDRESS, 2 * MILLIS, 0, 1);
+        mTransport.setCallback(mProtocol);
+        mAlertLatch = new CountDownLatch(1);
+        assertTrue(mTransport.connect());
+        assertTrue(mTransport.setNotification(SENSOR, true));
+        assertTrue(mAlertLatch.await(5, TimeUnit.SECONDS));
+        mTransport.disconnect();
+        mTransport = null;
+        synchronized (mAlerts) {
+            assertEquals(1, mAlerts.size());
+        }
+    }
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) 2017 CentraleSupélec
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package fr.centralesupelec.students.clientble.core;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Mise en route des mesures à la connexion, sur l’appareil simulé : lecture et souscription
+ * demandées ensemble, délai de première mesure, souscription tenue entre les connexions.
+ */
+public class StreamingSessionTest {
+
+    private static final UUID SENSOR = PrivateProfile.SENSOR_CHARACTERISTIC_UUID;
+    private static final String ADDRESS = "00:00:00:00:00:20";
+    private static final long MILLIS = 1000000L;
+
+    /** Appareil simulé notant les opérations demandées. */
+    private static class RecordingTransport extends SimulatedTransport {
+        final ArrayList<String> operations = new ArrayList<String>();
+        volatile boolean failReads;
+
+        RecordingTransport() {
+            super(ADDRESS, 2 * MILLIS, 0, 1);
+        }
+
+        @Override
+        public boolean read(UUID characteristic) {
+            synchronized (operations) {
+                operations.add("read " + characteristic);
+            }
+            return !failReads && super.read(characteristic);
+        }
+
+        @Override
+        public boolean setNotification(UUID characteristic, boolean enabled) {
+            synchronized (operations) {
+                operations.add("notify " + characteristic + " " + enabled);
+            }
+            return super.setNotification(characteristic, enabled);
+        }
+
+        ArrayList<String> takeOperations() {
+            synchronized (operations) {
+                final ArrayList<String> copy = new ArrayList<String>(operations);
+                operations.clear();
+                return copy;
+            }
+        }
+    }
+
+    private RecordingTransport mTransport;
+    private StreamingSession mSession;
+
+    private volatile long mListenerDelay = -1;
+    private volatile CountDownLatch mFirstSampleLatch = new CountDownLatch(1);
+    private volatile CountDownLatch mSamplesLatch = new CountDownLatch(0);
+
+    private final SamplePipeline.Listener mListener = new SamplePipeline.Listener() {
+        @Override
+        public void onSample(String address, int value, int source, long timestampNanos) {
+            if (ADDRESS.equals(address) && source == SamplePipeline.SOURCE_NOTIFICATION) {
+                mSamplesLatch.countDown();
+            }
+        }
+    };
+
+    @Before
+    public void setUp() {
+        mTransport = new RecordingTransport();
+        mSession = new StreamingSession(mTransport,
+                new SensorProtocol(SamplePipeline.getInstance()));
+        mSession.setListener(new StreamingSession.Listener() {
+            @Override
+            public void onFirstSample(String address, long delayNanos) {
+                mListenerDelay = delayNanos;
+                mFirstSampleLatch.countDown();
+            }
+        });
+        SamplePipeline.getInstance().addListener(mListener);
+    }
+
+    @After
+    public void tearDown() {
+        mTransport.disconnect();
+        SamplePipeline.getInstance().removeListener(mListener);
+    }
+
+    @Test
+    public void readsAndSubscribesTogetherOnConnect() throws InterruptedException {
+        mSession.setSubscriptionWanted(true);
+        assertTrue(mTransport.takeOperations().isEmpty());
+        mSamplesLatch = new CountDownLatch(10);
+        assertTrue(mSession.connect());
+
+        assertEquals(Arrays.asList("read " + SENSOR, "notify " + SENSOR + " true"),
+                mTransport.takeOperations());
+        assertTrue(mSession.isSubscribed());
+        // Première mesure donnée par la lecture, pendant la connexion.
+        final long delay = mSession.getTimeToFirstSampleNanos();
+        assertTrue(delay >= 0);
+        assertTrue(mFirstSampleLatch.await(1, TimeUnit.SECONDS));
+        assertEquals(delay, mListenerDelay);
+        assertTrue(mSamplesLatch.await(5, TimeUnit.SECONDS));
+        // Les mesures suivantes ne changent pas le délai.
+        assertEquals(delay, mSession.getTimeToFirstSampleNanos());
+    }
+
+    @Test
+    public void subscribesOnDemandOnly() throws InterruptedException {
+        assertTrue(mSession.connect());
+        assertEquals(Arrays.asList("read " + SENSOR), mTransport.takeOperations());
+        assertFalse(mSession.isSubscribed());
+
+        mSamplesLatch = new CountDownLatch(10);
+        assertTrue(mSession.setSubscriptionWanted(true));
+        assertFalse(mSession.setSubscriptionWanted(true));
+        assertEquals(Arrays.asList("notify " + SENSOR + " true"), mTransport.takeOperations());
+        assertTrue(mSamplesLatch.await(5, TimeUnit.SECONDS));
+
+        assertTrue(mSession.setSubscriptionWanted(false));
+        assertEquals(Arrays.asList("notify " + SENSOR + " false"), mTransport.takeOperations());
+    }
+
+    @Test
+    public void recordsFirstNotificationWhenReadFails() throws InterruptedException {
+        mTransport.failReads = true;
+        mSession.setSubscriptionWanted(true);
+        assertTrue(mSession.connect());
+        assertEquals(Arrays.asList("read " + SENSOR, "notify " + SENSOR + " true"),
+                mTransport.takeOperations());
+        assertTrue(mFirstSampleLatch.await(5, TimeUnit.SECONDS));
+        assertTrue(mSession.getTimeToFirstSampleNanos() >= 0);
+        assertEquals(mSession.getTimeToFirstSampleNanos(), mListenerDelay);
+    }
+
+    @Test
+    public void resubscribesAndResetsDelayOnReconnect() throws InterruptedException {
+        mSession.setSubscriptionWanted(true);
+        assertTrue(mSession.connect());
+        assertTrue(mFirstSampleLatch.await(1, TimeUnit.SECONDS));
+        mTransport.disconnect();
+        assertFalse(mSession.isSubscribed());
+        mTransport.takeOperations();
+
+        mTransport.failReads = true;
+        mFirstSampleLatch = new CountDownLatch(1);
+        assertTrue(mSession.connect());
+        assertEquals(Arrays.asList("read " + SENSOR, "notify " + SENSOR + " true"),
+                mTransport.takeOperations());
+        // Délai remis à zéro par la connexion : nouvelle première mesure signalée.
+        assertTrue(mFirstSampleLatch.await(5, TimeUnit.SECONDS));
+        assertTrue(mSession.getTimeToFirstSampleNanos() >= 0);
+    }
+}
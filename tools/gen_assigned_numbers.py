@@ -0,0 +1,58 @@
+#!/usr/bin/env python3
+# Copyright (C) 2017 CentraleSupélec
+#
+# Licensed under the Apache License, Version 2.0 (the "License");
+# you may not use this file except in compliance with the License.
+# You may obtain a copy of the License at
+#
+#      http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+
+"""Génère la ressource binaire des numéros attribués lue par AssignedNumbers.java.
+
+Format (gros-boutiste) :
+    'GATN' | version (u8) | nombre d'entrées (u16)
+    puis pour chaque entrée : uuid16 (u16) | type (u8) | longueur du nom (u8) | nom (UTF-8)
+
+Usage : python3 tools/gen_assigned_numbers.py
+"""
+
+import os
+import struct
+
+KINDS = {'service': 1, 'declaration': 2, 'characteristic': 3, 'descriptor': 4}
+HERE = os.path.dirname(os.path.abspath(__file__))
+SOURCE = os.path.join(HERE, 'assigned_numbers.csv')
+TARGET = os.path.join(HERE, '..', 'Application', 'src', 'main', 'res', 'raw',
+                      'gatt_assigned_numbers.bin')
+
+
+def main():
+    entries = {}
+    with open(SOURCE, encoding='utf-8') as source:
+        for line in source:
+            line = line.strip()
+            if not line or line.startswith('#'):
+                continue
+            kind, uuid, name = line.split(',', 2)
+            uuid = int(uuid, 16)
+            if uuid in entries:
+                raise SystemExit('UUID en double : %04X' % uuid)
+            entries[uuid] = (KINDS[kind], name.encode('utf-8'))
+
+    with open(TARGET, 'wb') as target:
+        target.write(b'GATN')
+        target.write(struct.pack('>BH', 1, len(entries)))
+        for uuid in sorted(entries):
+            kind, name = entries[uuid]
+            target.write(struct.pack('>HBB', uuid, kind, len(name)))
+            target.write(name)
+
+
+if __name__ == '__main__':
+    main()